@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates that an {@link ExcelRowCodec} should be generated for the (top-level) class, by the annotation
+ * processor in <tt>isis-module-excel-processor</tt>.
+ *
+ * <p>
+ *     The {@link ExcelService} then reads and writes the class' properties through the codec's getters and setters
+ *     rather than through the metamodel (as for the <tt>isis.services.excel.trusted</tt> setting), so bypassing
+ *     domain events and auditing.  The metamodel still determines which properties are exported (those visible) and
+ *     which are set (those editable).  Properties with a <tt>modifyXxx()</tt> method are always set through the
+ *     metamodel, so that the method is still invoked.
+ * </p>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface ExcelCodec {
+}
@@ -135,17 +135,28 @@ public class ExcelFixture extends FixtureScript {
             blob = new Blob("unused", ExcelService.XSLX_MIME_TYPE, bytes);
         }
 
-        for (Class cls : classes) {
-            final List rowObjects = excelServiceImpl.fromExcel(
-                    blob, cls, ExcelServiceImpl.SheetLookupPolicy.BY_NAME);
-            Object previousRow = null;
-            for (final Object rowObj : rowObjects) {
-                final List<Object> createdObjects = create(rowObj, ec, previousRow);
-                if (createdObjects != null) {
-                    addToMap(cls, createdObjects);
-                    addToCombined(createdObjects);
+        // any sheet read by more than one of the classes is parsed only once
+        try (ExcelServiceImpl.MultiPassImport excelImport = excelServiceImpl.openImport(blob)) {
+            for (final Class cls : classes) {
+                // rows are only created once the whole sheet has been imported, so that a row that fails to import
+                // leaves none of the sheet's rows persisted
+                final List<Object> rowObjects = Lists.newArrayList();
+                excelImport.fromExcel(
+                        cls, ExcelServiceImpl.SheetLookupPolicy.BY_NAME, new ExcelServiceImpl.ImportCallback<Object>() {
+                            @Override
+                            public void onImported(final Object rowObj) {
+                                rowObjects.add(rowObj);
+                            }
+                        });
+                Object previousRow = null;
+                for (final Object rowObj : rowObjects) {
+                    final List<Object> createdObjects = create(rowObj, ec, previousRow);
+                    if (createdObjects != null) {
+                        addToMap(cls, createdObjects);
+                        addToCombined(createdObjects);
+                    }
+                    previousRow = rowObj;
                 }
-                previousRow = rowObj;
             }
         }
     }
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom;
+
+/**
+ * Reads and writes the properties of a class annotated with {@link ExcelCodec}; generated at build time, as
+ * <tt>&lt;SimpleName&gt;_ExcelRowCodec</tt> in the same package as the class.
+ */
+public interface ExcelRowCodec<T> {
+
+    String SUFFIX = "_ExcelRowCodec";
+
+    /**
+     * The ids of the properties (those with a getter), in the order of their indices.
+     */
+    String[] getPropertyIds();
+
+    Object get(T domainObject, int propertyIndex);
+
+    boolean isSettable(int propertyIndex);
+
+    /**
+     * @throws UnsupportedOperationException if the property has no setter.
+     */
+    void set(T domainObject, int propertyIndex, Object value);
+}
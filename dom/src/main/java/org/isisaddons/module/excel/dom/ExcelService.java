@@ -16,10 +16,17 @@
  */
 package org.isisaddons.module.excel.dom;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.List;
 import java.util.Map;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.poi.ss.util.CellReference;
 
 import org.apache.isis.applib.DomainObjectContainer;
 import org.apache.isis.applib.RecoverableException;
@@ -50,7 +57,111 @@ public class ExcelService {
         }
     }
 
+    /**
+     * A cell (or, if the {@link #getColumnIndex() column} is not known, a row) that could not be imported by
+     * {@link #fromExcelValidating(Blob, Class)}.
+     */
+    public static class ImportError implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int rowNum;
+        private final int columnIndex;
+        private final String property;
+        private final String value;
+        private final String message;
+
+        public ImportError(
+                final int rowNum,
+                final int columnIndex,
+                final String property,
+                final String value,
+                final String message) {
+            this.rowNum = rowNum;
+            this.columnIndex = columnIndex;
+            this.property = property;
+            this.value = value;
+            this.message = message;
+        }
+
+        /**
+         * Zero-based, as for {@link org.apache.poi.ss.usermodel.Row#getRowNum()}.
+         */
+        public int getRowNum() {
+            return rowNum;
+        }
+
+        /**
+         * Zero-based, or <tt>-1</tt> if the error applies to the row as a whole.
+         */
+        public int getColumnIndex() {
+            return columnIndex;
+        }
+
+        /**
+         * The name of the property that the column maps to, if known.
+         */
+        public String getProperty() {
+            return property;
+        }
+
+        /**
+         * The contents of the cell, as text.
+         */
+        public String getValue() {
+            return value;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * As shown by Excel, for example <tt>B7</tt> (or just <tt>7</tt> for the row as a whole).
+         */
+        public String getCellReference() {
+            return columnIndex >= 0
+                    ? new CellReference(rowNum, columnIndex).formatAsString()
+                    : String.valueOf(rowNum + 1);
+        }
+
+        @Override
+        public String toString() {
+            return property != null
+                    ? String.format("%s (%s) '%s': %s", getCellReference(), property, value, message)
+                    : String.format("%s: %s", getCellReference(), message);
+        }
+    }
+
+    /**
+     * The outcome of {@link #fromExcelValidating(Blob, Class)}: the objects for the rows that could be imported,
+     * along with an error for each cell (or row) that could not.
+     */
+    public static class ImportResult<T> {
+
+        private final List<T> imported;
+        private final List<ImportError> errors;
+
+        public ImportResult(final List<T> imported, final List<ImportError> errors) {
+            this.imported = imported;
+            this.errors = errors;
+        }
+
+        public List<T> getImported() {
+            return imported;
+        }
+
+        public List<ImportError> getErrors() {
+            return errors;
+        }
+
+        public boolean hasErrors() {
+            return !errors.isEmpty();
+        }
+    }
+
     public static final String XSLX_MIME_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+    public static final String CSV_MIME_TYPE = "text/csv";
 
     private ExcelServiceImpl excelServiceImpl;
 
@@ -60,7 +171,16 @@ public class ExcelService {
     @Programmatic
     @PostConstruct
     public void init(final Map<String,String> properties) {
-        excelServiceImpl = new ExcelServiceImpl(container, bookmarkService);
+        excelServiceImpl = new ExcelServiceImpl(container, bookmarkService, properties);
+        excelServiceImpl.warmUp();
+    }
+
+    @Programmatic
+    @PreDestroy
+    public void shutdown() {
+        if(excelServiceImpl != null) {
+            excelServiceImpl.shutdown();
+        }
     }
 
     // //////////////////////////////////////
@@ -85,6 +205,19 @@ public class ExcelService {
         return excelServiceImpl.toExcel(domainObjects, cls, fileName);
     }
 
+    /**
+     * As {@link #toExcel(List, Class, String)}, but writing the spreadsheet to the stream (which is flushed, but not
+     * closed) rather than returning a Blob; for example, to stream it to an HTTP response.
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+
+        excelServiceImpl.toExcel(domainObjects, cls, os);
+    }
+
     /**
      * Returns a list of objects for each line in the spreadsheet, of the specified type.
      *
@@ -103,6 +236,92 @@ public class ExcelService {
         return excelServiceImpl.fromExcel(excelBlob, cls, defaultPolicy());
     }
 
+    /**
+     * As {@link #fromExcel(Blob, Class)}, but rather than failing on the first row that cannot be imported, carries
+     * on to the end of the spreadsheet and reports every cell that could not be imported (or whose value the
+     * metamodel rejects as invalid, or whose reference cannot be found).  Only those rows without any errors are
+     * imported.
+     */
+    @Programmatic
+    public <T> ImportResult<T> fromExcelValidating(
+            final Blob excelBlob,
+            final Class<T> cls) throws ExcelService.Exception {
+
+        return excelServiceImpl.fromExcelValidating(excelBlob, cls, defaultPolicy());
+    }
+
+    /**
+     * As {@link #fromExcelValidating(Blob, Class)}, but reading the spreadsheet from a file (for example, an upload
+     * spooled to disk), and passing each object to the callback as soon as it has been imported rather than
+     * collecting them.  An <tt>.xlsx</tt> file is memory-mapped rather than read onto the heap.
+     *
+     * @return the cells (or rows) that could not be imported.
+     */
+    @Programmatic
+    public <T> List<ImportError> fromExcelValidating(
+            final File file,
+            final Class<T> cls,
+            final ExcelServiceImpl.ImportCallback<T> callback) throws ExcelService.Exception {
+
+        return excelServiceImpl.fromExcelValidating(file, cls, defaultPolicy(), callback);
+    }
+
+    /**
+     * As {@link #toExcel(List, Class, String)}, but creating a CSV file (UTF-8, with a header row of the property
+     * names).
+     *
+     * <p>
+     *     The values are written as text that can be imported back exactly using {@link #fromCsv(Blob, Class)}: dates
+     *     in ISO-8601 format, and references as their bookmark (rather than their title).
+     * </p>
+     */
+    @Programmatic
+    public <T> Blob toCsv(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final String fileName) throws ExcelService.Exception {
+
+        return excelServiceImpl.toCsv(domainObjects, cls, fileName);
+    }
+
+    /**
+     * As {@link #toCsv(List, Class, String)}, but writing the CSV to the stream (which is flushed, but not closed).
+     */
+    @Programmatic
+    public <T> void toCsv(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+
+        excelServiceImpl.toCsv(domainObjects, cls, os);
+    }
+
+    /**
+     * As {@link #fromExcel(Blob, Class)}, but for a CSV file such as created by {@link #toCsv(List, Class, String)}.
+     */
+    @Programmatic
+    public <T> List<T> fromCsv(
+            final Blob csvBlob,
+            final Class<T> cls) throws ExcelService.Exception {
+
+        return excelServiceImpl.fromCsv(csvBlob, cls);
+    }
+
+    /**
+     * As {@link #fromExcelValidating(File, Class, ExcelServiceImpl.ImportCallback)}, but for CSV read (a
+     * record at a time) from the stream, which is then closed.
+     *
+     * @return the cells (or rows) that could not be imported.
+     */
+    @Programmatic
+    public <T> List<ImportError> fromCsvValidating(
+            final InputStream is,
+            final Class<T> cls,
+            final ExcelServiceImpl.ImportCallback<T> callback) throws ExcelService.Exception {
+
+        return excelServiceImpl.fromCsvValidating(is, cls, callback);
+    }
+
     private ExcelServiceImpl.SheetLookupPolicy defaultPolicy() {
         return ExcelServiceImpl.SheetLookupPolicy.FIRST;
     }
@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+import org.apache.isis.applib.services.bookmark.Bookmark;
+
+/**
+ * Converts the cells of {@link StagedRows} into the values of the {@link ExcelConverter.Property properties} they map to,
+ * following the same rules as {@link CellMarshaller#getCellValue(Cell, org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation)}.
+ *
+ * <p>
+ *     Does not use the Isis metamodel or any domain services, so can be called from any thread.  Reference
+ *     properties therefore decode to the {@link Bookmark} held in the cell's comment; the bookmark is resolved
+ *     later, on the session thread.
+ * </p>
+ *
+ * <p>
+ *     It is not thread-safe, though: each import uses its own instance, from the single decoder thread.
+ * </p>
+ */
+final class CellDecoder {
+
+    /**
+     * Number of characters (including any sign) that a <tt>long</tt> can always be parsed from.
+     */
+    static final int MAX_SAFE_LONG_LENGTH = 18;
+
+    private final SheetSource source;
+    private final SheetComments comments;
+    private final boolean date1904;
+
+    /**
+     * The enum constants decoded so far, indexed by shared string.
+     */
+    private final Map<Class<?>, Object[]> enumsBySharedString = Maps.newHashMap();
+
+    CellDecoder(final SheetSource source) {
+        this.source = source;
+        this.comments = source.getComments();
+        this.date1904 = source.isDate1904();
+    }
+
+    /**
+     * The text of a string cell, else <tt>null</tt>.
+     */
+    String decodeString(final StagedRows rows, final int r, final int columnIndex) {
+        switch (rows.getKind(r, columnIndex)) {
+        case StagedRows.SHARED_STRING:
+            return source.getSharedString(rows.getSharedStringIndex(r, columnIndex));
+        case StagedRows.TEXT:
+            return rows.getText(r, columnIndex);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The contents of any cell as text, for reporting.
+     */
+    String describe(final StagedRows rows, final int r, final int columnIndex) {
+        switch (rows.getKind(r, columnIndex)) {
+        case StagedRows.BLANK:
+            return null;
+        case StagedRows.LONG:
+            return Long.toString(rows.getLong(r, columnIndex));
+        case StagedRows.DECIMAL:
+            return BigDecimal.valueOf(rows.getLong(r, columnIndex), rows.getScale(r, columnIndex)).toPlainString();
+        case StagedRows.BOOLEAN:
+            return rows.getBoolean(r, columnIndex) ? "TRUE" : "FALSE";
+        case StagedRows.SHARED_STRING:
+            return source.getSharedString(rows.getSharedStringIndex(r, columnIndex));
+        default:
+            return rows.getText(r, columnIndex);
+        }
+    }
+
+    Object decode(final StagedRows rows, final int r, final int columnIndex, final ExcelConverter.Property property) {
+
+        if(rows.getKind(r, columnIndex) == StagedRows.BLANK) {
+            return null;
+        }
+
+        // value types
+        if(property.isValue()) {
+            return decodeValue(rows, r, columnIndex, property.getType());
+        }
+
+        // reference types
+        if(property.isReference()) {
+            final String bookmarkStr = comments.getComment(rows.getRowNum(r), columnIndex);
+            return bookmarkStr != null ? new Bookmark(bookmarkStr) : null;
+        }
+
+        return null;
+    }
+
+    private Object decodeValue(final StagedRows rows, final int r, final int columnIndex, final Class<?> requiredType) {
+        final byte kind = rows.getKind(r, columnIndex);
+
+        if(requiredType == boolean.class || requiredType == Boolean.class) {
+            return kind == StagedRows.BOOLEAN ? Boolean.valueOf(rows.getBoolean(r, columnIndex)) : null;
+        }
+
+        // enum
+        if(Enum.class.isAssignableFrom(requiredType)) {
+            return decodeEnum(rows, r, columnIndex, requiredType);
+        }
+
+        // date
+        if(ExcelDates.isDateType(requiredType)) {
+            return ExcelDates.fromSerial(numericValueOf(rows, r, columnIndex), date1904, requiredType);
+        }
+
+        // number
+        if(CellMarshaller.isNumericType(requiredType)) {
+            switch (kind) {
+            case StagedRows.LONG:
+                return fromLong(rows.getLong(r, columnIndex), requiredType);
+            case StagedRows.DECIMAL:
+                return requiredType == BigDecimal.class
+                        ? BigDecimal.valueOf(rows.getLong(r, columnIndex), rows.getScale(r, columnIndex))
+                        : CellMarshaller.fromNumeric(rows.getDouble(r, columnIndex), requiredType);
+            case StagedRows.NUMERIC_TEXT:
+                return decodeNumeric(rows.getText(r, columnIndex), requiredType);
+            default:
+                return null;
+            }
+        }
+
+        if(requiredType == String.class) {
+            return decodeString(rows, r, columnIndex);
+        }
+        return null;
+    }
+
+    /**
+     * Integers are converted without an intermediate <tt>double</tt> where the required type can hold them.
+     */
+    static Object fromLong(final long value, final Class<?> requiredType) {
+        if(requiredType == long.class || requiredType == Long.class) {
+            return Long.valueOf(value);
+        }
+        if((requiredType == int.class || requiredType == Integer.class) && value == (int) value) {
+            return Integer.valueOf((int) value);
+        }
+        if((requiredType == short.class || requiredType == Short.class) && value == (short) value) {
+            return Short.valueOf((short) value);
+        }
+        if((requiredType == byte.class || requiredType == Byte.class) && value == (byte) value) {
+            return Byte.valueOf((byte) value);
+        }
+        if(requiredType == BigInteger.class) {
+            return BigInteger.valueOf(value);
+        }
+        if(requiredType == BigDecimal.class) {
+            return BigDecimal.valueOf(value);
+        }
+        return CellMarshaller.fromNumeric((double) value, requiredType);
+    }
+
+    /**
+     * Numbers with more significant digits than a <tt>double</tt> holds exactly are decoded from their raw text,
+     * so that decimals and big integers are exact.  Anything else is converted as per
+     * {@link CellMarshaller#fromNumeric(double, Class)}.
+     */
+    static Object decodeNumeric(final String raw, final Class<?> requiredType) {
+        if(requiredType == BigDecimal.class) {
+            return new BigDecimal(raw);
+        }
+        if(requiredType == BigInteger.class && isPlainInteger(raw)) {
+            return new BigInteger(raw);
+        }
+        return CellMarshaller.fromNumeric(Double.parseDouble(raw), requiredType);
+    }
+
+    static boolean isPlainInteger(final String raw) {
+        final int length = raw.length();
+        int i = length > 1 && raw.charAt(0) == '-' ? 1 : 0;
+        if(i == length) {
+            return false;
+        }
+        for (; i < length; i++) {
+            final char ch = raw.charAt(i);
+            if(ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Each shared string is resolved to its enum constant only once (per enum type), rather than once per cell.
+     */
+    private Object decodeEnum(final StagedRows rows, final int r, final int columnIndex, final Class<?> enumType) {
+        if(rows.getKind(r, columnIndex) != StagedRows.SHARED_STRING) {
+            return CellMarshaller.toEnum(stringValueOf(rows, r, columnIndex), enumType);
+        }
+        final int index = rows.getSharedStringIndex(r, columnIndex);
+        Object[] constants = enumsBySharedString.get(enumType);
+        if(constants == null || index >= constants.length) {
+            constants = constants == null
+                    ? new Object[Math.max(16, index + 1)]
+                    : Arrays.copyOf(constants, Math.max(constants.length * 2, index + 1));
+            enumsBySharedString.put(enumType, constants);
+        }
+        Object constant = constants[index];
+        if(constant == null) {
+            constant = CellMarshaller.toEnum(source.getSharedString(index), enumType);
+            constants[index] = constant;
+        }
+        return constant;
+    }
+
+    private String stringValueOf(final StagedRows rows, final int r, final int columnIndex) {
+        final String value = decodeString(rows, r, columnIndex);
+        if(value == null) {
+            throw new IllegalStateException("Cannot get a text value from a " + typeName(rows.getKind(r, columnIndex)) + " cell");
+        }
+        return value;
+    }
+
+    private static double numericValueOf(final StagedRows rows, final int r, final int columnIndex) {
+        final byte kind = rows.getKind(r, columnIndex);
+        switch (kind) {
+        case StagedRows.LONG:
+            return rows.getLong(r, columnIndex);
+        case StagedRows.DECIMAL:
+            return rows.getDouble(r, columnIndex);
+        case StagedRows.NUMERIC_TEXT:
+            return Double.parseDouble(rows.getText(r, columnIndex));
+        default:
+            throw new IllegalStateException("Cannot get a numeric value from a " + typeName(kind) + " cell");
+        }
+    }
+
+    private static String typeName(final byte kind) {
+        switch (kind) {
+        case StagedRows.SHARED_STRING:
+        case StagedRows.TEXT:
+            return "text";
+        case StagedRows.BOOLEAN:
+            return "boolean";
+        case StagedRows.ERROR:
+            return "error";
+        default:
+            return "numeric";
+        }
+    }
+
+}
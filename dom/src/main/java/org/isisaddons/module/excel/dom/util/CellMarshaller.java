@@ -21,12 +21,15 @@ import java.math.BigInteger;
 import java.util.Date;
 import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFCell;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.joda.time.LocalDateTime;
 import org.apache.isis.applib.services.bookmark.Bookmark;
 import org.apache.isis.applib.services.bookmark.BookmarkService;
 import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
+import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
+import org.apache.isis.core.metamodel.consent.InteractionInitiatedBy;
 import org.apache.isis.core.metamodel.spec.ObjectSpecification;
 import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
 
@@ -34,50 +37,118 @@ final class CellMarshaller {
 
     private final CellStyle dateCellStyle;
     private final BookmarkService bookmarkService;
+    private final AdapterManager adapterManager;
+    private final boolean date1904;
 
     CellMarshaller(
             final BookmarkService bookmarkService, 
+            final AdapterManager adapterManager,
             final CellStyle dateCellStyle){
+        this(bookmarkService, adapterManager, dateCellStyle, false);
+    }
+
+    /**
+     * @param date1904 - whether the (<tt>.xlsx</tt>) workbook being read uses the 1904 date system.
+     */
+    CellMarshaller(
+            final BookmarkService bookmarkService,
+            final AdapterManager adapterManager,
+            final CellStyle dateCellStyle,
+            final boolean date1904){
         this.bookmarkService = bookmarkService;
+        this.adapterManager = adapterManager;
         this.dateCellStyle = dateCellStyle;
+        this.date1904 = date1904;
     }
     
-    void setCellValue(
+    /**
+     * The title of a referenced object, along with its bookmark.
+     */
+    static final class BookmarkedTitle {
+        private final Bookmark bookmark;
+        private final String title;
+
+        BookmarkedTitle(final Bookmark bookmark, final String title) {
+            this.bookmark = bookmark;
+            this.title = title;
+        }
+
+        Bookmark getBookmark() {
+            return bookmark;
+        }
+
+        String getTitle() {
+            return title;
+        }
+    }
+
+    /**
+     * Reads the value of the column's property in the form written by {@link #setCellValue(Cell, Object)}: the
+     * value itself for the value types written natively, a {@link BookmarkedTitle} for references, else the title.
+     *
+     * <p>
+     *     Adapters are only created for (and titles only computed for) values that are not written natively.
+     *     Uses the metamodel, so must be called on the Isis session thread.
+     * </p>
+     */
+    Object getPropertyValue(
             final ObjectAdapter objectAdapter, 
-            final OneToOneAssociation otoa, 
-            final Cell cell) {
+            final ColumnPlan.Column column) {
         
-        final ObjectAdapter propertyAdapter = otoa.get(objectAdapter);
+        final Object propertyAsObj = column.getAccessor().getProperty(objectAdapter, InteractionInitiatedBy.USER);
         
         // null
-        if (propertyAdapter == null) {
-            cell.setCellType(HSSFCell.CELL_TYPE_BLANK);
-            return;
+        if (propertyAsObj == null) {
+            return null;
         }
         
-        final ObjectSpecification propertySpec = otoa.getSpecification();
-        final Object propertyAsObj = propertyAdapter.getObject();
-        final String propertyAsTitle = propertyAdapter.titleString(null);
-        
         // value types
-        if(propertySpec.isValue()) {
-            if(setCellValue(cell, propertyAsObj)) {
-                return;
-            }
+        if(column.isValue()) {
+            return isNativeValue(propertyAsObj) ? propertyAsObj : titleOf(propertyAsObj);
         }
         
         // reference types
-        if(!propertySpec.isParentedOrFreeCollection()) {
-            setCellValueForBookmark(cell, propertyAsObj, propertyAsTitle);
-            return;
+        if(column.isReference()) {
+            return new BookmarkedTitle(bookmarkService.bookmarkFor(propertyAsObj), titleOf(propertyAsObj));
         }
 
         // fallback, best effort
-        setCellValueForString(cell, propertyAsTitle);
-        return;
+        return titleOf(propertyAsObj);
+    }
+
+    private String titleOf(final Object propertyAsObj) {
+        return adapterManager.adapterFor(propertyAsObj).titleString(null);
+    }
+
+    /**
+     * Writes a value as returned by {@link #getPropertyValue(ObjectAdapter, ColumnPlan.Column)}, or (for the
+     * value types written natively) as read directly from the domain object.
+     */
+    void setCellValue(final Cell cell, final Object propertyValue) {
+        if(propertyValue instanceof BookmarkedTitle) {
+            final BookmarkedTitle bookmarkedTitle = (BookmarkedTitle) propertyValue;
+            setCellValueForBookmark(cell, bookmarkedTitle.bookmark, bookmarkedTitle.title);
+            return;
+        }
+        if(!setCellValueForValue(cell, propertyValue)) {
+            // fallback, best effort
+            setCellValueForString(cell, propertyValue.toString());
+        }
+    }
+
+    static boolean isNativeValueType(final Class<?> type) {
+        return type == String.class ||
+               type == boolean.class || type == Boolean.class ||
+               ExcelDates.isDateType(type) ||
+               isNumericType(type) ||
+               Enum.class.isAssignableFrom(type);
+    }
+
+    private static boolean isNativeValue(final Object valueAsObj) {
+        return valueAsObj == null || valueAsObj instanceof Date || isNativeValueType(valueAsObj.getClass());
     }
 
-    private boolean setCellValue(final Cell cell, final Object valueAsObj) {
+    private boolean setCellValueForValue(final Cell cell, final Object valueAsObj) {
         if(valueAsObj == null) {
             cell.setCellType(HSSFCell.CELL_TYPE_BLANK);
             return true;
@@ -92,58 +163,23 @@ final class CellMarshaller {
 
         // boolean
         if(valueAsObj instanceof Boolean) {
-            Boolean value = (Boolean) valueAsObj;
-            cell.setCellValue(value);
-            cell.setCellType(HSSFCell.CELL_TYPE_BOOLEAN);
+            cell.setCellValue(((Boolean) valueAsObj).booleanValue());
             return true;
         } 
         
         // date
-        if(valueAsObj instanceof Date) {
-            Date value = (Date) valueAsObj;
-            setCellValueForDate(cell, value, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof org.apache.isis.applib.value.Date) {
-            org.apache.isis.applib.value.Date value = (org.apache.isis.applib.value.Date) valueAsObj;
-            Date dateValue = value.dateValue();
-            setCellValueForDate(cell, dateValue, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof org.apache.isis.applib.value.DateTime) {
-            org.apache.isis.applib.value.DateTime value = (org.apache.isis.applib.value.DateTime) valueAsObj;
-            Date dateValue = value.dateValue();
-            setCellValueForDate(cell, dateValue, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof LocalDate) {
-            LocalDate value = (LocalDate) valueAsObj;
-            Date date = value.toDateTimeAtStartOfDay().toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof LocalDateTime) {
-            LocalDateTime value = (LocalDateTime) valueAsObj;
-            Date date = value.toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
-            return true;
-        } 
-        if(valueAsObj instanceof DateTime) {
-            DateTime value = (DateTime) valueAsObj;
-            Date date = value.toDate();
-            setCellValueForDate(cell, date, dateCellStyle);
+        if(ExcelDates.isDateValue(valueAsObj)) {
+            setCellValueForDate(cell, ExcelDates.toSerial(valueAsObj, false), dateCellStyle);
             return true;
         }
         
         // number
         if(valueAsObj instanceof Double) {
-            Double value = (Double) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Double) valueAsObj).doubleValue());
             return true;
         }
         if(valueAsObj instanceof Float) {
-            Float value = (Float) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Float) valueAsObj).floatValue());
             return true;
         } 
         if(valueAsObj instanceof BigDecimal) {
@@ -157,23 +193,19 @@ final class CellMarshaller {
             return true;
         } 
         if(valueAsObj instanceof Long) {
-            Long value = (Long) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Long) valueAsObj).longValue());
             return true;
         } 
         if(valueAsObj instanceof Integer) {
-            Integer value = (Integer) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Integer) valueAsObj).intValue());
             return true;
         } 
         if(valueAsObj instanceof Short) {
-            Short value = (Short) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Short) valueAsObj).shortValue());
             return true;
         } 
         if(valueAsObj instanceof Byte) {
-            Byte value = (Byte) valueAsObj;
-            setCellValueForDouble(cell, (double)value);
+            setCellValueForDouble(cell, ((Byte) valueAsObj).byteValue());
             return true;
         }
         if(valueAsObj instanceof Enum) {
@@ -186,15 +218,12 @@ final class CellMarshaller {
 
     private static void setCellValueForString(final Cell cell, final String objectAsStr) {
         cell.setCellValue(objectAsStr);
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
     }
 
-    private void setCellValueForBookmark(final Cell cell, final Object propertyAsObject, final String propertyAsTitle) {
-        Bookmark bookmark = bookmarkService.bookmarkFor(propertyAsObject);
+    private static void setCellValueForBookmark(final Cell cell, final Bookmark bookmark, final String propertyAsTitle) {
         setCellComment(cell, bookmark.toString());
         
         cell.setCellValue(propertyAsTitle);
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
     }
 
     private static void setCellComment(final Cell cell, final String commentText) {
@@ -220,16 +249,14 @@ final class CellMarshaller {
 
     private static <E extends Enum<E>> void setCellValueForEnum(final Cell cell, final Enum<E> objectAsStr) {
         cell.setCellValue(objectAsStr.name());
-        cell.setCellType(HSSFCell.CELL_TYPE_STRING);
     }
     
     private static void setCellValueForDouble(final Cell cell, double value) {
         cell.setCellValue(value);
-        cell.setCellType(HSSFCell.CELL_TYPE_NUMERIC);
     }
 
-    private static void setCellValueForDate(final Cell cell, Date date, CellStyle dateCellStyle) {
-        cell.setCellValue(date);
+    private static void setCellValueForDate(final Cell cell, double excelDate, CellStyle dateCellStyle) {
+        cell.setCellValue(excelDate);
         cell.setCellStyle(dateCellStyle);
     }
 
@@ -277,123 +304,120 @@ final class CellMarshaller {
         // enum
         if(Enum.class.isAssignableFrom(requiredType)) {
             String stringCellValue = cell.getStringCellValue();
-            @SuppressWarnings("rawtypes")
-            Class rawType = requiredType;
-            return (T) Enum.valueOf(rawType, stringCellValue);
+            return (T) toEnum(stringCellValue, requiredType);
         }
         
         // date
-        if(requiredType == java.util.Date.class) {
+        if(ExcelDates.isDateType(requiredType)) {
+            if(cell instanceof XSSFCell) {
+                return (T) ExcelDates.fromSerial(cell.getNumericCellValue(), date1904, requiredType);
+            }
             java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) dateCellValue;
+            return (T) fromDate(dateCellValue, requiredType);
+        }
+        
+        // number
+        if(isNumericType(requiredType)) {
+            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
+                return (T) fromNumeric(cell.getNumericCellValue(), requiredType);
+            } else {
+                return null;
+            }
+        }
+
+        if(requiredType == String.class) {
+            if(cellType == HSSFCell.CELL_TYPE_STRING) {
+                return (T) cell.getStringCellValue();
+            } else {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static Object toEnum(final String stringCellValue, final Class<?> requiredType) {
+        Class rawType = requiredType;
+        return Enum.valueOf(rawType, stringCellValue);
+    }
+
+    private static Object fromDate(final java.util.Date dateCellValue, final Class<?> requiredType) {
+        if(requiredType == java.util.Date.class) {
+            return dateCellValue;
         }
 
         if(requiredType == org.apache.isis.applib.value.Date.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T)new org.apache.isis.applib.value.Date(dateCellValue);
+            return new org.apache.isis.applib.value.Date(dateCellValue);
         } 
 
         if(requiredType == org.apache.isis.applib.value.DateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T)new org.apache.isis.applib.value.DateTime(dateCellValue);
+            return new org.apache.isis.applib.value.DateTime(dateCellValue);
         } 
         
         if(requiredType == LocalDate.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new LocalDate(dateCellValue.getTime());
+            return new LocalDate(dateCellValue.getTime());
         } 
         
         if(requiredType == LocalDateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new LocalDateTime(dateCellValue.getTime());
+            return new LocalDateTime(dateCellValue.getTime());
         } 
 
         if(requiredType == DateTime.class) {
-            java.util.Date dateCellValue = cell.getDateCellValue();
-            return (T) new DateTime(dateCellValue.getTime());
+            return new DateTime(dateCellValue.getTime());
         } 
-        
-        
-        // number
+
+        return null;
+    }
+
+    static boolean isNumericType(final Class<?> requiredType) {
+        return requiredType == double.class || requiredType == Double.class ||
+               requiredType == float.class || requiredType == Float.class ||
+               requiredType == BigDecimal.class ||
+               requiredType == BigInteger.class ||
+               requiredType == long.class || requiredType == Long.class ||
+               requiredType == int.class || requiredType == Integer.class ||
+               requiredType == short.class || requiredType == Short.class ||
+               requiredType == byte.class || requiredType == Byte.class;
+    }
+
+    static Object fromNumeric(final double numericCellValue, final Class<?> requiredType) {
         if(requiredType == double.class || requiredType == Double.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                double doubleValue = cell.getNumericCellValue();
-                return (T) Double.valueOf(doubleValue);
-            } else {
-                return null;
-            }
+            return Double.valueOf(numericCellValue);
         } 
         
         if(requiredType == float.class || requiredType == Float.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                float floatValue = (float)cell.getNumericCellValue();
-                return (T) Float.valueOf(floatValue);
-            } else {
-                return null;
-            }
+            float floatValue = (float)numericCellValue;
+            return Float.valueOf(floatValue);
         } 
         
         if(requiredType == BigDecimal.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                double doubleValue = cell.getNumericCellValue();
-                return (T) BigDecimal.valueOf(doubleValue);
-            } else {
-                return null;
-            }
+            return BigDecimal.valueOf(numericCellValue);
         } 
         
         if(requiredType == BigInteger.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                long longValue = (long)cell.getNumericCellValue();
-                return (T) BigInteger.valueOf(longValue);
-            } else {
-                return null;
-            }
+            long longValue = (long)numericCellValue;
+            return BigInteger.valueOf(longValue);
         } 
 
         if(requiredType == long.class || requiredType == Long.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                long longValue = (long) cell.getNumericCellValue();
-                return (T) Long.valueOf(longValue);
-            } else {
-                return null;
-            }
+            long longValue = (long) numericCellValue;
+            return Long.valueOf(longValue);
         } 
         
         if(requiredType == int.class || requiredType == Integer.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                int intValue = (int) cell.getNumericCellValue();
-                return (T) Integer.valueOf(intValue);
-            } else {
-                return null;
-            }
+            int intValue = (int) numericCellValue;
+            return Integer.valueOf(intValue);
         } 
         
         if(requiredType == short.class || requiredType == Short.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                short shortValue = (short) cell.getNumericCellValue();
-                return (T) Short.valueOf(shortValue);
-            } else {
-                return null;
-            }
+            short shortValue = (short) numericCellValue;
+            return Short.valueOf(shortValue);
         } 
         
         if(requiredType == byte.class || requiredType == Byte.class) {
-            if(cellType == HSSFCell.CELL_TYPE_NUMERIC) {
-                byte byteValue = (byte) cell.getNumericCellValue();
-                return (T) Byte.valueOf(byteValue);
-            } else {
-                return null;
-            }
+            byte byteValue = (byte) numericCellValue;
+            return Byte.valueOf(byteValue);
         } 
-
-        if(requiredType == String.class) {
-            if(cellType == HSSFCell.CELL_TYPE_STRING) {
-                return (T) cell.getStringCellValue();
-            } else {
-                return null;
-            }
-        }
         return null;
     }
 
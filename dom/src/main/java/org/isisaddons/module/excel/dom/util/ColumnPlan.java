@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.apache.isis.applib.annotation.Where;
+import org.apache.isis.applib.filter.Filter;
+import org.apache.isis.applib.filter.Filters;
+import org.apache.isis.core.metamodel.facets.propcoll.accessor.PropertyOrCollectionAccessorFacet;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.ObjectAssociation;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+
+/**
+ * The columns of a spreadsheet exported for a given class, one per (statically) visible property.
+ */
+final class ColumnPlan {
+
+    @SuppressWarnings({ "unchecked", "deprecation" })
+    private static final Filter<ObjectAssociation> VISIBLE_PROPERTIES = Filters.and(
+            ObjectAssociation.Filters.PROPERTIES,
+            ObjectAssociation.Filters.staticallyVisible(Where.STANDALONE_TABLES));
+
+    static final class Column {
+        private final int index;
+        private final OneToOneAssociation property;
+        private final Class<?> type;
+        private final boolean value;
+        private final boolean reference;
+        private final PropertyOrCollectionAccessorFacet accessor;
+        private final MethodHandle getter;
+        private final boolean parallel;
+
+        Column(final int index, final OneToOneAssociation property, final MethodHandle getter, final boolean parallel) {
+            this.index = index;
+            this.property = property;
+            final ObjectSpecification propertySpec = property.getSpecification();
+            this.type = propertySpec.getCorrespondingClass();
+            this.value = propertySpec.isValue();
+            this.reference = !value && !propertySpec.isParentedOrFreeCollection();
+            this.accessor = property.getFacet(PropertyOrCollectionAccessorFacet.class);
+            this.getter = getter;
+            this.parallel = parallel;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        String getName() {
+            return property.getName();
+        }
+
+        OneToOneAssociation getProperty() {
+            return property;
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+        boolean isValue() {
+            return value;
+        }
+
+        boolean isReference() {
+            return reference;
+        }
+
+        /**
+         * Reads the property's pojo without (as {@link OneToOneAssociation#get(org.apache.isis.core.metamodel.adapter.ObjectAdapter)}
+         * would) also creating an adapter for it.
+         */
+        PropertyOrCollectionAccessorFacet getAccessor() {
+            return accessor;
+        }
+
+        /**
+         * Whether the value can be read by invoking the {@link #getGetter() getter} directly on the domain object,
+         * rather than through the metamodel.
+         */
+        boolean isDirect() {
+            return getter != null;
+        }
+
+        /**
+         * Whether the value can be read {@link #isDirect() directly} from any thread (the metamodel requires an
+         * Isis session); only for view models that are {@link ColumnPlan#forExport(ObjectSpecification, boolean) trusted}
+         * or have a generated codec.
+         */
+        boolean isParallel() {
+            return parallel;
+        }
+
+        MethodHandle getGetter() {
+            return getter;
+        }
+    }
+
+    /**
+     * @param trusted - whether the values of entities may also be read directly, rather than only those of view
+     *                  models, and those of view models also from other threads (as is also the case for classes with
+     *                  a generated {@link org.isisaddons.module.excel.dom.ExcelRowCodec}).
+     */
+    static ColumnPlan forExport(final ObjectSpecification objectSpec, final boolean trusted) {
+        @SuppressWarnings("deprecation")
+        final List<? extends ObjectAssociation> propertyList = objectSpec.getAssociations(VISIBLE_PROPERTIES);
+
+        final Class<?> cls = objectSpec.getCorrespondingClass();
+        final boolean viewModel = objectSpec.isViewModel();
+        final boolean optedIn = trusted || RowCodecs.codecFor(cls) != null;
+        final boolean directAllowed = viewModel || optedIn;
+        // other threads have no Isis session, so only the getters of view models whose class has opted in (and so
+        // are known to be plain field getters) are read from them; persistent objects never are (lazy loading)
+        final boolean parallelAllowed = viewModel && optedIn;
+
+        final List<Column> columns = Lists.newArrayList();
+        for (final ObjectAssociation oa : propertyList) {
+            final OneToOneAssociation otoa = (OneToOneAssociation) oa;
+            final MethodHandle getter = directAllowed ? directGetterFor(cls, otoa) : null;
+            columns.add(new Column(columns.size(), otoa, getter, getter != null && parallelAllowed));
+        }
+        return new ColumnPlan(columns);
+    }
+
+    /**
+     * Only for properties of the simple value types that {@link CellMarshaller} writes natively (for anything else
+     * the title is needed, and that requires an adapter).
+     */
+    private static MethodHandle directGetterFor(final Class<?> cls, final OneToOneAssociation otoa) {
+        final Class<?> type = otoa.getSpecification().getCorrespondingClass();
+        if (!otoa.getSpecification().isValue() || !CellMarshaller.isNativeValueType(type)) {
+            return null;
+        }
+        return PropertyHandles.getterFor(cls, otoa);
+    }
+
+    private final List<Column> columns;
+    private final boolean anyParallel;
+    private final boolean anyReference;
+
+    private ColumnPlan(final List<Column> columns) {
+        this.columns = Collections.unmodifiableList(columns);
+        boolean anyParallel = false;
+        boolean anyReference = false;
+        for (final Column column : columns) {
+            anyParallel |= column.isParallel();
+            anyReference |= column.isReference();
+        }
+        this.anyParallel = anyParallel;
+        this.anyReference = anyReference;
+    }
+
+    List<Column> getColumns() {
+        return columns;
+    }
+
+    int size() {
+        return columns.size();
+    }
+
+    boolean hasParallelColumns() {
+        return anyParallel;
+    }
+
+    boolean hasReferenceColumns() {
+        return anyReference;
+    }
+
+}
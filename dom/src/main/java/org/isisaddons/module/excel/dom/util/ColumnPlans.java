@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+
+/**
+ * Caches the {@link ColumnPlan} of each exported class (the metamodel does not change once booted).
+ */
+final class ColumnPlans {
+
+    private final boolean trusted;
+    private final ConcurrentMap<Class<?>, ColumnPlan> columnPlans = new ConcurrentHashMap<>();
+
+    ColumnPlans(final boolean trusted) {
+        this.trusted = trusted;
+    }
+
+    ColumnPlan forExport(final ObjectSpecification objectSpec) {
+        final Class<?> cls = objectSpec.getCorrespondingClass();
+        ColumnPlan columnPlan = columnPlans.get(cls);
+        if (columnPlan == null) {
+            columnPlan = ColumnPlan.forExport(objectSpec, trusted);
+            final ColumnPlan existing = columnPlans.putIfAbsent(cls, columnPlan);
+            if (existing != null) {
+                columnPlan = existing;
+            }
+        }
+        return columnPlan;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the width of each column of an export from the values written to it, as a cheap alternative to
+ * {@link org.apache.poi.ss.usermodel.Sheet#autoSizeColumn(int)} (which lays out every cell's text with AWT fonts).
+ *
+ * <p>
+ *     Each value's width is estimated from its type and (for text) its characters, in tenths of the width of a
+ *     digit (Excel's unit for column widths): narrow, normal, wide and full-width characters are weighted
+ *     differently, dates are as per their <tt>yyyy-mm-dd</tt> format, and numbers as per Excel's General format.
+ *     Only the header and first {@value #SAMPLE_ROWS} rows are all sampled; after that, every
+ *     {@value #SAMPLE_STRIDE}th row.
+ * </p>
+ */
+final class ColumnWidths {
+
+    static final int SAMPLE_ROWS = 256;
+    static final int SAMPLE_STRIDE = 16;
+
+    /**
+     * The narrowest and widest a column is made, in characters (not including the padding).
+     */
+    private static final int MIN_CHARS = 8;
+    private static final int MAX_CHARS = 60;
+    /**
+     * Added to each column, in characters, for the cell margins (and for the header's filter button).
+     */
+    private static final int PADDING = 2;
+
+    private static final int NARROW = 5;
+    private static final int NORMAL = 10;
+    private static final int WIDE = 12;
+    private static final int FULL_WIDTH = 20;
+
+    private static final int DATE_WIDTH = 10 * NORMAL;
+    private static final int BOOLEAN_WIDTH = 5 * WIDE;
+    /**
+     * Excel's General format shows at most 11 characters of a number.
+     */
+    private static final int MAX_NUMBER_CHARS = 11;
+
+    private int[] tenths = new int[0];
+    private int rows;
+
+    void sample(final Object[] values) {
+        if (rows++ >= SAMPLE_ROWS && rows % SAMPLE_STRIDE != 0) {
+            return;
+        }
+        if (values.length > tenths.length) {
+            tenths = Arrays.copyOf(tenths, values.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            final int estimate = estimate(values[i]);
+            if (estimate > tenths[i]) {
+                tenths[i] = estimate;
+            }
+        }
+    }
+
+    int size() {
+        return tenths.length;
+    }
+
+    /**
+     * In characters, as for the <tt>width</tt> of a SpreadsheetML <tt>&lt;col&gt;</tt>.
+     */
+    int getWidth(final int columnIndex) {
+        final int chars = (tenths[columnIndex] + NORMAL - 1) / NORMAL;
+        return Math.max(MIN_CHARS, Math.min(MAX_CHARS, chars)) + PADDING;
+    }
+
+    /**
+     * In 1/256ths of a character, as for {@link org.apache.poi.ss.usermodel.Sheet#setColumnWidth(int, int)}.
+     */
+    int getPoiWidth(final int columnIndex) {
+        return getWidth(columnIndex) * 256;
+    }
+
+    private static int estimate(final Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return estimateText((String) value);
+        }
+        if (value instanceof CellMarshaller.BookmarkedTitle) {
+            return estimateText(((CellMarshaller.BookmarkedTitle) value).getTitle());
+        }
+        if (value instanceof Enum) {
+            return estimateText(((Enum<?>) value).name());
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN_WIDTH;
+        }
+        if (ExcelDates.isDateValue(value)) {
+            return DATE_WIDTH;
+        }
+        if (value instanceof Number) {
+            return estimateNumber(((Number) value).doubleValue());
+        }
+        return estimateText(value.toString());
+    }
+
+    private static int estimateNumber(final double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e11) {
+            long abs = Math.abs((long) value);
+            int chars = value < 0 ? 2 : 1;
+            while (abs >= 10) {
+                abs /= 10;
+                chars++;
+            }
+            return chars * NORMAL;
+        }
+        return Math.min(MAX_NUMBER_CHARS, Double.toString(value).length()) * NORMAL;
+    }
+
+    /**
+     * The width of the longest line, looking no further than is needed to reach the maximum width.
+     */
+    private static int estimateText(final String text) {
+        if (text == null) {
+            return 0;
+        }
+        final int limit = MAX_CHARS * NORMAL;
+        int longest = 0;
+        int line = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char ch = text.charAt(i);
+            if (ch == '\n') {
+                line = 0;
+                continue;
+            }
+            line += widthOf(ch);
+            if (line > longest) {
+                longest = line;
+                if (longest >= limit) {
+                    break;
+                }
+            }
+        }
+        return longest;
+    }
+
+    private static int widthOf(final char ch) {
+        if (ch < 0x80) {
+            if (ch >= 'A' && ch <= 'Z' || ch == 'm' || ch == 'w' || ch == '@' || ch == '%') {
+                return WIDE;
+            }
+            switch (ch) {
+            case 'i': case 'j': case 'l': case 'f': case 't': case 'r':
+            case ' ': case '.': case ',': case ':': case ';': case '\'': case '!': case '|':
+            case '(': case ')': case '[': case ']':
+                return NARROW;
+            default:
+                return NORMAL;
+            }
+        }
+        // CJK, Hangul and full-width forms
+        if (ch >= 0x1100 && (ch <= 0x115F || ch >= 0x2E80 && ch <= 0xD7A3 || ch >= 0xF900 && ch <= 0xFAFF
+                || ch >= 0xFF00 && ch <= 0xFF60)) {
+            return FULL_WIDTH;
+        }
+        return NORMAL;
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.math.BigDecimal;
+
+import org.apache.isis.applib.services.bookmark.Bookmark;
+
+/**
+ * Converts between property values and the text of CSV fields, for the same value types that {@link CellMarshaller}
+ * writes natively to (and {@link CellDecoder} reads from) spreadsheets.
+ *
+ * <p>
+ *     Numbers are written exactly (rather than as a <tt>double</tt>), dates as ISO-8601 text (see
+ *     {@link ExcelDates#toIsoText(Object)}), enums by name, and references as their {@link Bookmark}, since CSV has
+ *     no equivalent of the cell comment in which a spreadsheet holds it.
+ * </p>
+ */
+final class CsvCodec {
+
+    private CsvCodec() {
+    }
+
+    /**
+     * Formats a value as returned by {@link CellMarshaller#getPropertyValue(org.apache.isis.core.metamodel.adapter.ObjectAdapter, ColumnPlan.Column)},
+     * or (for the native value types) as read directly from the domain object.
+     */
+    static String format(final Object value) {
+        if(value == null) {
+            return null;
+        }
+        if(value instanceof String) {
+            return (String) value;
+        }
+        if(value instanceof CellMarshaller.BookmarkedTitle) {
+            return ((CellMarshaller.BookmarkedTitle) value).getBookmark().toString();
+        }
+        if(value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        if(ExcelDates.isDateValue(value)) {
+            return ExcelDates.toIsoText(value);
+        }
+        if(value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        // booleans and the other numbers; else, best effort
+        return value.toString();
+    }
+
+    /**
+     * The value of the property for the text of a field; <tt>null</tt> if the field is empty (other than a quoted
+     * empty string, for a string property) or the property is not of a supported type.
+     *
+     * @throws IllegalArgumentException if the text cannot be converted to the property's type.
+     */
+    static Object parse(final String text, final ExcelConverter.Property property) {
+        if(text == null) {
+            return null;
+        }
+        if(property.isValue() && property.getType() == String.class) {
+            return text;
+        }
+        if(text.isEmpty()) {
+            return null;
+        }
+
+        // reference types
+        if(property.isReference()) {
+            return new Bookmark(text);
+        }
+        if(!property.isValue()) {
+            return null;
+        }
+
+        // value types
+        final Class<?> requiredType = property.getType();
+        if(requiredType == boolean.class || requiredType == Boolean.class) {
+            if("true".equalsIgnoreCase(text)) {
+                return Boolean.TRUE;
+            }
+            if("false".equalsIgnoreCase(text)) {
+                return Boolean.FALSE;
+            }
+            throw new IllegalArgumentException("Not a boolean: '" + text + "'");
+        }
+        if(Enum.class.isAssignableFrom(requiredType)) {
+            return CellMarshaller.toEnum(text, requiredType);
+        }
+        if(ExcelDates.isDateType(requiredType)) {
+            return ExcelDates.fromIsoText(text, requiredType);
+        }
+        if(CellMarshaller.isNumericType(requiredType)) {
+            return text.length() <= CellDecoder.MAX_SAFE_LONG_LENGTH && CellDecoder.isPlainInteger(text)
+                    ? CellDecoder.fromLong(Long.parseLong(text), requiredType)
+                    : CellDecoder.decodeNumeric(text, requiredType);
+        }
+        return null;
+    }
+
+}
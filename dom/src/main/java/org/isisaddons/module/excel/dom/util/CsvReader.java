@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits CSV (as per RFC 4180: comma-separated fields, each optionally enclosed in double quotes with any embedded
+ * double quotes doubled) into records, reading through a single buffer that is reused throughout.
+ *
+ * <p>
+ *     The fields of each record are also held in a reused array.  A field is created directly from the buffer
+ *     unless it straddles a refill or contains a doubled quote, in which case it is assembled in a (reused)
+ *     {@link StringBuilder}.
+ * </p>
+ */
+final class CsvReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int END_OF_FIELD = ',';
+    private static final int END_OF_RECORD = '\n';
+    private static final int END_OF_INPUT = -1;
+
+    private final Reader reader;
+    private final char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    private final StringBuilder assembled = new StringBuilder();
+
+    private String[] fields = new String[16];
+    private int size;
+    private int recordNum = -1;
+
+    CsvReader(final Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next record, returning <tt>false</tt> if there are none left.
+     */
+    boolean next() throws IOException {
+        size = 0;
+        if (pos == limit && !fill()) {
+            return false;
+        }
+        recordNum++;
+        if (recordNum == 0 && buf[pos] == '\uFEFF') {
+            // byte order mark
+            pos++;
+        }
+        int terminator;
+        do {
+            terminator = (pos < limit || fill()) && buf[pos] == '"' ? readQuoted() : readUnquoted();
+        } while (terminator == END_OF_FIELD);
+        return true;
+    }
+
+    /**
+     * The number of fields in the current record.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The <tt>i</tt>'th field of the current record; <tt>null</tt> if it is empty (and unquoted).
+     */
+    String get(final int i) {
+        return fields[i];
+    }
+
+    /**
+     * Zero-based, so the header (if any) is record 0.
+     */
+    int getRecordNum() {
+        return recordNum;
+    }
+
+    private int readUnquoted() throws IOException {
+        int start = pos;
+        boolean straddles = false;
+        while (true) {
+            if (pos == limit) {
+                straddles = startAssembling(straddles);
+                assembled.append(buf, start, pos - start);
+                if (!fill()) {
+                    addField(assembled.length() > 0 ? assembled.toString() : null);
+                    return END_OF_INPUT;
+                }
+                start = pos;
+                continue;
+            }
+            final char ch = buf[pos];
+            if (ch == ',' || ch == '\n' || ch == '\r') {
+                if (straddles) {
+                    assembled.append(buf, start, pos - start);
+                    addField(assembled.length() > 0 ? assembled.toString() : null);
+                } else {
+                    addField(pos > start ? new String(buf, start, pos - start) : null);
+                }
+                pos++;
+                return ch == ',' ? END_OF_FIELD : endOfRecord(ch);
+            }
+            pos++;
+        }
+    }
+
+    private int readQuoted() throws IOException {
+        // opening quote
+        pos++;
+        int start = pos;
+        boolean assembling = false;
+        while (true) {
+            if (pos == limit) {
+                assembling = startAssembling(assembling);
+                assembled.append(buf, start, pos - start);
+                if (!fill()) {
+                    throw new IOException(String.format("Unterminated quoted field in CSV record %d", recordNum));
+                }
+                start = pos;
+                continue;
+            }
+            if (buf[pos] != '"') {
+                pos++;
+                continue;
+            }
+            final int end = pos++;
+            if (pos == limit) {
+                // need to look beyond the buffer, so save the field's text before it is overwritten
+                assembling = startAssembling(assembling);
+                assembled.append(buf, start, end - start);
+                if (fill() && buf[pos] == '"') {
+                    // doubled quote
+                    assembled.append('"');
+                    start = ++pos;
+                    continue;
+                }
+                addField(assembled.toString());
+                break;
+            }
+            if (buf[pos] == '"') {
+                // doubled quote; keep one of them
+                assembling = startAssembling(assembling);
+                assembled.append(buf, start, pos - start);
+                start = ++pos;
+                continue;
+            }
+            if (assembling) {
+                assembled.append(buf, start, end - start);
+                addField(assembled.toString());
+            } else {
+                addField(new String(buf, start, end - start));
+            }
+            break;
+        }
+        if (pos == limit && !fill()) {
+            return END_OF_INPUT;
+        }
+        final char ch = buf[pos++];
+        if (ch == ',') {
+            return END_OF_FIELD;
+        }
+        if (ch == '\n' || ch == '\r') {
+            return endOfRecord(ch);
+        }
+        throw new IOException(String.format("Unexpected '%s' after quoted field in CSV record %d", ch, recordNum));
+    }
+
+    private boolean startAssembling(final boolean assembling) {
+        if (!assembling) {
+            assembled.setLength(0);
+        }
+        return true;
+    }
+
+    private int endOfRecord(final char ch) throws IOException {
+        if (ch == '\r' && (pos < limit || fill()) && buf[pos] == '\n') {
+            pos++;
+        }
+        return END_OF_RECORD;
+    }
+
+    private void addField(final String field) {
+        if (size == fields.length) {
+            fields = Arrays.copyOf(fields, size * 2);
+        }
+        fields[size++] = field;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        final int n = reader.read(buf, 0, buf.length);
+        if (n <= 0) {
+            eof = true;
+            pos = limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
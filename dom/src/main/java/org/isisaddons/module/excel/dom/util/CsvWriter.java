@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes CSV (as per RFC 4180), in UTF-8, row by row.
+ *
+ * <p>
+ *     Each value is formatted by {@link CsvCodec}; a field is quoted only if it needs to be, or if it is an empty
+ *     string (so that it can be told apart from <tt>null</tt>, which is written as nothing at all).
+ * </p>
+ */
+final class CsvWriter {
+
+    private final Writer writer;
+
+    CsvWriter(final OutputStream os) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    void writeHeader(final List<String> names) throws IOException {
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeField(names.get(i));
+        }
+        writer.write("\r\n");
+    }
+
+    void writeRow(final Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeField(CsvCodec.format(values[i]));
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * Flushes, but does not close, the underlying stream.
+     */
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void writeField(final String field) throws IOException {
+        if (field == null) {
+            return;
+        }
+        if (!needsQuotes(field)) {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < field.length(); i++) {
+            if (field.charAt(i) == '"') {
+                // up to and including the quote, which is then written again
+                writer.write(field, start, i + 1 - start);
+                start = i;
+            }
+        }
+        writer.write(field, start, field.length() - start);
+        writer.write('"');
+    }
+
+    private static boolean needsQuotes(final String field) {
+        if (field.isEmpty()) {
+            return true;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            final char ch = field.charAt(i);
+            if (ch == ',' || ch == '"' || ch == '\r' || ch == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
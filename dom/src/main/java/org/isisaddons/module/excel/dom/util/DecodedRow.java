@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.isisaddons.module.excel.dom.ExcelService;
+
+/**
+ * The non-null values of a detail row, each paired with the {@link ExcelConverter.Property property} (and the
+ * column) it is to be set on; together with the errors raised by any cells that could not be decoded.
+ */
+final class DecodedRow {
+
+    private final int rowNum;
+    private final int[] columnIndexes;
+    private final ExcelConverter.Property[] properties;
+    private final Object[] values;
+    private int size;
+
+    private RuntimeException exception;
+    private List<ExcelService.ImportError> errors;
+
+    /**
+     * @param capacity - the maximum number of values that will be {@link #add(int, ExcelConverter.Property, Object) added}.
+     */
+    DecodedRow(final int rowNum, final int capacity) {
+        this.rowNum = rowNum;
+        this.columnIndexes = new int[capacity];
+        this.properties = new ExcelConverter.Property[capacity];
+        this.values = new Object[capacity];
+    }
+
+    void add(final int columnIndex, final ExcelConverter.Property property, final Object value) {
+        columnIndexes[size] = columnIndex;
+        properties[size] = property;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * @param value - the cell's contents, as text.
+     */
+    void addError(
+            final int columnIndex,
+            final ExcelConverter.Property property,
+            final String value,
+            final RuntimeException ex) {
+        if (exception == null) {
+            exception = ex;
+            errors = Lists.newArrayListWithCapacity(2);
+        }
+        errors.add(newError(rowNum, columnIndex, property, value, ex));
+    }
+
+    static ExcelService.ImportError newError(
+            final int rowNum,
+            final int columnIndex,
+            final ExcelConverter.Property property,
+            final String value,
+            final Exception ex) {
+        return new ExcelService.ImportError(
+                rowNum, columnIndex, property != null ? property.getName() : null, value, messageOf(ex));
+    }
+
+    private static String messageOf(final Exception ex) {
+        return ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+    }
+
+    int getRowNum() {
+        return rowNum;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getColumnIndex(final int i) {
+        return columnIndexes[i];
+    }
+
+    ExcelConverter.Property getProperty(final int i) {
+        return properties[i];
+    }
+
+    Object getValue(final int i) {
+        return values[i];
+    }
+
+    /**
+     * The first exception raised while decoding the row, if any.
+     */
+    RuntimeException getException() {
+        return exception;
+    }
+
+    /**
+     * One for each cell that could not be decoded.
+     */
+    List<ExcelService.ImportError> getErrors() {
+        return errors != null ? errors : Collections.<ExcelService.ImportError>emptyList();
+    }
+
+}
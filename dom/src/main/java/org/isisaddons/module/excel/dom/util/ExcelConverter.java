@@ -16,15 +16,30 @@
  */
 package org.isisaddons.module.excel.dom.util;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.Cell;
@@ -34,15 +49,15 @@ import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.SAXException;
 
 import org.apache.isis.applib.DomainObjectContainer;
-import org.apache.isis.applib.annotation.Where;
-import org.apache.isis.applib.filter.Filter;
-import org.apache.isis.applib.filter.Filters;
+import org.apache.isis.applib.services.bookmark.Bookmark;
 import org.apache.isis.applib.services.bookmark.BookmarkService;
 import org.apache.isis.applib.util.ObjectContracts;
 import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
 import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
+import org.apache.isis.core.metamodel.consent.Consent;
 import org.apache.isis.core.metamodel.consent.InteractionInitiatedBy;
 import org.apache.isis.core.metamodel.facets.object.viewmodel.ViewModelFacet;
 import org.apache.isis.core.metamodel.spec.ObjectSpecification;
@@ -57,11 +72,6 @@ class ExcelConverter {
 
     private static final String XLSX_SUFFIX = ".xlsx";
 
-    @SuppressWarnings({ "unchecked", "deprecation" })
-    private static final Filter<ObjectAssociation> VISIBLE_PROPERTIES = Filters.and(
-            ObjectAssociation.Filters.PROPERTIES,
-            ObjectAssociation.Filters.staticallyVisible(Where.STANDALONE_TABLES));
-
     static class RowFactory {
         private final Sheet sheet;
         private int rowNum;
@@ -80,63 +90,194 @@ class ExcelConverter {
     private final SpecificationLoader specificationLoader;
     private final AdapterManager adapterManager;
     private final BookmarkService bookmarkService;
-
+    private final ExcelSettings settings;
+    private final ColumnPlans columnPlans;
+    private final ForkJoinPool exportPool;
+    private final ExecutorService deflatePool;
+
+    /**
+     * @param exportPool - if not <tt>null</tt>, used to read the {@link ColumnPlan.Column#isDirect() direct}
+     *                     columns of exported rows in parallel.
+     * @param deflatePool - if not <tt>null</tt>, used to deflate the parts of lightweight exports in parallel.
+     */
     ExcelConverter(
             final SpecificationLoader specificationLoader,
             final AdapterManager adapterManager,
-            final BookmarkService bookmarkService) {
+            final BookmarkService bookmarkService,
+            final ExcelSettings settings,
+            final ColumnPlans columnPlans,
+            final ForkJoinPool exportPool,
+            final ExecutorService deflatePool) {
         this.specificationLoader = specificationLoader;
         this.adapterManager = adapterManager;
         this.bookmarkService = bookmarkService;
+        this.settings = settings;
+        this.columnPlans = columnPlans;
+        this.exportPool = exportPool;
+        this.deflatePool = deflatePool;
     }
 
     // //////////////////////////////////////
 
     <T> File toFile(final Class<T> cls, final List<T> domainObjects) throws IOException {
+        final File tempFile = File.createTempFile(ExcelConverter.class.getName(), cls.getSimpleName() + XLSX_SUFFIX);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            toStream(cls, domainObjects, os);
+        }
+        return tempFile;
+    }
+
+    /**
+     * As {@link #toFile(Class, List)}, but writing the spreadsheet to the stream, which is flushed but not closed.
+     *
+     * <p>
+     *     Lightweight exports are written as the rows are read; otherwise the workbook is built in memory (by POI)
+     *     and only written once complete.
+     * </p>
+     */
+    <T> void toStream(final Class<T> cls, final List<T> domainObjects, final OutputStream os) throws IOException {
 
         final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
 
-        final List<ObjectAdapter> adapters = Lists.transform(domainObjects, ObjectAdapter.Functions.adapterForUsing(adapterManager));
+        final ColumnPlan columnPlan = columnPlans.forExport(objectSpec);
 
-        @SuppressWarnings("deprecation")
-        final List<? extends ObjectAssociation> propertyList = objectSpec.getAssociations(VISIBLE_PROPERTIES);
+        final String sheetName = cls.getSimpleName();
+
+        if (settings.isExportLightweight() && !columnPlan.hasReferenceColumns()) {
+            toStreamLightweight(columnPlan, domainObjects, sheetName, os);
+            return;
+        }
 
         final Workbook wb = new XSSFWorkbook();
-        final String sheetName = cls.getSimpleName();
-        final File tempFile = File.createTempFile(ExcelConverter.class.getName(), sheetName + XLSX_SUFFIX);
 
-        final FileOutputStream fos = new FileOutputStream(tempFile);
         final Sheet sheet = wb.createSheet(sheetName);
 
         final ExcelConverter.RowFactory rowFactory = new RowFactory(sheet);
         final Row headerRow = rowFactory.newRow();
 
+        final ColumnWidths columnWidths = settings.isExportColumnWidths() ? new ColumnWidths() : null;
+
         // header row
-        int i = 0;
-        for (final ObjectAssociation property : propertyList) {
-            final Cell cell = headerRow.createCell((short) i++);
-            cell.setCellValue(property.getName());
+        final Object[] names = new Object[columnPlan.size()];
+        for (final ColumnPlan.Column column : columnPlan.getColumns()) {
+            final Cell cell = headerRow.createCell(column.getIndex());
+            cell.setCellValue(column.getName());
+            names[column.getIndex()] = column.getName();
+        }
+        if (columnWidths != null) {
+            columnWidths.sample(names);
         }
 
         final CellMarshaller cellMarshaller = newCellMarshaller(wb);
-
-        // detail rows
-        for (final ObjectAdapter objectAdapter : adapters) {
-            final Row detailRow = rowFactory.newRow();
-            i = 0;
-            for (final ObjectAssociation oa : propertyList) {
-                final Cell cell = detailRow.createCell((short) i++);
-                final OneToOneAssociation otoa = (OneToOneAssociation) oa;
-                cellMarshaller.setCellValue(objectAdapter, otoa, cell);
+        final RowExtractor rowExtractor = new RowExtractor(columnPlan, cellMarshaller, adapterManager, exportPool);
+
+        // detail rows, a chunk at a time: all values are read first (possibly in parallel), then written
+        final Iterator<T> iterator = domainObjects.iterator();
+        while (iterator.hasNext()) {
+            for (final Object[] values : rowExtractor.extract(nextChunk(iterator))) {
+                final Row detailRow = rowFactory.newRow();
+                for (int i = 0; i < values.length; i++) {
+                    final Cell cell = detailRow.createCell(i);
+                    cellMarshaller.setCellValue(cell, values[i]);
+                }
+                if (columnWidths != null) {
+                    columnWidths.sample(values);
+                }
             }
         }
 
+        if (columnWidths != null) {
+            autoSize(sheet, columnWidths);
+        }
+
         // freeze panes
         sheet.createFreezePane(0, 1);
 
-        wb.write(fos);
-        fos.close();
-        return tempFile;
+        // POI closes the stream it writes to
+        wb.write(new FilterOutputStream(os) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        os.flush();
+    }
+
+    /**
+     * Writes the spreadsheet using the {@link XlsxWriter}, bypassing POI's object model; only for exports without
+     * references (whose bookmarks are held in cell comments).
+     */
+    private <T> void toStreamLightweight(
+            final ColumnPlan columnPlan,
+            final List<T> domainObjects,
+            final String sheetName,
+            final OutputStream os) throws IOException {
+
+        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, adapterManager, null);
+        final RowExtractor rowExtractor = new RowExtractor(columnPlan, cellMarshaller, adapterManager, exportPool);
+
+        final ZipWriter zip = new ZipWriter(
+                os, settings.getExportDeflateLevel(), deflatePool, settings.getExportDeflateParallelism());
+        final XlsxWriter writer = new XlsxWriter(zip, sheetName, settings.isExportInlineStrings(), settings.isExportColumnWidths());
+
+        final List<String> names = Lists.newArrayList();
+        for (final ColumnPlan.Column column : columnPlan.getColumns()) {
+            names.add(column.getName());
+        }
+        writer.writeHeader(names);
+
+        final Iterator<T> iterator = domainObjects.iterator();
+        while (iterator.hasNext()) {
+            for (final Object[] values : rowExtractor.extract(nextChunk(iterator))) {
+                writer.writeRow(values);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Writes the same columns as {@link #toFile(Class, List)}, but as CSV (see {@link CsvCodec} for how each value is
+     * represented); the stream is flushed but not closed.
+     */
+    <T> void toCsv(final Class<T> cls, final List<T> domainObjects, final OutputStream os) throws IOException {
+
+        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+        final ColumnPlan columnPlan = columnPlans.forExport(objectSpec);
+
+        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, adapterManager, null);
+        final RowExtractor rowExtractor = new RowExtractor(columnPlan, cellMarshaller, adapterManager, exportPool);
+
+        final CsvWriter writer = new CsvWriter(os);
+
+        final List<String> names = Lists.newArrayList();
+        for (final ColumnPlan.Column column : columnPlan.getColumns()) {
+            names.add(column.getName());
+        }
+        writer.writeHeader(names);
+
+        final Iterator<T> iterator = domainObjects.iterator();
+        while (iterator.hasNext()) {
+            for (final Object[] values : rowExtractor.extract(nextChunk(iterator))) {
+                writer.writeRow(values);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Copies the objects out of the (possibly lazily transformed) list on the calling thread.
+     */
+    private static <T> List<T> nextChunk(final Iterator<T> iterator) {
+        final List<T> chunk = Lists.newArrayListWithCapacity(RowExtractor.CHUNK_SIZE);
+        while (iterator.hasNext() && chunk.size() < RowExtractor.CHUNK_SIZE) {
+            chunk.add(iterator.next());
+        }
+        return chunk;
     }
 
     <T> List<T> fromBytes(
@@ -146,10 +287,358 @@ class ExcelConverter {
             final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
 
         final List<T> importedItems = Lists.newArrayList();
+        fromBytes(cls, bs, container, sheetLookupPolicy, new ExcelServiceImpl.ImportCallback<T>() {
+            @Override
+            public void onImported(final T imported) {
+                importedItems.add(imported);
+            }
+        });
+        return importedItems;
+    }
+
+    <T> void fromBytes(
+            final Class<T> cls,
+            final byte[] bs,
+            final DomainObjectContainer container,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final ExcelServiceImpl.ImportCallback<T> callback) throws IOException, InvalidFormatException {
+        fromBytes(cls, bs, container, sheetLookupPolicy, callback, null);
+    }
+
+    /**
+     * @param errors - if not <tt>null</tt>, then rather than failing on the first row that cannot be imported, every
+     *                 such row is reported here (see {@link #newDecodedRowHandler(Class, DomainObjectContainer, ObjectSpecification, ExcelServiceImpl.ImportCallback, List)}).
+     */
+    <T> void fromBytes(
+            final Class<T> cls,
+            final byte[] bs,
+            final DomainObjectContainer container,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final ExcelServiceImpl.ImportCallback<T> callback,
+            final List<ExcelService.ImportError> errors) throws IOException, InvalidFormatException {
+
+        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+        final Map<String, Property> propertiesByHeader = propertiesByHeader(objectSpec, settings.isTrusted());
+        final ImportPipeline.DecodedRowHandler handler = newDecodedRowHandler(cls, container, objectSpec, callback, errors);
+
+        if (XlsxSheetSource.isXlsx(bs)) {
+            fromXlsx(cls, bs, sheetLookupPolicy, propertiesByHeader, handler);
+        } else if (settings.isImportXlsStreaming() && HssfSheetSource.isXls(bs)) {
+            fromXls(cls, bs, sheetLookupPolicy, propertiesByHeader, handler);
+        } else {
+            fromWorkbook(cls, bs, sheetLookupPolicy, propertiesByHeader, handler);
+        }
+    }
+
+    /**
+     * As {@link #fromBytes(Class, byte[], DomainObjectContainer, ExcelServiceImpl.SheetLookupPolicy, ExcelServiceImpl.ImportCallback, List)},
+     * but reading the spreadsheet from a file.
+     *
+     * <p>
+     *     An <tt>.xlsx</tt> file is not read onto the heap: it is memory-mapped (for the
+     *     {@link ExcelSettings#IMPORT_LIGHTWEIGHT lightweight} import), else opened by POI as a zip file.  Any other
+     *     file (<tt>.xls</tt>, whose sheets are limited to 64k rows) is read into memory and imported as before.
+     * </p>
+     */
+    <T> void fromFile(
+            final Class<T> cls,
+            final File file,
+            final DomainObjectContainer container,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final ExcelServiceImpl.ImportCallback<T> callback,
+            final List<ExcelService.ImportError> errors) throws IOException, InvalidFormatException {
+
+        if (!XlsxSheetSource.isXlsx(file)) {
+            fromBytes(cls, Files.toByteArray(file), container, sheetLookupPolicy, callback, errors);
+            return;
+        }
+
+        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+        final Map<String, Property> propertiesByHeader = propertiesByHeader(objectSpec, settings.isTrusted());
+        final ImportPipeline.DecodedRowHandler handler = newDecodedRowHandler(cls, container, objectSpec, callback, errors);
+
+        final List<String> sheetNames = determineSheetNames(cls);
+        try (SheetSource source = settings.isImportLightweight()
+                ? StaxSheetSource.open(map(file), sheetNames, sheetLookupPolicy, settings.getImportSharedStringsSpillThreshold())
+                : XlsxSheetSource.open(file, sheetNames, sheetLookupPolicy)) {
+            read(source, null, new RowDecoder(propertiesByHeader, new CellDecoder(source)), handler);
+        }
+    }
+
+    private static ByteBuffer map(final File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to import: " + file);
+            }
+            // the mapping remains valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private <T> void fromXlsx(
+            final Class<T> cls,
+            final byte[] bs,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final Map<String, Property> propertiesByHeader,
+            final ImportPipeline.DecodedRowHandler handler) throws IOException, InvalidFormatException {
+
+        try (SheetSource source = openSheetSource(bs, determineSheetNames(cls), sheetLookupPolicy)) {
+            read(source, null, new RowDecoder(propertiesByHeader, new CellDecoder(source)), handler);
+        }
+    }
+
+    /**
+     * As {@link #fromXlsx(Class, byte[], ExcelServiceImpl.SheetLookupPolicy, Map, ImportPipeline.DecodedRowHandler)},
+     * streaming the records of a <tt>.xls</tt> workbook through the same staging and decoding.
+     */
+    private <T> void fromXls(
+            final Class<T> cls,
+            final byte[] bs,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final Map<String, Property> propertiesByHeader,
+            final ImportPipeline.DecodedRowHandler handler) throws IOException, InvalidFormatException {
+
+        try (SheetSource source = HssfSheetSource.open(bs, determineSheetNames(cls), sheetLookupPolicy)) {
+            read(source, null, new RowDecoder(propertiesByHeader, new CellDecoder(source)), handler);
+        }
+    }
+
+    /**
+     * As {@link #fromBytes(Class, byte[], DomainObjectContainer, ExcelServiceImpl.SheetLookupPolicy, ExcelServiceImpl.ImportCallback)},
+     * but replaying the sheet if it has already been read from the workbook, else staging it as it is read.
+     */
+    <T> void fromStagedWorkbook(
+            final Class<T> cls,
+            final StagedWorkbook workbook,
+            final DomainObjectContainer container,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final ExcelServiceImpl.ImportCallback<T> callback) throws IOException, InvalidFormatException {
+
+        if (!workbook.isXlsx()) {
+            fromBytes(cls, workbook.getBytes(), container, sheetLookupPolicy, callback);
+            return;
+        }
 
         final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+        final Map<String, Property> propertiesByHeader = propertiesByHeader(objectSpec, settings.isTrusted());
+        final ImportPipeline.DecodedRowHandler handler = newDecodedRowHandler(cls, container, objectSpec, callback, null);
+
+        final SheetSource source = openSheetSource(workbook.getBytes(), determineSheetNames(cls), sheetLookupPolicy);
+        final StagedSheet stagedSheet = workbook.getStagedSheet(source.getSheetName());
+        if (stagedSheet != null) {
+            source.close();
+            final RowDecoder rowDecoder = new RowDecoder(propertiesByHeader, new CellDecoder(stagedSheet.getSource()));
+            for (final StagedRows rows : stagedSheet.getChunks()) {
+                decode(rows, rowDecoder, handler);
+            }
+            return;
+        }
+        // the workbook now owns (and eventually closes) the source
+        final StagedSheet newStagedSheet = workbook.newStagedSheet(source, settings.getImportReplaySpillThreshold());
+        read(source, newStagedSheet, new RowDecoder(propertiesByHeader, new CellDecoder(source)), handler);
+    }
+
+    /**
+     * Either {@link ImportPipeline pipelined}, or else reading and decoding each chunk of rows in turn on the
+     * calling thread.
+     *
+     * @param stagedSheet - if not <tt>null</tt>, then the rows are also staged into it as they are read.
+     */
+    private void read(
+            final SheetSource source,
+            final StagedSheet stagedSheet,
+            final RowDecoder rowDecoder,
+            final ImportPipeline.DecodedRowHandler handler) throws IOException, InvalidFormatException {
+
+        if (settings.isImportPipelined()) {
+            new ImportPipeline(settings.getImportQueueCapacity()).run(source, stagedSheet, rowDecoder, handler);
+            return;
+        }
+
+        final StagedRows.Stager stager = new StagedRows.Stager() {
+            @Override
+            void onStaged(final StagedRows chunk) throws SAXException {
+                if (stagedSheet != null) {
+                    try {
+                        stagedSheet.add(chunk);
+                    } catch (final IOException ex) {
+                        throw new SAXException(ex);
+                    }
+                }
+                decode(chunk, rowDecoder, handler);
+            }
+        };
+        try {
+            source.read(stager);
+            stager.flush();
+        } catch (final SAXException ex) {
+            if (ex.getException() instanceof IOException) {
+                throw (IOException) ex.getException();
+            }
+            throw new IOException(ex.getMessage(), ex);
+        }
+        if (stagedSheet != null) {
+            stagedSheet.finish();
+        }
+    }
+
+    private static void decode(
+            final StagedRows rows,
+            final RowDecoder rowDecoder,
+            final ImportPipeline.DecodedRowHandler handler) {
+        for (int r = 0; r < rows.size(); r++) {
+            final DecodedRow decodedRow = rowDecoder.decode(rows, r);
+            if (decodedRow != null) {
+                handler.handle(decodedRow);
+            }
+        }
+    }
+
+    /**
+     * Instantiates and populates a domain object from each decoded row, on the calling (Isis session) thread.
+     *
+     * @param errors - if not <tt>null</tt>, then each value is first validated by the metamodel, and any row that
+     *                 cannot be imported is reported here (its object being discarded) rather than failing the import.
+     */
+    private <T> ImportPipeline.DecodedRowHandler newDecodedRowHandler(
+            final Class<T> cls,
+            final DomainObjectContainer container,
+            final ObjectSpecification objectSpec,
+            final ExcelServiceImpl.ImportCallback<T> callback,
+            final List<ExcelService.ImportError> errors) {
+
         final ViewModelFacet viewModelFacet = objectSpec.getFacet(ViewModelFacet.class);
 
+        if (errors != null) {
+            return new ImportPipeline.DecodedRowHandler() {
+                @Override
+                public void handle(final DecodedRow row) {
+                    errors.addAll(row.getErrors());
+                    // the values that could be decoded are still validated, so that they are reported too
+                    final T imported = populateValidated(cls, container, row, errors);
+                    if (imported == null || row.getException() != null) {
+                        return;
+                    }
+                    try {
+                        callback.onImported(asImported(cls, imported, container, viewModelFacet));
+                    } catch (final RuntimeException ex) {
+                        errors.add(DecodedRow.newError(row.getRowNum(), -1, null, null, ex));
+                    }
+                }
+            };
+        }
+
+        return new ImportPipeline.DecodedRowHandler() {
+            @Override
+            public void handle(final DecodedRow row) {
+                try {
+                    if (row.getException() != null) {
+                        throw row.getException();
+                    }
+                    ObjectAdapter templateAdapter = null;
+                    T imported = null;
+                    for (int i = 0; i < row.size(); i++) {
+                        final Property property = row.getProperty(i);
+                        final Object value = resolve(property, row.getValue(i));
+                        if (value != null) {
+                            if (imported == null) {
+                                imported = container.newTransientInstance(cls);
+                            }
+                            if (property.getSetter() != null) {
+                                PropertyHandles.set(property.getSetter(), imported, value);
+                                continue;
+                            }
+                            if (templateAdapter == null) {
+                                templateAdapter = adapterManager.adapterFor(imported);
+                            }
+                            final ObjectAdapter valueAdapter = adapterManager.adapterFor(value);
+                            property.getOneToOneAssociation().set(templateAdapter, valueAdapter, InteractionInitiatedBy.USER);
+                        }
+                    }
+                    if (imported != null) {
+                        callback.onImported(asImported(cls, imported, container, viewModelFacet));
+                    }
+                } catch (final Exception e) {
+                    throw new ExcelService.Exception(String.format("Error processing Excel row nr. %d. Message: %s", row.getRowNum(), e.getMessage()), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Populates a new object from the row, checking each value against the metamodel's validation first.
+     *
+     * @return the object, or <tt>null</tt> if any of the values was invalid or could not be set (having reported
+     *         each such value).
+     */
+    private <T> T populateValidated(
+            final Class<T> cls,
+            final DomainObjectContainer container,
+            final DecodedRow row,
+            final List<ExcelService.ImportError> errors) {
+        final T imported = container.newTransientInstance(cls);
+        final ObjectAdapter templateAdapter = adapterManager.adapterFor(imported);
+        boolean valid = true;
+        for (int i = 0; i < row.size(); i++) {
+            final Property property = row.getProperty(i);
+            final int columnIndex = row.getColumnIndex(i);
+            final String valueStr = String.valueOf(row.getValue(i));
+            try {
+                final Object value = resolve(property, row.getValue(i));
+                if (value == null) {
+                    errors.add(new ExcelService.ImportError(
+                            row.getRowNum(), columnIndex, property.getName(), valueStr, "No such object"));
+                    valid = false;
+                    continue;
+                }
+                final OneToOneAssociation otoa = property.getOneToOneAssociation();
+                final ObjectAdapter valueAdapter = adapterManager.adapterFor(value);
+                final Consent consent = otoa.isAssociationValid(templateAdapter, valueAdapter, InteractionInitiatedBy.USER);
+                if (consent.isVetoed()) {
+                    errors.add(new ExcelService.ImportError(
+                            row.getRowNum(), columnIndex, property.getName(), valueStr, consent.getReason()));
+                    valid = false;
+                    continue;
+                }
+                if (property.getSetter() != null) {
+                    PropertyHandles.set(property.getSetter(), imported, value);
+                } else {
+                    otoa.set(templateAdapter, valueAdapter, InteractionInitiatedBy.USER);
+                }
+            } catch (final RuntimeException ex) {
+                errors.add(DecodedRow.newError(row.getRowNum(), columnIndex, property, valueStr, ex));
+                valid = false;
+            }
+        }
+        return valid ? imported : null;
+    }
+
+    private SheetSource openSheetSource(
+            final byte[] bs,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
+        return settings.isImportLightweight()
+                ? StaxSheetSource.open(bs, sheetNames, sheetLookupPolicy, settings.getImportSharedStringsSpillThreshold())
+                : XlsxSheetSource.open(bs, sheetNames, sheetLookupPolicy);
+    }
+
+    /**
+     * References are decoded (off the session thread) to their {@link Bookmark}, so are looked up here.
+     */
+    private Object resolve(final Property property, final Object decodedValue) {
+        if (property.isReference() && decodedValue instanceof Bookmark) {
+            return bookmarkService.lookup((Bookmark) decodedValue, property.getType());
+        }
+        return decodedValue;
+    }
+
+    private <T> void fromWorkbook(
+            final Class<T> cls,
+            final byte[] bs,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final Map<String, Property> propertiesByHeader,
+            final ImportPipeline.DecodedRowHandler handler) throws IOException, InvalidFormatException {
+
         try (ByteArrayInputStream bais = new ByteArrayInputStream(bs)) {
             final Workbook wb = org.apache.poi.ss.usermodel.WorkbookFactory.create(bais);
             final CellMarshaller cellMarshaller = this.newCellMarshaller(wb);
@@ -166,63 +655,148 @@ class ExcelConverter {
                         if (cell.getCellType() != Cell.CELL_TYPE_BLANK) {
                             final int columnIndex = cell.getColumnIndex();
                             final String propertyName = cellMarshaller.getStringCellValue(cell);
-                            final OneToOneAssociation property = getAssociation(objectSpec, propertyName);
+                            final Property property = propertyName != null ? propertiesByHeader.get(headerKey(propertyName)) : null;
                             if (property != null) {
-                                final Class<?> propertyType = property.getSpecification().getCorrespondingClass();
-                                propertyByColumn.put(columnIndex, new Property(propertyName, property, propertyType));
+                                propertyByColumn.put(columnIndex, property);
                             }
                         }
                     }
                     header = false;
                 } else {
                     // detail
-                    try {
+                    final DecodedRow decodedRow = decodeRow(row, propertyByColumn, cellMarshaller);
+                    if (decodedRow != null) {
+                        handler.handle(decodedRow);
+                    }
+                }
+            }
+        }
+    }
 
-                        // Let's require at least one column to be not null for detecting a blank row.
-                        // Excel can have physical rows with cells empty that it seem do not existent for the user.
-                        ObjectAdapter templateAdapter = null;
-                        T imported = null;
-                        for (final Cell cell : row) {
-                            final int columnIndex = cell.getColumnIndex();
-                            final Property property = propertyByColumn.get(columnIndex);
-                            if (property != null) {
-                                final OneToOneAssociation otoa = property.getOneToOneAssociation();
-                                final Object value = cellMarshaller.getCellValue(cell, otoa);
-                                if (value != null) {
-                                    if (imported == null) {
-                                        // copy the row into a new object
-                                        imported = container.newTransientInstance(cls);
-                                        templateAdapter = this.adapterManager.adapterFor(imported);
-                                    }
-                                    final ObjectAdapter valueAdapter = this.adapterManager.adapterFor(value);
-                                    otoa.set(templateAdapter, valueAdapter, InteractionInitiatedBy.USER);
-                                }
-                            } else {
-                                // not expected; just ignore.
-                            }
-                        }
+    /**
+     * Imports CSV as written by {@link #toCsv(Class, List, OutputStream)}: the first record is the header, mapped to
+     * properties just as for a spreadsheet; the stream is read (as UTF-8) record by record, and closed.
+     *
+     * @param errors - as for {@link #fromBytes(Class, byte[], DomainObjectContainer, ExcelServiceImpl.SheetLookupPolicy, ExcelServiceImpl.ImportCallback, List)}.
+     */
+    <T> void fromCsv(
+            final Class<T> cls,
+            final InputStream is,
+            final DomainObjectContainer container,
+            final ExcelServiceImpl.ImportCallback<T> callback,
+            final List<ExcelService.ImportError> errors) throws IOException {
 
-                        if (imported != null) {
-                            if (viewModelFacet != null) {
-                                // if there is a view model, then use the imported object as a template
-                                // in order to create a regular view model.
-                                final String memento = viewModelFacet.memento(imported);
-                                final T viewModel = container.newViewModelInstance(cls, memento);
-                                importedItems.add(viewModel);
-                            } else {
-                                // else, just return the imported items as simple transient instances.
-                                importedItems.add(imported);
-                            }
-                        }
-                    } catch (final Exception e) {
-                        bais.close();
-                        throw new ExcelService.Exception(String.format("Error processing Excel row nr. %d. Message: %s", row.getRowNum(), e.getMessage()), e);
-                    }
+        final ObjectSpecification objectSpec = specificationLoader.loadSpecification(cls);
+        final Map<String, Property> propertiesByHeader = propertiesByHeader(objectSpec, settings.isTrusted());
+        final ImportPipeline.DecodedRowHandler handler = newDecodedRowHandler(cls, container, objectSpec, callback, errors);
+
+        try (CsvReader reader = new CsvReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            if (!reader.next()) {
+                return;
+            }
+            final Property[] propertyByColumn = new Property[reader.size()];
+            for (int columnIndex = 0; columnIndex < propertyByColumn.length; columnIndex++) {
+                final String propertyName = reader.get(columnIndex);
+                if (propertyName != null) {
+                    propertyByColumn[columnIndex] = propertiesByHeader.get(headerKey(propertyName));
+                }
+            }
+            while (reader.next()) {
+                final DecodedRow decodedRow = decodeRow(reader, propertyByColumn);
+                if (decodedRow != null) {
+                    handler.handle(decodedRow);
                 }
             }
         }
+    }
 
-        return importedItems;
+    /**
+     * As {@link RowDecoder#decode(StagedRows, int)}, for the current record of a CSV file.
+     */
+    private static DecodedRow decodeRow(final CsvReader reader, final Property[] propertyByColumn) {
+        final int numColumns = Math.min(reader.size(), propertyByColumn.length);
+        DecodedRow decodedRow = null;
+        for (int columnIndex = 0; columnIndex < numColumns; columnIndex++) {
+            final Property property = propertyByColumn[columnIndex];
+            if (property == null) {
+                // not expected; just ignore.
+                continue;
+            }
+            final String text = reader.get(columnIndex);
+            final Object value;
+            try {
+                value = CsvCodec.parse(text, property);
+            } catch (final RuntimeException ex) {
+                if (decodedRow == null) {
+                    decodedRow = new DecodedRow(reader.getRecordNum(), numColumns - columnIndex);
+                }
+                decodedRow.addError(columnIndex, property, text, ex);
+                continue;
+            }
+            if (value == null) {
+                continue;
+            }
+            if (decodedRow == null) {
+                decodedRow = new DecodedRow(reader.getRecordNum(), numColumns - columnIndex);
+            }
+            decodedRow.add(columnIndex, property, value);
+        }
+        return decodedRow;
+    }
+
+    /**
+     * As {@link RowDecoder#decode(StagedRows, int)}, for a row of a workbook loaded by POI.
+     */
+    private static DecodedRow decodeRow(
+            final Row row,
+            final Map<Integer, Property> propertyByColumn,
+            final CellMarshaller cellMarshaller) {
+
+        // Let's require at least one column to be not null for detecting a blank row.
+        // Excel can have physical rows with cells empty that it seem do not existent for the user.
+        DecodedRow decodedRow = null;
+        for (final Cell cell : row) {
+            final int columnIndex = cell.getColumnIndex();
+            final Property property = propertyByColumn.get(columnIndex);
+            if (property == null) {
+                // not expected; just ignore.
+                continue;
+            }
+            final Object value;
+            try {
+                value = cellMarshaller.getCellValue(cell, property.getOneToOneAssociation());
+            } catch (final RuntimeException ex) {
+                if (decodedRow == null) {
+                    decodedRow = new DecodedRow(row.getRowNum(), row.getPhysicalNumberOfCells());
+                }
+                decodedRow.addError(columnIndex, property, cell.toString(), ex);
+                continue;
+            }
+            if (value == null) {
+                continue;
+            }
+            if (decodedRow == null) {
+                decodedRow = new DecodedRow(row.getRowNum(), row.getPhysicalNumberOfCells());
+            }
+            decodedRow.add(columnIndex, property, value);
+        }
+        return decodedRow;
+    }
+
+    private static <T> T asImported(
+            final Class<T> cls,
+            final T imported,
+            final DomainObjectContainer container,
+            final ViewModelFacet viewModelFacet) {
+        if (viewModelFacet != null) {
+            // if there is a view model, then use the imported object as a template
+            // in order to create a regular view model.
+            final String memento = viewModelFacet.memento(imported);
+            return container.newViewModelInstance(cls, memento);
+        } else {
+            // else, just return the imported items as simple transient instances.
+            return imported;
+        }
     }
 
     private static <T> List<String> determineSheetNames(final Class<T> cls) {
@@ -242,31 +816,62 @@ class ExcelConverter {
         return sheetLookupPolicy.lookup(wb, sheetNames);
     }
 
-    private static OneToOneAssociation getAssociation(final ObjectSpecification objectSpec, final String propertyNameOrId) {
+    /**
+     * Maps both the name and the id of each property (case-insensitively) to the property; where two properties
+     * clash, the first wins.
+     *
+     * @param trusted - whether to provide the {@link Property#getSetter() setter} of each editable property (as is
+     *                  also the case for classes with a generated {@link org.isisaddons.module.excel.dom.ExcelRowCodec}).
+     */
+    private static Map<String, Property> propertiesByHeader(final ObjectSpecification objectSpec, final boolean trusted) {
+        final Map<String, Property> propertiesByHeader = Maps.newHashMap();
         final List<ObjectAssociation> associations = objectSpec.getAssociations(Contributed.INCLUDED);
+        final Class<?> cls = objectSpec.getCorrespondingClass();
+        final boolean hasCodec = RowCodecs.codecFor(cls) != null;
         for (final ObjectAssociation association : associations) {
             if (association instanceof OneToOneAssociation) {
-                if (propertyNameOrId.equalsIgnoreCase(association.getName())) {
-                    return (OneToOneAssociation) association;
-                }
-                if (propertyNameOrId.equalsIgnoreCase(association.getId())) {
-                    return (OneToOneAssociation) association;
-                }
+                final OneToOneAssociation otoa = (OneToOneAssociation) association;
+                final Class<?> propertyType = otoa.getSpecification().getCorrespondingClass();
+                final MethodHandle setter = trusted || hasCodec ? PropertyHandles.setterFor(cls, otoa) : null;
+                final Property property = new Property(otoa.getName(), otoa, propertyType, setter);
+                putIfAbsent(propertiesByHeader, headerKey(otoa.getName()), property);
+                putIfAbsent(propertiesByHeader, headerKey(otoa.getId()), property);
             }
         }
-        return null;
+        return propertiesByHeader;
+    }
+
+    private static void putIfAbsent(final Map<String, Property> propertiesByHeader, final String key, final Property property) {
+        if (!propertiesByHeader.containsKey(key)) {
+            propertiesByHeader.put(key, property);
+        }
+    }
+
+    static String headerKey(final String propertyNameOrId) {
+        return propertyNameOrId.toLowerCase(Locale.ROOT);
     }
 
     static class Property {
         private final String name;
         private final Class<?> type;
         private final OneToOneAssociation property;
+        private final boolean value;
+        private final boolean reference;
+        private final MethodHandle setter;
         private Object currentValue;
 
         public Property(final String name, final OneToOneAssociation property, final Class<?> type) {
+            this(name, property, type, null);
+        }
+
+        Property(final String name, final OneToOneAssociation property, final Class<?> type, final MethodHandle setter) {
             this.name = name;
+            this.setter = setter;
             this.property = property;
             this.type = type;
+            final ObjectSpecification propertySpec = property.getSpecification();
+            this.value = propertySpec.isValue();
+            this.reference = !this.value && !propertySpec.isParentedOrFreeCollection();
         }
 
         public String getName() {
@@ -281,6 +886,25 @@ class ExcelConverter {
             return type;
         }
 
+        /**
+         * Whether the property is of a value type; otherwise it is a {@link #isReference() reference}
+         * (or neither, for collections).
+         */
+        public boolean isValue() {
+            return value;
+        }
+
+        public boolean isReference() {
+            return reference;
+        }
+
+        /**
+         * If not <tt>null</tt>, used to set the property directly rather than through the metamodel.
+         */
+        MethodHandle getSetter() {
+            return setter;
+        }
+
         public Object getCurrentValue() {
             return currentValue;
         }
@@ -295,10 +919,12 @@ class ExcelConverter {
         }
     }
 
-    @SuppressWarnings("unused")
-    private void autoSize(final Sheet sh, final int numProps) {
-        for (int prop = 0; prop < numProps; prop++) {
-            sh.autoSizeColumn(prop);
+    /**
+     * Rather than {@link Sheet#autoSizeColumn(int)}, which renders the text of every cell.
+     */
+    private static void autoSize(final Sheet sh, final ColumnWidths columnWidths) {
+        for (int i = 0; i < columnWidths.size(); i++) {
+            sh.setColumnWidth(i, columnWidths.getPoiWidth(i));
         }
     }
 
@@ -306,7 +932,8 @@ class ExcelConverter {
 
     protected CellMarshaller newCellMarshaller(final Workbook wb) {
         final CellStyle dateCellStyle = createDateFormatCellStyle(wb);
-        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, dateCellStyle);
+        final boolean date1904 = wb instanceof XSSFWorkbook && ExcelDates.isDate1904((XSSFWorkbook) wb);
+        final CellMarshaller cellMarshaller = new CellMarshaller(bookmarkService, adapterManager, dateCellStyle, date1904);
         return cellMarshaller;
     }
 
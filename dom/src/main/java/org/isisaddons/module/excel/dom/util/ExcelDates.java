@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbookPr;
+
+/**
+ * Converts between Excel serial dates (in either the 1900 or the 1904 date system) and each of the supported date
+ * types, computing directly from the day number and time of day rather than (as POI's {@link DateUtil} does) by way
+ * of a {@link java.util.Calendar}.  Also converts to and from ISO-8601 text, for CSV.
+ *
+ * <p>
+ *     The results are the same as POI's: local date (and time) types map to their fields, and instants
+ *     ({@link Date}, {@link DateTime} and the applib's <tt>Date</tt> and <tt>DateTime</tt>) to their fields in the
+ *     default time zone.
+ * </p>
+ */
+final class ExcelDates {
+
+    private static final long DAY_MILLIS = DateUtil.DAY_MILLISECONDS;
+
+    /**
+     * The serial number of 1970-01-01 in the 1900 date system (which counts the non-existent 1900-02-29, as serial
+     * number 60).
+     */
+    private static final int EPOCH_1900 = 25569;
+    /**
+     * The serial number of 1970-01-01 in the 1904 date system (in which 1904-01-01 is 0).
+     */
+    private static final int EPOCH_1904 = 24107;
+
+    private ExcelDates() {
+    }
+
+    static boolean isDateType(final Class<?> type) {
+        return type == Date.class ||
+               type == org.apache.isis.applib.value.Date.class ||
+               type == org.apache.isis.applib.value.DateTime.class ||
+               type == LocalDate.class ||
+               type == LocalDateTime.class ||
+               type == DateTime.class;
+    }
+
+    static boolean isDateValue(final Object value) {
+        return value instanceof Date ||
+               value instanceof org.apache.isis.applib.value.Date ||
+               value instanceof org.apache.isis.applib.value.DateTime ||
+               value instanceof LocalDate ||
+               value instanceof LocalDateTime ||
+               value instanceof DateTime;
+    }
+
+    static boolean isDate1904(final XSSFWorkbook wb) {
+        final CTWorkbookPr workbookPr = wb.getCTWorkbook().getWorkbookPr();
+        return workbookPr != null && workbookPr.getDate1904();
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * The serial date of a value of any of the {@link #isDateValue(Object) date types}; as
+     * {@link DateUtil#getExcelDate(Date, boolean)}, so -1 if before the start of the date system.
+     */
+    static double toSerial(final Object value, final boolean date1904) {
+        if(value instanceof LocalDate) {
+            final LocalDate localDate = (LocalDate) value;
+            return serialOf(epochDayOf(localDate.getYear(), localDate.getMonthOfYear(), localDate.getDayOfMonth()), 0, date1904);
+        }
+        if(value instanceof LocalDateTime) {
+            final LocalDateTime localDateTime = (LocalDateTime) value;
+            return serialOf(epochDayOf(localDateTime.getYear(), localDateTime.getMonthOfYear(), localDateTime.getDayOfMonth()),
+                    localDateTime.getMillisOfDay(), date1904);
+        }
+        final long localMillis = localMillisOf(millisOf(value));
+        final long epochDay = floorDiv(localMillis, DAY_MILLIS);
+        return serialOf(epochDay, (int) (localMillis - epochDay * DAY_MILLIS), date1904);
+    }
+
+    /**
+     * A value of any of the {@link #isDateValue(Object) date types} as ISO-8601 text, such as <tt>2014-12-31</tt> or
+     * <tt>2014-12-31T23:59:59.000</tt>; instants are written as their local date and time in the default time zone
+     * (as for {@link #toSerial(Object, boolean)}).
+     */
+    static String toIsoText(final Object value) {
+        if(value instanceof LocalDate || value instanceof LocalDateTime) {
+            return value.toString();
+        }
+        return new LocalDateTime(localMillisOf(millisOf(value)), DateTimeZone.UTC).toString();
+    }
+
+    /**
+     * The value of the required {@link #isDateType(Class) date type} for ISO-8601 text as written by
+     * {@link #toIsoText(Object)} (the time being optional).
+     */
+    static Object fromIsoText(final String text, final Class<?> requiredType) {
+        final LocalDateTime localDateTime = LocalDateTime.parse(text);
+        final long epochDay = epochDayOf(
+                localDateTime.getYear(), localDateTime.getMonthOfYear(), localDateTime.getDayOfMonth());
+        return fromLocal(epochDay, localDateTime.getMillisOfDay(), requiredType);
+    }
+
+    private static long millisOf(final Object value) {
+        if(value instanceof org.apache.isis.applib.value.Date) {
+            return ((org.apache.isis.applib.value.Date) value).getMillisSinceEpoch();
+        }
+        if(value instanceof org.apache.isis.applib.value.DateTime) {
+            return ((org.apache.isis.applib.value.DateTime) value).getMillisSinceEpoch();
+        }
+        if(value instanceof DateTime) {
+            return ((DateTime) value).getMillis();
+        }
+        return ((Date) value).getTime();
+    }
+
+    private static long localMillisOf(final long instant) {
+        return instant + TimeZone.getDefault().getOffset(instant);
+    }
+
+    private static double serialOf(final long epochDay, final int millisOfDay, final boolean date1904) {
+        long serial;
+        if(date1904) {
+            serial = epochDay + EPOCH_1904;
+            if(serial < 0) {
+                return -1;
+            }
+        } else {
+            serial = epochDay + EPOCH_1900;
+            if(serial < 2) {
+                return -1; // before 1900-01-01
+            }
+            if(serial < 61) {
+                serial--;
+            }
+        }
+        return serial + millisOfDay / (double) DAY_MILLIS;
+    }
+
+    /**
+     * Days since 1970-01-01 (proleptic Gregorian).
+     */
+    static long epochDayOf(final int year, final int month, final int day) {
+        final int y = month <= 2 ? year - 1 : year;
+        final int era = (int) floorDiv(y, 400);
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * The value of the required {@link #isDateType(Class) date type} for a serial date; as
+     * {@link DateUtil#getJavaDate(double, boolean)}, so <tt>null</tt> if negative.
+     */
+    static Object fromSerial(final double serial, final boolean date1904, final Class<?> requiredType) {
+        if(!DateUtil.isValidExcelDate(serial)) {
+            return null;
+        }
+        long wholeDays = (long) Math.floor(serial);
+        int millisOfDay = (int) ((serial - wholeDays) * DAY_MILLIS + 0.5);
+        if(millisOfDay >= DAY_MILLIS) {
+            wholeDays++;
+            millisOfDay -= DAY_MILLIS;
+        }
+        final long epochDay = date1904
+                ? wholeDays - EPOCH_1904
+                : wholeDays - (wholeDays < 61 ? EPOCH_1900 - 1 : EPOCH_1900);
+        return fromLocal(epochDay, millisOfDay, requiredType);
+    }
+
+    private static Object fromLocal(final long epochDay, final int millisOfDay, final Class<?> requiredType) {
+        if(requiredType == LocalDate.class || requiredType == LocalDateTime.class) {
+            final int ymd = civilOf(epochDay);
+            final int year = ymd >> 9;
+            final int month = (ymd >> 5) & 0xf;
+            final int day = ymd & 0x1f;
+            return requiredType == LocalDate.class
+                    ? new LocalDate(year, month, day)
+                    : new LocalDateTime(year, month, day,
+                            millisOfDay / 3600000, millisOfDay / 60000 % 60, millisOfDay / 1000 % 60, millisOfDay % 1000);
+        }
+        final long instant = instantOf(epochDay * DAY_MILLIS + millisOfDay);
+        if(requiredType == Date.class) {
+            return new Date(instant);
+        }
+        if(requiredType == DateTime.class) {
+            return new DateTime(instant);
+        }
+        if(requiredType == org.apache.isis.applib.value.Date.class) {
+            return new org.apache.isis.applib.value.Date(new Date(instant));
+        }
+        if(requiredType == org.apache.isis.applib.value.DateTime.class) {
+            return new org.apache.isis.applib.value.DateTime(new Date(instant));
+        }
+        return null;
+    }
+
+    /**
+     * The instant of a local date and time in the default time zone (using the JDK's time zone data, as does
+     * {@link java.util.Calendar}).
+     */
+    private static long instantOf(final long localMillis) {
+        final TimeZone timeZone = TimeZone.getDefault();
+        final int offset = timeZone.getOffset(localMillis - timeZone.getRawOffset());
+        final long instant = localMillis - offset;
+        final int actualOffset = timeZone.getOffset(instant);
+        if(actualOffset == offset) {
+            return instant;
+        }
+        final long adjusted = localMillis - actualOffset;
+        if(timeZone.getOffset(adjusted) == actualOffset) {
+            return adjusted;
+        }
+        // in a gap (eg the start of daylight saving); as Calendar, moved forward by the length of the gap
+        return localMillis - Math.min(offset, actualOffset);
+    }
+
+    /**
+     * The year, month and day of a day since 1970-01-01, packed as <tt>year &lt;&lt; 9 | month &lt;&lt; 5 | day</tt>.
+     */
+    private static int civilOf(final long epochDay) {
+        final long z = epochDay + 719468;
+        final long era = floorDiv(z, 146097);
+        final int dayOfEra = (int) (z - era * 146097);
+        final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int mp = (5 * dayOfYear + 2) / 153;
+        final int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        final int month = mp < 10 ? mp + 3 : mp - 9;
+        final int year = (int) (era * 400 + yearOfEra) + (month <= 2 ? 1 : 0);
+        return year << 9 | month << 5 | day;
+    }
+
+    /**
+     * Division rounding towards negative infinity (for days before 1970-01-01).
+     */
+    private static long floorDiv(final long x, final long y) {
+        final long q = x / y;
+        return (x % y != 0 && (x ^ y) < 0) ? q - 1 : q;
+    }
+
+}
@@ -16,9 +16,21 @@
  */
 package org.isisaddons.module.excel.dom.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.ss.usermodel.Sheet;
@@ -39,9 +51,39 @@ public class ExcelServiceImpl {
 
     private final DomainObjectContainer container;
     private final BookmarkService bookmarkService;
+    private final ExcelSettings settings;
 
     private final ExcelFileBlobConverter excelFileBlobConverter;
 
+    private final ColumnPlans columnPlans;
+
+    private ForkJoinPool exportPool;
+    private ExecutorService deflatePool;
+
+    /**
+     * Called for each object as soon as it has been imported, rather than once the whole sheet has been read.
+     */
+    public interface ImportCallback<T> {
+        void onImported(T imported);
+    }
+
+    /**
+     * A spreadsheet opened by {@link #openImport(Blob)}, from which several classes are imported.
+     */
+    public interface MultiPassImport extends Closeable {
+        /**
+         * As {@link ExcelServiceImpl#fromExcel(Blob, Class, SheetLookupPolicy, ImportCallback)}, except that a sheet
+         * that has already been read (for this or another class) is replayed rather than parsed again.
+         */
+        <T> void fromExcel(Class<T> cls, SheetLookupPolicy sheetLookupPolicy, ImportCallback<T> callback) throws ExcelService.Exception;
+
+        /**
+         * Releases the sheets read so far (and any temporary files they have spilled to).
+         */
+        @Override
+        void close();
+    }
+
     public enum SheetLookupPolicy {
         BY_NAME {
             @Override
@@ -54,24 +96,80 @@ public class ExcelServiceImpl {
                 }
                 throw new IllegalArgumentException("Could not locate sheet named any of: '" + sheetNames + "'");
             }
+            @Override
+            public String lookupName(final List<String> workbookSheetNames, final List<String> sheetNames) {
+                for (String sheetName : sheetNames) {
+                    for (String workbookSheetName : workbookSheetNames) {
+                        if(workbookSheetName.equalsIgnoreCase(sheetName)) {
+                            return workbookSheetName;
+                        }
+                    }
+                }
+                throw new IllegalArgumentException("Could not locate sheet named any of: '" + sheetNames + "'");
+            }
         },
         FIRST {
             @Override
             public Sheet lookup(final Workbook wb, final List<String> sheetNames) {
                 return wb.getSheetAt(0);
             }
+            @Override
+            public String lookupName(final List<String> workbookSheetNames, final List<String> sheetNames) {
+                return workbookSheetNames.get(0);
+            }
         };
         public abstract Sheet lookup(final Workbook wb, final List<String> sheetNames);
+        /**
+         * As {@link #lookup(Workbook, List)}, but selecting from the names of the sheets of a workbook that is
+         * being streamed rather than loaded.
+         */
+        public abstract String lookupName(final List<String> workbookSheetNames, final List<String> sheetNames);
     }
 
     public ExcelServiceImpl(
             final DomainObjectContainer container,
             final BookmarkService bookmarkService) {
+        this(container, bookmarkService, null);
+    }
+
+    /**
+     * @param properties - configuration properties; see {@link ExcelSettings} for the keys.
+     */
+    public ExcelServiceImpl(
+            final DomainObjectContainer container,
+            final BookmarkService bookmarkService,
+            final Map<String, String> properties) {
         this.container = container;
         this.bookmarkService = bookmarkService;
+        this.settings = new ExcelSettings(properties);
+        this.columnPlans = new ColumnPlans(settings.isTrusted());
         excelFileBlobConverter = new ExcelFileBlobConverter();
     }
 
+    /**
+     * If configured, warms up in the background (returning immediately); see {@link ExcelSettings#WARM_UP}.
+     */
+    @Programmatic
+    public void warmUp() {
+        if(!settings.isWarmUp()) {
+            return;
+        }
+        final List<Class<?>> exportClasses = Lists.newArrayList();
+        for (final String className : settings.getWarmUpClassNames()) {
+            exportClasses.add(loadClass(className));
+        }
+        new WarmUp(exportClasses, columnPlans).start();
+    }
+
+    private static Class<?> loadClass(final String className) {
+        try {
+            return Thread.currentThread().getContextClassLoader().loadClass(className);
+        } catch (final ClassNotFoundException ex) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid class '%s' for '%s'", className, ExcelSettings.WARM_UP_CLASSES), ex);
+        }
+    }
+
     // //////////////////////////////////////
 
     /**
@@ -98,6 +196,27 @@ public class ExcelServiceImpl {
         }
     }
 
+    /**
+     * As {@link #toExcel(List, Class, String)}, but writing (and flushing, though not closing) the stream directly,
+     * rather than via a temporary file.
+     *
+     * <p>
+     *     Lightweight exports (see {@link ExcelSettings#EXPORT_LIGHTWEIGHT}) are written as the rows are read, so
+     *     that the start of the spreadsheet can be sent (eg to a browser) while the rest is still being produced.
+     * </p>
+     */
+    @Programmatic
+    public <T> void toExcel(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        try {
+            newExcelConverter().toStream(cls, domainObjects, os);
+        } catch (final IOException ex) {
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
     /**
      * Returns a list of objects for each line in the spreadsheet, of the specified type.
      *
@@ -120,8 +239,240 @@ public class ExcelServiceImpl {
         }
     }
 
+    /**
+     * As {@link #fromExcel(Blob, Class, SheetLookupPolicy)}, but passing each object to the callback as soon as it
+     * has been imported.
+     *
+     * <p>
+     *     For <tt>.xlsx</tt> (and streamed <tt>.xls</tt>) files the sheet is read and decoded a chunk of rows at a
+     *     time, so each object is passed on before the remainder of the sheet has been read.  If
+     *     <tt>isis.services.excel.import.pipelined</tt> is set, the reading and decoding are instead done on
+     *     background threads, so that any work done by the callback (such as persisting the object) overlaps with
+     *     the parsing.
+     * </p>
+     */
+    @Programmatic
+    public <T> void fromExcel(
+            final Blob excelBlob,
+            final Class<T> cls,
+            final SheetLookupPolicy sheetLookupPolicy,
+            final ImportCallback<T> callback) throws ExcelService.Exception {
+        try {
+            newExcelConverter().fromBytes(cls, excelBlob.getBytes(), container, sheetLookupPolicy, callback);
+        } catch (final IOException | InvalidFormatException e) {
+            throw new ExcelService.Exception(e);
+        }
+    }
+
+    /**
+     * As {@link #fromExcel(Blob, Class, SheetLookupPolicy)}, but reporting every cell (or row) that could not be
+     * imported rather than failing on the first; see {@link ExcelService#fromExcelValidating(Blob, Class)}.
+     *
+     * <p>
+     *     For <tt>.xlsx</tt> (and streamed <tt>.xls</tt>) files the cells are decoded (and so checked) a chunk of rows
+     *     at a time, as the sheet is read.  Only if <tt>isis.services.excel.import.pipelined</tt> is set is this done
+     *     on background threads, overlapping with the objects being populated and validated on the calling thread.
+     * </p>
+     */
+    @Programmatic
+    public <T> ExcelService.ImportResult<T> fromExcelValidating(
+            final Blob excelBlob,
+            final Class<T> cls,
+            final SheetLookupPolicy sheetLookupPolicy) throws ExcelService.Exception {
+        final List<T> imported = Lists.newArrayList();
+        final List<ExcelService.ImportError> errors = Lists.newArrayList();
+        try {
+            newExcelConverter().fromBytes(cls, excelBlob.getBytes(), container, sheetLookupPolicy, new ImportCallback<T>() {
+                @Override
+                public void onImported(final T object) {
+                    imported.add(object);
+                }
+            }, errors);
+        } catch (final IOException | InvalidFormatException e) {
+            throw new ExcelService.Exception(e);
+        }
+        return new ExcelService.ImportResult<>(imported, errors);
+    }
+
+    /**
+     * As {@link #fromExcelValidating(Blob, Class, SheetLookupPolicy)}, but reading the spreadsheet from a file
+     * (which, if <tt>.xlsx</tt>, is not read onto the heap), and passing each object to the callback as soon as it
+     * has been imported rather than collecting them.
+     *
+     * @return the cells (or rows) that could not be imported.
+     */
+    @Programmatic
+    public <T> List<ExcelService.ImportError> fromExcelValidating(
+            final File file,
+            final Class<T> cls,
+            final SheetLookupPolicy sheetLookupPolicy,
+            final ImportCallback<T> callback) throws ExcelService.Exception {
+        final List<ExcelService.ImportError> errors = Lists.newArrayList();
+        try {
+            newExcelConverter().fromFile(cls, file, container, sheetLookupPolicy, callback, errors);
+        } catch (final IOException | InvalidFormatException e) {
+            throw new ExcelService.Exception(e);
+        }
+        return errors;
+    }
+
+    /**
+     * As {@link #toExcel(List, Class, String)}, but as CSV (UTF-8, with a header row of the property names).
+     *
+     * <p>
+     *     Values are written exactly as text (dates as ISO-8601, references as their bookmark), so can be imported
+     *     back using {@link #fromCsv(Blob, Class)}.
+     * </p>
+     */
+    @Programmatic
+    public <T> Blob toCsv(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final String fileName) throws ExcelService.Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        toCsv(domainObjects, cls, baos);
+        return new Blob(fileName, ExcelService.CSV_MIME_TYPE, baos.toByteArray());
+    }
+
+    /**
+     * As {@link #toCsv(List, Class, String)}, but writing (and flushing, though not closing) the stream directly.
+     */
+    @Programmatic
+    public <T> void toCsv(
+            final List<T> domainObjects,
+            final Class<T> cls,
+            final OutputStream os) throws ExcelService.Exception {
+        try {
+            newExcelConverter().toCsv(cls, domainObjects, os);
+        } catch (final IOException ex) {
+            throw new ExcelService.Exception(ex);
+        }
+    }
+
+    /**
+     * As {@link #fromExcel(Blob, Class, SheetLookupPolicy)}, but for CSV as written by {@link #toCsv(List, Class, String)}.
+     */
+    @Programmatic
+    public <T> List<T> fromCsv(
+            final Blob csvBlob,
+            final Class<T> cls) throws ExcelService.Exception {
+        final List<T> imported = Lists.newArrayList();
+        fromCsv(new ByteArrayInputStream(csvBlob.getBytes()), cls, new ImportCallback<T>() {
+            @Override
+            public void onImported(final T object) {
+                imported.add(object);
+            }
+        });
+        return imported;
+    }
+
+    /**
+     * As {@link #fromCsv(Blob, Class)}, but reading (and then closing) the stream a record at a time, passing each
+     * object to the callback as soon as it has been imported.
+     */
+    @Programmatic
+    public <T> void fromCsv(
+            final InputStream is,
+            final Class<T> cls,
+            final ImportCallback<T> callback) throws ExcelService.Exception {
+        try {
+            newExcelConverter().fromCsv(cls, is, container, callback, null);
+        } catch (final IOException e) {
+            throw new ExcelService.Exception(e);
+        }
+    }
+
+    /**
+     * As {@link #fromCsv(InputStream, Class, ImportCallback)}, but reporting every cell (or row) that could not be
+     * imported rather than failing on the first.
+     *
+     * @return the cells (or rows) that could not be imported.
+     */
+    @Programmatic
+    public <T> List<ExcelService.ImportError> fromCsvValidating(
+            final InputStream is,
+            final Class<T> cls,
+            final ImportCallback<T> callback) throws ExcelService.Exception {
+        final List<ExcelService.ImportError> errors = Lists.newArrayList();
+        try {
+            newExcelConverter().fromCsv(cls, is, container, callback, errors);
+        } catch (final IOException e) {
+            throw new ExcelService.Exception(e);
+        }
+        return errors;
+    }
+
+    /**
+     * Opens a spreadsheet for several classes (or several passes over the same class) to be imported from it.
+     *
+     * <p>
+     *     For <tt>.xlsx</tt> files, each sheet is staged in a compact binary form as it is first read (spilling to a
+     *     memory-mapped file if large; see {@link ExcelSettings#IMPORT_REPLAY_SPILL_THRESHOLD}), so that any
+     *     subsequent imports from that sheet replay it rather than parse it again.
+     * </p>
+     */
+    @Programmatic
+    public MultiPassImport openImport(final Blob excelBlob) throws ExcelService.Exception {
+        final StagedWorkbook stagedWorkbook;
+        try {
+            stagedWorkbook = new StagedWorkbook(excelBlob.getBytes());
+        } catch (final IOException e) {
+            throw new ExcelService.Exception(e);
+        }
+        return new MultiPassImport() {
+            @Override
+            public <T> void fromExcel(
+                    final Class<T> cls,
+                    final SheetLookupPolicy sheetLookupPolicy,
+                    final ImportCallback<T> callback) throws ExcelService.Exception {
+                try {
+                    newExcelConverter().fromStagedWorkbook(cls, stagedWorkbook, container, sheetLookupPolicy, callback);
+                } catch (final IOException | InvalidFormatException e) {
+                    throw new ExcelService.Exception(e);
+                }
+            }
+
+            @Override
+            public void close() {
+                stagedWorkbook.close();
+            }
+        };
+    }
+
     private ExcelConverter newExcelConverter() {
-        return new ExcelConverter(getSpecificationLoader(), getAdapterManager(), getBookmarkService());
+        return new ExcelConverter(getSpecificationLoader(), getAdapterManager(), getBookmarkService(), settings, columnPlans, getExportPool(), getDeflatePool());
+    }
+
+    /**
+     * Shuts down the thread pools used for exports (if any were started), so that their threads do not outlive the
+     * application (on a redeploy, say).
+     */
+    @Programmatic
+    public synchronized void shutdown() {
+        if(exportPool != null) {
+            exportPool.shutdownNow();
+            exportPool = null;
+        }
+        if(deflatePool != null) {
+            deflatePool.shutdownNow();
+            deflatePool = null;
+        }
+    }
+
+    private synchronized ForkJoinPool getExportPool() {
+        if(exportPool == null && settings.getExportParallelism() > 1) {
+            exportPool = new ForkJoinPool(settings.getExportParallelism());
+        }
+        return exportPool;
+    }
+
+    private synchronized ExecutorService getDeflatePool() {
+        if(deflatePool == null && settings.getExportDeflateParallelism() > 1) {
+            deflatePool = Executors.newFixedThreadPool(
+                    settings.getExportDeflateParallelism(),
+                    new ThreadFactoryBuilder().setNameFormat("excel-deflate-%d").setDaemon(true).build());
+        }
+        return deflatePool;
     }
 
 
@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
+/**
+ * Settings for the {@link ExcelServiceImpl}, read from the configuration properties passed to
+ * {@link org.isisaddons.module.excel.dom.ExcelService#init(Map)}.
+ */
+final class ExcelSettings {
+
+    static final String KEY_PREFIX = "isis.services.excel.";
+
+    /**
+     * Whether <tt>.xlsx</tt> uploads are imported using a pipeline of reader and decoder threads, rather than by
+     * reading and decoding each chunk of rows in turn, on the calling thread (default).
+     */
+    static final String IMPORT_PIPELINED = KEY_PREFIX + "import.pipelined";
+    /**
+     * Whether <tt>.xlsx</tt> imports read the package directly using StAX, rather than using POI's event API (default).
+     */
+    static final String IMPORT_LIGHTWEIGHT = KEY_PREFIX + "import.lightweight";
+    /**
+     * Whether <tt>.xls</tt> imports are streamed using POI's HSSF event API (default), rather than loading the
+     * workbook into POI's (in-memory) user model.
+     */
+    static final String IMPORT_XLS_STREAMING = KEY_PREFIX + "import.xls.streaming";
+    /**
+     * Total length (in characters) of the shared strings of a workbook above which the
+     * {@link #IMPORT_LIGHTWEIGHT lightweight} reader spills them to a memory-mapped file; -1 never to spill.
+     */
+    static final String IMPORT_SHARED_STRINGS_SPILL_THRESHOLD = KEY_PREFIX + "import.sharedStrings.spillThreshold";
+    /**
+     * Size (in bytes) of the rows of a sheet staged for a multi-pass import (see
+     * {@link ExcelServiceImpl#openImport(org.apache.isis.applib.value.Blob)}) above which they are spilled to a
+     * memory-mapped file; -1 never to spill.
+     */
+    static final String IMPORT_REPLAY_SPILL_THRESHOLD = KEY_PREFIX + "import.replay.spillThreshold";
+    /**
+     * Number of batches of rows buffered between each stage of the import pipeline.
+     */
+    static final String IMPORT_QUEUE_CAPACITY = KEY_PREFIX + "import.queueCapacity";
+    /**
+     * Number of threads used to read the values of exported view models; 1 (the default) reads them serially.
+     */
+    static final String EXPORT_PARALLELISM = KEY_PREFIX + "export.parallelism";
+    /**
+     * Whether properties are read and written by invoking their getters and setters directly, rather than through
+     * the metamodel (bypassing adapters and the interaction machinery).
+     */
+    static final String TRUSTED = KEY_PREFIX + "trusted";
+    /**
+     * Whether exports without references are written directly as SpreadsheetML, rather than using POI's
+     * (in-memory) object model (default).
+     */
+    static final String EXPORT_LIGHTWEIGHT = KEY_PREFIX + "export.lightweight";
+    /**
+     * Whether {@link #EXPORT_LIGHTWEIGHT lightweight} exports write columns of mostly distinct strings as inline
+     * strings, rather than adding every string to the shared strings table (default).
+     */
+    static final String EXPORT_INLINE_STRINGS = KEY_PREFIX + "export.inlineStrings";
+    /**
+     * Whether the widths of exported columns are {@link ColumnWidths estimated} from their values, rather than left
+     * at Excel's default width (default).
+     */
+    static final String EXPORT_COLUMN_WIDTHS = KEY_PREFIX + "export.columnWidths";
+    /**
+     * Number of threads used to deflate the parts of {@link #EXPORT_LIGHTWEIGHT lightweight} exports, in
+     * {@link ZipWriter independent blocks}; 1 (the default) deflates them on the calling thread.
+     */
+    static final String EXPORT_DEFLATE_PARALLELISM = KEY_PREFIX + "export.deflate.parallelism";
+    /**
+     * The compression level (0-9) of {@link #EXPORT_LIGHTWEIGHT lightweight} exports; -1 (the default) for the
+     * deflater's default level.
+     */
+    static final String EXPORT_DEFLATE_LEVEL = KEY_PREFIX + "export.deflate.level";
+    /**
+     * Whether the POI classes and the {@link #WARM_UP_CLASSES export classes} are warmed up in the background at
+     * boot.
+     */
+    static final String WARM_UP = KEY_PREFIX + "warmUp";
+    /**
+     * Comma-separated names of the classes (typically view models) that are exported.
+     */
+    static final String WARM_UP_CLASSES = KEY_PREFIX + "warmUp.classes";
+
+    private final boolean importPipelined;
+    private final boolean importLightweight;
+    private final boolean importXlsStreaming;
+    private final long importSharedStringsSpillThreshold;
+    private final long importReplaySpillThreshold;
+    private final int importQueueCapacity;
+    private final int exportParallelism;
+    private final boolean trusted;
+    private final boolean exportLightweight;
+    private final boolean exportInlineStrings;
+    private final boolean exportColumnWidths;
+    private final int exportDeflateParallelism;
+    private final int exportDeflateLevel;
+    private final boolean warmUp;
+    private final List<String> warmUpClassNames;
+
+    ExcelSettings(final Map<String, String> properties) {
+        final Map<String, String> props = properties != null ? properties : Collections.<String, String>emptyMap();
+        importPipelined = getBoolean(props, IMPORT_PIPELINED, false);
+        importLightweight = getBoolean(props, IMPORT_LIGHTWEIGHT, false);
+        importXlsStreaming = getBoolean(props, IMPORT_XLS_STREAMING, true);
+        importSharedStringsSpillThreshold = getLong(props, IMPORT_SHARED_STRINGS_SPILL_THRESHOLD, 16L * 1024 * 1024);
+        importReplaySpillThreshold = getLong(props, IMPORT_REPLAY_SPILL_THRESHOLD, 64L * 1024 * 1024);
+        importQueueCapacity = getInt(props, IMPORT_QUEUE_CAPACITY, 16);
+        exportParallelism = getInt(props, EXPORT_PARALLELISM, 1);
+        trusted = getBoolean(props, TRUSTED, false);
+        exportLightweight = getBoolean(props, EXPORT_LIGHTWEIGHT, false);
+        exportInlineStrings = getBoolean(props, EXPORT_INLINE_STRINGS, false);
+        exportColumnWidths = getBoolean(props, EXPORT_COLUMN_WIDTHS, false);
+        exportDeflateParallelism = getInt(props, EXPORT_DEFLATE_PARALLELISM, 1);
+        exportDeflateLevel = getInt(props, EXPORT_DEFLATE_LEVEL, Deflater.DEFAULT_COMPRESSION);
+        if(exportDeflateLevel < Deflater.DEFAULT_COMPRESSION || exportDeflateLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid value '%d' for '%s'", exportDeflateLevel, EXPORT_DEFLATE_LEVEL));
+        }
+        warmUp = getBoolean(props, WARM_UP, false);
+        warmUpClassNames = getList(props, WARM_UP_CLASSES);
+    }
+
+    static ExcelSettings defaults() {
+        return new ExcelSettings(Collections.<String, String>emptyMap());
+    }
+
+    boolean isImportPipelined() {
+        return importPipelined;
+    }
+
+    boolean isImportLightweight() {
+        return importLightweight;
+    }
+
+    boolean isImportXlsStreaming() {
+        return importXlsStreaming;
+    }
+
+    long getImportSharedStringsSpillThreshold() {
+        return importSharedStringsSpillThreshold;
+    }
+
+    long getImportReplaySpillThreshold() {
+        return importReplaySpillThreshold;
+    }
+
+    int getImportQueueCapacity() {
+        return importQueueCapacity;
+    }
+
+    int getExportParallelism() {
+        return exportParallelism;
+    }
+
+    boolean isTrusted() {
+        return trusted;
+    }
+
+    boolean isExportLightweight() {
+        return exportLightweight;
+    }
+
+    boolean isExportInlineStrings() {
+        return exportInlineStrings;
+    }
+
+    boolean isExportColumnWidths() {
+        return exportColumnWidths;
+    }
+
+    int getExportDeflateParallelism() {
+        return exportDeflateParallelism;
+    }
+
+    int getExportDeflateLevel() {
+        return exportDeflateLevel;
+    }
+
+    boolean isWarmUp() {
+        return warmUp;
+    }
+
+    List<String> getWarmUpClassNames() {
+        return warmUpClassNames;
+    }
+
+    private static boolean getBoolean(final Map<String, String> props, final String key, final boolean defaultValue) {
+        final String value = props.get(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    private static List<String> getList(final Map<String, String> props, final String key) {
+        final String value = props.get(key);
+        return value != null
+                ? Collections.unmodifiableList(Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(value)))
+                : Collections.<String>emptyList();
+    }
+
+    private static int getInt(final Map<String, String> props, final String key, final int defaultValue) {
+        final String value = props.get(key);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch(final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid value '%s' for '%s'", value, key), ex);
+        }
+    }
+
+    private static long getLong(final Map<String, String> props, final String key, final long defaultValue) {
+        final String value = props.get(key);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch(final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("Invalid value '%s' for '%s'", value, key), ex);
+        }
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CommonObjectDataSubRecord;
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NoteRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.ObjRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.record.SubRecord;
+import org.apache.poi.hssf.record.TextObjectRecord;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link SheetSource} for <tt>.xls</tt> (BIFF8) workbooks, using POI's HSSF event API rather than loading the
+ * workbook into an {@link org.apache.poi.hssf.usermodel.HSSFWorkbook}.
+ *
+ * <p>
+ *     The records of the sheet's cells are converted into the same {@link SheetRow}s as the sheet XML of an
+ *     <tt>.xlsx</tt> workbook, and so are staged and decoded in exactly the same way.  Only the shared strings
+ *     table (a single record in BIFF) and the sheet's comments are held in memory.
+ * </p>
+ *
+ * <p>
+ *     A cell's comment is only linked to the cell by the note records at the very end of the sheet's substream,
+ *     so the workbook's records are processed twice: once (on opening) for the globals and the comments, and again
+ *     when the sheet is {@link #read(SheetRowReader.RowHandler) read}.
+ * </p>
+ */
+final class HssfSheetSource implements SheetSource {
+
+    private static final String WORKBOOK_ENTRY = "Workbook";
+
+    static boolean isXls(final byte[] bs) throws IOException {
+        try (InputStream is = new ByteArrayInputStream(bs)) {
+            return POIFSFileSystem.hasPOIFSHeader(is);
+        }
+    }
+
+    static HssfSheetSource open(
+            final byte[] bs,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException {
+        final POIFSFileSystem fs = new POIFSFileSystem(new ByteArrayInputStream(bs));
+        if (!fs.getRoot().hasEntry(WORKBOOK_ENTRY)) {
+            throw new IOException("Not a BIFF8 workbook (no '" + WORKBOOK_ENTRY + "' stream)");
+        }
+        return new HssfSheetSource(fs, sheetNames, sheetLookupPolicy);
+    }
+
+    private final POIFSFileSystem fs;
+
+    private final List<BoundSheetRecord> boundSheets = Lists.newArrayList();
+    private SSTRecord sharedStrings;
+    private boolean date1904;
+
+    private String sheetName;
+    /**
+     * The position of the sheet's substream among those of all the sheets, in the order they appear in the stream.
+     */
+    private int sheetIndex = -1;
+    private SheetComments comments = SheetComments.NONE;
+
+    private HssfSheetSource(
+            final POIFSFileSystem fs,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException {
+        this.fs = fs;
+        process(new GlobalsListener(sheetNames, sheetLookupPolicy));
+        if (sheetName == null) {
+            // no sheets at all
+            sheetName = sheetLookupPolicy.lookupName(Lists.<String>newArrayList(), sheetNames);
+        }
+    }
+
+    @Override
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    @Override
+    public boolean isDate1904() {
+        return date1904;
+    }
+
+    @Override
+    public SheetComments getComments() {
+        return comments;
+    }
+
+    @Override
+    public String getSharedString(final int index) {
+        return sharedStrings.getString(index).getString();
+    }
+
+    @Override
+    public void read(final SheetRowReader.RowHandler rowHandler) throws IOException, SAXException {
+        final CellsListener listener = new CellsListener(rowHandler);
+        try {
+            process(listener);
+        } catch (final IOException ex) {
+            if (ex.getCause() instanceof SAXException) {
+                throw (SAXException) ex.getCause();
+            }
+            throw ex;
+        }
+        listener.flushRow();
+    }
+
+    private void process(final SheetListener listener) throws IOException {
+        final HSSFRequest request = new HSSFRequest();
+        request.addListenerForAllRecords(listener);
+        try {
+            new HSSFEventFactory().abortableProcessWorkbookEvents(request, fs);
+        } catch (final HSSFUserException ex) {
+            final Throwable reason = ex.getReason();
+            throw reason instanceof IOException ? (IOException) reason : new IOException(reason);
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to release; the file system is held in memory
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Tracks which substream the records belong to, passing on those of the selected sheet (other than those of
+     * any charts embedded within it) and stopping at its end.
+     */
+    private abstract class SheetListener extends AbortableHSSFListener {
+
+        private int depth;
+        private int substreamIndex = -1;
+
+        @Override
+        public short abortableProcessRecord(final Record record) throws HSSFUserException {
+            if (record instanceof BOFRecord) {
+                if (depth++ == 0 && ((BOFRecord) record).getType() != BOFRecord.TYPE_WORKBOOK) {
+                    substreamIndex++;
+                    onSheet(substreamIndex);
+                }
+                return 0;
+            }
+            if (record instanceof EOFRecord) {
+                return --depth == 0 && substreamIndex >= 0 && substreamIndex == sheetIndex ? (short) 1 : 0;
+            }
+            if (depth != 1) {
+                return 0;
+            }
+            if (substreamIndex < 0) {
+                onGlobalsRecord(record);
+            } else if (substreamIndex == sheetIndex) {
+                onSheetRecord(record);
+            }
+            return 0;
+        }
+
+        void onGlobalsRecord(final Record record) {
+        }
+
+        void onSheet(final int substreamIndex) {
+        }
+
+        abstract void onSheetRecord(Record record) throws HSSFUserException;
+    }
+
+    /**
+     * Reads the workbook globals, and then the comments of the selected sheet.
+     */
+    private class GlobalsListener extends SheetListener {
+
+        private final List<String> sheetNames;
+        private final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy;
+
+        private final Map<Integer, String> textByObjectId = Maps.newHashMap();
+        private int commentObjectId = -1;
+
+        GlobalsListener(final List<String> sheetNames, final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) {
+            this.sheetNames = sheetNames;
+            this.sheetLookupPolicy = sheetLookupPolicy;
+        }
+
+        @Override
+        void onGlobalsRecord(final Record record) {
+            if (record instanceof BoundSheetRecord) {
+                boundSheets.add((BoundSheetRecord) record);
+            } else if (record instanceof SSTRecord) {
+                sharedStrings = (SSTRecord) record;
+            } else if (record instanceof DateWindow1904Record) {
+                date1904 = ((DateWindow1904Record) record).getWindowing() == 1;
+            }
+        }
+
+        @Override
+        void onSheet(final int substreamIndex) {
+            if (sheetName != null) {
+                return;
+            }
+            // the globals are complete once the first sheet starts
+            final List<String> workbookSheetNames = Lists.newArrayList();
+            for (final BoundSheetRecord boundSheet : boundSheets) {
+                workbookSheetNames.add(boundSheet.getSheetname());
+            }
+            sheetName = sheetLookupPolicy.lookupName(workbookSheetNames, sheetNames);
+            final BoundSheetRecord[] inStreamOrder = BoundSheetRecord.orderByBofPosition(boundSheets);
+            for (int i = 0; i < inStreamOrder.length; i++) {
+                if (sheetName.equals(inStreamOrder[i].getSheetname())) {
+                    sheetIndex = i;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        void onSheetRecord(final Record record) {
+            // a comment is an OBJ (of type comment) followed by a TXO with its text, and is linked to its cell by
+            // a NOTE at the end of the sheet
+            if (record instanceof ObjRecord) {
+                commentObjectId = commentObjectIdOf((ObjRecord) record);
+            } else if (record instanceof TextObjectRecord) {
+                final TextObjectRecord txo = (TextObjectRecord) record;
+                if (commentObjectId >= 0 && txo.getStr() != null) {
+                    textByObjectId.put(commentObjectId, txo.getStr().getString());
+                }
+                commentObjectId = -1;
+            } else if (record instanceof NoteRecord) {
+                final NoteRecord note = (NoteRecord) record;
+                final String text = textByObjectId.get(note.getShapeId());
+                if (text != null) {
+                    if (comments == SheetComments.NONE) {
+                        comments = new SheetComments();
+                    }
+                    comments.put(note.getRow(), note.getColumn(), text);
+                }
+            }
+        }
+
+        private int commentObjectIdOf(final ObjRecord obj) {
+            for (final SubRecord subRecord : obj.getSubRecords()) {
+                if (subRecord instanceof CommonObjectDataSubRecord) {
+                    final CommonObjectDataSubRecord cmo = (CommonObjectDataSubRecord) subRecord;
+                    return cmo.getObjectType() == CommonObjectDataSubRecord.OBJECT_TYPE_COMMENT ? cmo.getObjectId() : -1;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Converts the cell records of the selected sheet into {@link SheetRow}s (the records of a row's cells being
+     * contiguous, in column order).
+     */
+    private class CellsListener extends SheetListener {
+
+        private final SheetRowReader.RowHandler rowHandler;
+
+        private int rowNum = -1;
+        private List<SheetCell> cells = Lists.newArrayList();
+
+        /**
+         * A formula with a string result, whose value is in the STRING record that follows it.
+         */
+        private FormulaRecord pendingFormula;
+
+        CellsListener(final SheetRowReader.RowHandler rowHandler) {
+            this.rowHandler = rowHandler;
+        }
+
+        @Override
+        void onSheetRecord(final Record record) throws HSSFUserException {
+            try {
+                switch (record.getSid()) {
+                case StringRecord.sid:
+                    // (possibly after a SHRFMLA or ARRAY record)
+                    if (pendingFormula != null) {
+                        add(pendingFormula.getRow(),
+                                new SheetCell(pendingFormula.getColumn(), Cell.CELL_TYPE_STRING, ((StringRecord) record).getString()));
+                        pendingFormula = null;
+                    }
+                    break;
+                case NumberRecord.sid:
+                    // (POI's record stream also converts any RK and MULRK records into NUMBER records)
+                    final NumberRecord number = (NumberRecord) record;
+                    add(number.getRow(), numericCell(number.getColumn(), number.getValue()));
+                    break;
+                case LabelSSTRecord.sid:
+                    final LabelSSTRecord labelSst = (LabelSSTRecord) record;
+                    add(labelSst.getRow(), new SheetCell(labelSst.getColumn(), Cell.CELL_TYPE_STRING, null, labelSst.getSSTIndex()));
+                    break;
+                case LabelRecord.sid:
+                    final LabelRecord label = (LabelRecord) record;
+                    add(label.getRow(), new SheetCell(label.getColumn(), Cell.CELL_TYPE_STRING, label.getValue()));
+                    break;
+                case BoolErrRecord.sid:
+                    final BoolErrRecord boolErr = (BoolErrRecord) record;
+                    add(boolErr.getRow(), boolErr.isBoolean()
+                            ? booleanCell(boolErr.getColumn(), boolErr.getBooleanValue())
+                            : errorCell(boolErr.getColumn(), boolErr.getErrorValue()));
+                    break;
+                case FormulaRecord.sid:
+                    addFormula((FormulaRecord) record);
+                    break;
+                default:
+                    break;
+                }
+            } catch (final SAXException ex) {
+                throw new HSSFUserException(new IOException(ex));
+            }
+        }
+
+        /**
+         * Formula cells are represented by the type of their cached result, as in the sheet XML.
+         */
+        private void addFormula(final FormulaRecord formula) throws SAXException {
+            switch (formula.getCachedResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                add(formula.getRow(), numericCell(formula.getColumn(), formula.getValue()));
+                break;
+            case Cell.CELL_TYPE_STRING:
+                if (formula.hasCachedResultString()) {
+                    pendingFormula = formula;
+                }
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                add(formula.getRow(), booleanCell(formula.getColumn(), formula.getCachedBooleanValue()));
+                break;
+            case Cell.CELL_TYPE_ERROR:
+                add(formula.getRow(), errorCell(formula.getColumn(), formula.getCachedErrorValue()));
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void add(final int cellRowNum, final SheetCell cell) throws SAXException {
+            if (cellRowNum != rowNum) {
+                flushRow();
+                rowNum = cellRowNum;
+            }
+            cells.add(cell);
+        }
+
+        void flushRow() throws SAXException {
+            if (!cells.isEmpty()) {
+                rowHandler.onRow(new SheetRow(rowNum, cells));
+                cells = Lists.newArrayList();
+            }
+        }
+    }
+
+    /**
+     * Integers are written as such (as they would be in the sheet XML), and other numbers as the shortest plain
+     * decimal that round-trips, so that they can be staged as {@link StagedRows#LONG longs} and
+     * {@link StagedRows#DECIMAL decimals}.
+     */
+    private static SheetCell numericCell(final int columnIndex, final double value) {
+        final String raw = value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value)
+                : BigDecimal.valueOf(value).toPlainString();
+        return new SheetCell(columnIndex, Cell.CELL_TYPE_NUMERIC, raw);
+    }
+
+    private static SheetCell booleanCell(final int columnIndex, final boolean value) {
+        return new SheetCell(columnIndex, Cell.CELL_TYPE_BOOLEAN, value ? "1" : "0");
+    }
+
+    private static SheetCell errorCell(final int columnIndex, final int errorCode) {
+        return new SheetCell(columnIndex, Cell.CELL_TYPE_ERROR,
+                ErrorConstants.isValidCode(errorCode) ? ErrorConstants.getText(errorCode) : "#ERR" + errorCode);
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Imports a sheet in three stages, connected by bounded queues:
+ * <ul>
+ *     <li>a reader thread, parsing the sheet XML and staging its rows in chunks of {@link StagedRows};</li>
+ *     <li>a decoder thread, converting each staged row into a {@link DecodedRow} using a {@link RowDecoder};</li>
+ *     <li>the calling (Isis session) thread, which instantiates the domain objects and hands them on.</li>
+ * </ul>
+ *
+ * <p>
+ *     Parsing and decoding therefore overlap with the work done on the session thread (including any
+ *     persistence performed by the {@link DecodedRowHandler}), while the bounded queues keep no more than a
+ *     few batches of rows in memory.
+ * </p>
+ */
+final class ImportPipeline {
+
+    interface DecodedRowHandler {
+        void handle(DecodedRow row);
+    }
+
+    private static final ThreadFactory THREAD_FACTORY =
+            new ThreadFactoryBuilder().setNameFormat("excel-import-%d").setDaemon(true).build();
+
+    /**
+     * How often a stage blocked on a queue checks whether the pipeline has been {@link #cancelled}.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final int queueCapacity;
+
+    /**
+     * Set by whichever stage fails first; the stages downstream of it then terminate at the end of their input.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Set once the session thread has stopped taking rows (normally or not), so that the reader and decoder threads
+     * give up rather than wait forever on queues that no-one is draining any more.
+     */
+    private volatile boolean cancelled;
+
+    ImportPipeline(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * <p>
+     *     Does not return until both the reader and the decoder threads have terminated, so the caller is then free
+     *     to close the <tt>source</tt>.
+     * </p>
+     *
+     * @param stagedSheet - if not <tt>null</tt>, then the reader thread also stages each chunk of rows into it.
+     */
+    void run(
+            final SheetSource source,
+            final StagedSheet stagedSheet,
+            final RowDecoder rowDecoder,
+            final DecodedRowHandler handler) {
+
+        final BlockingQueue<StagedRows> stagedRows = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<List<DecodedRow>> decodedRows = new ArrayBlockingQueue<>(queueCapacity);
+        final StagedRows endOfStagedRows = new StagedRows();
+        final List<DecodedRow> endOfDecodedRows = new ArrayList<>(0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2, THREAD_FACTORY);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(source, stagedSheet, stagedRows, endOfStagedRows);
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decode(rowDecoder, stagedRows, endOfStagedRows, decodedRows, endOfDecodedRows);
+                }
+            });
+
+            for (List<DecodedRow> batch = take(decodedRows); batch != endOfDecodedRows; batch = take(decodedRows)) {
+                for (final DecodedRow decodedRow : batch) {
+                    handler.handle(decodedRow);
+                }
+            }
+            final Throwable firstFailure = failure.get();
+            if (firstFailure != null) {
+                throw propagate(firstFailure);
+            }
+        } finally {
+            // stops the upstream stages if the session thread bailed out early
+            cancelled = true;
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    private void read(
+            final SheetSource source,
+            final StagedSheet stagedSheet,
+            final BlockingQueue<StagedRows> out,
+            final StagedRows endOfRows) {
+        try {
+            final StagedRows.Stager stager = new StagedRows.Stager() {
+                @Override
+                void onStaged(final StagedRows chunk) throws SAXException {
+                    try {
+                        if (stagedSheet != null) {
+                            stagedSheet.add(chunk);
+                        }
+                        put(out, chunk);
+                    } catch (final IOException | InterruptedException ex) {
+                        throw new SAXException(ex);
+                    }
+                }
+            };
+            source.read(stager);
+            stager.flush();
+            if (stagedSheet != null) {
+                stagedSheet.finish();
+            }
+        } catch (final Throwable ex) {
+            failed(ex);
+        } finally {
+            putQuietly(out, endOfRows);
+        }
+    }
+
+    private void decode(
+            final RowDecoder rowDecoder,
+            final BlockingQueue<StagedRows> in,
+            final StagedRows endOfStagedRows,
+            final BlockingQueue<List<DecodedRow>> out,
+            final List<DecodedRow> endOfDecodedRows) {
+        try {
+            for (StagedRows rows = poll(in); rows != endOfStagedRows; rows = poll(in)) {
+                final List<DecodedRow> batch = new ArrayList<>(rows.size());
+                for (int r = 0; r < rows.size(); r++) {
+                    final DecodedRow decodedRow = rowDecoder.decode(rows, r);
+                    if (decodedRow != null) {
+                        batch.add(decodedRow);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    put(out, batch);
+                }
+            }
+        } catch (final Throwable ex) {
+            failed(ex);
+        } finally {
+            putQuietly(out, endOfDecodedRows);
+        }
+    }
+
+    private void failed(final Throwable ex) {
+        failure.compareAndSet(null, ex);
+    }
+
+    private static <T> T take(final BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while importing", ex);
+        }
+    }
+
+    /**
+     * As {@link BlockingQueue#put(Object)}, but giving up once the pipeline has been {@link #cancelled}.
+     */
+    private <T> void put(final BlockingQueue<T> queue, final T item) throws InterruptedException {
+        while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (cancelled) {
+                throw new InterruptedException("Import cancelled");
+            }
+        }
+    }
+
+    /**
+     * As {@link BlockingQueue#take()}, but giving up once the pipeline has been {@link #cancelled}.
+     */
+    private <T> T poll(final BlockingQueue<T> queue) throws InterruptedException {
+        for (;;) {
+            final T item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
+            }
+            if (cancelled) {
+                throw new InterruptedException("Import cancelled");
+            }
+        }
+    }
+
+    private <T> void putQuietly(final BlockingQueue<T> queue, final T item) {
+        try {
+            put(queue, item);
+        } catch (final InterruptedException ex) {
+            // the pipeline has been shut down; no-one is listening
+        }
+    }
+
+    /**
+     * Waits for the (by now cancelled) reader and decoder threads to finish, so that neither outlives the import;
+     * each notices within {@link #POLL_MILLIS} of blocking on a queue.
+     */
+    private static void awaitTermination(final ExecutorService executor) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    if (executor.awaitTermination(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static RuntimeException propagate(final Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        if (ex instanceof SAXException && ((SAXException) ex).getException() instanceof RuntimeException) {
+            return (RuntimeException) ((SAXException) ex).getException();
+        }
+        return new IllegalStateException(ex.getMessage(), ex);
+    }
+
+}
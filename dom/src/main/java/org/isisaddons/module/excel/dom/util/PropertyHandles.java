@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import org.apache.isis.core.metamodel.facetapi.Facet;
+import org.apache.isis.core.metamodel.facets.ImperativeFacet;
+import org.apache.isis.core.metamodel.facets.members.disabled.DisabledFacet;
+import org.apache.isis.core.metamodel.facets.properties.update.init.PropertyInitializationFacet;
+import org.apache.isis.core.metamodel.facets.properties.update.modify.PropertySetterFacet;
+import org.apache.isis.core.metamodel.facets.propcoll.accessor.PropertyOrCollectionAccessorFacet;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+
+import org.isisaddons.module.excel.dom.ExcelRowCodec;
+
+/**
+ * {@link MethodHandle}s for the getter and setter methods that the metamodel has identified for a property, so
+ * that these can be invoked directly on the domain object, bypassing adapters and the interaction machinery.
+ *
+ * <p>
+ *     If the class has a generated {@link ExcelRowCodec}, then the handles delegate to it instead.
+ * </p>
+ */
+final class PropertyHandles {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final MethodHandle CODEC_GET;
+    private static final MethodHandle CODEC_SET;
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            CODEC_GET = lookup.findVirtual(ExcelRowCodec.class, "get",
+                    MethodType.methodType(Object.class, Object.class, int.class));
+            CODEC_SET = lookup.findVirtual(ExcelRowCodec.class, "set",
+                    MethodType.methodType(void.class, Object.class, int.class, Object.class));
+        } catch (final NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private PropertyHandles() {
+    }
+
+    /**
+     * The property's getter (if implemented by the class itself, rather than contributed), else <tt>null</tt>.
+     */
+    static MethodHandle getterFor(final Class<?> cls, final OneToOneAssociation otoa) {
+        final ExcelRowCodec<?> codec = RowCodecs.codecFor(cls);
+        if (codec != null) {
+            final int propertyIndex = RowCodecs.indexOf(codec, otoa.getId());
+            return propertyIndex >= 0
+                    ? MethodHandles.insertArguments(CODEC_GET.bindTo(codec), 1, propertyIndex).asType(GETTER_TYPE)
+                    : null;
+        }
+        final Method method = methodOf(otoa.getFacet(PropertyOrCollectionAccessorFacet.class), cls, 0);
+        return method != null ? unreflect(method, GETTER_TYPE) : null;
+    }
+
+    /**
+     * The property's setter, provided the metamodel considers it editable (it can be modified and is not
+     * disabled) and it is not modified through a <tt>modifyXxx()</tt> method (which must still be invoked, by the
+     * metamodel), else <tt>null</tt>.
+     */
+    static MethodHandle setterFor(final Class<?> cls, final OneToOneAssociation otoa) {
+        final PropertySetterFacet setterFacet = otoa.getFacet(PropertySetterFacet.class);
+        if (setterFacet == null || isModifyMethod(setterFacet)) {
+            return null;
+        }
+        final DisabledFacet disabledFacet = otoa.getFacet(DisabledFacet.class);
+        if (disabledFacet != null && !disabledFacet.isNoop()) {
+            return null;
+        }
+        final ExcelRowCodec<?> codec = RowCodecs.codecFor(cls);
+        if (codec != null) {
+            final int propertyIndex = RowCodecs.indexOf(codec, otoa.getId());
+            return propertyIndex >= 0 && codec.isSettable(propertyIndex)
+                    ? MethodHandles.insertArguments(CODEC_SET.bindTo(codec), 1, propertyIndex).asType(SETTER_TYPE)
+                    : null;
+        }
+        final Method method = methodOf(otoa.getFacet(PropertyInitializationFacet.class), cls, 1);
+        return method != null ? unreflect(method, SETTER_TYPE) : null;
+    }
+
+    private static boolean isModifyMethod(final Facet facet) {
+        if (!(facet instanceof ImperativeFacet)) {
+            return false;
+        }
+        for (final Method method : ((ImperativeFacet) facet).getMethods()) {
+            if (method.getName().startsWith("modify")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Method methodOf(final Facet facet, final Class<?> cls, final int numParams) {
+        if (!(facet instanceof ImperativeFacet)) {
+            return null;
+        }
+        final List<Method> methods = ((ImperativeFacet) facet).getMethods();
+        if (methods.size() != 1) {
+            return null;
+        }
+        final Method method = methods.get(0);
+        if (method.getParameterTypes().length != numParams ||
+            Modifier.isStatic(method.getModifiers()) ||
+            !method.getDeclaringClass().isAssignableFrom(cls)) {
+            return null;
+        }
+        return method;
+    }
+
+    private static MethodHandle unreflect(final Method method, final MethodType methodType) {
+        try {
+            return MethodHandles.publicLookup().unreflect(method).asType(methodType);
+        } catch (final IllegalAccessException ex) {
+            // not public; leave to the metamodel
+            return null;
+        }
+    }
+
+    static Object get(final MethodHandle getter, final Object domainObject) {
+        try {
+            return (Object) getter.invokeExact(domainObject);
+        } catch (final Throwable ex) {
+            throw propagate(ex);
+        }
+    }
+
+    static void set(final MethodHandle setter, final Object domainObject, final Object value) {
+        try {
+            setter.invokeExact(domainObject, value);
+        } catch (final Throwable ex) {
+            throw propagate(ex);
+        }
+    }
+
+    private static RuntimeException propagate(final Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new IllegalStateException(ex.getMessage(), ex);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import com.google.common.base.Optional;
+
+import org.isisaddons.module.excel.dom.ExcelCodec;
+import org.isisaddons.module.excel.dom.ExcelRowCodec;
+
+/**
+ * Locates the {@link ExcelRowCodec} generated (at build time) for a class annotated with {@link ExcelCodec}.
+ */
+final class RowCodecs {
+
+    private static final ClassValue<Optional<ExcelRowCodec<?>>> CODECS = new ClassValue<Optional<ExcelRowCodec<?>>>() {
+        @Override
+        protected Optional<ExcelRowCodec<?>> computeValue(final Class<?> cls) {
+            return Optional.<ExcelRowCodec<?>>fromNullable(load(cls));
+        }
+    };
+
+    private RowCodecs() {
+    }
+
+    /**
+     * The codec for the class, else <tt>null</tt>.
+     */
+    static ExcelRowCodec<?> codecFor(final Class<?> cls) {
+        return CODECS.get(cls).orNull();
+    }
+
+    static int indexOf(final ExcelRowCodec<?> codec, final String propertyId) {
+        final String[] propertyIds = codec.getPropertyIds();
+        for (int i = 0; i < propertyIds.length; i++) {
+            if (propertyIds[i].equals(propertyId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ExcelRowCodec<?> load(final Class<?> cls) {
+        if (cls.getEnclosingClass() != null) {
+            return null;
+        }
+        final String codecName = cls.getName() + ExcelRowCodec.SUFFIX;
+        try {
+            final Class<?> codecClass = Class.forName(codecName, true, cls.getClassLoader());
+            return (ExcelRowCodec<?>) codecClass.newInstance();
+        } catch (final ClassNotFoundException ex) {
+            return null;
+        } catch (final InstantiationException | IllegalAccessException ex) {
+            throw new IllegalStateException("Could not instantiate " + codecName, ex);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Map;
+
+/**
+ * Treats the first row of a sheet as the header, mapping each of its columns to a
+ * {@link ExcelConverter.Property property}, and decodes each subsequent row into a {@link DecodedRow}.
+ */
+final class RowDecoder {
+
+    private final Map<String, ExcelConverter.Property> propertiesByHeader;
+    private final CellDecoder cellDecoder;
+
+    private ExcelConverter.Property[] propertyByColumn;
+
+    RowDecoder(final Map<String, ExcelConverter.Property> propertiesByHeader, final CellDecoder cellDecoder) {
+        this.propertiesByHeader = propertiesByHeader;
+        this.cellDecoder = cellDecoder;
+    }
+
+    /**
+     * Decodes the <tt>r</tt>'th row of the chunk.
+     *
+     * <p>
+     *     Returns <tt>null</tt> for the header row and for any row that has neither values nor bad cells (Excel can
+     *     have physical rows with empty cells that, to the user, do not seem to exist).
+     * </p>
+     */
+    DecodedRow decode(final StagedRows rows, final int r) {
+        if(propertyByColumn == null) {
+            decodeHeader(rows, r);
+            return null;
+        }
+
+        final int numColumns = Math.min(rows.getNumColumns(), propertyByColumn.length);
+        DecodedRow decodedRow = null;
+        for (int columnIndex = 0; columnIndex < numColumns; columnIndex++) {
+            final ExcelConverter.Property property = propertyByColumn[columnIndex];
+            if (property == null) {
+                // not expected; just ignore.
+                continue;
+            }
+            final Object value;
+            try {
+                value = cellDecoder.decode(rows, r, columnIndex, property);
+            } catch (final RuntimeException ex) {
+                // carry on, so that any other bad cells in the row are also reported
+                if (decodedRow == null) {
+                    decodedRow = new DecodedRow(rows.getRowNum(r), numColumns - columnIndex);
+                }
+                decodedRow.addError(columnIndex, property, cellDecoder.describe(rows, r, columnIndex), ex);
+                continue;
+            }
+            if (value == null) {
+                continue;
+            }
+            if (decodedRow == null) {
+                decodedRow = new DecodedRow(rows.getRowNum(r), numColumns - columnIndex);
+            }
+            decodedRow.add(columnIndex, property, value);
+        }
+        return decodedRow;
+    }
+
+    private void decodeHeader(final StagedRows rows, final int r) {
+        propertyByColumn = new ExcelConverter.Property[rows.getNumColumns()];
+        for (int columnIndex = 0; columnIndex < propertyByColumn.length; columnIndex++) {
+            final String propertyName = cellDecoder.decodeString(rows, r, columnIndex);
+            if (propertyName != null) {
+                propertyByColumn[columnIndex] = propertiesByHeader.get(ExcelConverter.headerKey(propertyName));
+            }
+        }
+    }
+
+}
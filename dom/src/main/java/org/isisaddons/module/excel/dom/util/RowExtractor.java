@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
+import org.apache.isis.core.metamodel.adapter.mgr.AdapterManager;
+
+/**
+ * Reads the values of a chunk of domain objects, in the form written by
+ * {@link CellMarshaller#setCellValue(org.apache.poi.ss.usermodel.Cell, Object)}.
+ *
+ * <p>
+ *     If a {@link ForkJoinPool} is provided, then the {@link ColumnPlan.Column#isParallel() parallel} columns are
+ *     read by the pool, while the calling (Isis session) thread reads the remaining columns.
+ * </p>
+ */
+final class RowExtractor {
+
+    /**
+     * Number of rows extracted (and held in memory) before they are written to the sheet.
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Number of rows below which the direct columns are not split further across the pool.
+     */
+    private static final int LEAF_SIZE = 64;
+
+    private final ColumnPlan columnPlan;
+    private final CellMarshaller cellMarshaller;
+    private final AdapterManager adapterManager;
+    private final ForkJoinPool pool;
+
+    RowExtractor(
+            final ColumnPlan columnPlan,
+            final CellMarshaller cellMarshaller,
+            final AdapterManager adapterManager,
+            final ForkJoinPool pool) {
+        this.columnPlan = columnPlan;
+        this.cellMarshaller = cellMarshaller;
+        this.adapterManager = adapterManager;
+        this.pool = pool;
+    }
+
+    /**
+     * @param chunk - the domain objects themselves (rather than, say, a lazily transformed list), because the
+     *                pool reads them from other threads.
+     */
+    Object[][] extract(final List<?> chunk) {
+        final Object[][] rows = new Object[chunk.size()][columnPlan.size()];
+
+        final boolean parallel = pool != null && columnPlan.hasParallelColumns() && chunk.size() > LEAF_SIZE;
+        final ForkJoinTask<?> directTask = parallel ? pool.submit(new ExtractParallel(chunk, rows, 0, chunk.size())) : null;
+        try {
+            for (int rowIdx = 0; rowIdx < rows.length; rowIdx++) {
+                ObjectAdapter objectAdapter = null;
+                for (final ColumnPlan.Column column : columnPlan.getColumns()) {
+                    if (parallel && column.isParallel()) {
+                        continue;
+                    }
+                    if (column.isDirect()) {
+                        rows[rowIdx][column.getIndex()] = PropertyHandles.get(column.getGetter(), chunk.get(rowIdx));
+                        continue;
+                    }
+                    if (objectAdapter == null) {
+                        objectAdapter = adapterManager.adapterFor(chunk.get(rowIdx));
+                    }
+                    rows[rowIdx][column.getIndex()] = cellMarshaller.getPropertyValue(objectAdapter, column);
+                }
+            }
+            if (directTask != null) {
+                directTask.join();
+            }
+        } finally {
+            if (directTask != null && !directTask.isDone()) {
+                directTask.cancel(true);
+            }
+        }
+        return rows;
+    }
+
+    private class ExtractParallel extends RecursiveAction {
+
+        private final List<?> chunk;
+        private final Object[][] rows;
+        private final int from;
+        private final int to;
+
+        ExtractParallel(final List<?> chunk, final Object[][] rows, final int from, final int to) {
+            this.chunk = chunk;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_SIZE) {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ExtractParallel(chunk, rows, from, mid), new ExtractParallel(chunk, rows, mid, to));
+                return;
+            }
+            for (int rowIdx = from; rowIdx < to; rowIdx++) {
+                final Object domainObject = chunk.get(rowIdx);
+                for (final ColumnPlan.Column column : columnPlan.getColumns()) {
+                    if (column.isParallel()) {
+                        rows[rowIdx][column.getIndex()] = PropertyHandles.get(column.getGetter(), domainObject);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An append-only store of {@link StagedRows} chunks, in their {@link StagedRows#writeTo(java.io.DataOutput) binary form},
+ * that once {@link #finish() finished} can be iterated over any number of times (also concurrently).
+ *
+ * <p>
+ *     As for {@link SharedStrings}, the chunks are held on the heap until their total size exceeds a threshold;
+ *     they are then spilled to a temporary file, which once complete is memory-mapped.
+ * </p>
+ */
+final class RowStore implements Closeable, Iterable<StagedRows> {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final long spillThreshold;
+
+    private ByteArrayOutputStream heap = new ByteArrayOutputStream(64 * 1024);
+    private DataOutputStream out = new DataOutputStream(heap);
+    private int numChunks;
+
+    private File file;
+    private byte[] bytes;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * @param spillThreshold - number of bytes above which the chunks are spilled to disk; negative never to spill.
+     */
+    RowStore(final long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    void add(final StagedRows chunk) throws IOException {
+        chunk.writeTo(out);
+        numChunks++;
+        if (file == null && spillThreshold >= 0 && heap.size() > spillThreshold) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("excel-rows", ".tmp");
+        final BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        heap.writeTo(fileOut);
+        heap = null;
+        out = new DataOutputStream(fileOut);
+    }
+
+    /**
+     * Called once all the chunks have been {@link #add(StagedRows) added}.
+     */
+    void finish() throws IOException {
+        out.close();
+        out = null;
+        if (file == null) {
+            bytes = heap.toByteArray();
+            heap = null;
+            return;
+        }
+        final long length = file.length();
+        final int numSegments = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[numSegments];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            for (int i = 0; i < numSegments; i++) {
+                final long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Whether the chunks have been spilled to disk.
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    @Override
+    public Iterator<StagedRows> iterator() {
+        if (bytes == null && segments == null) {
+            throw new IllegalStateException("Not finished");
+        }
+        final DataInputStream in = new DataInputStream(
+                bytes != null ? new ByteArrayInputStream(bytes) : new BufferedInputStream(new SegmentsInputStream(segments), 64 * 1024));
+        return new Iterator<StagedRows>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < numChunks;
+            }
+
+            @Override
+            public StagedRows next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                next++;
+                try {
+                    return StagedRows.readFrom(in);
+                } catch (final IOException ex) {
+                    throw new IllegalStateException(ex.getMessage(), ex);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        heap = null;
+        bytes = null;
+        segments = null;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException ex) {
+                // ignore
+            }
+            out = null;
+        }
+        if (file != null && file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Reads the mapped segments in turn, each through its own duplicate (so that concurrent iterations do not share
+     * a position).
+     */
+    private static class SegmentsInputStream extends InputStream {
+
+        private final MappedByteBuffer[] segments;
+        private int segmentIndex = -1;
+        private ByteBuffer segment = ByteBuffer.allocate(0);
+
+        SegmentsInputStream(final MappedByteBuffer[] segments) {
+            this.segments = segments;
+        }
+
+        private boolean nextSegment() {
+            while (!segment.hasRemaining()) {
+                if (++segmentIndex >= segments.length) {
+                    return false;
+                }
+                segment = segments[segmentIndex].duplicate();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return nextSegment() ? segment.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextSegment()) {
+                return -1;
+            }
+            final int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            return n;
+        }
+    }
+
+}
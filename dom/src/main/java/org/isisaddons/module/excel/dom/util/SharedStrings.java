@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The shared strings table of a workbook being streamed, as read by {@link StaxSheetSource}.
+ *
+ * <p>
+ *     The strings are held on the heap until their total length exceeds a threshold; they are then spilled to a
+ *     temporary file (as UTF-8), which once complete is memory-mapped, with only the offset of each string kept
+ *     on the heap (in a <tt>long[]</tt>).  Heap use is therefore bounded regardless of the number of distinct
+ *     strings, at the cost of decoding a new <tt>String</tt> for each lookup.
+ * </p>
+ */
+final class SharedStrings implements Closeable {
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final long spillThreshold;
+
+    private List<String> strings = Lists.newArrayList();
+    private long numChars;
+
+    private File file;
+    private OutputStream out;
+    private long position;
+    private long[] offsets;
+    private int size;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * @param spillThreshold - number of characters above which the strings are spilled to disk; negative never
+     *                         to spill.
+     */
+    SharedStrings(final long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    void add(final String string) throws IOException {
+        if (out == null) {
+            strings.add(string);
+            numChars += string.length();
+            if (spillThreshold >= 0 && numChars > spillThreshold) {
+                spill();
+            }
+            return;
+        }
+        write(string);
+    }
+
+    private void spill() throws IOException {
+        file = File.createTempFile("excel-sst", ".tmp");
+        out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        offsets = new long[Math.max(1024, strings.size() * 2)];
+        for (final String string : strings) {
+            write(string);
+        }
+        strings = null;
+    }
+
+    private void write(final String string) throws IOException {
+        if (size + 1 >= offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        position += bytes.length;
+        offsets[++size] = position;
+    }
+
+    /**
+     * Called once all the strings have been {@link #add(String) added}.
+     */
+    void finish() throws IOException {
+        if (out == null) {
+            return;
+        }
+        out.close();
+        final int numSegments = (int) ((position + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[numSegments];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            for (int i = 0; i < numSegments; i++) {
+                final long start = (long) i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, position - start));
+            }
+        }
+        // the mappings remain valid (on platforms that allow the file to be deleted at all)
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    String get(final int index) {
+        if (strings != null) {
+            return strings.get(index);
+        }
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No shared string " + index);
+        }
+        final long start = offsets[index];
+        final byte[] bytes = new byte[(int) (offsets[index + 1] - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            // absolute gets, so that concurrent lookups do not share a position
+            final long pos = start + i;
+            bytes[i] = segments[(int) (pos / SEGMENT_SIZE)].get((int) (pos % SEGMENT_SIZE));
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        segments = null;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (final IOException ex) {
+                // ignore
+            }
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * A cell as read from the sheet XML, before any conversion to the type of the property it maps to.
+ *
+ * <p>
+ *     The cell type is one of the {@link Cell} <tt>CELL_TYPE_xxx</tt> constants; formula cells are represented by
+ *     the type of their cached result.
+ * </p>
+ */
+final class SheetCell {
+
+    private final int columnIndex;
+    private final int cellType;
+    private final String value;
+    private final int sharedStringIndex;
+
+    SheetCell(final int columnIndex, final int cellType, final String value) {
+        this(columnIndex, cellType, value, -1);
+    }
+
+    SheetCell(final int columnIndex, final int cellType, final String value, final int sharedStringIndex) {
+        this.columnIndex = columnIndex;
+        this.cellType = cellType;
+        this.value = value;
+        this.sharedStringIndex = sharedStringIndex;
+    }
+
+    int getColumnIndex() {
+        return columnIndex;
+    }
+
+    int getCellType() {
+        return cellType;
+    }
+
+    /**
+     * The raw value: the text of a string cell, the <tt>&lt;v&gt;</tt> text of a numeric cell, or
+     * <tt>"0"</tt>/<tt>"1"</tt> for a boolean cell.  For a shared string this is <tt>null</tt>; it is instead
+     * looked up (only if needed) by its {@link #getSharedStringIndex() index}.
+     */
+    String getValue() {
+        return value;
+    }
+
+    /**
+     * The index of the {@link #getValue() value} in the shared strings table, or -1 if not a shared string.
+     */
+    int getSharedStringIndex() {
+        return sharedStringIndex;
+    }
+
+}
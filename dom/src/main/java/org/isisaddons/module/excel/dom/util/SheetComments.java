@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Arrays;
+
+/**
+ * The comments of a sheet being streamed; reference properties are exported with their bookmark as the cell's
+ * comment (see {@link CellMarshaller}).
+ *
+ * <p>
+ *     Held in an open-addressing hash table keyed by a primitive <tt>long</tt> (<tt>row &lt;&lt; 16 | column</tt>),
+ *     so that looking up the comment of a cell neither formats its reference nor boxes a key.
+ * </p>
+ */
+final class SheetComments {
+
+    static final SheetComments NONE = new SheetComments();
+
+    private static final long EMPTY = -1L;
+
+    private long[] keys = newKeys(16);
+    private String[] values = new String[16];
+    private int size;
+
+    /**
+     * Only called while the comments part is being read.
+     */
+    void put(final int rowNum, final int columnIndex, final String text) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        final long key = keyOf(rowNum, columnIndex);
+        final int slot = slotOf(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = text;
+    }
+
+    String getComment(final int rowNum, final int columnIndex) {
+        if (size == 0) {
+            return null;
+        }
+        final int slot = slotOf(keys, keyOf(rowNum, columnIndex));
+        return keys[slot] != EMPTY ? values[slot] : null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final String[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new String[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                final int slot = slotOf(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * The slot holding the key, else the empty slot at which it would be inserted (linear probing).
+     */
+    private static int slotOf(final long[] keys, final long key) {
+        final int mask = keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Columns are at most 16384 (<tt>XFD</tt>), so fit in the low 16 bits.
+     */
+    private static long keyOf(final int rowNum, final int columnIndex) {
+        return (long) rowNum << 16 | columnIndex;
+    }
+
+    private static long[] newKeys(final int capacity) {
+        final long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+}
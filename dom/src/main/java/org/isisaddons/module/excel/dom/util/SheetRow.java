@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.List;
+
+final class SheetRow {
+
+    private final int rowNum;
+    private final List<SheetCell> cells;
+
+    SheetRow(final int rowNum, final List<SheetCell> cells) {
+        this.rowNum = rowNum;
+        this.cells = cells;
+    }
+
+    /**
+     * 0-based, as per {@link org.apache.poi.ss.usermodel.Row#getRowNum()}.
+     */
+    int getRowNum() {
+        return rowNum;
+    }
+
+    List<SheetCell> getCells() {
+        return cells;
+    }
+
+}
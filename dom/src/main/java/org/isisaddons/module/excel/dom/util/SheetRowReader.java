@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler for a worksheet part (<tt>xl/worksheets/sheetN.xml</tt>), emitting each <tt>&lt;row&gt;</tt> as a
+ * {@link SheetRow} of raw {@link SheetCell}s.
+ */
+final class SheetRowReader extends DefaultHandler {
+
+    interface RowHandler {
+        void onRow(SheetRow row) throws SAXException;
+    }
+
+    private final RowHandler rowHandler;
+
+    private final StringBuilder text = new StringBuilder();
+
+    private List<SheetCell> cells;
+    private int rowNum = -1;
+
+    private int columnIndex;
+    private String cellTypeAttr;
+    private boolean cellHasValue;
+    private boolean inValue;
+    private boolean inInlineString;
+    private boolean inPhonetic;
+
+    SheetRowReader(final RowHandler rowHandler) {
+        this.rowHandler = rowHandler;
+    }
+
+    void parse(final InputStream sheetData) throws IOException, SAXException {
+        final XMLReader xmlReader = newXmlReader();
+        xmlReader.setContentHandler(this);
+        xmlReader.parse(new InputSource(sheetData));
+    }
+
+    static XMLReader newXmlReader() throws SAXException {
+        try {
+            final SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            return factory.newSAXParser().getXMLReader();
+        } catch (final ParserConfigurationException ex) {
+            throw new SAXException(ex);
+        }
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+        switch (localName) {
+        case "row":
+            final String r = attributes.getValue("r");
+            rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+            cells = Lists.newArrayList();
+            columnIndex = -1;
+            break;
+        case "c":
+            final String ref = attributes.getValue("r");
+            columnIndex = ref != null ? columnIndexOf(ref) : columnIndex + 1;
+            cellTypeAttr = attributes.getValue("t");
+            cellHasValue = false;
+            text.setLength(0);
+            break;
+        case "v":
+            inValue = true;
+            cellHasValue = true;
+            text.setLength(0);
+            break;
+        case "is":
+            inInlineString = true;
+            cellHasValue = true;
+            text.setLength(0);
+            break;
+        case "rPh":
+            inPhonetic = true;
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        switch (localName) {
+        case "row":
+            rowHandler.onRow(new SheetRow(rowNum, cells));
+            cells = null;
+            break;
+        case "c":
+            cells.add(newCell());
+            break;
+        case "v":
+            inValue = false;
+            break;
+        case "is":
+            inInlineString = false;
+            break;
+        case "rPh":
+            inPhonetic = false;
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length) {
+        if(inValue || (inInlineString && !inPhonetic)) {
+            text.append(ch, start, length);
+        }
+    }
+
+    private SheetCell newCell() {
+        if(!cellHasValue) {
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_BLANK, null);
+        }
+        final String value = text.toString();
+        if(cellTypeAttr == null || "n".equals(cellTypeAttr)) {
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_NUMERIC, value);
+        }
+        switch (cellTypeAttr) {
+        case "s":
+            // resolved (if needed) by way of SheetSource#getSharedString(int)
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_STRING, null, Integer.parseInt(value));
+        case "b":
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_BOOLEAN, value);
+        case "e":
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_ERROR, value);
+        default:
+            // "str" (formula), "inlineStr", "d"
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_STRING, value);
+        }
+    }
+
+    /**
+     * Parses the column letters of a cell reference such as <tt>AB12</tt> into a 0-based index.
+     */
+    static int columnIndexOf(final String cellReference) {
+        int col = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            final char ch = cellReference.charAt(i);
+            if(ch < 'A' || ch > 'Z') {
+                break;
+            }
+            col = col * 26 + (ch - 'A' + 1);
+        }
+        return col - 1;
+    }
+
+    /**
+     * Parses the row number of a cell reference such as <tt>AB12</tt> into a 0-based index.
+     */
+    static int rowIndexOf(final String cellReference) {
+        int row = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            final char ch = cellReference.charAt(i);
+            if(ch >= '0' && ch <= '9') {
+                row = row * 10 + (ch - '0');
+            }
+        }
+        return row - 1;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming access to a single sheet of an <tt>.xlsx</tt> (or, by {@link HssfSheetSource}, an <tt>.xls</tt>) workbook,
+ * as imported by the {@link ImportPipeline}.
+ */
+interface SheetSource extends Closeable {
+
+    /**
+     * The name of the sheet (as it appears in the workbook), as selected by the
+     * {@link ExcelServiceImpl.SheetLookupPolicy}.
+     */
+    String getSheetName();
+
+    /**
+     * Whether the workbook uses the 1904 date system (as per <tt>workbookPr/@date1904</tt>).
+     */
+    boolean isDate1904();
+
+    SheetComments getComments();
+
+    /**
+     * The text of an entry in the workbook's shared strings table, as referenced by
+     * {@link SheetCell#getSharedStringIndex()}.  Only available once the sheet has been {@link #read(SheetRowReader.RowHandler) read}.
+     */
+    String getSharedString(int index);
+
+    /**
+     * Parses the rows of the sheet, passing each in turn to the handler.
+     */
+    void read(SheetRowReader.RowHandler rowHandler) throws IOException, SAXException, InvalidFormatException;
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,406 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.xml.sax.SAXException;
+
+/**
+ * A chunk of the rows of a sheet, staged column by column in primitive arrays (rather than as a {@link SheetCell}
+ * object per cell): integers and decimals in a <tt>long[]</tt> (decimals unscaled, with their scale in a
+ * <tt>byte[]</tt>), shared strings as their index in an <tt>int[]</tt>, and booleans in a {@link BitSet}.  Each column allocates only the arrays for the
+ * kinds of value it actually holds.
+ *
+ * <p>
+ *     Once filled a chunk is immutable, so can be handed between threads, and read any number of times.  It can
+ *     also be {@link #writeTo(DataOutput) written} to (and read back from) a {@link RowStore}.
+ * </p>
+ */
+final class StagedRows {
+
+    static final int CAPACITY = 256;
+
+    static final byte BLANK = 0;
+    /**
+     * A number written as an integer (that fits in a <tt>long</tt>).
+     */
+    static final byte LONG = 1;
+    /**
+     * A number written as a plain decimal (no exponent) of at most {@value #MAX_DECIMAL_DIGITS} digits, so that
+     * both its exact value and (by a single division) its <tt>double</tt> value can be recovered.
+     */
+    static final byte DECIMAL = 2;
+    /**
+     * Any other number, held as its raw text.
+     */
+    static final byte NUMERIC_TEXT = 3;
+    static final byte SHARED_STRING = 4;
+    /**
+     * An inline string or the string result of a formula.
+     */
+    static final byte TEXT = 5;
+    static final byte BOOLEAN = 6;
+    static final byte ERROR = 7;
+
+    private static final int MAX_DECIMAL_DIGITS = 15;
+
+    /**
+     * Powers of ten up to the largest scale of a {@link #DECIMAL}, all exactly representable as <tt>double</tt>s.
+     */
+    private static final double[] POWERS_OF_TEN = new double[MAX_DECIMAL_DIGITS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1d;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10d;
+        }
+    }
+
+    private static final class Column {
+        private final byte[] kinds = new byte[CAPACITY];
+        private long[] longs;
+        private byte[] scales;
+        private int[] sharedStrings;
+        private BitSet booleans;
+        private String[] texts;
+    }
+
+    private final int[] rowNums = new int[CAPACITY];
+    private Column[] columns = new Column[0];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    void add(final SheetRow row) {
+        final int r = size++;
+        rowNums[r] = row.getRowNum();
+        for (final SheetCell cell : row.getCells()) {
+            final int columnIndex = cell.getColumnIndex();
+            if (columnIndex < 0 || cell.getCellType() == Cell.CELL_TYPE_BLANK) {
+                continue;
+            }
+            final Column column = column(columnIndex);
+            switch (cell.getCellType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                addNumeric(column, r, cell.getValue());
+                break;
+            case Cell.CELL_TYPE_STRING:
+                if (cell.getSharedStringIndex() >= 0) {
+                    column.kinds[r] = SHARED_STRING;
+                    sharedStrings(column)[r] = cell.getSharedStringIndex();
+                } else {
+                    addText(column, r, TEXT, cell.getValue());
+                }
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                column.kinds[r] = BOOLEAN;
+                booleans(column).set(r, "1".equals(cell.getValue()));
+                break;
+            default:
+                addText(column, r, ERROR, cell.getValue());
+                break;
+            }
+        }
+    }
+
+    private Column column(final int columnIndex) {
+        if (columnIndex >= columns.length) {
+            columns = Arrays.copyOf(columns, columnIndex + 1);
+        }
+        Column column = columns[columnIndex];
+        if (column == null) {
+            column = columns[columnIndex] = new Column();
+        }
+        return column;
+    }
+
+    private static void addNumeric(final Column column, final int r, final String raw) {
+        // negative zero is left as text, as a long cannot hold it
+        final boolean negative = raw.charAt(0) == '-';
+        if (CellDecoder.isPlainInteger(raw) && raw.length() <= CellDecoder.MAX_SAFE_LONG_LENGTH) {
+            final long value = Long.parseLong(raw);
+            if (value != 0 || !negative) {
+                column.kinds[r] = LONG;
+                longs(column)[r] = value;
+                return;
+            }
+        }
+        final int point = raw.indexOf('.');
+        if (point > 0 && isDecimal(raw, point)) {
+            final long unscaled = Long.parseLong(raw.substring(0, point) + raw.substring(point + 1));
+            if (unscaled != 0 || !negative) {
+                column.kinds[r] = DECIMAL;
+                longs(column)[r] = unscaled;
+                scales(column)[r] = (byte) (raw.length() - point - 1);
+                return;
+            }
+        }
+        addText(column, r, NUMERIC_TEXT, raw);
+    }
+
+    private static long[] longs(final Column column) {
+        if (column.longs == null) {
+            column.longs = new long[CAPACITY];
+        }
+        return column.longs;
+    }
+
+    private static byte[] scales(final Column column) {
+        if (column.scales == null) {
+            column.scales = new byte[CAPACITY];
+        }
+        return column.scales;
+    }
+
+    private static int[] sharedStrings(final Column column) {
+        if (column.sharedStrings == null) {
+            column.sharedStrings = new int[CAPACITY];
+        }
+        return column.sharedStrings;
+    }
+
+    private static BitSet booleans(final Column column) {
+        if (column.booleans == null) {
+            column.booleans = new BitSet(CAPACITY);
+        }
+        return column.booleans;
+    }
+
+    private static String[] texts(final Column column) {
+        if (column.texts == null) {
+            column.texts = new String[CAPACITY];
+        }
+        return column.texts;
+    }
+
+    /**
+     * Whether the digits either side of the decimal point (with an optional leading minus sign) are no more than
+     * {@value #MAX_DECIMAL_DIGITS} in all.
+     */
+    private static boolean isDecimal(final String raw, final int point) {
+        final int length = raw.length();
+        final int start = raw.charAt(0) == '-' ? 1 : 0;
+        if (point == start || point == length - 1 || length - start - 1 > MAX_DECIMAL_DIGITS) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            final char ch = raw.charAt(i);
+            if ((ch < '0' || ch > '9') && i != point) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addText(final Column column, final int r, final byte kind, final String text) {
+        column.kinds[r] = kind;
+        texts(column)[r] = text;
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * 0-based, as per {@link SheetRow#getRowNum()}.
+     */
+    int getRowNum(final int r) {
+        return rowNums[r];
+    }
+
+    /**
+     * One more than the highest column index of any (non-blank) cell.
+     */
+    int getNumColumns() {
+        return columns.length;
+    }
+
+    byte getKind(final int r, final int columnIndex) {
+        final Column column = columnIndex < columns.length ? columns[columnIndex] : null;
+        return column != null ? column.kinds[r] : BLANK;
+    }
+
+    /**
+     * For {@link #LONG} cells, and the unscaled value of {@link #DECIMAL} cells.
+     */
+    long getLong(final int r, final int columnIndex) {
+        return columns[columnIndex].longs[r];
+    }
+
+    /**
+     * For {@link #DECIMAL} cells.
+     */
+    int getScale(final int r, final int columnIndex) {
+        return columns[columnIndex].scales[r];
+    }
+
+    /**
+     * For {@link #DECIMAL} cells; the same <tt>double</tt> as would be parsed from the raw text, because both
+     * the unscaled value and the power of ten are exact.
+     */
+    double getDouble(final int r, final int columnIndex) {
+        final Column column = columns[columnIndex];
+        return column.longs[r] / POWERS_OF_TEN[column.scales[r]];
+    }
+
+    int getSharedStringIndex(final int r, final int columnIndex) {
+        return columns[columnIndex].sharedStrings[r];
+    }
+
+    boolean getBoolean(final int r, final int columnIndex) {
+        return columns[columnIndex].booleans.get(r);
+    }
+
+    /**
+     * For {@link #TEXT}, {@link #NUMERIC_TEXT} and {@link #ERROR} cells.
+     */
+    String getText(final int r, final int columnIndex) {
+        return columns[columnIndex].texts[r];
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Writes the chunk in a compact binary form (only the non-blank cells of each column), as read back by
+     * {@link #readFrom(DataInput)}.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeShort(size);
+        for (int r = 0; r < size; r++) {
+            out.writeInt(rowNums[r]);
+        }
+        out.writeShort(columns.length);
+        for (final Column column : columns) {
+            out.writeBoolean(column != null);
+            if (column == null) {
+                continue;
+            }
+            out.write(column.kinds, 0, size);
+            for (int r = 0; r < size; r++) {
+                switch (column.kinds[r]) {
+                case LONG:
+                    out.writeLong(column.longs[r]);
+                    break;
+                case DECIMAL:
+                    out.writeLong(column.longs[r]);
+                    out.writeByte(column.scales[r]);
+                    break;
+                case SHARED_STRING:
+                    out.writeInt(column.sharedStrings[r]);
+                    break;
+                case BOOLEAN:
+                    out.writeBoolean(column.booleans.get(r));
+                    break;
+                case NUMERIC_TEXT:
+                case TEXT:
+                case ERROR:
+                    // not writeUTF, which is limited to 64k bytes
+                    final byte[] bytes = column.texts[r].getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+    }
+
+    static StagedRows readFrom(final DataInput in) throws IOException {
+        final StagedRows rows = new StagedRows();
+        rows.size = in.readUnsignedShort();
+        for (int r = 0; r < rows.size; r++) {
+            rows.rowNums[r] = in.readInt();
+        }
+        final int numColumns = in.readUnsignedShort();
+        for (int columnIndex = 0; columnIndex < numColumns; columnIndex++) {
+            if (!in.readBoolean()) {
+                continue;
+            }
+            final Column column = rows.column(columnIndex);
+            in.readFully(column.kinds, 0, rows.size);
+            for (int r = 0; r < rows.size; r++) {
+                switch (column.kinds[r]) {
+                case LONG:
+                    longs(column)[r] = in.readLong();
+                    break;
+                case DECIMAL:
+                    longs(column)[r] = in.readLong();
+                    scales(column)[r] = in.readByte();
+                    break;
+                case SHARED_STRING:
+                    sharedStrings(column)[r] = in.readInt();
+                    break;
+                case BOOLEAN:
+                    booleans(column).set(r, in.readBoolean());
+                    break;
+                case NUMERIC_TEXT:
+                case TEXT:
+                case ERROR:
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    texts(column)[r] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        return rows;
+    }
+
+    // //////////////////////////////////////
+
+    /**
+     * Stages the rows parsed from a sheet into chunks, passing on each once full.
+     */
+    abstract static class Stager implements SheetRowReader.RowHandler {
+
+        private StagedRows chunk = new StagedRows();
+
+        @Override
+        public void onRow(final SheetRow row) throws SAXException {
+            chunk.add(row);
+            if (chunk.isFull()) {
+                flush();
+            }
+        }
+
+        /**
+         * Passes on the last (partially filled) chunk, if any.
+         */
+        void flush() throws SAXException {
+            if (chunk.size() > 0) {
+                onStaged(chunk);
+                chunk = new StagedRows();
+            }
+        }
+
+        abstract void onStaged(StagedRows chunk) throws SAXException;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sheet whose rows are {@link StagedRows staged} in a {@link RowStore} as it is first read, so that it can then
+ * be read again (any number of times) without re-parsing it.
+ *
+ * <p>
+ *     Holds the {@link SheetSource} open (for its shared strings and comments) until closed.
+ * </p>
+ */
+final class StagedSheet implements Closeable {
+
+    private final SheetSource source;
+    private final RowStore rowStore;
+    private boolean staged;
+
+    /**
+     * @param spillThreshold - see {@link RowStore#RowStore(long)}.
+     */
+    StagedSheet(final SheetSource source, final long spillThreshold) {
+        this.source = source;
+        this.rowStore = new RowStore(spillThreshold);
+    }
+
+    SheetSource getSource() {
+        return source;
+    }
+
+    /**
+     * Called (from the thread reading the sheet) for each chunk in turn, as it is read.
+     */
+    void add(final StagedRows chunk) throws IOException {
+        rowStore.add(chunk);
+    }
+
+    /**
+     * Called (from the thread reading the sheet) once the last chunk has been {@link #add(StagedRows) added}.
+     */
+    void finish() throws IOException {
+        rowStore.finish();
+        staged = true;
+    }
+
+    /**
+     * Whether the sheet has been read in its entirety (if not, then it failed part way through).
+     */
+    boolean isStaged() {
+        return staged;
+    }
+
+    Iterable<StagedRows> getChunks() {
+        return rowStore;
+    }
+
+    @Override
+    public void close() {
+        rowStore.close();
+        source.close();
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A spreadsheet from which several classes are imported, holding each of its sheets (once read) as a
+ * {@link StagedSheet} so that any subsequent reads of the same sheet replay it rather than parse it again.
+ */
+final class StagedWorkbook implements Closeable {
+
+    private final byte[] bs;
+    private final boolean xlsx;
+    private final Map<String, StagedSheet> sheetsByName = Maps.newHashMap();
+
+    StagedWorkbook(final byte[] bs) throws IOException {
+        this.bs = bs;
+        this.xlsx = XlsxSheetSource.isXlsx(bs);
+    }
+
+    byte[] getBytes() {
+        return bs;
+    }
+
+    /**
+     * Only <tt>.xlsx</tt> sheets are staged; <tt>.xls</tt> sheets are loaded afresh each time.
+     */
+    boolean isXlsx() {
+        return xlsx;
+    }
+
+    /**
+     * The named sheet, if it has already been staged (in its entirety), else <tt>null</tt>.
+     */
+    StagedSheet getStagedSheet(final String sheetName) {
+        final StagedSheet stagedSheet = sheetsByName.get(sheetName);
+        if (stagedSheet != null && !stagedSheet.isStaged()) {
+            // a previous read failed part way through
+            sheetsByName.remove(sheetName);
+            stagedSheet.close();
+            return null;
+        }
+        return stagedSheet;
+    }
+
+    /**
+     * A new sheet, to be staged as it is read from the source (which it then holds onto).
+     */
+    StagedSheet newStagedSheet(final SheetSource source, final long spillThreshold) {
+        final StagedSheet stagedSheet = new StagedSheet(source, spillThreshold);
+        final StagedSheet previous = sheetsByName.put(source.getSheetName(), stagedSheet);
+        if (previous != null) {
+            previous.close();
+        }
+        return stagedSheet;
+    }
+
+    @Override
+    public void close() {
+        for (final StagedSheet stagedSheet : sheetsByName.values()) {
+            stagedSheet.close();
+        }
+        sheetsByName.clear();
+    }
+
+}
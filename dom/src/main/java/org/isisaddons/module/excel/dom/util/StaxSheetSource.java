@@ -0,0 +1,449 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link SheetSource} that reads the package directly, rather than using POI's OPC and XMLBeans machinery.
+ *
+ * <p>
+ *     The sheet is located by name in <tt>workbook.xml</tt> and resolved through the workbook's relationships, as
+ *     are the shared strings and the sheet's comments; all parts are parsed using StAX.  Only the shared strings
+ *     and comments are held in memory; the rows of the sheet are streamed.
+ * </p>
+ */
+final class StaxSheetSource implements SheetSource {
+
+    private static final String REL_OFFICE_DOCUMENT = "/officeDocument";
+    private static final String REL_SHARED_STRINGS = "/sharedStrings";
+    private static final String REL_COMMENTS = "/comments";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+    private static XMLInputFactory newXmlInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    /**
+     * @param sharedStringsSpillThreshold - see {@link SharedStrings#SharedStrings(long)}.
+     */
+    static StaxSheetSource open(
+            final byte[] bs,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final long sharedStringsSpillThreshold) throws IOException {
+        return open(ByteBuffer.wrap(bs), sheetNames, sheetLookupPolicy, sharedStringsSpillThreshold);
+    }
+
+    /**
+     * As {@link #open(byte[], List, ExcelServiceImpl.SheetLookupPolicy, long)}, but for a workbook held in a buffer;
+     * for example, a memory-mapped file.
+     */
+    static StaxSheetSource open(
+            final ByteBuffer buf,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final long sharedStringsSpillThreshold) throws IOException {
+        try {
+            return new StaxSheetSource(new ZipDirectory(buf), sheetNames, sheetLookupPolicy, sharedStringsSpillThreshold);
+        } catch (final XMLStreamException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    private final ZipDirectory zip;
+    private final String sheetName;
+    private final String sheetPart;
+    private final boolean date1904;
+    private final SheetComments comments;
+    private final String sharedStringsPart;
+    private final long sharedStringsSpillThreshold;
+
+    private SharedStrings sharedStrings;
+
+    private StaxSheetSource(
+            final ZipDirectory zip,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy,
+            final long sharedStringsSpillThreshold) throws IOException, XMLStreamException {
+        this.zip = zip;
+        this.sharedStringsSpillThreshold = sharedStringsSpillThreshold;
+
+        final String workbookPart = targetOfType(readRelationships(""), REL_OFFICE_DOCUMENT);
+        if (workbookPart == null) {
+            throw new IOException("Not an .xlsx file (no workbook)");
+        }
+        final Map<String, String[]> workbookRels = readRelationships(workbookPart);
+
+        final Map<String, String> sheetIdsByName = Maps.newLinkedHashMap();
+        boolean date1904 = false;
+        try (InputStream in = open(workbookPart)) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    switch (reader.getLocalName()) {
+                    case "workbookPr":
+                        final String value = reader.getAttributeValue(null, "date1904");
+                        date1904 = "1".equals(value) || "true".equals(value);
+                        break;
+                    case "sheet":
+                        sheetIdsByName.put(reader.getAttributeValue(null, "name"), relationshipIdOf(reader));
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        this.date1904 = date1904;
+
+        this.sheetName = sheetLookupPolicy.lookupName(Lists.newArrayList(sheetIdsByName.keySet()), sheetNames);
+        final String[] sheetRel = workbookRels.get(sheetIdsByName.get(sheetName));
+        if (sheetRel == null) {
+            throw new IOException("Could not locate the part of sheet '" + sheetName + "'");
+        }
+        this.sheetPart = sheetRel[1];
+        this.sharedStringsPart = targetOfType(workbookRels, REL_SHARED_STRINGS);
+
+        final String commentsPart = targetOfType(readRelationships(sheetPart), REL_COMMENTS);
+        this.comments = commentsPart != null ? readComments(commentsPart) : SheetComments.NONE;
+    }
+
+    @Override
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    @Override
+    public String getSharedString(final int index) {
+        return sharedStrings.get(index);
+    }
+
+    @Override
+    public boolean isDate1904() {
+        return date1904;
+    }
+
+    @Override
+    public SheetComments getComments() {
+        return comments;
+    }
+
+    @Override
+    public void read(final SheetRowReader.RowHandler rowHandler) throws IOException, SAXException {
+        try {
+            if (sharedStrings == null) {
+                sharedStrings = readSharedStrings();
+            }
+            try (InputStream in = open(sheetPart)) {
+                readRows(in, rowHandler);
+            }
+        } catch (final XMLStreamException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void readRows(
+            final InputStream in,
+            final SheetRowReader.RowHandler rowHandler) throws XMLStreamException, SAXException {
+        final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            List<SheetCell> cells = null;
+            int rowNum = -1;
+            int columnIndex = -1;
+            String cellType = null;
+            String value = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    switch (reader.getLocalName()) {
+                    case "row":
+                        final String r = reader.getAttributeValue(null, "r");
+                        rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+                        cells = Lists.newArrayList();
+                        columnIndex = -1;
+                        break;
+                    case "c":
+                        final String ref = reader.getAttributeValue(null, "r");
+                        columnIndex = ref != null ? SheetRowReader.columnIndexOf(ref) : columnIndex + 1;
+                        cellType = reader.getAttributeValue(null, "t");
+                        value = null;
+                        break;
+                    case "v":
+                        value = reader.getElementText();
+                        break;
+                    case "is":
+                        value = readText(reader);
+                        break;
+                    default:
+                        break;
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    switch (reader.getLocalName()) {
+                    case "row":
+                        rowHandler.onRow(new SheetRow(rowNum, cells));
+                        cells = null;
+                        break;
+                    case "c":
+                        cells.add(newCell(columnIndex, cellType, value));
+                        break;
+                    default:
+                        break;
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * As per {@link SheetRowReader}.
+     */
+    private static SheetCell newCell(final int columnIndex, final String cellType, final String value) {
+        if(value == null) {
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_BLANK, null);
+        }
+        if(cellType == null || "n".equals(cellType)) {
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_NUMERIC, value);
+        }
+        switch (cellType) {
+        case "s":
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_STRING, null, Integer.parseInt(value.trim()));
+        case "b":
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_BOOLEAN, value);
+        case "e":
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_ERROR, value);
+        default:
+            // "str" (formula), "inlineStr", "d"
+            return new SheetCell(columnIndex, Cell.CELL_TYPE_STRING, value);
+        }
+    }
+
+    /**
+     * Read once, on the first {@link #read(SheetRowReader.RowHandler) read} of the sheet, and then held (and
+     * {@link #getSharedString(int) looked up}) until the source is {@link #close() closed}.
+     */
+    private SharedStrings readSharedStrings() throws IOException, XMLStreamException {
+        final SharedStrings sharedStrings = new SharedStrings(sharedStringsSpillThreshold);
+        try {
+            if (sharedStringsPart != null) {
+                try (InputStream in = open(sharedStringsPart)) {
+                    final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+                    try {
+                        while (reader.hasNext()) {
+                            if (reader.next() == XMLStreamConstants.START_ELEMENT && "si".equals(reader.getLocalName())) {
+                                sharedStrings.add(readText(reader));
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+            }
+            sharedStrings.finish();
+            return sharedStrings;
+        } catch (final IOException | XMLStreamException | RuntimeException ex) {
+            sharedStrings.close();
+            throw ex;
+        }
+    }
+
+    private SheetComments readComments(final String part) throws IOException, XMLStreamException {
+        final SheetComments comments = new SheetComments();
+        try (InputStream in = open(part)) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                String ref = null;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    switch (reader.getLocalName()) {
+                    case "comment":
+                        ref = reader.getAttributeValue(null, "ref");
+                        break;
+                    case "text":
+                        if (ref != null) {
+                            comments.put(SheetRowReader.rowIndexOf(ref), SheetRowReader.columnIndexOf(ref), readText(reader));
+                            ref = null;
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return comments;
+    }
+
+    /**
+     * The text of a rich text element (<tt>&lt;si&gt;</tt>, <tt>&lt;is&gt;</tt> or <tt>&lt;text&gt;</tt>), being
+     * its <tt>&lt;t&gt;</tt> elements other than phonetic runs; leaves the reader at the element's end.
+     */
+    private static String readText(final XMLStreamReader reader) throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        int depth = 1;
+        int phoneticDepth = 0;
+        while (depth > 0) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                final String localName = reader.getLocalName();
+                if ("rPh".equals(localName)) {
+                    phoneticDepth++;
+                } else if ("t".equals(localName) && phoneticDepth == 0) {
+                    // consumes the end element
+                    text.append(reader.getElementText());
+                    break;
+                }
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if ("rPh".equals(reader.getLocalName())) {
+                    phoneticDepth--;
+                }
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the relationships of the part, as <tt>{type, target part}</tt> keyed by id (external targets are
+     *         ignored).
+     */
+    private Map<String, String[]> readRelationships(final String part) throws IOException, XMLStreamException {
+        final int slash = part.lastIndexOf('/');
+        final String relsPart = part.substring(0, slash + 1) + "_rels/" + part.substring(slash + 1) + ".rels";
+        final Map<String, String[]> rels = Maps.newLinkedHashMap();
+        if (!zip.contains(relsPart)) {
+            return rels;
+        }
+        try (InputStream in = open(relsPart)) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT &&
+                        "Relationship".equals(reader.getLocalName()) &&
+                        !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+                        rels.put(reader.getAttributeValue(null, "Id"), new String[] {
+                                reader.getAttributeValue(null, "Type"),
+                                resolve(part, reader.getAttributeValue(null, "Target")) });
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return rels;
+    }
+
+    /**
+     * The <tt>r:id</tt> attribute, whichever the namespace (transitional or strict) bound to the prefix.
+     */
+    private static String relationshipIdOf(final XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if ("id".equals(reader.getAttributeLocalName(i)) && !Strings.isNullOrEmpty(reader.getAttributeNamespace(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static String targetOfType(final Map<String, String[]> rels, final String typeSuffix) {
+        for (final String[] rel : rels.values()) {
+            if (rel[0] != null && rel[0].endsWith(typeSuffix)) {
+                return rel[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the target of a relationship, relative to the (directory of the) source part, as a zip entry name.
+     */
+    private static String resolve(final String sourcePart, final String target) {
+        final String path = target.startsWith("/")
+                ? target.substring(1)
+                : sourcePart.substring(0, sourcePart.lastIndexOf('/') + 1) + target;
+        final List<String> segments = Lists.newArrayList();
+        for (final String segment : path.split("/")) {
+            if ("..".equals(segment)) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (!segment.isEmpty() && !".".equals(segment)) {
+                segments.add(segment);
+            }
+        }
+        return Joiner.on('/').join(segments);
+    }
+
+    private InputStream open(final String part) throws IOException {
+        final InputStream in = zip.open(part);
+        if (in == null) {
+            throw new IOException("Missing part '" + part + "'");
+        }
+        return in;
+    }
+
+    @Override
+    public void close() {
+        // the package itself is held in memory
+        if (sharedStrings != null) {
+            sharedStrings.close();
+        }
+    }
+
+}
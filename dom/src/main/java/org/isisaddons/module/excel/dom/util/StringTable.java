@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Arrays;
+
+/**
+ * The distinct strings of a shared strings table being written, each with its index (in order of first
+ * occurrence).
+ *
+ * <p>
+ *     Held in an open-addressing hash table of <tt>int</tt> indices (with the hash of each string alongside), rather
+ *     than a map of boxed indices, so that looking up a repeated string allocates nothing and mostly compares only
+ *     hashes.
+ * </p>
+ */
+final class StringTable {
+
+    private int[] slots = new int[64];
+    private int[] hashes = new int[64];
+    private String[] strings = new String[32];
+    private int size;
+
+    /**
+     * The index of the string, adding it if not already present.
+     */
+    int indexOf(final String string) {
+        final int hash = string.hashCode();
+        final int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (true) {
+            final int entry = slots[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (hashes[slot] == hash && strings[entry - 1].equals(string)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        final int index = size++;
+        if (index == strings.length) {
+            strings = Arrays.copyOf(strings, index * 2);
+        }
+        strings[index] = string;
+        // slots hold index + 1, so that 0 is empty
+        slots[slot] = index + 1;
+        hashes[slot] = hash;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return index;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String get(final int index) {
+        return strings[index];
+    }
+
+    private void rehash(final int capacity) {
+        final int[] oldSlots = slots;
+        final int[] oldHashes = hashes;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                int slot = spread(oldHashes[i]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import org.apache.isis.applib.services.bookmark.Bookmark;
+import org.apache.isis.core.metamodel.spec.SpecificationLoaderSpi;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+
+/**
+ * Pays the one-off costs of the first export/import (loading the POI and XMLBeans classes, and introspecting the
+ * exported classes) in the background at boot, rather than on the first request.
+ */
+final class WarmUp implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+    private static final String SHEET_NAME = "WarmUp";
+
+    private final List<Class<?>> exportClasses;
+    private final ColumnPlans columnPlans;
+
+    WarmUp(final List<Class<?>> exportClasses, final ColumnPlans columnPlans) {
+        this.exportClasses = exportClasses;
+        this.columnPlans = columnPlans;
+    }
+
+    void start() {
+        final Thread thread = new Thread(this, "excel-warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            final byte[] bytes = writeWorkbook();
+            readWorkbook(bytes);
+        } catch (final IOException | InvalidFormatException | SAXException | RuntimeException ex) {
+            // only a warm-up; any genuine problem will surface on first use
+            LOG.warn("Failed to warm up POI", ex);
+        }
+        precomputeColumnPlans();
+    }
+
+    /**
+     * A single row, with one cell of each of the kinds written by {@link CellMarshaller}.
+     */
+    private static byte[] writeWorkbook() throws IOException {
+        final Workbook wb = new XSSFWorkbook();
+        final Sheet sheet = wb.createSheet(SHEET_NAME);
+        final CellMarshaller cellMarshaller = new CellMarshaller(null, null, wb.createCellStyle());
+        final Row row = sheet.createRow(0);
+        cellMarshaller.setCellValue(row.createCell(0), "warm-up");
+        cellMarshaller.setCellValue(row.createCell(1), 1);
+        cellMarshaller.setCellValue(row.createCell(2), Boolean.TRUE);
+        cellMarshaller.setCellValue(row.createCell(3), new Date());
+        cellMarshaller.setCellValue(row.createCell(4), new CellMarshaller.BookmarkedTitle(new Bookmark("warm-up", "1"), "warm-up"));
+        sheet.createFreezePane(0, 1);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Using both of the streaming readers and POI's user model.
+     */
+    private static void readWorkbook(final byte[] bytes) throws IOException, InvalidFormatException, SAXException {
+        final List<String> sheetNames = Collections.singletonList(SHEET_NAME);
+        final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy = ExcelServiceImpl.SheetLookupPolicy.BY_NAME;
+        readSheet(StaxSheetSource.open(
+                bytes, sheetNames, sheetLookupPolicy, ExcelSettings.defaults().getImportSharedStringsSpillThreshold()));
+        readSheet(XlsxSheetSource.open(bytes, sheetNames, sheetLookupPolicy));
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+            WorkbookFactory.create(bais);
+        }
+    }
+
+    /**
+     * Stages the sheet and then replays it, decoding each cell as a string (closing the source once done).
+     */
+    private static void readSheet(final SheetSource source) throws IOException, InvalidFormatException, SAXException {
+        try (StagedSheet stagedSheet = new StagedSheet(source, -1)) {
+            final StagedRows.Stager stager = new StagedRows.Stager() {
+                @Override
+                void onStaged(final StagedRows chunk) throws SAXException {
+                    try {
+                        stagedSheet.add(chunk);
+                    } catch (final IOException ex) {
+                        throw new SAXException(ex);
+                    }
+                }
+            };
+            source.read(stager);
+            stager.flush();
+            stagedSheet.finish();
+
+            final CellDecoder cellDecoder = new CellDecoder(source);
+            for (final StagedRows rows : stagedSheet.getChunks()) {
+                for (int r = 0; r < rows.size(); r++) {
+                    for (int columnIndex = 0; columnIndex < rows.getNumColumns(); columnIndex++) {
+                        cellDecoder.decodeString(rows, r, columnIndex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * In a session of this thread's own. The metamodel has already been validated (before the services were
+     * initialized), so the specifications are all loaded by now and this does not race the rest of the boot.
+     */
+    private void precomputeColumnPlans() {
+        if (exportClasses.isEmpty()) {
+            return;
+        }
+        final SpecificationLoaderSpi specificationLoader = IsisContext.exists() ? IsisContext.getSpecificationLoader() : null;
+        if (specificationLoader == null || !specificationLoader.isInitialized()) {
+            // too early; the column plans will be computed on first use instead
+            return;
+        }
+        try {
+            IsisContext.doInSession(new Runnable() {
+                @Override
+                public void run() {
+                    for (final Class<?> exportClass : exportClasses) {
+                        columnPlans.forExport(specificationLoader.loadSpecification(exportClass));
+                    }
+                }
+            });
+        } catch (final RuntimeException ex) {
+            // only a warm-up; the column plans will be computed on first use instead
+            LOG.warn("Failed to precompute the column plans of " + exportClasses, ex);
+        }
+    }
+
+}
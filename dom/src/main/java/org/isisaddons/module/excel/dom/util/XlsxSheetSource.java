@@ -0,0 +1,279 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.POIXMLDocument;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A {@link SheetSource} using POI's event API, without loading the workbook into POI's user model.
+ */
+final class XlsxSheetSource implements SheetSource {
+
+    static boolean isXlsx(final byte[] bs) throws IOException {
+        try (InputStream is = new ByteArrayInputStream(bs)) {
+            return POIXMLDocument.hasOOXMLHeader(is);
+        }
+    }
+
+    static boolean isXlsx(final File file) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            return POIXMLDocument.hasOOXMLHeader(is);
+        }
+    }
+
+    static XlsxSheetSource open(
+            final byte[] bs,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
+        return open(OPCPackage.open(new ByteArrayInputStream(bs)), sheetNames, sheetLookupPolicy);
+    }
+
+    /**
+     * As {@link #open(byte[], List, ExcelServiceImpl.SheetLookupPolicy)}, but with POI reading the parts from the
+     * file (as a zip file) as they are needed.
+     */
+    static XlsxSheetSource open(
+            final File file,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
+        return open(OPCPackage.open(file.getPath(), PackageAccess.READ), sheetNames, sheetLookupPolicy);
+    }
+
+    private static XlsxSheetSource open(
+            final OPCPackage pkg,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
+        try {
+            return new XlsxSheetSource(pkg, sheetNames, sheetLookupPolicy);
+        } catch (final IOException | InvalidFormatException | RuntimeException ex) {
+            pkg.revert();
+            throw ex;
+        }
+    }
+
+    private final OPCPackage pkg;
+    private final XSSFReader xssfReader;
+    private final String sheetName;
+    private final boolean date1904;
+    private final SheetComments comments;
+
+    private ReadOnlySharedStringsTable sharedStrings;
+
+    private XlsxSheetSource(
+            final OPCPackage pkg,
+            final List<String> sheetNames,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException, InvalidFormatException {
+        this.pkg = pkg;
+        try {
+            this.xssfReader = new XSSFReader(pkg);
+        } catch (final OpenXML4JException ex) {
+            throw new InvalidFormatException(ex.getMessage());
+        }
+
+        final List<String> workbookSheetNames = Lists.newArrayList();
+        final XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+        while (sheets.hasNext()) {
+            sheets.next().close();
+            workbookSheetNames.add(sheets.getSheetName());
+        }
+        this.sheetName = sheetLookupPolicy.lookupName(workbookSheetNames, sheetNames);
+        this.date1904 = readDate1904();
+        this.comments = readComments();
+    }
+
+    @Override
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    @Override
+    public String getSharedString(final int index) {
+        return sharedStrings.getEntryAt(index);
+    }
+
+    @Override
+    public boolean isDate1904() {
+        return date1904;
+    }
+
+    @Override
+    public SheetComments getComments() {
+        return comments;
+    }
+
+    @Override
+    public void read(final SheetRowReader.RowHandler rowHandler) throws IOException, SAXException, InvalidFormatException {
+        if (sharedStrings == null) {
+            try {
+                sharedStrings = new ReadOnlySharedStringsTable(pkg);
+            } catch (final SAXException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+        final XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+        while (sheets.hasNext()) {
+            try (InputStream sheetData = sheets.next()) {
+                if (sheetName.equals(sheets.getSheetName())) {
+                    new SheetRowReader(rowHandler).parse(sheetData);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the sheet's comments part (if any) with SAX, rather than loading it as a {@link
+     * org.apache.poi.xssf.model.CommentsTable}.
+     */
+    private SheetComments readComments() throws IOException, InvalidFormatException {
+        final XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
+        while (sheets.hasNext()) {
+            sheets.next().close();
+            if (!sheetName.equals(sheets.getSheetName())) {
+                continue;
+            }
+            final PackagePart sheetPart = sheets.getSheetPart();
+            final PackageRelationshipCollection rels =
+                    sheetPart.getRelationshipsByType(XSSFRelation.SHEET_COMMENTS.getRelation());
+            if (rels.size() == 0) {
+                return SheetComments.NONE;
+            }
+            final SheetComments comments = new SheetComments();
+            try (InputStream commentsData = sheetPart.getRelatedPart(rels.getRelationship(0)).getInputStream()) {
+                final XMLReader xmlReader = SheetRowReader.newXmlReader();
+                xmlReader.setContentHandler(new CommentsHandler(comments));
+                xmlReader.parse(new InputSource(commentsData));
+            } catch (final SAXException ex) {
+                throw new IOException(ex);
+            }
+            return comments;
+        }
+        return SheetComments.NONE;
+    }
+
+    /**
+     * Reads the text of each <tt>&lt;comment&gt;</tt> (its <tt>&lt;t&gt;</tt> elements other than phonetic runs).
+     */
+    private static class CommentsHandler extends DefaultHandler {
+
+        private final SheetComments comments;
+        private final StringBuilder text = new StringBuilder();
+
+        private String ref;
+        private boolean inText;
+        private boolean inPhonetic;
+
+        CommentsHandler(final SheetComments comments) {
+            this.comments = comments;
+        }
+
+        @Override
+        public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+            switch (localName) {
+            case "comment":
+                ref = attributes.getValue("ref");
+                text.setLength(0);
+                break;
+            case "t":
+                inText = ref != null && !inPhonetic;
+                break;
+            case "rPh":
+                inPhonetic = true;
+                break;
+            default:
+                break;
+            }
+        }
+
+        @Override
+        public void endElement(final String uri, final String localName, final String qName) {
+            switch (localName) {
+            case "comment":
+                if (ref != null) {
+                    comments.put(SheetRowReader.rowIndexOf(ref), SheetRowReader.columnIndexOf(ref), text.toString());
+                    ref = null;
+                }
+                break;
+            case "t":
+                inText = false;
+                break;
+            case "rPh":
+                inPhonetic = false;
+                break;
+            default:
+                break;
+            }
+        }
+
+        @Override
+        public void characters(final char[] ch, final int start, final int length) {
+            if (inText) {
+                text.append(ch, start, length);
+            }
+        }
+    }
+
+    private boolean readDate1904() throws IOException, InvalidFormatException {
+        final boolean[] date1904 = new boolean[1];
+        try (InputStream workbookData = xssfReader.getWorkbookData()) {
+            final XMLReader xmlReader = SheetRowReader.newXmlReader();
+            xmlReader.setContentHandler(new DefaultHandler() {
+                @Override
+                public void startElement(final String uri, final String localName, final String qName, final Attributes attributes) {
+                    if ("workbookPr".equals(localName)) {
+                        final String value = attributes.getValue("date1904");
+                        date1904[0] = "1".equals(value) || "true".equals(value);
+                    }
+                }
+            });
+            xmlReader.parse(new InputSource(workbookData));
+        } catch (final SAXException ex) {
+            throw new IOException(ex);
+        }
+        return date1904[0];
+    }
+
+    @Override
+    public void close() {
+        pkg.revert();
+    }
+
+}
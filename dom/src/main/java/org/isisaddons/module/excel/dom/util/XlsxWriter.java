@@ -0,0 +1,375 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.WorkbookUtil;
+
+/**
+ * Writes a single-sheet <tt>.xlsx</tt> workbook directly as SpreadsheetML, row by row, without POI's object model.
+ *
+ * <p>
+ *     Supports the values written natively by {@link CellMarshaller} (strings, booleans, dates, numbers and enums),
+ *     with the same representation; anything else is written using its <tt>toString()</tt>.  Cell comments (and
+ *     so references, whose bookmarks are held in comments) are not supported.
+ * </p>
+ *
+ * <p>
+ *     Only the (distinct) strings are held in memory, because the shared strings table is written last.  Columns
+ *     whose strings are mostly distinct (free text, say) can instead be written as inline strings, as decided from
+ *     the first {@value #SAMPLE_ROWS} rows: for these the shared strings table would save little space, but would
+ *     hold every value until the end.
+ * </p>
+ *
+ * <p>
+ *     The widths of the columns are likewise {@link ColumnWidths estimated} from the header and the sampled rows,
+ *     since they are written before the rows.
+ * </p>
+ *
+ * <p>
+ *     The package is written by a {@link ZipWriter}, which can deflate the (large) sheet part on several threads.
+ * </p>
+ */
+final class XlsxWriter {
+
+    private static final String XML_DECL = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String NS_MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String NS_REL = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String NS_PKG_REL = "http://schemas.openxmlformats.org/package/2006/relationships";
+    private static final String CT_PREFIX = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+
+    private static final String STYLE_DATE = "1";
+
+    /**
+     * Number of rows buffered (before any are written) to decide which columns to write as inline strings, and
+     * how wide to make them.
+     */
+    static final int SAMPLE_ROWS = 256;
+    /**
+     * The fewest strings in a column's sample for it to be considered for inline strings.
+     */
+    private static final int MIN_SAMPLED_STRINGS = 32;
+
+    private final ZipWriter zip;
+    private final XmlBytes xml;
+    private final StringTable sharedStrings = new StringTable();
+    private int sharedStringCount;
+
+    private final boolean inlineStrings;
+    private final ColumnWidths columnWidths;
+    /**
+     * The header and rows buffered until the columns have been decided; <tt>null</tt> from then on.
+     */
+    private Object[] header;
+    private List<Object[]> sampledRows = Lists.newArrayListWithCapacity(SAMPLE_ROWS);
+    private boolean[] inlineColumns = new boolean[0];
+
+    private String[] columnRefs = new String[0];
+    private int rowNum;
+
+    /**
+     * @param inlineStrings - whether columns of mostly distinct strings may be written as inline strings (else
+     *                        all strings are shared).
+     * @param columnWidths - whether to estimate the widths of the columns (else they have Excel's default width).
+     */
+    XlsxWriter(
+            final ZipWriter zip,
+            final String sheetName,
+            final boolean inlineStrings,
+            final boolean columnWidths) throws IOException {
+        WorkbookUtil.validateSheetName(sheetName);
+        this.inlineStrings = inlineStrings;
+        this.columnWidths = columnWidths ? new ColumnWidths() : null;
+        this.zip = zip;
+        this.xml = new XmlBytes(zip);
+
+        writeContentTypes();
+        writePackageRels();
+        writeWorkbook(sheetName);
+        writeWorkbookRels();
+        writeStyles();
+
+        zip.putNextEntry("xl/worksheets/sheet1.xml");
+        xml.raw(XML_DECL)
+           .raw("<worksheet xmlns=\"").raw(NS_MAIN).raw("\" xmlns:r=\"").raw(NS_REL).raw("\">")
+           // freeze the header row
+           .raw("<sheetViews><sheetView workbookViewId=\"0\">")
+           .raw("<pane ySplit=\"1\" topLeftCell=\"A2\" activePane=\"bottomLeft\" state=\"frozen\"/>")
+           .raw("<selection pane=\"bottomLeft\"/>")
+           .raw("</sheetView></sheetViews>")
+           .raw("<sheetFormatPr defaultRowHeight=\"15\"/>");
+    }
+
+    void writeHeader(final List<String> names) {
+        header = names.toArray();
+    }
+
+    void writeRow(final Object[] values) throws IOException {
+        if (sampledRows == null) {
+            write(values);
+            return;
+        }
+        sampledRows.add(values);
+        if (sampledRows.size() == SAMPLE_ROWS) {
+            writeSampledRows();
+        }
+    }
+
+    private void writeSampledRows() throws IOException {
+        final List<Object[]> rows = sampledRows;
+        sampledRows = null;
+        if (inlineStrings) {
+            inlineColumns = chooseInlineColumns(rows);
+        }
+        if (columnWidths != null) {
+            writeColumnWidths(rows);
+        }
+        xml.raw("<sheetData>");
+        if (header != null) {
+            write(header);
+        }
+        for (final Object[] values : rows) {
+            write(values);
+        }
+    }
+
+    private void writeColumnWidths(final List<Object[]> rows) throws IOException {
+        if (header != null) {
+            columnWidths.sample(header);
+        }
+        for (final Object[] values : rows) {
+            columnWidths.sample(values);
+        }
+        if (columnWidths.size() == 0) {
+            return;
+        }
+        xml.raw("<cols>");
+        for (int i = 0; i < columnWidths.size(); i++) {
+            xml.raw("<col min=\"").number(i + 1).raw("\" max=\"").number(i + 1)
+               .raw("\" width=\"").number(columnWidths.getWidth(i)).raw("\" customWidth=\"1\"/>");
+        }
+        xml.raw("</cols>");
+    }
+
+    /**
+     * A column is written as inline strings if most (more than half) of the strings in its sample are distinct.
+     */
+    private static boolean[] chooseInlineColumns(final List<Object[]> rows) {
+        int numColumns = 0;
+        for (final Object[] values : rows) {
+            numColumns = Math.max(numColumns, values.length);
+        }
+        final boolean[] inline = new boolean[numColumns];
+        final Set<String> distinct = Sets.newHashSet();
+        for (int i = 0; i < numColumns; i++) {
+            distinct.clear();
+            int strings = 0;
+            for (final Object[] values : rows) {
+                final Object value = i < values.length ? values[i] : null;
+                if (isFreeText(value)) {
+                    strings++;
+                    distinct.add(value.toString());
+                }
+            }
+            inline[i] = strings >= MIN_SAMPLED_STRINGS && distinct.size() * 2 > strings;
+        }
+        return inline;
+    }
+
+    /**
+     * Values written as strings, other than enums (whose names are always shared).
+     */
+    private static boolean isFreeText(final Object value) {
+        return value != null
+                && !(value instanceof Enum)
+                && !(value instanceof Boolean)
+                && !(value instanceof Number)
+                && !ExcelDates.isDateValue(value);
+    }
+
+    private void write(final Object[] values) throws IOException {
+        if (values.length > columnRefs.length) {
+            columnRefs = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                columnRefs[i] = CellReference.convertNumToColString(i);
+            }
+        }
+        final int r = ++rowNum;
+        xml.raw("<row r=\"").number(r).raw("\">");
+        for (int i = 0; i < values.length; i++) {
+            writeCell(i, r, values[i]);
+        }
+        xml.raw("</row>");
+    }
+
+    /**
+     * Completes the workbook, flushing (but not closing) the stream.
+     */
+    void finish() throws IOException {
+        if (sampledRows != null) {
+            writeSampledRows();
+        }
+        xml.raw("</sheetData></worksheet>");
+        xml.flush();
+        zip.closeEntry();
+
+        zip.putNextEntry("xl/sharedStrings.xml");
+        xml.raw(XML_DECL)
+           .raw("<sst xmlns=\"").raw(NS_MAIN).raw("\" count=\"").number(sharedStringCount)
+           .raw("\" uniqueCount=\"").number(sharedStrings.size()).raw("\">");
+        for (int i = 0; i < sharedStrings.size(); i++) {
+            xml.raw("<si><t xml:space=\"preserve\">").text(sharedStrings.get(i)).raw("</t></si>");
+        }
+        xml.raw("</sst>");
+        xml.flush();
+        zip.closeEntry();
+
+        zip.finish();
+    }
+
+    private void writeCell(final int columnIndex, final int r, final Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        xml.raw("<c r=\"").raw(columnRefs[columnIndex]).number(r);
+        final boolean inline = columnIndex < inlineColumns.length && inlineColumns[columnIndex];
+        if (inline && isFreeText(value)) {
+            xml.raw("\" t=\"inlineStr\"><is><t xml:space=\"preserve\">").text(value.toString()).raw("</t></is></c>");
+            return;
+        }
+        if (value instanceof String) {
+            writeSharedString((String) value);
+        } else if (value instanceof Boolean) {
+            xml.raw("\" t=\"b\"><v>").raw((Boolean) value ? "1" : "0");
+        } else if (ExcelDates.isDateValue(value)) {
+            xml.raw("\" s=\"").raw(STYLE_DATE).raw("\"><v>").number(ExcelDates.toSerial(value, false));
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                   || value instanceof BigInteger) {
+            xml.raw("\"><v>").number(((Number) value).doubleValue());
+        } else if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Enum) {
+            writeSharedString(((Enum<?>) value).name());
+        } else {
+            writeSharedString(value.toString());
+        }
+        xml.raw("</v></c>");
+    }
+
+    /**
+     * As {@link org.apache.poi.ss.usermodel.Cell#setCellValue(double)}, writing an error for infinite and
+     * non-numeric values.
+     */
+    private void writeDouble(final double value) throws IOException {
+        if (Double.isInfinite(value)) {
+            xml.raw("\" t=\"e\"><v>#DIV/0!");
+        } else if (Double.isNaN(value)) {
+            xml.raw("\" t=\"e\"><v>#NUM!");
+        } else {
+            xml.raw("\"><v>").number(value);
+        }
+    }
+
+    private void writeSharedString(final String value) throws IOException {
+        final int index = sharedStrings.indexOf(value);
+        sharedStringCount++;
+        xml.raw("\" t=\"s\"><v>").number(index);
+    }
+
+    // //////////////////////////////////////
+
+    private void writeContentTypes() throws IOException {
+        zip.putNextEntry("[Content_Types].xml");
+        xml.raw(XML_DECL)
+           .raw("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+           .raw("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+           .raw("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+           .raw("<Override PartName=\"/xl/workbook.xml\" ContentType=\"").raw(CT_PREFIX).raw("sheet.main+xml\"/>")
+           .raw("<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"").raw(CT_PREFIX).raw("worksheet+xml\"/>")
+           .raw("<Override PartName=\"/xl/styles.xml\" ContentType=\"").raw(CT_PREFIX).raw("styles+xml\"/>")
+           .raw("<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"").raw(CT_PREFIX).raw("sharedStrings+xml\"/>")
+           .raw("</Types>");
+        closeEntry();
+    }
+
+    private void writePackageRels() throws IOException {
+        zip.putNextEntry("_rels/.rels");
+        xml.raw(XML_DECL)
+           .raw("<Relationships xmlns=\"").raw(NS_PKG_REL).raw("\">")
+           .raw("<Relationship Id=\"rId1\" Type=\"").raw(NS_REL).raw("/officeDocument\" Target=\"xl/workbook.xml\"/>")
+           .raw("</Relationships>");
+        closeEntry();
+    }
+
+    private void writeWorkbook(final String sheetName) throws IOException {
+        zip.putNextEntry("xl/workbook.xml");
+        xml.raw(XML_DECL)
+           .raw("<workbook xmlns=\"").raw(NS_MAIN).raw("\" xmlns:r=\"").raw(NS_REL).raw("\">")
+           .raw("<bookViews><workbookView/></bookViews>")
+           .raw("<sheets><sheet name=\"").text(sheetName).raw("\" sheetId=\"1\" r:id=\"rId1\"/></sheets>")
+           .raw("</workbook>");
+        closeEntry();
+    }
+
+    private void writeWorkbookRels() throws IOException {
+        zip.putNextEntry("xl/_rels/workbook.xml.rels");
+        xml.raw(XML_DECL)
+           .raw("<Relationships xmlns=\"").raw(NS_PKG_REL).raw("\">")
+           .raw("<Relationship Id=\"rId1\" Type=\"").raw(NS_REL).raw("/worksheet\" Target=\"worksheets/sheet1.xml\"/>")
+           .raw("<Relationship Id=\"rId2\" Type=\"").raw(NS_REL).raw("/styles\" Target=\"styles.xml\"/>")
+           .raw("<Relationship Id=\"rId3\" Type=\"").raw(NS_REL).raw("/sharedStrings\" Target=\"sharedStrings.xml\"/>")
+           .raw("</Relationships>");
+        closeEntry();
+    }
+
+    /**
+     * The default style, and (as {@link ExcelConverter#createDateFormatCellStyle}) a <tt>yyyy-mm-dd</tt> date style.
+     */
+    private void writeStyles() throws IOException {
+        zip.putNextEntry("xl/styles.xml");
+        xml.raw(XML_DECL)
+           .raw("<styleSheet xmlns=\"").raw(NS_MAIN).raw("\">")
+           .raw("<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"yyyy-mm-dd\"/></numFmts>")
+           .raw("<fonts count=\"1\"><font><sz val=\"11\"/><name val=\"Calibri\"/><family val=\"2\"/></font></fonts>")
+           .raw("<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill>")
+           .raw("<fill><patternFill patternType=\"gray125\"/></fill></fills>")
+           .raw("<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>")
+           .raw("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>")
+           .raw("<cellXfs count=\"2\">")
+           .raw("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>")
+           .raw("<xf numFmtId=\"164\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\" applyNumberFormat=\"1\"/>")
+           .raw("</cellXfs>")
+           .raw("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>")
+           .raw("</styleSheet>");
+        closeEntry();
+    }
+
+    private void closeEntry() throws IOException {
+        xml.flush();
+        zip.closeEntry();
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes XML as UTF-8 bytes directly into a buffer, flushed to the underlying stream when full; avoids the
+ * overhead of a {@link java.io.Writer} and of encoding the (ASCII) markup.
+ */
+final class XmlBytes {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+
+    XmlBytes(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Markup, which must be ASCII and is not escaped.
+     */
+    XmlBytes raw(final String ascii) throws IOException {
+        final int length = ascii.length();
+        for (int i = 0; i < length; i++) {
+            put(ascii.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Character data or an attribute value, escaped.  As POI does, characters that are not allowed in XML are
+     * written as <tt>_xHHHH_</tt>.
+     */
+    XmlBytes text(final String text) throws IOException {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char ch = text.charAt(i);
+            if (ch < 0x80) {
+                switch (ch) {
+                    case '<': raw("&lt;"); break;
+                    case '>': raw("&gt;"); break;
+                    case '&': raw("&amp;"); break;
+                    case '"': raw("&quot;"); break;
+                    case '\t': case '\n': case '\r': put(ch); break;
+                    default:
+                        if (ch < 0x20) {
+                            escaped(ch);
+                        } else {
+                            put(ch);
+                        }
+                }
+            } else if (ch < 0x800) {
+                put(0xC0 | (ch >> 6));
+                put(0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(ch, text.charAt(++i));
+                put(0xF0 | (cp >> 18));
+                put(0x80 | ((cp >> 12) & 0x3F));
+                put(0x80 | ((cp >> 6) & 0x3F));
+                put(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(ch) || ch == 0xFFFE || ch == 0xFFFF) {
+                escaped(ch);
+            } else {
+                put(0xE0 | (ch >> 12));
+                put(0x80 | ((ch >> 6) & 0x3F));
+                put(0x80 | (ch & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    XmlBytes number(final long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return raw(Long.toString(value));
+        }
+        long v = value;
+        if (v < 0) {
+            put('-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (v / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((int) ('0' + (v / divisor) % 10));
+        }
+        return this;
+    }
+
+    /**
+     * Integral values (as most are) without a fraction or exponent.
+     */
+    XmlBytes number(final double value) throws IOException {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return number((long) value);
+        }
+        return raw(Double.toString(value));
+    }
+
+    void flush() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+        out.flush();
+    }
+
+    private void escaped(final char ch) throws IOException {
+        raw("_x");
+        put(HEX[(ch >> 12) & 0xF]);
+        put(HEX[(ch >> 8) & 0xF]);
+        put(HEX[(ch >> 4) & 0xF]);
+        put(HEX[ch & 0xF]);
+        put('_');
+    }
+
+    private void put(final int b) throws IOException {
+        if (pos == buf.length) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+        buf[pos++] = (byte) b;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Random access to the entries of a zip file held in memory (or memory-mapped), located using its central directory
+ * (so, unlike a {@link java.util.zip.ZipInputStream}, without inflating the entries that precede the one being read).
+ *
+ * <p>
+ *     Only supports what is needed to read <tt>.xlsx</tt> packages: stored and deflated entries, without zip64
+ *     extensions (which are rejected) or encryption.  Entry names are matched case-insensitively, as are the part
+ *     names of an OPC package.
+ * </p>
+ *
+ * <p>
+ *     Since the file may be an untrusted upload, entries are guarded against "zip bombs" as by POI's
+ *     <tt>ZipSecureFile</tt>: reading fails once an entry has inflated to more than {@link #MAX_ENTRY_SIZE}, or to
+ *     more than its compressed size divided by {@link #MIN_INFLATE_RATIO} (allowing {@link #GRACE_ENTRY_SIZE} for
+ *     small entries).
+ * </p>
+ */
+final class ZipDirectory {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    /**
+     * As POI's <tt>ZipSecureFile</tt>: the smallest ratio of compressed to inflated size allowed.
+     */
+    static final double MIN_INFLATE_RATIO = 0.01;
+    /**
+     * As POI's <tt>ZipSecureFile</tt>: the largest an entry may inflate to.
+     */
+    static final long MAX_ENTRY_SIZE = 0xFFFFFFFFL;
+    /**
+     * The size up to which an entry may inflate regardless of its {@link #MIN_INFLATE_RATIO ratio}.
+     */
+    static final long GRACE_ENTRY_SIZE = 100 * 1024;
+
+    private static final class Entry {
+        private final String name;
+        private final int method;
+        private final int compressedSize;
+        private final long size;
+        private final int localHeaderOffset;
+
+        Entry(final String name, final int method, final int compressedSize, final long size, final int localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int length;
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    ZipDirectory(final byte[] bs) throws IOException {
+        this(ByteBuffer.wrap(bs));
+    }
+
+    /**
+     * @param buffer - the zip file, from position 0 to its limit; for example, a memory-mapped file.
+     */
+    ZipDirectory(final ByteBuffer buffer) throws IOException {
+        this.buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.length = buf.limit();
+
+        final int end = findEndOfCentralDirectory();
+        final int numEntries = buf.getShort(end + 10) & 0xffff;
+        final int centralDirectoryOffset = buf.getInt(end + 16);
+        if (isZip64(end) || numEntries == 0xffff || centralDirectoryOffset == -1) {
+            throw new IOException("Zip64 archives are not supported");
+        }
+        int pos = centralDirectoryOffset;
+        for (int i = 0; i < numEntries; i++) {
+            checkSignature(pos, CENTRAL_DIRECTORY_ENTRY);
+            final int method = buf.getShort(pos + 10) & 0xffff;
+            final int compressedSize = buf.getInt(pos + 20);
+            final int size = buf.getInt(pos + 24);
+            final int nameLength = buf.getShort(pos + 28) & 0xffff;
+            final int extraLength = buf.getShort(pos + 30) & 0xffff;
+            final int commentLength = buf.getShort(pos + 32) & 0xffff;
+            final int localHeaderOffset = buf.getInt(pos + 42);
+            checkBounds(pos + 46, nameLength);
+            final byte[] nameBytes = new byte[nameLength];
+            slice(pos + 46, nameLength).get(nameBytes);
+            final String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (compressedSize == -1 || size == -1 || localHeaderOffset == -1) {
+                throw new IOException("Zip64 entries are not supported ('" + name + "')");
+            }
+            entries.put(keyOf(name), new Entry(name, method, compressedSize, size & 0xFFFFFFFFL, localHeaderOffset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Whether the end of central directory record is preceded by a zip64 locator.
+     */
+    private boolean isZip64(final int end) {
+        final int locator = end - 20;
+        return locator >= 0 && buf.getInt(locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR;
+    }
+
+    private static String keyOf(final String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private int findEndOfCentralDirectory() throws IOException {
+        // the record is 22 bytes, followed by a comment of at most 64k
+        final int last = length - 22;
+        for (int pos = last; pos >= 0 && pos >= last - 0xffff; pos--) {
+            if (buf.getInt(pos) == END_OF_CENTRAL_DIRECTORY) {
+                return pos;
+            }
+        }
+        throw new IOException("Not a zip file (no central directory)");
+    }
+
+    private void checkSignature(final int pos, final int signature) throws IOException {
+        if (pos < 0 || pos + 4 > length || buf.getInt(pos) != signature) {
+            throw new IOException("Corrupt zip file");
+        }
+    }
+
+    private void checkBounds(final int pos, final int len) throws IOException {
+        if (pos < 0 || len < 0 || pos + len > length) {
+            throw new IOException("Corrupt zip file");
+        }
+    }
+
+    private ByteBuffer slice(final int pos, final int len) {
+        final ByteBuffer slice = buf.duplicate();
+        slice.limit(pos + len);
+        slice.position(pos);
+        return slice.slice();
+    }
+
+    boolean contains(final String name) {
+        return entries.containsKey(keyOf(name));
+    }
+
+    /**
+     * @return the (inflated) content of the entry, or <tt>null</tt> if there is no such entry.
+     */
+    InputStream open(final String name) throws IOException {
+        final Entry entry = entries.get(keyOf(name));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.size > MAX_ENTRY_SIZE) {
+            throw new IOException("Zip entry '" + entry.name + "' is too large (" + entry.size + " bytes)");
+        }
+        final int pos = entry.localHeaderOffset;
+        checkSignature(pos, LOCAL_FILE_HEADER);
+        final int nameLength = buf.getShort(pos + 26) & 0xffff;
+        final int extraLength = buf.getShort(pos + 28) & 0xffff;
+        final int dataOffset = pos + 30 + nameLength + extraLength;
+        checkBounds(dataOffset, entry.compressedSize);
+        switch (entry.method) {
+        case STORED:
+            return new BufferInputStream(slice(dataOffset, entry.compressedSize));
+        case DEFLATED:
+            // a raw ("nowrap") inflater may need a byte beyond the compressed data, as per ZipFile
+            final int len = Math.min(entry.compressedSize + 1, length - dataOffset);
+            final InputStream inflated =
+                    new InflaterInputStream(new BufferInputStream(slice(dataOffset, len)), new Inflater(true), 8192) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inf.end();
+                }
+            };
+            return new BoundedInputStream(inflated, entry.name, maxInflatedSize(entry.compressedSize));
+        default:
+            throw new IOException("Unsupported compression method " + entry.method + " for '" + entry.name + "'");
+        }
+    }
+
+    static long maxInflatedSize(final long compressedSize) {
+        final long byRatio = Math.max(GRACE_ENTRY_SIZE, (long) (compressedSize / MIN_INFLATE_RATIO));
+        return Math.min(byRatio, MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * Fails once more than the limit has been read, rather than silently truncating the entry.
+     */
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private final String name;
+        private final long limit;
+        private long count;
+
+        private BoundedInputStream(final InputStream in, final String name, final long limit) {
+            this.in = in;
+            this.name = name;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        private void counted(final int n) throws IOException {
+            count += n;
+            if (count > limit) {
+                throw new IOException(String.format(
+                        "Zip entry '%s' inflates to more than %d bytes; it may be a zip bomb", name, limit));
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        private BufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+}
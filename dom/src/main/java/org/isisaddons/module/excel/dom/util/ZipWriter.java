@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Writes a zip file as a stream (in place of a {@link java.util.zip.ZipOutputStream}), deflating the data of each
+ * entry in independent blocks which, given an executor, are compressed in parallel.
+ *
+ * <p>
+ *     As <tt>pigz</tt> does, each block is compressed by its own {@link Deflater}, primed with the last 32k of the
+ *     preceding block as its dictionary (so the ratio barely suffers), and ended with a sync flush, so that the
+ *     blocks concatenate into a single valid deflate stream.  The CRC is computed as the data is written, and the
+ *     compressed blocks are written out in order, no more than a few per thread being held in memory at once.
+ * </p>
+ *
+ * <p>
+ *     Only supports what is needed to write <tt>.xlsx</tt> packages (the write side of {@link ZipDirectory}):
+ *     deflated entries, without zip64 extensions, sizes being given in a data descriptor after each entry.
+ * </p>
+ */
+final class ZipWriter extends OutputStream {
+
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int VERSION = 20;
+    /**
+     * Sizes and CRC in the data descriptor (bit 3), and UTF-8 names (bit 11).
+     */
+    private static final int FLAGS = 1 << 3 | 1 << 11;
+    private static final int DEFLATED = 8;
+
+    static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final class Entry {
+        private final byte[] name;
+        private final long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private Entry(final byte[] name, final long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final int dosTime;
+    private final int dosDate;
+
+    private final List<Entry> entries = Lists.newArrayList();
+    private long written;
+    private boolean finished;
+
+    private Entry entry;
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    /**
+     * @param level - as per {@link Deflater#setLevel(int)}.
+     * @param executor - if not <tt>null</tt>, then the blocks are compressed by its threads (of which there are
+     *                   <tt>parallelism</tt>), else on the calling thread.
+     */
+    ZipWriter(final OutputStream out, final int level, final ExecutorService executor, final int parallelism) {
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxPendingBlocks = 2 * Math.max(1, parallelism);
+
+        final Calendar now = Calendar.getInstance();
+        this.dosTime = now.get(Calendar.HOUR_OF_DAY) << 11 | now.get(Calendar.MINUTE) << 5 | now.get(Calendar.SECOND) >> 1;
+        this.dosDate = (now.get(Calendar.YEAR) - 1980) << 9 | (now.get(Calendar.MONTH) + 1) << 5 | now.get(Calendar.DAY_OF_MONTH);
+    }
+
+    void putNextEntry(final String name) throws IOException {
+        if (entry != null) {
+            closeEntry();
+        }
+        entry = new Entry(name.getBytes(StandardCharsets.UTF_8), written);
+        entries.add(entry);
+
+        writeInt(LOCAL_FILE_HEADER);
+        writeShort(VERSION);
+        writeShort(FLAGS);
+        writeShort(DEFLATED);
+        writeShort(dosTime);
+        writeShort(dosDate);
+        // crc and sizes are in the data descriptor
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(entry.name.length);
+        writeShort(0);
+        writeBytes(entry.name, 0, entry.name.length);
+
+        crc.reset();
+        blockLength = 0;
+        dictionary = null;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock();
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+            final int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Compresses the last block (on the calling thread, while any others are still being compressed), then writes
+     * out the remaining blocks and the data descriptor.
+     */
+    void closeEntry() throws IOException {
+        if (entry == null) {
+            return;
+        }
+        crc.update(block, 0, blockLength);
+        entry.size += blockLength;
+        final byte[] last = deflate(block, blockLength, dictionary, true, level);
+        while (!pending.isEmpty()) {
+            writeBlock(await(pending.removeFirst()));
+        }
+        writeBlock(last);
+        entry.crc = crc.getValue();
+
+        checkSize(entry.size);
+        checkSize(entry.compressedSize);
+        writeInt(DATA_DESCRIPTOR);
+        writeInt((int) entry.crc);
+        writeInt((int) entry.compressedSize);
+        writeInt((int) entry.size);
+        entry = null;
+    }
+
+    /**
+     * Completes the zip file (writing its central directory) and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Completes the zip file, flushing but not closing the underlying stream.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        closeEntry();
+        final long centralDirectoryOffset = written;
+        for (final Entry e : entries) {
+            checkSize(e.offset);
+            writeInt(CENTRAL_DIRECTORY_ENTRY);
+            writeShort(VERSION);
+            writeShort(VERSION);
+            writeShort(FLAGS);
+            writeShort(DEFLATED);
+            writeShort(dosTime);
+            writeShort(dosDate);
+            writeInt((int) e.crc);
+            writeInt((int) e.compressedSize);
+            writeInt((int) e.size);
+            writeShort(e.name.length);
+            // extra field, comment, disk number, internal and external attributes
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeShort(0);
+            writeInt(0);
+            writeInt((int) e.offset);
+            writeBytes(e.name, 0, e.name.length);
+        }
+        final long centralDirectorySize = written - centralDirectoryOffset;
+        checkSize(centralDirectoryOffset);
+        writeInt(END_OF_CENTRAL_DIRECTORY);
+        writeShort(0);
+        writeShort(0);
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt((int) centralDirectorySize);
+        writeInt((int) centralDirectoryOffset);
+        writeShort(0);
+        out.flush();
+    }
+
+    private void submitBlock() throws IOException {
+        crc.update(block, 0, blockLength);
+        entry.size += blockLength;
+
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dict = dictionary;
+        // the next block's dictionary is the tail of this one
+        dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+
+        if (executor == null) {
+            writeBlock(deflate(data, length, dict, false, level));
+        } else {
+            if (pending.size() == maxPendingBlocks) {
+                writeBlock(await(pending.removeFirst()));
+            }
+            pending.addLast(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return deflate(data, length, dict, false, level);
+                }
+            }));
+            // the submitted block is now owned by its task
+            block = new byte[BLOCK_SIZE];
+        }
+        blockLength = 0;
+    }
+
+    /**
+     * Raw deflate of a block: ended with a sync flush (so byte-aligned, and not marked as the final block) unless
+     * it is the last.
+     */
+    private static byte[] deflate(
+            final byte[] data,
+            final int length,
+            final byte[] dictionary,
+            final boolean last,
+            final int level) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            byte[] buf = new byte[length / 2 + 64];
+            int pos = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (pos == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    }
+                    pos += deflater.deflate(buf, pos, buf.length - pos);
+                }
+            } else {
+                while (true) {
+                    pos += deflater.deflate(buf, pos, buf.length - pos, Deflater.SYNC_FLUSH);
+                    if (pos < buf.length) {
+                        break;
+                    }
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            return Arrays.copyOf(buf, pos);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] await(final Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", ex);
+        } catch (final ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private void writeBlock(final byte[] compressed) throws IOException {
+        writeBytes(compressed, 0, compressed.length);
+        entry.compressedSize += compressed.length;
+    }
+
+    private static void checkSize(final long size) throws IOException {
+        if (size > 0xFFFFFFFFL) {
+            throw new IOException("Zip entry or file too large (zip64 is not supported)");
+        }
+    }
+
+    private void writeShort(final int value) throws IOException {
+        out.write(value & 0xff);
+        out.write(value >>> 8 & 0xff);
+        written += 2;
+    }
+
+    private void writeInt(final int value) throws IOException {
+        writeShort(value & 0xffff);
+        writeShort(value >>> 16);
+    }
+
+    private void writeBytes(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.jmock.Expectations;
+import org.jmock.auto.Mock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+import org.apache.isis.core.unittestsupport.jmocking.JUnitRuleMockery2;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class CellDecoderTest {
+
+    enum Category {
+        Professional, Domestic, Other
+    }
+
+    enum Priority {
+        Low, Other
+    }
+
+    @Rule
+    public JUnitRuleMockery2 context = JUnitRuleMockery2.createFor(JUnitRuleMockery2.Mode.INTERFACES_AND_CLASSES);
+
+    @Mock
+    private OneToOneAssociation mockAssociation;
+
+    @Mock
+    private ObjectSpecification mockSpecification;
+
+    private SharedStringsSource source;
+    private CellDecoder cellDecoder;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockAssociation).getSpecification();
+            will(returnValue(mockSpecification));
+            allowing(mockSpecification).isValue();
+            will(returnValue(true));
+        }});
+        source = new SharedStringsSource("Professional", "Domestic", "Other");
+        cellDecoder = new CellDecoder(source);
+    }
+
+    @Test
+    public void decimals_are_exact() throws Exception {
+        assertThat(decodeNumeric("0.1", BigDecimal.class), is((Object) new BigDecimal("0.1")));
+        assertThat(decodeNumeric("-12.50", BigDecimal.class), is((Object) new BigDecimal("-12.50")));
+        // more significant digits than a double holds
+        assertThat(decodeNumeric("12345678901234567.89", BigDecimal.class),
+                is((Object) new BigDecimal("12345678901234567.89")));
+        assertThat(decodeNumeric("1.5E-5", BigDecimal.class), is((Object) new BigDecimal("1.5E-5")));
+    }
+
+    @Test
+    public void big_integers_are_exact() throws Exception {
+        assertThat(decodeNumeric("1234567890123456789012345", BigInteger.class),
+                is((Object) new BigInteger("1234567890123456789012345")));
+        assertThat(decodeNumeric("9223372036854775807", BigInteger.class),
+                is((Object) BigInteger.valueOf(Long.MAX_VALUE)));
+        assertThat(decodeNumeric("-42", BigInteger.class), is((Object) BigInteger.valueOf(-42)));
+    }
+
+    @Test
+    public void longs_are_exact() throws Exception {
+        // 2^53 + 1, which a double cannot hold; and the longest that are parsed as a long
+        assertThat(decodeNumeric("9007199254740993", Long.class), is((Object) 9007199254740993L));
+        assertThat(decodeNumeric("9007199254740993", long.class), is((Object) 9007199254740993L));
+        assertThat(decodeNumeric("999999999999999999", Long.class), is((Object) 999999999999999999L));
+        assertThat(decodeNumeric("-99999999999999999", Long.class), is((Object) (-99999999999999999L)));
+    }
+
+    @Test
+    public void integers_are_narrowed_where_they_fit() throws Exception {
+        assertThat(decodeNumeric("42", Integer.class), is((Object) 42));
+        assertThat(decodeNumeric("-42", int.class), is((Object) (-42)));
+        assertThat(decodeNumeric("42", Short.class), is((Object) (short) 42));
+        assertThat(decodeNumeric("42", Byte.class), is((Object) (byte) 42));
+        assertThat(decodeNumeric("42", Double.class), is((Object) 42.0));
+    }
+
+    @Test
+    public void other_numbers_are_converted_through_a_double() throws Exception {
+        assertThat(decodeNumeric("1E5", Long.class), is((Object) 100000L));
+        assertThat(decodeNumeric("4.0", Integer.class), is((Object) 4));
+        assertThat(decodeNumeric("0.5", Double.class), is((Object) 0.5));
+    }
+
+    @Test
+    public void is_plain_integer() throws Exception {
+        assertThat(CellDecoder.isPlainInteger("0"), is(true));
+        assertThat(CellDecoder.isPlainInteger("42"), is(true));
+        assertThat(CellDecoder.isPlainInteger("-42"), is(true));
+
+        assertThat(CellDecoder.isPlainInteger(""), is(false));
+        assertThat(CellDecoder.isPlainInteger("-"), is(false));
+        assertThat(CellDecoder.isPlainInteger("+42"), is(false));
+        assertThat(CellDecoder.isPlainInteger("4.2"), is(false));
+        assertThat(CellDecoder.isPlainInteger("1E5"), is(false));
+    }
+
+    @Test
+    public void enums_resolved_once_per_shared_string() throws Exception {
+
+        // given
+        final StagedRows rows = new StagedRows();
+        for (int rowNum = 0; rowNum < 4; rowNum++) {
+            rows.add(StagedRowsTest.row(rowNum, sharedString(0, rowNum % 2 == 0 ? 1 : 2)));
+        }
+        final ExcelConverter.Property property = property(Category.class);
+
+        // when
+        final Object decoded0 = cellDecoder.decode(rows, 0, 0, property);
+        final Object decoded1 = cellDecoder.decode(rows, 1, 0, property);
+        final Object decoded2 = cellDecoder.decode(rows, 2, 0, property);
+        final Object decoded3 = cellDecoder.decode(rows, 3, 0, property);
+
+        // then
+        assertThat(decoded0, is(sameInstance((Object) Category.Domestic)));
+        assertThat(decoded1, is(sameInstance((Object) Category.Other)));
+        assertThat(decoded2, is(sameInstance((Object) Category.Domestic)));
+        assertThat(decoded3, is(sameInstance((Object) Category.Other)));
+        assertThat(source.lookups, is(Arrays.asList(1, 2)));
+    }
+
+    @Test
+    public void enums_resolved_separately_for_each_enum_type() throws Exception {
+
+        // given
+        final StagedRows rows = new StagedRows();
+        rows.add(StagedRowsTest.row(0, sharedString(0, 2), sharedString(1, 2)));
+
+        // when
+        final Object category = cellDecoder.decode(rows, 0, 0, property(Category.class));
+        final Object priority = cellDecoder.decode(rows, 0, 1, property(Priority.class));
+
+        // then
+        assertThat(category, is(sameInstance((Object) Category.Other)));
+        assertThat(priority, is(sameInstance((Object) Priority.Other)));
+    }
+
+    @Test
+    public void enums_from_inline_strings() throws Exception {
+
+        // given
+        final StagedRows rows = new StagedRows();
+        rows.add(StagedRowsTest.row(0, new SheetCell(0, Cell.CELL_TYPE_STRING, "Professional")));
+
+        // when
+        final Object decoded = cellDecoder.decode(rows, 0, 0, property(Category.class));
+
+        // then
+        assertThat(decoded, is(sameInstance((Object) Category.Professional)));
+        assertThat(source.lookups.isEmpty(), is(true));
+    }
+
+    private Object decodeNumeric(final String raw, final Class<?> type) {
+        final StagedRows rows = new StagedRows();
+        rows.add(StagedRowsTest.row(0, StagedRowsTest.numeric(0, raw)));
+        return cellDecoder.decode(rows, 0, 0, property(type));
+    }
+
+    private ExcelConverter.Property property(final Class<?> type) {
+        return new ExcelConverter.Property("property", mockAssociation, type);
+    }
+
+    private static SheetCell sharedString(final int columnIndex, final int sharedStringIndex) {
+        return new SheetCell(columnIndex, Cell.CELL_TYPE_STRING, null, sharedStringIndex);
+    }
+
+    /**
+     * Just a shared strings table, recording each index looked up.
+     */
+    private static class SharedStringsSource implements SheetSource {
+
+        private final String[] sharedStrings;
+        private final List<Integer> lookups = Lists.newArrayList();
+
+        SharedStringsSource(final String... sharedStrings) {
+            this.sharedStrings = sharedStrings;
+        }
+
+        @Override
+        public String getSheetName() {
+            return "Sheet1";
+        }
+
+        @Override
+        public boolean isDate1904() {
+            return false;
+        }
+
+        @Override
+        public SheetComments getComments() {
+            return null;
+        }
+
+        @Override
+        public String getSharedString(final int index) {
+            lookups.add(index);
+            return sharedStrings[index];
+        }
+
+        @Override
+        public void read(final SheetRowReader.RowHandler rowHandler) throws IOException {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public abstract class CsvReaderTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    /**
+     * Creates the reader under test; the subclasses read through a single buffer, or a character at a time (so that
+     * every field straddles a refill of the buffer).
+     */
+    abstract CsvReader readerOf(final String csv);
+
+    public static class BufferedTest extends CsvReaderTest {
+        @Override
+        CsvReader readerOf(final String csv) {
+            return new CsvReader(new StringReader(csv));
+        }
+    }
+
+    public static class CharAtATimeTest extends CsvReaderTest {
+        @Override
+        CsvReader readerOf(final String csv) {
+            return new CsvReader(new FilterReader(new StringReader(csv)) {
+                @Override
+                public int read(final char[] cbuf, final int off, final int len) throws IOException {
+                    return super.read(cbuf, off, Math.min(len, 1));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void unquoted_fields() throws Exception {
+        assertThat(records("a,b,c\r\nd,e,f\r\n"), is(records(
+                record("a", "b", "c"),
+                record("d", "e", "f"))));
+    }
+
+    @Test
+    public void line_endings() throws Exception {
+        // CRLF, LF or CR, and no line ending at the end of the input
+        assertThat(records("a\r\nb\nc\rd"), is(records(
+                record("a"),
+                record("b"),
+                record("c"),
+                record("d"))));
+    }
+
+    @Test
+    public void quoted_fields_with_crlf_comma_and_doubled_quotes() throws Exception {
+        assertThat(records("\"line 1\r\nline 2\",\"a, b\",\"say \"\"hi\"\"\"\r\nnext\r\n"), is(records(
+                record("line 1\r\nline 2", "a, b", "say \"hi\""),
+                record("next"))));
+    }
+
+    @Test
+    public void empty_fields() throws Exception {
+        // unquoted empty fields are null, quoted ones the empty string
+        assertThat(records("a,,\"\"\r\n,b\r\n"), is(records(
+                record("a", null, ""),
+                record(null, "b"))));
+    }
+
+    @Test
+    public void trailing_empty_field() throws Exception {
+        assertThat(records("a,b,\r\nc,d,"), is(records(
+                record("a", "b", null),
+                record("c", "d", null))));
+    }
+
+    @Test
+    public void byte_order_mark_is_skipped() throws Exception {
+        assertThat(records("\uFEFFName,Quantity\r\nx,1\r\n"), is(records(
+                record("Name", "Quantity"),
+                record("x", "1"))));
+    }
+
+    @Test
+    public void byte_order_mark_before_quoted_field_is_skipped() throws Exception {
+        assertThat(records("\uFEFF\"Name\"\r\n"), is(records(
+                record("Name"))));
+    }
+
+    @Test
+    public void record_numbers() throws Exception {
+        try (CsvReader reader = readerOf("a\r\nb\r\n")) {
+            assertThat(reader.next(), is(true));
+            assertThat(reader.getRecordNum(), is(0));
+            assertThat(reader.next(), is(true));
+            assertThat(reader.getRecordNum(), is(1));
+            assertThat(reader.next(), is(false));
+        }
+    }
+
+    @Test
+    public void unterminated_quoted_field() throws Exception {
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("Unterminated quoted field"));
+
+        // when
+        records("a\r\n\"b,c\r\n");
+    }
+
+    @Test
+    public void text_after_quoted_field() throws Exception {
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("after quoted field"));
+
+        // when
+        records("\"a\"b,c\r\n");
+    }
+
+    @Test
+    public void round_trip_through_writer() throws Exception {
+
+        // given
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final CsvWriter writer = new CsvWriter(baos);
+        writer.writeHeader(Arrays.asList("Name", "Notes"));
+        writer.writeRow(new Object[] {"plain", "line 1\r\nline 2"});
+        writer.writeRow(new Object[] {"", "\"quoted\", with a comma"});
+        writer.writeRow(new Object[] {null, "café €"});
+        writer.flush();
+
+        // when
+        final List<List<String>> records = records(new String(baos.toByteArray(), StandardCharsets.UTF_8));
+
+        // then
+        assertThat(records, is(records(
+                record("Name", "Notes"),
+                record("plain", "line 1\r\nline 2"),
+                record("", "\"quoted\", with a comma"),
+                record(null, "café €"))));
+    }
+
+    private List<List<String>> records(final String csv) throws IOException {
+        final List<List<String>> records = Lists.newArrayList();
+        try (CsvReader reader = readerOf(csv)) {
+            while (reader.next()) {
+                final List<String> record = Lists.newArrayList();
+                for (int i = 0; i < reader.size(); i++) {
+                    record.add(reader.get(i));
+                }
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    @SafeVarargs
+    private static List<List<String>> records(final List<String>... records) {
+        return Arrays.asList(records);
+    }
+
+    private static List<String> record(final String... fields) {
+        return Arrays.asList(fields);
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public abstract class ExcelDatesTest {
+
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/London"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    public static class LeapYearBugOf1900 extends ExcelDatesTest {
+
+        @Test
+        public void dates_either_side_of_the_missing_day() throws Exception {
+            assertThat(ExcelDates.toSerial(new LocalDate(1900, 1, 1), false), is(1.0));
+            assertThat(ExcelDates.toSerial(new LocalDate(1900, 2, 28), false), is(59.0));
+            assertThat(ExcelDates.toSerial(new LocalDate(1900, 3, 1), false), is(61.0));
+
+            assertThat(ExcelDates.fromSerial(1, false, LocalDate.class), is((Object) new LocalDate(1900, 1, 1)));
+            assertThat(ExcelDates.fromSerial(59, false, LocalDate.class), is((Object) new LocalDate(1900, 2, 28)));
+            assertThat(ExcelDates.fromSerial(61, false, LocalDate.class), is((Object) new LocalDate(1900, 3, 1)));
+        }
+
+        @Test
+        public void serial_60_is_read_as_poi_does() throws Exception {
+            // 1900-02-29 does not exist; POI (via a lenient Calendar) reads it as 1900-03-01
+            assertThat(ExcelDates.fromSerial(60, false, LocalDate.class), is((Object) new LocalDate(1900, 3, 1)));
+            assertThat(ExcelDates.fromSerial(60, false, Date.class), is((Object) DateUtil.getJavaDate(60, false)));
+        }
+    }
+
+    public static class DateSystem1904 extends ExcelDatesTest {
+
+        @Test
+        public void epoch() throws Exception {
+            assertThat(ExcelDates.toSerial(new LocalDate(1904, 1, 1), true), is(0.0));
+            assertThat(ExcelDates.toSerial(new LocalDate(1904, 1, 2), true), is(1.0));
+            assertThat(ExcelDates.fromSerial(0, true, LocalDate.class), is((Object) new LocalDate(1904, 1, 1)));
+        }
+
+        @Test
+        public void differs_from_1900_system_by_1462_days() throws Exception {
+            final LocalDate date = new LocalDate(2014, 12, 31);
+            assertThat(ExcelDates.toSerial(date, false) - ExcelDates.toSerial(date, true), is(1462.0));
+            assertThat(ExcelDates.fromSerial(ExcelDates.toSerial(date, true), true, LocalDate.class), is((Object) date));
+        }
+
+        @Test
+        public void instants_as_poi() throws Exception {
+            final Date date = dateOf(2014, Calendar.JULY, 1, 13, 45);
+            assertThat(ExcelDates.toSerial(date, true), is(DateUtil.getExcelDate(date, true)));
+            assertThat(ExcelDates.fromSerial(DateUtil.getExcelDate(date, true), true, Date.class), is((Object) date));
+        }
+    }
+
+    public static class NegativeSerials extends ExcelDatesTest {
+
+        @Test
+        public void dates_before_the_date_system_are_minus_one() throws Exception {
+            assertThat(ExcelDates.toSerial(new LocalDate(1899, 12, 31), false), is(-1.0));
+            assertThat(ExcelDates.toSerial(new LocalDate(1903, 12, 31), true), is(-1.0));
+            assertThat(ExcelDates.toSerial(dateOf(1899, Calendar.DECEMBER, 31, 12, 0), false), is(-1.0));
+        }
+
+        @Test
+        public void negative_serials_are_not_dates() throws Exception {
+            assertThat(ExcelDates.fromSerial(-1, false, LocalDate.class), is(nullValue()));
+            assertThat(ExcelDates.fromSerial(-0.5, true, Date.class), is(nullValue()));
+        }
+    }
+
+    public static class BeforeAndAfter1970 extends ExcelDatesTest {
+
+        @Test
+        public void instants_before_1970_as_poi() throws Exception {
+            // days before 1970-01-01 must round down, not towards zero
+            final Date date = dateOf(1960, Calendar.JUNE, 15, 18, 30);
+            assertThat(ExcelDates.toSerial(date, false), is(DateUtil.getExcelDate(date, false)));
+            assertThat(ExcelDates.fromSerial(ExcelDates.toSerial(date, false), false, Date.class), is((Object) date));
+        }
+
+        @Test
+        public void epoch_days_as_joda() throws Exception {
+            for (LocalDate date = new LocalDate(1600, 1, 1); date.getYear() < 2400; date = date.plusDays(7)) {
+                final long expected = date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() / DateUtil.DAY_MILLISECONDS;
+                assertThat(ExcelDates.epochDayOf(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth()), is(expected));
+            }
+        }
+
+        @Test
+        public void local_dates_round_trip() throws Exception {
+            // (from the start of the 1904 system, so that both systems apply)
+            for (LocalDate date = new LocalDate(1904, 1, 1); date.getYear() < 2100; date = date.plusDays(3)) {
+                assertThat(ExcelDates.fromSerial(ExcelDates.toSerial(date, false), false, LocalDate.class), is((Object) date));
+                assertThat(ExcelDates.fromSerial(ExcelDates.toSerial(date, true), true, LocalDate.class), is((Object) date));
+            }
+        }
+
+        @Test
+        public void local_date_times_keep_their_fields() throws Exception {
+            // 01:30 on 2014-03-30 does not exist in London (clocks go forward), but a local date time still has it
+            final LocalDateTime dateTime = new LocalDateTime(2014, 3, 30, 1, 30);
+            final double serial = ExcelDates.toSerial(dateTime, false);
+            assertThat(ExcelDates.fromSerial(serial, false, LocalDateTime.class), is((Object) dateTime));
+        }
+    }
+
+    public static class IsoText extends ExcelDatesTest {
+
+        @Test
+        public void round_trip() throws Exception {
+            final LocalDate date = new LocalDate(1960, 2, 29);
+            assertThat(ExcelDates.toIsoText(date), is("1960-02-29"));
+            assertThat(ExcelDates.fromIsoText("1960-02-29", LocalDate.class), is((Object) date));
+
+            final Date instant = dateOf(1969, Calendar.DECEMBER, 31, 23, 59);
+            assertThat(ExcelDates.fromIsoText(ExcelDates.toIsoText(instant), Date.class), is((Object) instant));
+        }
+    }
+
+    private static Date dateOf(final int year, final int month, final int day, final int hour, final int minute) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTime();
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Collections;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExcelSettingsTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void spill_thresholds_default() throws Exception {
+        final ExcelSettings settings = ExcelSettings.defaults();
+        assertThat(settings.getImportSharedStringsSpillThreshold(), is(16L * 1024 * 1024));
+        assertThat(settings.getImportReplaySpillThreshold(), is(64L * 1024 * 1024));
+    }
+
+    @Test
+    public void spill_thresholds_beyond_an_int() throws Exception {
+        final ExcelSettings settings = new ExcelSettings(ImmutableMap.of(
+                ExcelSettings.IMPORT_SHARED_STRINGS_SPILL_THRESHOLD, "4294967296",
+                ExcelSettings.IMPORT_REPLAY_SPILL_THRESHOLD, " 8589934592 "));
+        assertThat(settings.getImportSharedStringsSpillThreshold(), is(4294967296L));
+        assertThat(settings.getImportReplaySpillThreshold(), is(8589934592L));
+    }
+
+    @Test
+    public void never_spill() throws Exception {
+        final ExcelSettings settings = new ExcelSettings(
+                Collections.singletonMap(ExcelSettings.IMPORT_REPLAY_SPILL_THRESHOLD, "-1"));
+        assertThat(settings.getImportReplaySpillThreshold(), is(-1L));
+    }
+
+    @Test
+    public void invalid_spill_threshold() throws Exception {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage(containsString(ExcelSettings.IMPORT_SHARED_STRINGS_SPILL_THRESHOLD));
+
+        new ExcelSettings(Collections.singletonMap(ExcelSettings.IMPORT_SHARED_STRINGS_SPILL_THRESHOLD, "16M"));
+    }
+
+}
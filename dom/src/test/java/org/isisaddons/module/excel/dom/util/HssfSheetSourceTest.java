@@ -0,0 +1,522 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.usermodel.HSSFClientAnchor;
+import org.apache.poi.hssf.usermodel.HSSFFormulaEvaluator;
+import org.apache.poi.hssf.usermodel.HSSFPatriarch;
+import org.apache.poi.hssf.usermodel.HSSFRichTextString;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.ErrorConstants;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the cells and comments read by {@link HssfSheetSource} with those of the same <tt>.xls</tt> workbook
+ * loaded into an {@link HSSFWorkbook}.
+ */
+public class HssfSheetSourceTest {
+
+    private static final short NUMBER_SID = 0x0203;
+    private static final short RK_SID = 0x027E;
+    private static final short MULRK_SID = 0x00BD;
+    private static final short BOUNDSHEET_SID = 0x0085;
+
+    @Test
+    public void reads_values_of_each_type() throws Exception {
+
+        // given
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Sheet sheet = wb.createSheet("Items");
+        header(sheet, "Name", "Quantity", "Cost", "Complete", "Notes");
+        final Row row = sheet.createRow(2);
+        row.createCell(0).setCellValue("a & <b>");
+        row.createCell(1).setCellValue(42);
+        row.createCell(2).setCellValue(12.34);
+        row.createCell(3).setCellValue(true);
+        // (a gap at column 4)
+        row.createCell(5).setCellValue(-1234567890123.5);
+        row.createCell(6).setCellValue(1e20);
+        row.createCell(7).setCellErrorValue((byte) ErrorConstants.ERROR_DIV_0);
+        final Row last = sheet.createRow(3);
+        last.createCell(0).setCellValue("Name");
+        last.createCell(3).setCellValue(false);
+
+        // then
+        assertMatchesUserModel(bytesOf(wb), "Items");
+    }
+
+    @Test
+    public void reads_cached_results_of_formulas() throws Exception {
+
+        // given
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Sheet sheet = wb.createSheet("Items");
+        header(sheet, "Name", "Quantity", "Complete", "Cost");
+        final Row row = sheet.createRow(1);
+        // each string result is in a STRING record following the FORMULA record
+        row.createCell(0).setCellFormula("\"to\"&\"do\"");
+        row.createCell(1).setCellFormula("6*7");
+        row.createCell(2).setCellFormula("1<2");
+        row.createCell(3).setCellFormula("1/0");
+        row.createCell(4).setCellFormula("UPPER(\"item\")");
+        HSSFFormulaEvaluator.evaluateAllFormulaCells(wb);
+
+        // when
+        final byte[] xls = bytesOf(wb);
+        try (HssfSheetSource source = open(xls, "Items")) {
+            final List<SheetCell> cells = read(source).get(1).getCells();
+
+            // then
+            assertThat(text(source, cells.get(0)), is("todo"));
+            assertThat(cells.get(1).getValue(), is("42"));
+            assertThat(cells.get(2).getValue(), is("1"));
+            assertThat(cells.get(3).getValue(), is("#DIV/0!"));
+            assertThat(text(source, cells.get(4)), is("ITEM"));
+        }
+        assertMatchesUserModel(xls, "Items");
+    }
+
+    @Test
+    public void reads_dates_in_1900_date_system() throws Exception {
+        assertReadsDates(false);
+    }
+
+    @Test
+    public void reads_dates_in_1904_date_system() throws Exception {
+        assertReadsDates(true);
+    }
+
+    private static void assertReadsDates(final boolean date1904) throws Exception {
+
+        // given
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Sheet sheet = wb.createSheet("Items");
+        header(sheet, "Due By");
+        final double[] serials = { 1, 59, 61, 1462, 41999, 42000.75 };
+        for (int i = 0; i < serials.length; i++) {
+            sheet.createRow(i + 1).createCell(0).setCellValue(serials[i]);
+        }
+
+        // when
+        final byte[] xls = date1904 ? withDate1904(bytesOf(wb)) : bytesOf(wb);
+        final HSSFWorkbook userModel = new HSSFWorkbook(new ByteArrayInputStream(xls));
+        try (HssfSheetSource source = open(xls, "Items")) {
+            final List<SheetRow> rows = read(source);
+
+            // then
+            assertThat(source.isDate1904(), is(date1904));
+            for (int i = 0; i < serials.length; i++) {
+                final double serial = Double.parseDouble(rows.get(i + 1).getCells().get(0).getValue());
+                final Cell cell = userModel.getSheet("Items").getRow(i + 1).getCell(0);
+                assertThat(ExcelDates.fromSerial(serial, source.isDate1904(), LocalDate.class),
+                        is((Object) new LocalDate(cell.getDateCellValue())));
+            }
+        }
+        assertMatchesUserModel(xls, "Items");
+    }
+
+    @Test
+    public void reads_comments_of_selected_sheet() throws Exception {
+
+        // given
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final HSSFSheet other = wb.createSheet("Other");
+        header(other, "Name");
+        comment(other, other.getRow(0).getCell(0), "not this one");
+        final HSSFSheet sheet = wb.createSheet("Items");
+        header(sheet, "Name", "Owner", "Depends On");
+        for (int rowNum = 1; rowNum <= 3; rowNum++) {
+            final Row row = sheet.createRow(rowNum);
+            row.createCell(0).setCellValue("item " + rowNum);
+            comment(sheet, row.createCell(1), "USR:L_" + rowNum);
+        }
+        // a comment on a blank cell
+        comment(sheet, sheet.getRow(2).createCell(2), "TODO:L_1");
+
+        // when
+        final byte[] xls = bytesOf(wb);
+        try (HssfSheetSource source = open(xls, "Items")) {
+
+            // then
+            final SheetComments comments = source.getComments();
+            assertThat(comments.size(), is(4));
+            assertThat(comments.getComment(2, 1), is("USR:L_2"));
+            assertThat(comments.getComment(2, 2), is("TODO:L_1"));
+            assertThat(comments.getComment(0, 0), is(nullValue()));
+        }
+        assertMatchesUserModel(xls, "Items");
+        assertMatchesUserModel(xls, "Other");
+    }
+
+    @Test
+    public void reads_rk_and_mulrk_records() throws Exception {
+
+        // given
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        final Sheet sheet = wb.createSheet("Items");
+        header(sheet, "A", "B", "C", "D", "E", "F");
+        final Row row = sheet.createRow(1);
+        row.createCell(0).setCellValue(1);
+        row.createCell(1).setCellValue(-2);
+        row.createCell(2).setCellValue(12.5);
+        row.createCell(3).setCellValue(0.1);
+        row.createCell(4).setCellValue("text");
+        row.createCell(5).setCellValue(536870911);
+        final Row next = sheet.createRow(2);
+        next.createCell(1).setCellValue(3.25);
+
+        // as Excel itself would write them (POI always writes NUMBER records)
+        final byte[] xls = withRkRecords(bytesOf(wb));
+        assertThat(countRecords(xls, MULRK_SID), is(1));
+        assertThat(countRecords(xls, RK_SID), is(2));
+
+        // when
+        try (HssfSheetSource source = open(xls, "Items")) {
+            final List<SheetCell> cells = read(source).get(1).getCells();
+
+            // then
+            assertThat(cells.get(0).getValue(), is("1"));
+            assertThat(cells.get(1).getValue(), is("-2"));
+            assertThat(cells.get(2).getValue(), is("12.5"));
+            assertThat(cells.get(3).getValue(), is("0.1"));
+            assertThat(cells.get(5).getValue(), is("536870911"));
+        }
+        assertMatchesUserModel(xls, "Items");
+    }
+
+    @Test
+    public void looks_up_sheet_by_name() throws Exception {
+
+        // given
+        final byte[] xls = bytesOf(threeSheets());
+
+        // when
+        try (HssfSheetSource source = open(xls, "second")) {
+
+            // then
+            assertThat(source.getSheetName(), is("Second"));
+            assertThat(text(source, read(source).get(1).getCells().get(0)), is("in Second"));
+        }
+        assertMatchesUserModel(xls, "First");
+        assertMatchesUserModel(xls, "Second");
+        assertMatchesUserModel(xls, "Third");
+    }
+
+    @Test
+    public void looks_up_sheet_whose_substream_is_not_in_tab_order() throws Exception {
+
+        // given the sheets' BOUNDSHEET records (and so tabs) in a different order to their substreams (which the user
+        // model, matching the sheets to their substreams by position rather than by offset, does not read correctly)
+        final byte[] xls = withFirstBoundSheetsSwapped(bytesOf(threeSheets()));
+
+        // when
+        try (HssfSheetSource source = HssfSheetSource.open(xls, Collections.<String>emptyList(), ExcelServiceImpl.SheetLookupPolicy.FIRST)) {
+
+            // then
+            assertThat(source.getSheetName(), is("Second"));
+            assertThat(text(source, read(source).get(1).getCells().get(0)), is("in Second"));
+        }
+        for (final String sheetName : new String[] { "First", "Second", "Third" }) {
+            try (HssfSheetSource source = open(xls, sheetName)) {
+                assertThat(text(source, read(source).get(1).getCells().get(0)), is("in " + sheetName));
+                assertThat(source.getComments().getComment(1, 0), is("comment in " + sheetName));
+            }
+        }
+    }
+
+    // //////////////////////////////////////
+
+    private static HSSFWorkbook threeSheets() {
+        final HSSFWorkbook wb = new HSSFWorkbook();
+        for (final String sheetName : new String[] { "First", "Second", "Third" }) {
+            final HSSFSheet sheet = wb.createSheet(sheetName);
+            header(sheet, "Name");
+            sheet.createRow(1).createCell(0).setCellValue("in " + sheetName);
+            comment(sheet, sheet.getRow(1).getCell(0), "comment in " + sheetName);
+        }
+        return wb;
+    }
+
+    /**
+     * Asserts that every non-blank cell (and every comment) of the sheet, as loaded by the user model, is read
+     * identically by {@link HssfSheetSource}.
+     */
+    private static void assertMatchesUserModel(final byte[] xls, final String sheetName) throws Exception {
+        final HSSFWorkbook wb = new HSSFWorkbook(new ByteArrayInputStream(xls));
+        final Sheet sheet = wb.getSheet(sheetName);
+        try (HssfSheetSource source = open(xls, sheetName)) {
+            final Iterator<SheetRow> sheetRows = read(source).iterator();
+            int numComments = 0;
+            for (final Row row : sheet) {
+                final List<Cell> cells = Lists.newArrayList();
+                for (final Cell cell : row) {
+                    if (cell.getCellType() != Cell.CELL_TYPE_BLANK) {
+                        cells.add(cell);
+                    }
+                    final Comment comment = cell.getCellComment();
+                    if (comment != null) {
+                        numComments++;
+                        assertThat(source.getComments().getComment(row.getRowNum(), cell.getColumnIndex()),
+                                is(comment.getString().getString()));
+                    }
+                }
+                if (cells.isEmpty()) {
+                    continue;
+                }
+                final SheetRow sheetRow = sheetRows.next();
+                assertThat(sheetRow.getRowNum(), is(row.getRowNum()));
+                assertThat(sheetRow.getCells().size(), is(cells.size()));
+                for (int i = 0; i < cells.size(); i++) {
+                    assertCellMatches(source, cells.get(i), sheetRow.getCells().get(i));
+                }
+            }
+            assertThat(sheetRows.hasNext(), is(false));
+            assertThat(source.getComments().size(), is(numComments));
+        }
+    }
+
+    private static void assertCellMatches(final HssfSheetSource source, final Cell cell, final SheetCell sheetCell) {
+        final int cellType = cell.getCellType() == Cell.CELL_TYPE_FORMULA ? cell.getCachedFormulaResultType() : cell.getCellType();
+        assertThat(sheetCell.getColumnIndex(), is(cell.getColumnIndex()));
+        assertThat(sheetCell.getCellType(), is(cellType));
+        switch (cellType) {
+        case Cell.CELL_TYPE_NUMERIC:
+            assertThat(Double.parseDouble(sheetCell.getValue()), is(cell.getNumericCellValue()));
+            break;
+        case Cell.CELL_TYPE_STRING:
+            assertThat(text(source, sheetCell), is(cell.getStringCellValue()));
+            break;
+        case Cell.CELL_TYPE_BOOLEAN:
+            assertThat(sheetCell.getValue(), is(cell.getBooleanCellValue() ? "1" : "0"));
+            break;
+        case Cell.CELL_TYPE_ERROR:
+            assertThat(sheetCell.getValue(), is(ErrorConstants.getText(cell.getErrorCellValue())));
+            break;
+        default:
+            throw new AssertionError("Unexpected cell type " + cellType);
+        }
+    }
+
+    private static void header(final Sheet sheet, final String... names) {
+        final Row row = sheet.createRow(0);
+        for (int i = 0; i < names.length; i++) {
+            row.createCell(i).setCellValue(names[i]);
+        }
+    }
+
+    private static void comment(final HSSFSheet sheet, final Cell cell, final String text) {
+        HSSFPatriarch patriarch = sheet.getDrawingPatriarch();
+        if (patriarch == null) {
+            patriarch = sheet.createDrawingPatriarch();
+        }
+        final int col = cell.getColumnIndex();
+        final int row = cell.getRowIndex();
+        final Comment comment = patriarch.createCellComment(new HSSFClientAnchor(0, 0, 0, 0, (short) col, row, (short) (col + 2), row + 3));
+        comment.setString(new HSSFRichTextString(text));
+        cell.setCellComment(comment);
+    }
+
+    private static byte[] bytesOf(final HSSFWorkbook wb) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+        return baos.toByteArray();
+    }
+
+    private static HssfSheetSource open(final byte[] xls, final String sheetName) throws IOException {
+        return HssfSheetSource.open(xls, Collections.singletonList(sheetName), ExcelServiceImpl.SheetLookupPolicy.BY_NAME);
+    }
+
+    private static List<SheetRow> read(final HssfSheetSource source) throws IOException, SAXException {
+        final List<SheetRow> rows = Lists.newArrayList();
+        source.read(new SheetRowReader.RowHandler() {
+            @Override
+            public void onRow(final SheetRow row) {
+                rows.add(row);
+            }
+        });
+        return rows;
+    }
+
+    private static String text(final HssfSheetSource source, final SheetCell cell) {
+        assertThat(cell.getCellType(), is(Cell.CELL_TYPE_STRING));
+        return cell.getSharedStringIndex() >= 0 ? source.getSharedString(cell.getSharedStringIndex()) : cell.getValue();
+    }
+
+    // //////////////////////////////////////
+    // rewriting the records of the workbook stream
+
+    /**
+     * Replaces each run of NUMBER records (in consecutive columns of a row) that can be held as RK values with a
+     * MULRK record, or a single RK record.  Only valid for the last sheet, as the substreams of any sheets after
+     * it would move.
+     */
+    private static byte[] withRkRecords(final byte[] xls) throws IOException {
+        final List<ByteBuffer> records = recordsOf(xls);
+        final List<ByteBuffer> rewritten = Lists.newArrayList();
+        for (int i = 0; i < records.size(); ) {
+            int j = i;
+            while (j < records.size() && isRkNumber(records.get(j))
+                    && (j == i || (rowOf(records.get(j)) == rowOf(records.get(i)) && colOf(records.get(j)) == colOf(records.get(i)) + j - i))) {
+                j++;
+            }
+            if (j - i == 0) {
+                rewritten.add(records.get(i++));
+            } else if (j - i == 1) {
+                final ByteBuffer number = records.get(i++);
+                rewritten.add(record(RK_SID, 10)
+                        .putShort((short) rowOf(number)).putShort((short) colOf(number)).putShort(number.getShort(8))
+                        .putInt(rkOf(number.getDouble(10))));
+            } else {
+                final ByteBuffer mulRk = record(MULRK_SID, 6 + 6 * (j - i));
+                mulRk.putShort((short) rowOf(records.get(i))).putShort((short) colOf(records.get(i)));
+                for (int k = i; k < j; k++) {
+                    mulRk.putShort(records.get(k).getShort(8)).putInt(rkOf(records.get(k).getDouble(10)));
+                }
+                mulRk.putShort((short) colOf(records.get(j - 1)));
+                rewritten.add(mulRk);
+                i = j;
+            }
+        }
+        return xlsOf(rewritten);
+    }
+
+    /**
+     * Sets the DATEMODE record, as the user model has no API for the 1904 date system.
+     */
+    private static byte[] withDate1904(final byte[] xls) throws IOException {
+        final List<ByteBuffer> records = recordsOf(xls);
+        for (final ByteBuffer record : records) {
+            if (record.getShort(0) == DateWindow1904Record.sid) {
+                record.putShort(4, (short) 1);
+            }
+        }
+        return xlsOf(records);
+    }
+
+    private static byte[] withFirstBoundSheetsSwapped(final byte[] xls) throws IOException {
+        final List<ByteBuffer> records = recordsOf(xls);
+        int first = -1;
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i).getShort(0) == BOUNDSHEET_SID) {
+                if (first == -1) {
+                    first = i;
+                } else {
+                    Collections.swap(records, first, i);
+                    break;
+                }
+            }
+        }
+        return xlsOf(records);
+    }
+
+    private static int countRecords(final byte[] xls, final short sid) throws IOException {
+        int count = 0;
+        for (final ByteBuffer record : recordsOf(xls)) {
+            if (record.getShort(0) == sid) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isRkNumber(final ByteBuffer record) {
+        return record.getShort(0) == NUMBER_SID && rkOf(record.getDouble(10)) != 0;
+    }
+
+    private static int rowOf(final ByteBuffer record) {
+        return record.getShort(4) & 0xFFFF;
+    }
+
+    private static int colOf(final ByteBuffer record) {
+        return record.getShort(6) & 0xFFFF;
+    }
+
+    /**
+     * The value encoded as a 30-bit integer (possibly multiplied by 100), else <tt>0</tt> if it cannot be.
+     */
+    private static int rkOf(final double value) {
+        for (final int multiplier : new int[] { 1, 100 }) {
+            final double scaled = value * multiplier;
+            if (scaled == Math.rint(scaled) && Math.abs(scaled) < (1 << 29) && scaled / multiplier == value) {
+                return ((int) scaled << 2) | 0x02 | (multiplier == 100 ? 0x01 : 0x00);
+            }
+        }
+        return 0;
+    }
+
+    private static ByteBuffer record(final short sid, final int dataSize) {
+        return ByteBuffer.allocate(4 + dataSize).order(ByteOrder.LITTLE_ENDIAN).putShort(sid).putShort((short) dataSize);
+    }
+
+    /**
+     * The records of the workbook stream, each as its header (sid and size) and data.
+     */
+    private static List<ByteBuffer> recordsOf(final byte[] xls) throws IOException {
+        final byte[] stream;
+        try (InputStream is = new POIFSFileSystem(new ByteArrayInputStream(xls)).createDocumentInputStream("Workbook")) {
+            stream = ByteStreams.toByteArray(is);
+        }
+        final List<ByteBuffer> records = Lists.newArrayList();
+        final ByteBuffer buf = ByteBuffer.wrap(stream).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.remaining() >= 4) {
+            final int size = 4 + (buf.getShort(buf.position() + 2) & 0xFFFF);
+            final byte[] record = new byte[size];
+            buf.get(record);
+            records.add(ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        return records;
+    }
+
+    private static byte[] xlsOf(final List<ByteBuffer> records) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (final ByteBuffer record : records) {
+            stream.write(record.array());
+        }
+        final POIFSFileSystem fs = new POIFSFileSystem();
+        fs.createDocument(new ByteArrayInputStream(stream.toByteArray()), "Workbook");
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        fs.writeFilesystem(baos);
+        return baos.toByteArray();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.jmock.Expectations;
+import org.jmock.auto.Mock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+import org.apache.isis.core.unittestsupport.jmocking.JUnitRuleMockery2;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ImportPipelineTest {
+
+    private static final int NUM_ROWS = 20000;
+
+    @Rule
+    public JUnitRuleMockery2 context = JUnitRuleMockery2.createFor(JUnitRuleMockery2.Mode.INTERFACES_AND_CLASSES);
+
+    @Mock
+    private OneToOneAssociation mockAssociation;
+
+    @Mock
+    private ObjectSpecification mockSpecification;
+
+    private ImportPipeline pipeline;
+    private RowDecoder rowDecoder;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockAssociation).getSpecification();
+            will(returnValue(mockSpecification));
+            allowing(mockSpecification).isValue();
+            will(returnValue(true));
+        }});
+        final ExcelConverter.Property property = new ExcelConverter.Property("quantity", mockAssociation, Integer.class);
+
+        pipeline = new ImportPipeline(2);
+        rowDecoder = new RowDecoder(Collections.singletonMap("quantity", property), new CellDecoder(new RowsSource(NUM_ROWS, -1)));
+    }
+
+    @Test
+    public void delivers_every_row_in_order() throws Exception {
+
+        // given
+        final List<Integer> quantities = Lists.newArrayList();
+
+        // when
+        pipeline.run(new RowsSource(NUM_ROWS, -1), null, rowDecoder, new ImportPipeline.DecodedRowHandler() {
+            @Override
+            public void handle(final DecodedRow row) {
+                assertThat(row.getRowNum(), is(quantities.size() + 1));
+                quantities.add((Integer) row.getValue(0));
+            }
+        });
+
+        // then
+        assertThat(quantities.size(), is(NUM_ROWS));
+        assertThat(quantities.get(NUM_ROWS - 1), is(NUM_ROWS));
+        assertThat(importThreads(), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void when_handler_fails_then_rethrows_and_stops_the_worker_threads() throws Exception {
+
+        // given
+        final IllegalArgumentException handlerFailure = new IllegalArgumentException("no such item");
+
+        // when
+        try {
+            pipeline.run(new RowsSource(NUM_ROWS, -1), null, rowDecoder, new ImportPipeline.DecodedRowHandler() {
+                @Override
+                public void handle(final DecodedRow row) {
+                    throw handlerFailure;
+                }
+            });
+            fail();
+        } catch (final IllegalArgumentException ex) {
+            // then
+            assertThat(ex, is(sameInstance(handlerFailure)));
+        }
+        assertThat(importThreads(), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void when_source_fails_then_rethrows_and_stops_the_worker_threads() throws Exception {
+
+        // given
+        final List<Integer> rowNums = Lists.newArrayList();
+
+        // when
+        try {
+            pipeline.run(new RowsSource(NUM_ROWS, 1000), null, rowDecoder, new ImportPipeline.DecodedRowHandler() {
+                @Override
+                public void handle(final DecodedRow row) {
+                    rowNums.add(row.getRowNum());
+                }
+            });
+            fail();
+        } catch (final IllegalStateException ex) {
+            // then
+            assertThat(ex.getCause() instanceof IOException, is(true));
+        }
+        assertThat(rowNums.size() < 1000, is(true));
+        assertThat(importThreads(), is(Collections.<String>emptyList()));
+    }
+
+    /**
+     * The worker threads still alive, allowing each a moment to exit once its pool has terminated.
+     */
+    private static List<String> importThreads() throws InterruptedException {
+        final List<String> names = Lists.newArrayList();
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("excel-import-")) {
+                continue;
+            }
+            thread.join(1000);
+            if (thread.isAlive()) {
+                names.add(thread.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * A header row followed by <tt>numRows</tt> detail rows, each holding its row number; optionally failing just
+     * before the <tt>failAt</tt>'th row.
+     */
+    private static class RowsSource implements SheetSource {
+
+        private final int numRows;
+        private final int failAt;
+
+        RowsSource(final int numRows, final int failAt) {
+            this.numRows = numRows;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public String getSheetName() {
+            return "Sheet1";
+        }
+
+        @Override
+        public boolean isDate1904() {
+            return false;
+        }
+
+        @Override
+        public SheetComments getComments() {
+            return null;
+        }
+
+        @Override
+        public String getSharedString(final int index) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        @Override
+        public void read(final SheetRowReader.RowHandler rowHandler) throws IOException, SAXException {
+            rowHandler.onRow(StagedRowsTest.row(0, new SheetCell(0, Cell.CELL_TYPE_STRING, "Quantity")));
+            for (int rowNum = 1; rowNum <= numRows; rowNum++) {
+                if (rowNum == failAt) {
+                    throw new IOException("truncated");
+                }
+                rowHandler.onRow(StagedRowsTest.row(rowNum, StagedRowsTest.numeric(0, Integer.toString(rowNum))));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
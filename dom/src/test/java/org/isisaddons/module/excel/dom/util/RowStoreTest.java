@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RowStoreTest {
+
+    private static final int NUM_CHUNKS = 20;
+
+    @Test
+    public void held_on_heap_below_threshold() throws Exception {
+        try (RowStore store = filled(new RowStore(Long.MAX_VALUE))) {
+            assertThat(store.isSpilled(), is(false));
+            assertChunks(store);
+        }
+    }
+
+    @Test
+    public void never_spilled() throws Exception {
+        try (RowStore store = filled(new RowStore(-1))) {
+            assertThat(store.isSpilled(), is(false));
+            assertChunks(store);
+        }
+    }
+
+    @Test
+    public void spilled_from_the_start() throws Exception {
+        try (RowStore store = filled(new RowStore(0))) {
+            assertThat(store.isSpilled(), is(true));
+            assertChunks(store);
+        }
+    }
+
+    @Test
+    public void spilled_part_way_through() throws Exception {
+        // (each chunk is several kilobytes)
+        try (RowStore store = filled(new RowStore(16 * 1024))) {
+            assertThat(store.isSpilled(), is(true));
+            assertChunks(store);
+        }
+    }
+
+    @Test
+    public void iterated_repeatedly_and_concurrently() throws Exception {
+        try (final RowStore store = filled(new RowStore(0))) {
+            assertChunks(store);
+
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                final Callable<Void> iteration = new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        assertChunks(store);
+                        return null;
+                    }
+                };
+                final Future<?>[] futures = new Future<?>[8];
+                for (int i = 0; i < futures.length; i++) {
+                    futures[i] = executor.submit(iteration);
+                }
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void not_finished() throws Exception {
+        try (RowStore store = new RowStore(-1)) {
+            store.add(chunk(0));
+            store.iterator();
+        }
+    }
+
+    private static RowStore filled(final RowStore store) throws Exception {
+        for (int c = 0; c < NUM_CHUNKS; c++) {
+            store.add(chunk(c));
+        }
+        store.finish();
+        return store;
+    }
+
+    /**
+     * A full chunk, each row with a number and an inline string identifying it.
+     */
+    private static StagedRows chunk(final int c) {
+        final StagedRows chunk = new StagedRows();
+        while (!chunk.isFull()) {
+            final int rowNum = c * StagedRows.CAPACITY + chunk.size();
+            chunk.add(StagedRowsTest.row(rowNum,
+                    StagedRowsTest.numeric(0, Integer.toString(rowNum)),
+                    new SheetCell(1, Cell.CELL_TYPE_STRING, "row " + rowNum)));
+        }
+        return chunk;
+    }
+
+    private static void assertChunks(final RowStore store) {
+        final Iterator<StagedRows> iterator = store.iterator();
+        for (int c = 0; c < NUM_CHUNKS; c++) {
+            assertThat(iterator.hasNext(), is(true));
+            final StagedRows chunk = iterator.next();
+            assertThat(chunk.size(), is(StagedRows.CAPACITY));
+            for (int r = 0; r < chunk.size(); r++) {
+                final int rowNum = c * StagedRows.CAPACITY + r;
+                assertThat(chunk.getRowNum(r), is(rowNum));
+                assertThat(chunk.getLong(r, 0), is((long) rowNum));
+                assertThat(chunk.getText(r, 1), is("row " + rowNum));
+            }
+        }
+        assertThat(iterator.hasNext(), is(false));
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SharedStringsTest {
+
+    private static final List<String> STRINGS = Arrays.asList("first", "", "café €", "a longer string, with some ,punctuation;", "日本語", "last");
+
+    @Test
+    public void held_on_heap_below_threshold() throws Exception {
+        assertStrings(new SharedStrings(1000));
+    }
+
+    @Test
+    public void never_spilled() throws Exception {
+        assertStrings(new SharedStrings(-1));
+    }
+
+    @Test
+    public void spilled_from_the_start() throws Exception {
+        assertStrings(new SharedStrings(0));
+    }
+
+    @Test
+    public void spilled_part_way_through() throws Exception {
+        // exceeded by the fourth string
+        assertStrings(new SharedStrings(20));
+    }
+
+    @Test
+    public void spilled_with_many_strings() throws Exception {
+        try (SharedStrings sharedStrings = new SharedStrings(100)) {
+            for (int i = 0; i < 10000; i++) {
+                sharedStrings.add("string " + i);
+            }
+            sharedStrings.finish();
+
+            for (int i = 0; i < 10000; i++) {
+                assertThat(sharedStrings.get(i), is("string " + i));
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void no_such_string_once_spilled() throws Exception {
+        try (SharedStrings sharedStrings = new SharedStrings(0)) {
+            sharedStrings.add("only");
+            sharedStrings.finish();
+            sharedStrings.get(1);
+        }
+    }
+
+    private static void assertStrings(final SharedStrings sharedStrings) throws Exception {
+        try (SharedStrings ss = sharedStrings) {
+            for (final String string : STRINGS) {
+                ss.add(string);
+            }
+            ss.finish();
+
+            // in any order
+            for (int i = STRINGS.size() - 1; i >= 0; i--) {
+                assertThat(ss.get(i), is(STRINGS.get(i)));
+            }
+        }
+    }
+
+}
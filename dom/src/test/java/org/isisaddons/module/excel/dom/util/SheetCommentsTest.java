@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SheetCommentsTest {
+
+    @Test
+    public void none() throws Exception {
+        assertThat(SheetComments.NONE.size(), is(0));
+        assertThat(SheetComments.NONE.getComment(0, 0), is(nullValue()));
+    }
+
+    @Test
+    public void put_and_get() throws Exception {
+
+        // given
+        final SheetComments comments = new SheetComments();
+
+        // when
+        comments.put(1, 2, "B");
+        comments.put(2, 1, "C");
+
+        // then
+        assertThat(comments.size(), is(2));
+        assertThat(comments.getComment(1, 2), is("B"));
+        assertThat(comments.getComment(2, 1), is("C"));
+        assertThat(comments.getComment(1, 1), is(nullValue()));
+        assertThat(comments.getComment(2, 2), is(nullValue()));
+    }
+
+    @Test
+    public void put_again_replaces() throws Exception {
+
+        // given
+        final SheetComments comments = new SheetComments();
+        comments.put(3, 4, "first");
+
+        // when
+        comments.put(3, 4, "second");
+
+        // then
+        assertThat(comments.size(), is(1));
+        assertThat(comments.getComment(3, 4), is("second"));
+    }
+
+    @Test
+    public void extremes_of_the_sheet() throws Exception {
+
+        // given (the last row and column of an .xlsx sheet)
+        final SheetComments comments = new SheetComments();
+        comments.put(1048575, 16383, "XFD1048576");
+        comments.put(0, 0, "A1");
+
+        // then
+        assertThat(comments.getComment(1048575, 16383), is("XFD1048576"));
+        assertThat(comments.getComment(0, 0), is("A1"));
+        assertThat(comments.getComment(1048575, 0), is(nullValue()));
+        assertThat(comments.getComment(0, 16383), is(nullValue()));
+        assertThat(comments.getComment(1048576, 0), is(nullValue()));
+    }
+
+    @Test
+    public void grows_as_comments_are_put() throws Exception {
+
+        // given (a block of cells, so that many keys differ only in their row or column)
+        final SheetComments comments = new SheetComments();
+        for (int rowNum = 0; rowNum < 100; rowNum++) {
+            for (int columnIndex = 0; columnIndex < 20; columnIndex++) {
+                comments.put(rowNum, columnIndex, rowNum + ":" + columnIndex);
+            }
+        }
+
+        // then
+        assertThat(comments.size(), is(2000));
+        for (int rowNum = 0; rowNum < 100; rowNum++) {
+            for (int columnIndex = 0; columnIndex < 20; columnIndex++) {
+                assertThat(comments.getComment(rowNum, columnIndex), is(rowNum + ":" + columnIndex));
+            }
+            assertThat(comments.getComment(rowNum, 20), is(nullValue()));
+        }
+        assertThat(comments.getComment(100, 0), is(nullValue()));
+    }
+
+}
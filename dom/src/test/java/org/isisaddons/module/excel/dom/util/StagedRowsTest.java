@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StagedRowsTest {
+
+    private static final String LONG_TEXT = Strings.repeat("é", 40000);
+
+    @Test
+    public void stages_each_kind_of_cell() throws Exception {
+
+        // when
+        final StagedRows rows = staged();
+
+        // then
+        assertStaged(rows);
+    }
+
+    @Test
+    public void round_trips_through_binary_form() throws Exception {
+
+        // given
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        staged().writeTo(new DataOutputStream(baos));
+
+        // when
+        final StagedRows rows = StagedRows.readFrom(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+        // then
+        assertStaged(rows);
+    }
+
+    @Test
+    public void decimals_as_doubles_are_exact() throws Exception {
+
+        // given
+        final String[] raws = {"0.1", "12.50", "-3.14159", "123456789.012345", "0.00000000000001"};
+        final StagedRows rows = new StagedRows();
+        for (final String raw : raws) {
+            rows.add(row(rows.size(), numeric(0, raw)));
+        }
+
+        // then
+        for (int r = 0; r < raws.length; r++) {
+            assertThat(raws[r], rows.getKind(r, 0), is(StagedRows.DECIMAL));
+            assertThat(raws[r], rows.getDouble(r, 0), is(Double.parseDouble(raws[r])));
+        }
+    }
+
+    @Test
+    public void numbers_not_held_exactly_are_kept_as_text() throws Exception {
+
+        // given (an exponent, too many digits, negative zero)
+        final String[] raws = {"1.5E10", "1234567890123456789", "0.1234567890123456", "-0", "-0.0"};
+        final StagedRows rows = new StagedRows();
+        for (final String raw : raws) {
+            rows.add(row(rows.size(), numeric(0, raw)));
+        }
+
+        // then
+        for (int r = 0; r < raws.length; r++) {
+            assertThat(raws[r], rows.getKind(r, 0), is(StagedRows.NUMERIC_TEXT));
+            assertThat(rows.getText(r, 0), is(raws[r]));
+        }
+    }
+
+    @Test
+    public void stager_passes_on_full_and_last_chunks() throws Exception {
+
+        // given
+        final List<StagedRows> chunks = Lists.newArrayList();
+        final StagedRows.Stager stager = new StagedRows.Stager() {
+            @Override
+            void onStaged(final StagedRows chunk) {
+                chunks.add(chunk);
+            }
+        };
+
+        // when
+        final int numRows = StagedRows.CAPACITY * 2 + 10;
+        for (int i = 0; i < numRows; i++) {
+            stager.onRow(row(i, numeric(0, Integer.toString(i))));
+        }
+        stager.flush();
+
+        // then
+        assertThat(chunks.size(), is(3));
+        assertThat(chunks.get(0).isFull(), is(true));
+        assertThat(chunks.get(2).size(), is(10));
+        assertThat(chunks.get(2).getRowNum(9), is(numRows - 1));
+        assertThat(chunks.get(2).getLong(9, 0), is((long) numRows - 1));
+    }
+
+    /**
+     * Three rows: every kind of cell (column 1 left empty), a sparse row, and a row with no cells at all.
+     */
+    private static StagedRows staged() {
+        final StagedRows rows = new StagedRows();
+        rows.add(row(0,
+                numeric(0, "42"),
+                numeric(2, "-12.50"),
+                numeric(3, "1.5E-5"),
+                new SheetCell(4, Cell.CELL_TYPE_STRING, null, 7),
+                new SheetCell(5, Cell.CELL_TYPE_STRING, "inline"),
+                new SheetCell(6, Cell.CELL_TYPE_BOOLEAN, "1"),
+                new SheetCell(7, Cell.CELL_TYPE_ERROR, "#DIV/0!"),
+                new SheetCell(8, Cell.CELL_TYPE_BLANK, null)));
+        rows.add(row(3,
+                new SheetCell(6, Cell.CELL_TYPE_BOOLEAN, "0"),
+                new SheetCell(9, Cell.CELL_TYPE_STRING, LONG_TEXT)));
+        rows.add(row(4));
+        return rows;
+    }
+
+    private static void assertStaged(final StagedRows rows) {
+        assertThat(rows.size(), is(3));
+        assertThat(rows.getNumColumns(), is(10));
+        assertThat(rows.getRowNum(0), is(0));
+        assertThat(rows.getRowNum(1), is(3));
+        assertThat(rows.getRowNum(2), is(4));
+
+        assertThat(rows.getKind(0, 0), is(StagedRows.LONG));
+        assertThat(rows.getLong(0, 0), is(42L));
+        assertThat(rows.getKind(0, 1), is(StagedRows.BLANK));
+        assertThat(rows.getKind(0, 2), is(StagedRows.DECIMAL));
+        assertThat(rows.getLong(0, 2), is(-1250L));
+        assertThat(rows.getScale(0, 2), is(2));
+        assertThat(rows.getDouble(0, 2), is(-12.5));
+        assertThat(rows.getKind(0, 3), is(StagedRows.NUMERIC_TEXT));
+        assertThat(rows.getText(0, 3), is("1.5E-5"));
+        assertThat(rows.getKind(0, 4), is(StagedRows.SHARED_STRING));
+        assertThat(rows.getSharedStringIndex(0, 4), is(7));
+        assertThat(rows.getKind(0, 5), is(StagedRows.TEXT));
+        assertThat(rows.getText(0, 5), is("inline"));
+        assertThat(rows.getKind(0, 6), is(StagedRows.BOOLEAN));
+        assertThat(rows.getBoolean(0, 6), is(true));
+        assertThat(rows.getKind(0, 7), is(StagedRows.ERROR));
+        assertThat(rows.getText(0, 7), is("#DIV/0!"));
+        assertThat(rows.getKind(0, 8), is(StagedRows.BLANK));
+        assertThat(rows.getKind(0, 9), is(StagedRows.BLANK));
+
+        assertThat(rows.getKind(1, 0), is(StagedRows.BLANK));
+        assertThat(rows.getKind(1, 6), is(StagedRows.BOOLEAN));
+        assertThat(rows.getBoolean(1, 6), is(false));
+        // (longer than writeUTF allows)
+        assertThat(rows.getText(1, 9), is(LONG_TEXT));
+
+        for (int columnIndex = 0; columnIndex < 12; columnIndex++) {
+            assertThat(rows.getKind(2, columnIndex), is(StagedRows.BLANK));
+        }
+    }
+
+    static SheetRow row(final int rowNum, final SheetCell... cells) {
+        return new SheetRow(rowNum, Arrays.asList(cells));
+    }
+
+    static SheetCell numeric(final int columnIndex, final String raw) {
+        return new SheetCell(columnIndex, Cell.CELL_TYPE_NUMERIC, raw);
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.ClientAnchor;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.CreationHelper;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Drawing;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.joda.time.LocalDate;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.xml.sax.SAXException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StaxSheetSourceTest {
+
+    private static final String MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String PACKAGE_RELS = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    private static final Date DUE_BY = new LocalDate(2014, 12, 31).toDate();
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void reads_workbook_written_by_poi() throws Exception {
+
+        // given
+        final byte[] bytes = poiWorkbook(false);
+
+        // when
+        try (StaxSheetSource source = open(bytes, "Items", -1)) {
+            final List<SheetRow> rows = read(source);
+
+            // then
+            assertThat(source.getSheetName(), is("Items"));
+            assertThat(source.isDate1904(), is(false));
+            assertThat(rows.size(), is(2));
+
+            final SheetRow header = rows.get(0);
+            assertThat(header.getRowNum(), is(0));
+            assertThat(text(source, header.getCells().get(0)), is("Name"));
+
+            final SheetRow row = rows.get(1);
+            assertThat(row.getRowNum(), is(2));
+            final List<SheetCell> cells = row.getCells();
+            assertThat(cells.size(), is(4));
+            assertThat(text(source, cells.get(0)), is("a & <b>"));
+
+            assertThat(cells.get(1).getColumnIndex(), is(1));
+            assertThat(cells.get(1).getCellType(), is(Cell.CELL_TYPE_NUMERIC));
+            assertThat(Double.parseDouble(cells.get(1).getValue()), is(12.5));
+
+            assertThat(cells.get(2).getCellType(), is(Cell.CELL_TYPE_BOOLEAN));
+            assertThat(cells.get(2).getValue(), is("1"));
+
+            // (the gap at column 3 is skipped)
+            assertThat(cells.get(3).getColumnIndex(), is(4));
+            assertThat(Double.parseDouble(cells.get(3).getValue()), is(DateUtil.getExcelDate(DUE_BY, false)));
+        }
+    }
+
+    @Test
+    public void reads_comments() throws Exception {
+
+        // when
+        try (StaxSheetSource source = open(poiWorkbook(false), "Items", -1)) {
+
+            // then
+            final SheetComments comments = source.getComments();
+            assertThat(comments.size(), is(1));
+            assertThat(comments.getComment(2, 0), is("bookmark:1"));
+            assertThat(comments.getComment(0, 2), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void reads_date_system() throws Exception {
+
+        // when
+        try (StaxSheetSource source = open(poiWorkbook(true), "Items", -1)) {
+
+            // then
+            assertThat(source.isDate1904(), is(true));
+        }
+    }
+
+    @Test
+    public void reads_spilled_shared_strings() throws Exception {
+
+        // when
+        try (StaxSheetSource source = open(poiWorkbook(false), "Items", 0)) {
+            final List<SheetRow> rows = read(source);
+
+            // then
+            assertThat(text(source, rows.get(0).getCells().get(0)), is("Name"));
+            assertThat(text(source, rows.get(1).getCells().get(0)), is("a & <b>"));
+        }
+    }
+
+    @Test
+    public void looks_up_sheet_by_name_ignoring_case() throws Exception {
+
+        // when
+        try (StaxSheetSource source = open(poiWorkbook(false), "OTHER", -1)) {
+            final List<SheetRow> rows = read(source);
+
+            // then
+            assertThat(source.getSheetName(), is("Other"));
+            assertThat(source.getComments().size(), is(0));
+            assertThat(rows.size(), is(1));
+            assertThat(text(source, rows.get(0).getCells().get(0)), is("other"));
+        }
+    }
+
+    @Test
+    public void missing_sheet() throws Exception {
+
+        // then
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage(containsString("Could not locate sheet"));
+
+        // when
+        open(poiWorkbook(false), "Missing", -1);
+    }
+
+    @Test
+    public void reads_inline_strings_and_relative_targets() throws Exception {
+
+        // given a minimal package, with a workbook part outside of xl/, rows and cells without references, and rich
+        // text with a phonetic run
+        final byte[] bytes = zipOf(
+                "_rels/.rels", rels("rId1", "officeDocument", "/book/workbook.xml"),
+                "book/workbook.xml",
+                        "<workbook xmlns=\"" + MAIN + "\" xmlns:r=\"" + RELS + "\">" +
+                        "<workbookPr date1904=\"true\"/>" +
+                        "<sheets><sheet name=\"Sheet1\" sheetId=\"1\" r:id=\"rId7\"/></sheets></workbook>",
+                "book/_rels/workbook.xml.rels", rels("rId7", "worksheet", "./sheets/../sheets/one.xml"),
+                "book/sheets/one.xml",
+                        "<worksheet xmlns=\"" + MAIN + "\"><sheetData>" +
+                        "<row><c t=\"inlineStr\"><is><r><t>rich </t></r><r><t>text</t></r>" +
+                        "<rPh sb=\"0\" eb=\"1\"><t>phonetic</t></rPh></is></c><c><v>42</v></c><c t=\"b\"/></row>" +
+                        "<row><c t=\"str\"><f>A1</f><v>formula</v></c></row>" +
+                        "</sheetData></worksheet>");
+
+        // when
+        try (StaxSheetSource source = open(bytes, "anything", -1, ExcelServiceImpl.SheetLookupPolicy.FIRST)) {
+            final List<SheetRow> rows = read(source);
+
+            // then
+            assertThat(source.getSheetName(), is("Sheet1"));
+            assertThat(source.isDate1904(), is(true));
+            assertThat(rows.size(), is(2));
+
+            final List<SheetCell> first = rows.get(0).getCells();
+            assertThat(rows.get(0).getRowNum(), is(0));
+            assertThat(first.get(0).getValue(), is("rich text"));
+            assertThat(first.get(0).getSharedStringIndex(), is(-1));
+            assertThat(first.get(1).getColumnIndex(), is(1));
+            assertThat(first.get(1).getValue(), is("42"));
+            assertThat(first.get(2).getCellType(), is(Cell.CELL_TYPE_BLANK));
+
+            assertThat(rows.get(1).getRowNum(), is(1));
+            assertThat(rows.get(1).getCells().get(0).getValue(), is("formula"));
+        }
+    }
+
+    @Test
+    public void not_a_workbook() throws Exception {
+
+        // given
+        final byte[] bytes = zipOf("_rels/.rels", "<Relationships xmlns=\"" + PACKAGE_RELS + "\"/>");
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("no workbook"));
+
+        // when
+        open(bytes, "Items", -1);
+    }
+
+    private static String rels(final String id, final String type, final String target) {
+        return "<Relationships xmlns=\"" + PACKAGE_RELS + "\">" +
+               "<Relationship Id=\"" + id + "\" Type=\"" + RELS + "/" + type + "\" Target=\"" + target + "\"/>" +
+               "</Relationships>";
+    }
+
+    private static byte[] zipOf(final String... namesAndContents) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zos.putNextEntry(new ZipEntry(namesAndContents[i]));
+                zos.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * A workbook with two sheets, the second with a header, a blank row, and a row with a comment.
+     */
+    private static byte[] poiWorkbook(final boolean date1904) throws IOException {
+        final XSSFWorkbook wb = new XSSFWorkbook();
+        if (date1904) {
+            wb.getCTWorkbook().addNewWorkbookPr().setDate1904(true);
+        }
+        wb.createSheet("Other").createRow(0).createCell(0).setCellValue("other");
+
+        final Sheet sheet = wb.createSheet("Items");
+        sheet.createRow(0).createCell(0).setCellValue("Name");
+
+        final Row row = sheet.createRow(2);
+        final Cell name = row.createCell(0);
+        name.setCellValue("a & <b>");
+        row.createCell(1).setCellValue(12.5);
+        row.createCell(2).setCellValue(true);
+        row.createCell(4).setCellValue(DUE_BY);
+
+        final CreationHelper creationHelper = wb.getCreationHelper();
+        final Drawing drawing = sheet.createDrawingPatriarch();
+        final ClientAnchor anchor = creationHelper.createClientAnchor();
+        final Comment comment = drawing.createCellComment(anchor);
+        comment.setString(creationHelper.createRichTextString("bookmark:1"));
+        name.setCellComment(comment);
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+        return baos.toByteArray();
+    }
+
+    private static StaxSheetSource open(final byte[] bytes, final String sheetName, final long spillThreshold) throws IOException {
+        return open(bytes, sheetName, spillThreshold, ExcelServiceImpl.SheetLookupPolicy.BY_NAME);
+    }
+
+    private static StaxSheetSource open(
+            final byte[] bytes,
+            final String sheetName,
+            final long spillThreshold,
+            final ExcelServiceImpl.SheetLookupPolicy sheetLookupPolicy) throws IOException {
+        return StaxSheetSource.open(bytes, Collections.singletonList(sheetName), sheetLookupPolicy, spillThreshold);
+    }
+
+    private static List<SheetRow> read(final StaxSheetSource source) throws IOException, SAXException {
+        final List<SheetRow> rows = Lists.newArrayList();
+        source.read(new SheetRowReader.RowHandler() {
+            @Override
+            public void onRow(final SheetRow row) {
+                rows.add(row);
+            }
+        });
+        return rows;
+    }
+
+    private static String text(final StaxSheetSource source, final SheetCell cell) {
+        assertThat(cell.getCellType(), is(Cell.CELL_TYPE_STRING));
+        return cell.getSharedStringIndex() >= 0 ? source.getSharedString(cell.getSharedStringIndex()) : cell.getValue();
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StringTableTest {
+
+    private final StringTable table = new StringTable();
+
+    @Test
+    public void indexed_in_order_of_first_occurrence() throws Exception {
+
+        // when
+        final int milk = table.indexOf("Buy milk");
+        final int bread = table.indexOf("Buy bread");
+        final int milkAgain = table.indexOf("Buy milk");
+        final int empty = table.indexOf("");
+
+        // then
+        assertThat(milk, is(0));
+        assertThat(bread, is(1));
+        assertThat(milkAgain, is(0));
+        assertThat(empty, is(2));
+        assertThat(table.size(), is(3));
+        assertThat(table.get(0), is("Buy milk"));
+        assertThat(table.get(1), is("Buy bread"));
+        assertThat(table.get(2), is(""));
+    }
+
+    @Test
+    public void strings_with_the_same_hash_are_kept_apart() throws Exception {
+
+        // given
+        final String[] strings = { "AaAa", "AaBB", "BBAa", "BBBB" };
+        assertThat(strings[0].hashCode() == strings[3].hashCode(), is(true));
+
+        // when
+        for (final String string : strings) {
+            table.indexOf(string);
+        }
+
+        // then
+        assertThat(table.size(), is(strings.length));
+        for (int i = 0; i < strings.length; i++) {
+            assertThat(table.indexOf(strings[i]), is(i));
+            assertThat(table.get(i), is(strings[i]));
+        }
+        assertThat(table.size(), is(strings.length));
+    }
+
+    @Test
+    public void grows() throws Exception {
+
+        // given
+        final int numStrings = 100000;
+
+        // when
+        for (int i = 0; i < numStrings; i++) {
+            assertThat(table.indexOf("string " + i), is(i));
+        }
+
+        // then
+        assertThat(table.size(), is(numStrings));
+        for (int i = numStrings - 1; i >= 0; i--) {
+            assertThat(table.indexOf("string " + i), is(i));
+            assertThat(table.get(i), is("string " + i));
+        }
+        assertThat(table.size(), is(numStrings));
+    }
+
+}
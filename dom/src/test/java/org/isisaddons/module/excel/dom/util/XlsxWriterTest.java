@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class XlsxWriterTest {
+
+    enum Colour {
+        RED, GREEN
+    }
+
+    @Test
+    public void written_workbook_is_read_by_poi() throws Exception {
+
+        // when
+        final XSSFWorkbook wb = read(write(rows(3), false, false, null, 1));
+
+        // then
+        final Sheet sheet = wb.getSheet("items");
+        assertThat(sheet.getLastRowNum(), is(3));
+
+        final Row header = sheet.getRow(0);
+        assertThat(header.getCell(0).getStringCellValue(), is("Name"));
+        assertThat(header.getCell(5).getStringCellValue(), is("Notes"));
+
+        final Row row = sheet.getRow(1);
+        assertThat(row.getCell(0).getStringCellValue(), is("item 0"));
+        assertThat(row.getCell(1).getNumericCellValue(), is(0.0));
+        assertThat(row.getCell(2).getNumericCellValue(), is(12.5));
+        assertThat(row.getCell(3).getBooleanCellValue(), is(true));
+        assertThat(row.getCell(4).getStringCellValue(), is("RED"));
+        assertThat(row.getCell(5), is(nullValue()));
+        assertThat(LocalDate.fromDateFields(row.getCell(6).getDateCellValue()), is(new LocalDate(2014, 1, 1)));
+    }
+
+    @Test
+    public void strings_needing_escaping_survive() throws Exception {
+
+        // given
+        final List<Object[]> rows = Lists.newArrayList();
+        rows.add(new Object[] {"<a & b>", "\"quoted\" 'text'", " leading and trailing ", "café €"});
+
+        // when
+        final XSSFWorkbook wb = read(write(rows, false, false, null, 1));
+
+        // then
+        final Row row = wb.getSheet("items").getRow(1);
+        assertThat(row.getCell(0).getStringCellValue(), is("<a & b>"));
+        assertThat(row.getCell(1).getStringCellValue(), is("\"quoted\" 'text'"));
+        assertThat(row.getCell(2).getStringCellValue(), is(" leading and trailing "));
+        assertThat(row.getCell(3).getStringCellValue(), is("café €"));
+    }
+
+    @Test
+    public void sheet_spanning_several_deflate_blocks_is_read_by_poi() throws Exception {
+
+        // given (comfortably more than one block of sheet XML)
+        final int numRows = 5000;
+
+        // when
+        final XSSFWorkbook wb = read(write(rows(numRows), false, false, null, 1));
+
+        // then
+        assertRows(wb.getSheet("items"), numRows);
+    }
+
+    @Test
+    public void sheet_deflated_in_parallel_is_read_by_poi() throws Exception {
+
+        // given
+        final int numRows = 5000;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+
+            // when
+            final XSSFWorkbook wb = read(write(rows(numRows), false, false, executor, 4));
+
+            // then
+            assertRows(wb.getSheet("items"), numRows);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void inline_strings_are_read_by_poi() throws Exception {
+
+        // given
+        final int numRows = XlsxWriter.SAMPLE_ROWS + 100;
+
+        // when
+        final byte[] bytes = write(rows(numRows), true, false, null, 1);
+
+        // then the names (all distinct) are inlined, the colours (repeated) are not
+        final String sheetXml = entry(bytes, "xl/worksheets/sheet1.xml");
+        assertThat(sheetXml, containsString("<c r=\"A2\" t=\"inlineStr\"><is><t xml:space=\"preserve\">item 0</t></is></c>"));
+        assertThat(sheetXml, containsString("<c r=\"E2\" t=\"s\">"));
+
+        final Sheet sheet = read(bytes).getSheet("items");
+        assertRows(sheet, numRows);
+        assertThat(sheet.getRow(1).getCell(4).getStringCellValue(), is("RED"));
+        assertThat(sheet.getRow(numRows).getCell(5).getStringCellValue(), is("notes for item " + (numRows - 1)));
+    }
+
+    @Test
+    public void column_widths_are_read_by_poi() throws Exception {
+
+        // when
+        final byte[] bytes = write(rows(10), false, true, null, 1);
+
+        // then
+        final Sheet sheet = read(bytes).getSheet("items");
+        final Sheet defaultSheet = read(write(rows(10), false, false, null, 1)).getSheet("items");
+        assertThat(sheet.getColumnWidth(0) != defaultSheet.getColumnWidth(0), is(true));
+        // the notes are longer than the names
+        assertThat(sheet.getColumnWidth(5) > sheet.getColumnWidth(0), is(true));
+        assertRows(sheet, 10);
+    }
+
+    private static String entry(final byte[] bytes, final String name) throws IOException {
+        try (InputStream in = new ZipDirectory(bytes).open(name)) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void assertRows(final Sheet sheet, final int numRows) {
+        assertThat(sheet.getLastRowNum(), is(numRows));
+        for (int r = 1; r <= numRows; r++) {
+            final Row row = sheet.getRow(r);
+            assertThat(row.getCell(0).getStringCellValue(), is("item " + (r - 1)));
+            assertThat(row.getCell(1).getNumericCellValue(), is((double) (r - 1)));
+        }
+    }
+
+    static List<Object[]> rows(final int numRows) {
+        final List<Object[]> rows = Lists.newArrayList();
+        for (int i = 0; i < numRows; i++) {
+            rows.add(new Object[] {
+                    "item " + i,
+                    Integer.valueOf(i),
+                    new BigDecimal("12.50"),
+                    Boolean.valueOf(i % 2 == 0),
+                    i % 2 == 0 ? Colour.RED : Colour.GREEN,
+                    i % 2 == 0 ? null : "notes for item " + i,
+                    new LocalDate(2014, 1, 1).plusDays(i)
+            });
+        }
+        return rows;
+    }
+
+    static byte[] write(
+            final List<Object[]> rows,
+            final boolean inlineStrings,
+            final boolean columnWidths,
+            final ExecutorService executor,
+            final int parallelism) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ZipWriter zip = new ZipWriter(baos, Deflater.DEFAULT_COMPRESSION, executor, parallelism);
+        final XlsxWriter writer = new XlsxWriter(zip, "items", inlineStrings, columnWidths);
+        writer.writeHeader(Arrays.asList("Name", "Quantity", "Cost", "Complete", "Colour", "Notes", "Due by"));
+        for (final Object[] row : rows) {
+            writer.writeRow(row);
+        }
+        writer.finish();
+        return baos.toByteArray();
+    }
+
+    static XSSFWorkbook read(final byte[] bytes) throws IOException {
+        return new XSSFWorkbook(new ByteArrayInputStream(bytes));
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.dom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ZipDirectoryTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void reads_deflated_entries_with_data_descriptors() throws Exception {
+
+        // given (ZipOutputStream writes the sizes of deflated entries in a data descriptor)
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            zos.putNextEntry(new ZipEntry("a.xml"));
+            zos.write(bytes("<a/>"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("b.xml"));
+            zos.write(bytes(repeat("<b/>", 10000)));
+            zos.closeEntry();
+        }
+
+        // when
+        final ZipDirectory zip = new ZipDirectory(baos.toByteArray());
+
+        // then
+        assertThat(read(zip, "a.xml"), is("<a/>"));
+        assertThat(read(zip, "b.xml"), is(repeat("<b/>", 10000)));
+    }
+
+    @Test
+    public void reads_entries_written_by_zip_writer() throws Exception {
+
+        // given
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ZipWriter zw = new ZipWriter(baos, Deflater.DEFAULT_COMPRESSION, null, 1);
+        zw.putNextEntry("first.xml");
+        zw.write(bytes("first"));
+        zw.closeEntry();
+        zw.putNextEntry("second.xml");
+        // spans several blocks
+        final String second = numbers(100000);
+        zw.write(bytes(second));
+        zw.closeEntry();
+        zw.finish();
+
+        // when
+        final ZipDirectory zip = new ZipDirectory(baos.toByteArray());
+
+        // then
+        assertThat(read(zip, "first.xml"), is("first"));
+        assertThat(read(zip, "second.xml"), is(second));
+    }
+
+    @Test
+    public void reads_stored_entries() throws Exception {
+
+        // given
+        final byte[] content = bytes("stored, not deflated");
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            final ZipEntry entry = new ZipEntry("stored.xml");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(content);
+            zos.closeEntry();
+        }
+
+        // when
+        final ZipDirectory zip = new ZipDirectory(baos.toByteArray());
+
+        // then
+        assertThat(read(zip, "stored.xml"), is("stored, not deflated"));
+    }
+
+    @Test
+    public void matches_names_case_insensitively() throws Exception {
+
+        // given
+        final ZipDirectory zip = new ZipDirectory(zipOf("xl/Worksheets/Sheet1.xml", "<worksheet/>"));
+
+        // then
+        assertThat(zip.contains("xl/worksheets/sheet1.xml"), is(true));
+        assertThat(read(zip, "XL/WORKSHEETS/SHEET1.XML"), is("<worksheet/>"));
+    }
+
+    @Test
+    public void missing_entry() throws Exception {
+
+        // given
+        final ZipDirectory zip = new ZipDirectory(zipOf("a.xml", "<a/>"));
+
+        // then
+        assertThat(zip.contains("b.xml"), is(false));
+        assertThat(zip.open("b.xml"), is(nullValue()));
+    }
+
+    @Test
+    public void rejects_entry_inflating_beyond_ratio() throws Exception {
+
+        // given (zeros compress about a thousand-fold)
+        final ZipDirectory zip = new ZipDirectory(zipOf("bomb.xml", new byte[10 * 1024 * 1024]));
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("zip bomb"));
+
+        // when
+        try (InputStream in = zip.open("bomb.xml")) {
+            ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void small_entries_inflate_regardless_of_ratio() throws Exception {
+
+        // given
+        final ZipDirectory zip = new ZipDirectory(zipOf("zeros.xml", new byte[50 * 1024]));
+
+        // when
+        try (InputStream in = zip.open("zeros.xml")) {
+
+            // then
+            assertThat(ByteStreams.toByteArray(in).length, is(50 * 1024));
+        }
+    }
+
+    @Test
+    public void max_inflated_size() throws Exception {
+        assertThat(ZipDirectory.maxInflatedSize(10), is(ZipDirectory.GRACE_ENTRY_SIZE));
+        assertThat(ZipDirectory.maxInflatedSize(1024 * 1024), is(100L * 1024 * 1024));
+        assertThat(ZipDirectory.maxInflatedSize(Integer.MAX_VALUE), is(ZipDirectory.MAX_ENTRY_SIZE));
+    }
+
+    @Test
+    public void rejects_zip64_entries() throws Exception {
+
+        // given an entry whose sizes are deferred to a zip64 extra field
+        final byte[] bs = zipOf("a.xml", "<a/>");
+        final ByteBuffer buf = ByteBuffer.wrap(bs).order(ByteOrder.LITTLE_ENDIAN);
+        final int centralDirectory = buf.getInt(bs.length - 22 + 16);
+        buf.putInt(centralDirectory + 20, -1);
+        buf.putInt(centralDirectory + 24, -1);
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("Zip64"));
+
+        // when
+        new ZipDirectory(bs);
+    }
+
+    @Test
+    public void rejects_zip64_archives() throws Exception {
+
+        // given an archive whose entry count is deferred to the zip64 end of central directory
+        final byte[] bs = zipOf("a.xml", "<a/>");
+        final ByteBuffer buf = ByteBuffer.wrap(bs).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort(bs.length - 22 + 10, (short) 0xffff);
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("Zip64"));
+
+        // when
+        new ZipDirectory(bs);
+    }
+
+    @Test
+    public void rejects_non_zip() throws Exception {
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("Not a zip file"));
+
+        // when
+        new ZipDirectory(bytes(repeat("not a zip file", 10)));
+    }
+
+    private static byte[] zipOf(final String name, final String content) throws IOException {
+        return zipOf(name, bytes(content));
+    }
+
+    private static byte[] zipOf(final String name, final byte[] content) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            zos.setLevel(Deflater.BEST_COMPRESSION);
+            zos.putNextEntry(new ZipEntry(name));
+            zos.write(content);
+            zos.closeEntry();
+        }
+        return baos.toByteArray();
+    }
+
+    private static String read(final ZipDirectory zip, final String name) throws IOException {
+        try (InputStream in = zip.open(name)) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] bytes(final String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String numbers(final int count) {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            buf.append(i).append(',');
+        }
+        return buf.toString();
+    }
+
+    private static String repeat(final String str, final int times) {
+        final StringBuilder buf = new StringBuilder(str.length() * times);
+        for (int i = 0; i < times; i++) {
+            buf.append(str);
+        }
+        return buf.toString();
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.fixture.app;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.annotation.DomainService;
+import org.apache.isis.applib.annotation.NatureOfService;
+import org.apache.isis.applib.annotation.Programmatic;
+
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItems;
+
+/**
+ * Applies a set of imported {@link ExcelModuleDemoToDoItemBulkUpdateLineItem line items} in bulk: any existing
+ * items of the current user clashing with new line items (on description) are looked up with a single query (per
+ * {@value #QUERY_BATCH_SIZE} descriptions) rather than one per line item, and existing items have only those fields
+ * that have actually changed written back.
+ */
+@DomainService(
+        nature = NatureOfService.DOMAIN
+)
+public class ExcelModuleDemoToDoItemBulkUpdateApplier {
+
+    /**
+     * Keeps the <tt>IN</tt> list of each query within the limits of the database.
+     */
+    static final int QUERY_BATCH_SIZE = 1000;
+
+    public static class Result {
+
+        private int created;
+        private int updated;
+        private int unchanged;
+        private int duplicates;
+        private final List<ExcelModuleDemoToDoItem> items = Lists.newArrayList();
+
+        public int getCreated() {
+            return created;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * New line items whose description is already used by an existing item of the current user (or an earlier
+         * line item); these are not applied.
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * The item for each line item, in the same order (as returned by
+         * {@link #apply(ExcelModuleDemoToDoItemBulkUpdateLineItem)}).
+         */
+        public List<ExcelModuleDemoToDoItem> getItems() {
+            return Collections.unmodifiableList(items);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d created, %d updated, %d unchanged, %d duplicates", created, updated, unchanged, duplicates);
+        }
+    }
+
+    @Programmatic
+    public Result apply(final List<ExcelModuleDemoToDoItemBulkUpdateLineItem> lineItems) {
+        final Result result = new Result();
+        final Map<String, ExcelModuleDemoToDoItem> existingByDescription = findExistingForNew(lineItems);
+
+        for (final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem : lineItems) {
+            result.items.add(apply(lineItem, existingByDescription, result));
+        }
+        return result;
+    }
+
+    /**
+     * As {@link #apply(List)}, for a single line item.
+     *
+     * @return the item updated or created or, if the line item is a duplicate, the existing item.
+     */
+    @Programmatic
+    public ExcelModuleDemoToDoItem apply(final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem) {
+        final List<ExcelModuleDemoToDoItemBulkUpdateLineItem> lineItems = Collections.singletonList(lineItem);
+        final Result result = new Result();
+        final ExcelModuleDemoToDoItem item = apply(lineItem, findExistingForNew(lineItems), result);
+        if(result.getDuplicates() > 0) {
+            container.warnUser("Item already exists with description '" + lineItem.getDescription() + "'");
+        }
+        return item;
+    }
+
+    private ExcelModuleDemoToDoItem apply(
+            final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem,
+            final Map<String, ExcelModuleDemoToDoItem> existingByDescription,
+            final Result result) {
+        final ExcelModuleDemoToDoItem item = lineItem.getToDoItem();
+        if(item != null) {
+            if(copyChanged(lineItem, item)) {
+                result.updated++;
+            } else {
+                result.unchanged++;
+            }
+            return item;
+        }
+        // description must be unique
+        final ExcelModuleDemoToDoItem existing = existingByDescription.get(lineItem.getDescription());
+        if(existing != null) {
+            result.duplicates++;
+            return existing;
+        }
+        // (since this is just a demo, haven't bothered to validate new values)
+        final ExcelModuleDemoToDoItem newItem = toDoItems.newToDo(
+                lineItem.getDescription(), lineItem.getCategory(), lineItem.getSubcategory(),
+                lineItem.getDueBy(), lineItem.getCost());
+        newItem.setNotes(lineItem.getNotes());
+        newItem.setOwnedBy(lineItem.getOwnedBy());
+        newItem.setComplete(lineItem.isComplete());
+        existingByDescription.put(lineItem.getDescription(), newItem);
+        result.created++;
+        return newItem;
+    }
+
+    private Map<String, ExcelModuleDemoToDoItem> findExistingForNew(
+            final List<ExcelModuleDemoToDoItemBulkUpdateLineItem> lineItems) {
+        final Set<String> descriptions = Sets.newLinkedHashSet();
+        for (final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem : lineItems) {
+            if(lineItem.getToDoItem() == null && lineItem.getDescription() != null) {
+                descriptions.add(lineItem.getDescription());
+            }
+        }
+        final Map<String, ExcelModuleDemoToDoItem> existingByDescription = Maps.newHashMap();
+        if(descriptions.isEmpty()) {
+            return existingByDescription;
+        }
+        // so that the queries also see any items created earlier in this transaction
+        container.flush();
+        for (final List<String> batch : Iterables.partition(descriptions, QUERY_BATCH_SIZE)) {
+            for (final ExcelModuleDemoToDoItem existing : toDoItems.findByDescriptions(batch)) {
+                existingByDescription.put(existing.getDescription(), existing);
+            }
+        }
+        return existingByDescription;
+    }
+
+    /**
+     * Writes only those fields that differ, so that unchanged items are not dirtied (and so not flushed).
+     *
+     * @return whether any field was written.
+     */
+    private static boolean copyChanged(
+            final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem,
+            final ExcelModuleDemoToDoItem item) {
+        boolean changed = false;
+        if(!Objects.equals(item.getDescription(), lineItem.getDescription())) {
+            item.setDescription(lineItem.getDescription());
+            changed = true;
+        }
+        if(item.getCategory() != lineItem.getCategory()) {
+            item.setCategory(lineItem.getCategory());
+            changed = true;
+        }
+        if(item.getSubcategory() != lineItem.getSubcategory()) {
+            item.setSubcategory(lineItem.getSubcategory());
+            changed = true;
+        }
+        if(!Objects.equals(item.getDueBy(), lineItem.getDueBy())) {
+            item.setDueBy(lineItem.getDueBy());
+            changed = true;
+        }
+        if(!sameAmount(item.getCost(), lineItem.getCost())) {
+            item.setCost(lineItem.getCost());
+            changed = true;
+        }
+        if(!Objects.equals(item.getNotes(), lineItem.getNotes())) {
+            item.setNotes(lineItem.getNotes());
+            changed = true;
+        }
+        if(!Objects.equals(item.getOwnedBy(), lineItem.getOwnedBy())) {
+            item.setOwnedBy(lineItem.getOwnedBy());
+            changed = true;
+        }
+        if(item.isComplete() != lineItem.isComplete()) {
+            item.setComplete(lineItem.isComplete());
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static boolean sameAmount(final BigDecimal a, final BigDecimal b) {
+        return a == null ? b == null : b != null && a.compareTo(b) == 0;
+    }
+
+    // //////////////////////////////////////
+    // Injected Services
+    // //////////////////////////////////////
+
+    @javax.inject.Inject
+    private ExcelModuleDemoToDoItems toDoItems;
+
+    @javax.inject.Inject
+    private DomainObjectContainer container;
+
+}
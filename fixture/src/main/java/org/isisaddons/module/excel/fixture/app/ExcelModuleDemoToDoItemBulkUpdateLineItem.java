@@ -17,10 +17,11 @@
 package org.isisaddons.module.excel.fixture.app;
 
 import java.math.BigDecimal;
+import java.util.List;
+
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Category;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Subcategory;
-import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItems;
 import org.joda.time.LocalDate;
 import org.apache.isis.applib.AbstractViewModel;
 import org.apache.isis.applib.annotation.Action;
@@ -222,34 +223,20 @@ public class ExcelModuleDemoToDoItemBulkUpdateLineItem
             semantics = SemanticsOf.IDEMPOTENT,
             invokeOn = InvokeOn.OBJECT_AND_COLLECTION
     )
+    @SuppressWarnings({ "unchecked", "rawtypes" })
     public ExcelModuleDemoToDoItem apply() {
-        ExcelModuleDemoToDoItem item = getToDoItem();
-        if(item == null) {
-            // description must be unique, so check
-            item = toDoItems.findByDescription(getDescription());
-            if(item != null) {
-                getContainer().warnUser("Item already exists with description '" + getDescription() + "'");
-            } else {
-                // create new item
-                // (since this is just a demo, haven't bothered to validate new values)
-                item = toDoItems.newToDo(getDescription(), getCategory(), getSubcategory(), getDueBy(), getCost());
-                item.setNotes(getNotes());
-                item.setOwnedBy(getOwnedBy());
-                item.setComplete(isComplete());
+        if(actionInvocationContext.getInvokedOn().isCollection()) {
+            // applied in bulk, once all the (selected) line items are known
+            if(!actionInvocationContext.isLast()) {
+                return null;
             }
-        } else {
-            // copy over new values
-            // (since this is just a demo, haven't bothered to validate new values)
-            item.setDescription(getDescription());
-            item.setCategory(getCategory());
-            item.setSubcategory(getSubcategory());
-            item.setDueBy(getDueBy());
-            item.setCost(getCost());
-            item.setNotes(getNotes());
-            item.setOwnedBy(getOwnedBy());
-            item.setComplete(isComplete());
+            final List lineItems = actionInvocationContext.getDomainObjects();
+            final ExcelModuleDemoToDoItemBulkUpdateApplier.Result result = bulkUpdateApplier.apply(lineItems);
+            getContainer().informUser(result.toString());
+            // the item for this, the last, line item
+            return result.getItems().get(actionInvocationContext.getIndex());
         }
-        return actionInvocationContext.getInvokedOn().isCollection()? null: item;
+        return bulkUpdateApplier.apply(this);
     }
 
     
@@ -271,7 +258,7 @@ public class ExcelModuleDemoToDoItemBulkUpdateLineItem
     private ExcelModuleDemoToDoItemBulkUpdateMenu toDoItemExportImportService;
     
     @javax.inject.Inject
-    private ExcelModuleDemoToDoItems toDoItems;
+    private ExcelModuleDemoToDoItemBulkUpdateApplier bulkUpdateApplier;
 
     @javax.inject.Inject
     private ActionInvocationContext actionInvocationContext;
@@ -19,7 +19,6 @@ package org.isisaddons.module.excel.fixture.app;
 import java.util.List;
 
 import com.google.common.base.Function;
-import com.google.common.base.Predicates;
 import com.google.common.collect.Lists;
 
 import org.apache.isis.applib.AbstractViewModel;
@@ -45,6 +44,7 @@ import org.isisaddons.module.excel.dom.ExcelService;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Category;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Subcategory;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItems;
 
 @DomainObject(
         nature = Nature.VIEW_MODEL
@@ -189,26 +189,17 @@ public class ExcelModuleDemoToDoItemBulkUpdateManager extends AbstractViewModel
         return Subcategory.validate(category, subcategory);
     }
 
-    private String currentUserName() {
-        return container.getUser().getName();
-    }
-
 
     // //////////////////////////////////////
     // allToDos
     // //////////////////////////////////////
 
-    @SuppressWarnings("unchecked")
     @Collection
     @CollectionLayout(
             render = RenderType.EAGERLY
     )
     public List<ExcelModuleDemoToDoItem> getToDoItems() {
-        return container.allMatches(ExcelModuleDemoToDoItem.class,
-                Predicates.and(
-                    ExcelModuleDemoToDoItem.Predicates.thoseOwnedBy(currentUserName()),
-                    ExcelModuleDemoToDoItem.Predicates.thoseCompleted(isComplete()),
-                    ExcelModuleDemoToDoItem.Predicates.thoseCategorised(getCategory(), getSubcategory())));
+        return toDoItems.findBySelection(getCategory(), getSubcategory(), isComplete());
     }
 
 
@@ -279,6 +270,9 @@ public class ExcelModuleDemoToDoItemBulkUpdateManager extends AbstractViewModel
     @javax.inject.Inject
     private ExcelService excelService;
 
+    @javax.inject.Inject
+    private ExcelModuleDemoToDoItems toDoItems;
+
     @javax.inject.Inject
     private ExcelModuleDemoToDoItemBulkUpdateMenu toDoItemExportImportService;
 
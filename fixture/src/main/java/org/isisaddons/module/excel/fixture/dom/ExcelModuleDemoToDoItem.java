@@ -86,12 +86,27 @@ import org.isisaddons.module.excel.dom.ExcelService;
                     + "FROM org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem "
                     + "WHERE ownedBy == :ownedBy "
                     + "   && description == :description"),
+    @javax.jdo.annotations.Query(
+            name = "findByDescriptions", language = "JDOQL",
+            value = "SELECT "
+                    + "FROM org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem "
+                    + "WHERE ownedBy == :ownedBy "
+                    + "   && :descriptions.contains(description)"),
     @javax.jdo.annotations.Query(
             name = "todo_complete", language = "JDOQL",
             value = "SELECT "
                     + "FROM org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem "
                     + "WHERE ownedBy == :ownedBy "
                     + "&& complete == true"),
+    @javax.jdo.annotations.Query(
+            name = "todo_selection", language = "JDOQL",
+            value = "SELECT "
+                    + "FROM org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem "
+                    + "WHERE ownedBy == :ownedBy "
+                    + "&& complete == :complete "
+                    + "&& category == :category "
+                    + "&& subcategory == :subcategory "
+                    + "ORDER BY complete ASC, dueBy ASC NULLS FIRST, description ASC"),
     @javax.jdo.annotations.Query(
             name = "todo_similarTo", language = "JDOQL",
             value = "SELECT "
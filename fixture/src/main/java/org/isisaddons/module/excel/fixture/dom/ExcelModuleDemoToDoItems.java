@@ -17,6 +17,7 @@
 package org.isisaddons.module.excel.fixture.dom;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -102,6 +103,43 @@ public class ExcelModuleDemoToDoItems {
                         "ownedBy", currentUserName()));
     }
 
+    /**
+     * As {@link #findByDescription(String)}, but for any of the descriptions, in a single query.
+     */
+    @Programmatic
+    public List<ExcelModuleDemoToDoItem> findByDescriptions(final Collection<String> descriptions) {
+        if(descriptions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return container.allMatches(
+                new QueryDefault<>(ExcelModuleDemoToDoItem.class,
+                        "findByDescriptions",
+                        "descriptions", descriptions,
+                        "ownedBy", currentUserName()));
+    }
+
+    // //////////////////////////////////////
+    // findBySelection
+    // //////////////////////////////////////
+
+    /**
+     * The current user's items in the category and subcategory (either of which may be <tt>null</tt>, matching
+     * only items without one) that are (or are not yet) complete, in their natural order.
+     */
+    @Programmatic
+    public List<ExcelModuleDemoToDoItem> findBySelection(
+            final Category category,
+            final Subcategory subcategory,
+            final boolean complete) {
+        return container.allMatches(
+                new QueryDefault<>(ExcelModuleDemoToDoItem.class,
+                        "todo_selection",
+                        "ownedBy", currentUserName(),
+                        "complete", complete,
+                        "category", category,
+                        "subcategory", subcategory));
+    }
+
     // //////////////////////////////////////
     // Complete (action)
     // //////////////////////////////////////
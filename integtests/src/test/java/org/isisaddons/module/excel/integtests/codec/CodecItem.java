@@ -0,0 +1,30 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.integtests.codec;
+
+import org.isisaddons.module.excel.dom.ExcelCodec;
+
+import org.apache.isis.applib.annotation.DomainObject;
+
+/**
+ * The same properties as {@link PlainItem}, but read and written through the
+ * {@link org.isisaddons.module.excel.dom.ExcelRowCodec} generated for this class.
+ */
+@ExcelCodec
+@DomainObject
+public class CodecItem extends PlainItem {
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.integtests.codec;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import com.google.common.collect.Lists;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.value.Blob;
+
+import org.isisaddons.module.excel.dom.ExcelRowCodec;
+import org.isisaddons.module.excel.dom.ExcelService;
+import org.isisaddons.module.excel.integtests.ExcelModuleModuleIntegTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ExcelCodecIntegTest extends ExcelModuleModuleIntegTest {
+
+    @Inject
+    private ExcelService excelService;
+
+    @Inject
+    private DomainObjectContainer container;
+
+    @Test
+    public void generated_codec_reads_and_writes_properties() throws Exception {
+
+        // given
+        @SuppressWarnings("unchecked")
+        final ExcelRowCodec<CodecItem> codec = (ExcelRowCodec<CodecItem>)
+                Class.forName(CodecItem.class.getName() + ExcelRowCodec.SUFFIX).newInstance();
+        final List<String> propertyIds = Arrays.asList(codec.getPropertyIds());
+        final int name = propertyIds.indexOf("name");
+        final int quantity = propertyIds.indexOf("quantity");
+        final int complete = propertyIds.indexOf("complete");
+        final int total = propertyIds.indexOf("total");
+
+        final CodecItem item = new CodecItem();
+        item.setCost(new BigDecimal("2.50"));
+
+        // when
+        codec.set(item, name, "widget");
+        codec.set(item, quantity, 4);
+        codec.set(item, complete, true);
+
+        // then
+        assertThat(item.getName(), is("widget"));
+        assertThat(item.getQuantity(), is(4));
+        assertThat(item.isComplete(), is(true));
+        assertThat(codec.get(item, name), is((Object) "widget"));
+        assertThat(codec.get(item, quantity), is((Object) 4));
+        assertThat(codec.get(item, total), is((Object) new BigDecimal("10.00")));
+
+        // the derived property has no setter
+        assertThat(codec.isSettable(name), is(true));
+        assertThat(codec.isSettable(total), is(false));
+    }
+
+    @Test
+    public void codec_exports_the_same_cells_as_the_metamodel() throws Exception {
+
+        // when
+        final Blob viaMetamodel = excelService.toExcel(items(PlainItem.class), PlainItem.class, "plain.xlsx");
+        final Blob viaCodec = excelService.toExcel(items(CodecItem.class), CodecItem.class, "codec.xlsx");
+
+        // then
+        final List<List<Object>> cells = cellsOf(viaMetamodel);
+        assertThat(cells.size(), is(4));
+        assertThat(cells.get(0).size(), is(8));
+        assertThat(cellsOf(viaCodec), is(cells));
+    }
+
+    @Test
+    public void codec_imports_the_same_values_as_the_metamodel() throws Exception {
+
+        // given
+        final Blob blob = excelService.toExcel(items(PlainItem.class), PlainItem.class, "plain.xlsx");
+
+        // when
+        final List<PlainItem> viaMetamodel = excelService.fromExcel(blob, PlainItem.class);
+        final List<CodecItem> viaCodec = excelService.fromExcel(blob, CodecItem.class);
+
+        // then
+        final List<PlainItem> expected = items(PlainItem.class);
+        assertThat(viaMetamodel.size(), is(expected.size()));
+        assertThat(viaCodec.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameProperties(viaMetamodel.get(i), expected.get(i));
+            assertSameProperties(viaCodec.get(i), expected.get(i));
+        }
+        // (blank cells are left unset)
+        assertThat(viaCodec.get(0).getNotes(), is(nullValue()));
+    }
+
+    private <T extends PlainItem> List<T> items(final Class<T> cls) throws Exception {
+        final List<T> items = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            final T item = cls.newInstance();
+            item.setName("item " + i);
+            item.setQuantity(i + 1);
+            item.setCost(new BigDecimal("12.50").add(BigDecimal.valueOf(i)));
+            item.setDueBy(new LocalDate(2014, 12, 31).plusDays(i));
+            item.setComplete(i % 2 == 1);
+            item.setColour(i % 2 == 0 ? PlainItem.Colour.RED : PlainItem.Colour.GREEN);
+            item.setNotes(i % 2 == 0 ? null : "notes for item " + i);
+            container.injectServicesInto(item);
+            items.add(container.newViewModelInstance(cls, item.viewModelMemento()));
+        }
+        return items;
+    }
+
+    private static void assertSameProperties(final PlainItem actual, final PlainItem expected) {
+        assertThat(actual.getName(), is(expected.getName()));
+        assertThat(actual.getQuantity(), is(expected.getQuantity()));
+        assertThat(actual.getCost().compareTo(expected.getCost()), is(0));
+        assertThat(actual.getDueBy(), is(expected.getDueBy()));
+        assertThat(actual.isComplete(), is(expected.isComplete()));
+        assertThat(actual.getColour(), is(expected.getColour()));
+        assertThat(actual.getNotes(), is(expected.getNotes()));
+    }
+
+    /**
+     * The type and value of every cell of the (only) sheet, row by row.
+     */
+    private static List<List<Object>> cellsOf(final Blob blob) throws Exception {
+        final Sheet sheet = new XSSFWorkbook(new ByteArrayInputStream(blob.getBytes())).getSheetAt(0);
+        final List<List<Object>> rows = Lists.newArrayList();
+        for (final Row row : sheet) {
+            final List<Object> cells = Lists.newArrayList();
+            for (int c = 0; c < row.getLastCellNum(); c++) {
+                final Cell cell = row.getCell(c);
+                if (cell == null) {
+                    cells.add(null);
+                    continue;
+                }
+                switch (cell.getCellType()) {
+                case Cell.CELL_TYPE_NUMERIC:
+                    cells.add(cell.getNumericCellValue());
+                    break;
+                case Cell.CELL_TYPE_BOOLEAN:
+                    cells.add(cell.getBooleanCellValue());
+                    break;
+                default:
+                    cells.add(cell.getCellType() + ":" + cell.getStringCellValue());
+                    break;
+                }
+            }
+            rows.add(cells);
+        }
+        return rows;
+    }
+
+}
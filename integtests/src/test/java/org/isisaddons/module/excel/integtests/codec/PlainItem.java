@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.integtests.codec;
+
+import java.math.BigDecimal;
+
+import org.joda.time.LocalDate;
+
+import org.apache.isis.applib.AbstractViewModel;
+import org.apache.isis.applib.annotation.DomainObject;
+import org.apache.isis.applib.annotation.MemberOrder;
+import org.apache.isis.applib.annotation.Optionality;
+import org.apache.isis.applib.annotation.Property;
+import org.apache.isis.applib.services.memento.MementoService;
+import org.apache.isis.applib.services.memento.MementoService.Memento;
+
+/**
+ * A view model whose properties are read and written through the metamodel; see {@link CodecItem} for the same
+ * properties through a generated {@link org.isisaddons.module.excel.dom.ExcelRowCodec}.
+ */
+@DomainObject
+public class PlainItem extends AbstractViewModel {
+
+    public enum Colour {
+        RED, GREEN
+    }
+
+    public String title() {
+        return getName();
+    }
+
+    // //////////////////////////////////////
+    // ViewModel implementation
+    // //////////////////////////////////////
+
+    @Override
+    public String viewModelMemento() {
+        final Memento memento = mementoService.create();
+        memento.set("name", getName());
+        memento.set("quantity", getQuantity());
+        memento.set("cost", getCost());
+        memento.set("dueBy", getDueBy());
+        memento.set("complete", isComplete());
+        memento.set("colour", getColour());
+        memento.set("notes", getNotes());
+        return memento.asString();
+    }
+
+    @Override
+    public void viewModelInit(final String mementoStr) {
+        final Memento memento = mementoService.parse(mementoStr);
+        setName(memento.get("name", String.class));
+        setQuantity(memento.get("quantity", int.class));
+        setCost(memento.get("cost", BigDecimal.class));
+        setDueBy(memento.get("dueBy", LocalDate.class));
+        setComplete(memento.get("complete", boolean.class));
+        setColour(memento.get("colour", Colour.class));
+        setNotes(memento.get("notes", String.class));
+    }
+
+    // //////////////////////////////////////
+
+    private String name;
+
+    @MemberOrder(sequence="1")
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    // //////////////////////////////////////
+
+    private int quantity;
+
+    @MemberOrder(sequence="2")
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(final int quantity) {
+        this.quantity = quantity;
+    }
+
+    // //////////////////////////////////////
+
+    private BigDecimal cost;
+
+    @MemberOrder(sequence="3")
+    public BigDecimal getCost() {
+        return cost;
+    }
+
+    public void setCost(final BigDecimal cost) {
+        this.cost = cost;
+    }
+
+    // //////////////////////////////////////
+
+    private LocalDate dueBy;
+
+    @MemberOrder(sequence="4")
+    public LocalDate getDueBy() {
+        return dueBy;
+    }
+
+    public void setDueBy(final LocalDate dueBy) {
+        this.dueBy = dueBy;
+    }
+
+    // //////////////////////////////////////
+
+    private boolean complete;
+
+    @MemberOrder(sequence="5")
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(final boolean complete) {
+        this.complete = complete;
+    }
+
+    // //////////////////////////////////////
+
+    private Colour colour;
+
+    @MemberOrder(sequence="6")
+    public Colour getColour() {
+        return colour;
+    }
+
+    public void setColour(final Colour colour) {
+        this.colour = colour;
+    }
+
+    // //////////////////////////////////////
+
+    private String notes;
+
+    @Property(optionality = Optionality.OPTIONAL)
+    @MemberOrder(sequence="7")
+    public String getNotes() {
+        return notes;
+    }
+
+    public void setNotes(final String notes) {
+        this.notes = notes;
+    }
+
+    // //////////////////////////////////////
+    // Total (derived property)
+    // //////////////////////////////////////
+
+    @MemberOrder(sequence="8")
+    public BigDecimal getTotal() {
+        return cost != null ? cost.multiply(BigDecimal.valueOf(quantity)) : null;
+    }
+
+    // //////////////////////////////////////
+    // Injected Services
+    // //////////////////////////////////////
+
+    @javax.inject.Inject
+    private MementoService mementoService;
+
+}
@@ -16,8 +16,10 @@
  */
 package org.isisaddons.module.excel.integtests.demo;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -25,23 +27,34 @@ import javax.inject.Inject;
 import com.google.common.io.ByteSource;
 import com.google.common.io.Resources;
 
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeMatcher;
+import org.joda.time.LocalDate;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.apache.isis.applib.annotation.InvokedOn;
+import org.apache.isis.applib.services.actinvoc.ActionInvocationContext;
 import org.apache.isis.applib.value.Blob;
 
 import org.isisaddons.module.excel.dom.ExcelService;
+import org.isisaddons.module.excel.fixture.app.ExcelModuleDemoToDoItemBulkUpdateApplier;
 import org.isisaddons.module.excel.fixture.app.ExcelModuleDemoToDoItemBulkUpdateLineItem;
 import org.isisaddons.module.excel.fixture.app.ExcelModuleDemoToDoItemBulkUpdateManager;
 import org.isisaddons.module.excel.fixture.app.ExcelModuleDemoToDoItemBulkUpdateMenu;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem;
 import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItems;
 import org.isisaddons.module.excel.fixture.scripts.RecreateToDoItems;
 import org.isisaddons.module.excel.integtests.ExcelModuleModuleIntegTest;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class ExcelModuleDemoToDoItemBulkUpdateManagerTest extends ExcelModuleModuleIntegTest {
@@ -57,6 +70,12 @@ public class ExcelModuleDemoToDoItemBulkUpdateManagerTest extends ExcelModuleMod
     @javax.inject.Inject
     private ExcelModuleDemoToDoItemBulkUpdateMenu exportImportService;
 
+    @javax.inject.Inject
+    private ExcelModuleDemoToDoItemBulkUpdateApplier bulkUpdateApplier;
+
+    @javax.inject.Inject
+    private ActionInvocationContext actionInvocationContext;
+
     private ExcelModuleDemoToDoItemBulkUpdateManager bulkUpdateManager;
 
     @Before
@@ -99,6 +118,112 @@ public class ExcelModuleDemoToDoItemBulkUpdateManagerTest extends ExcelModuleMod
         assertThat(lineItem2.getNotes(), is("Get sliced brown if possible."));
     }
 
+    /**
+     * A blank cell leaves the value copied from the referenced item (by <tt>modifyToDoItem</tt>) as it is, so
+     * applying the line item changes nothing.
+     */
+    @Test
+    public void import_with_blank_cells_leaves_existing_item_unchanged() throws Exception {
+
+        // given
+        final List<ExcelModuleDemoToDoItem> items = bulkUpdateManager.getToDoItems();
+        final ExcelModuleDemoToDoItem item = items.get(0);
+        final String description = item.getDescription();
+        final ExcelModuleDemoToDoItem.Category category = item.getCategory();
+        final ExcelModuleDemoToDoItem.Subcategory subcategory = item.getSubcategory();
+        final String ownedBy = item.getOwnedBy();
+        final LocalDate dueBy = item.getDueBy();
+        final String notes = item.getNotes();
+        final boolean complete = item.isComplete();
+
+        final byte[] exportedBytes = bulkUpdateManager.export().getBytes();
+
+        // blank every cell of the first item other than its reference
+        final XSSFWorkbook wb = new XSSFWorkbook(new ByteArrayInputStream(exportedBytes));
+        final Sheet sheet = wb.getSheetAt(0);
+        final Row row = sheet.getRow(1);
+        for (int i = row.getLastCellNum() - 1; i > 0; i--) {
+            final Cell cell = row.getCell(i);
+            if(cell != null) {
+                row.removeCell(cell);
+            }
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        wb.write(baos);
+
+        // when
+        final List<ExcelModuleDemoToDoItemBulkUpdateLineItem> lineItems =
+                bulkUpdateManager.importBlob(new Blob("toDoItems.xlsx", ExcelService.XSLX_MIME_TYPE, baos.toByteArray()));
+        bulkUpdateApplier.apply(lineItems);
+
+        // then
+        assertThat(lineItems.size(), is(items.size()));
+        final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem = lineItems.get(0);
+        assertThat(lineItem.getToDoItem(), is(item));
+        assertThat(lineItem.getDescription(), is(description));
+
+        // (not the cost, which the line item's view model defaults to zero)
+        assertThat(item.getDescription(), is(description));
+        assertThat(item.getCategory(), is(category));
+        assertThat(item.getSubcategory(), is(subcategory));
+        assertThat(item.getOwnedBy(), is(ownedBy));
+        assertThat(item.getDueBy(), is(dueBy));
+        assertThat(item.getNotes(), is(notes));
+        assertThat(item.isComplete(), is(complete));
+    }
+
+    /**
+     * When invoked on a selection of line items, they are applied (together) by the last invocation, which returns
+     * the item for its line item; line items not selected are left alone.
+     */
+    @Test
+    public void apply_to_selected_line_items() throws Exception {
+
+        // given
+        final ExcelModuleDemoToDoItem existing = bulkUpdateManager.getToDoItems().get(0);
+        toDoItems.newToDo("Buy eggs", existing.getCategory(), existing.getSubcategory(), null, null);
+        toDoItems.newToDo("Buy flour", existing.getCategory(), existing.getSubcategory(), null, null);
+        nextTransaction();
+
+        final List<ExcelModuleDemoToDoItemBulkUpdateLineItem> lineItems =
+                bulkUpdateManager.importBlob(bulkUpdateManager.export());
+        assertThat(lineItems.size(), is(3));
+
+        final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem0 = lineItems.get(0);
+        final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem1 = lineItems.get(1);
+        final ExcelModuleDemoToDoItemBulkUpdateLineItem lineItem2 = lineItems.get(2);
+        final ExcelModuleDemoToDoItem item0 = lineItem0.getToDoItem();
+        final ExcelModuleDemoToDoItem item1 = lineItem1.getToDoItem();
+        final ExcelModuleDemoToDoItem item2 = lineItem2.getToDoItem();
+        final String unselectedDescription = item1.getDescription();
+
+        lineItem0.setDescription("Selected 0");
+        lineItem1.setDescription("Not selected");
+        lineItem2.setDescription("Selected 2");
+
+        // when
+        final List<Object> selected = Arrays.<Object>asList(lineItem0, lineItem2);
+        actionInvocationContext.setInvokedOn(InvokedOn.COLLECTION);
+        actionInvocationContext.setDomainObjects(selected);
+
+        actionInvocationContext.setIndex(0);
+        final ExcelModuleDemoToDoItem returnedFirst = lineItem0.apply();
+
+        // then (nothing is applied until the last invocation)
+        assertThat(returnedFirst, is(nullValue()));
+        assertThat(item0.getDescription(), is(not("Selected 0")));
+
+        // when
+        actionInvocationContext.setIndex(1);
+        final ExcelModuleDemoToDoItem returnedLast = lineItem2.apply();
+
+        // then
+        assertThat(returnedLast, is(item2));
+        assertThat(item0.getDescription(), is("Selected 0"));
+        assertThat(item2.getDescription(), is("Selected 2"));
+        assertThat(item1.getDescription(), is(unselectedDescription));
+    }
+
     private static byte[] getBytes(final Class<?> contextClass, final String name) throws IOException {
         final ByteSource byteSource = Resources.asByteSource(contextClass.getResource(name));
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2015 Jeroen van der Wal
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.integtests.demo;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import com.google.common.collect.Lists;
+
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Category;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem.Subcategory;
+import org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItems;
+import org.isisaddons.module.excel.fixture.scripts.DeleteAllToDoItems;
+import org.isisaddons.module.excel.integtests.ExcelModuleModuleIntegTest;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExcelModuleDemoToDoItemsIntegTest extends ExcelModuleModuleIntegTest {
+
+    @Inject
+    private ExcelModuleDemoToDoItems toDoItems;
+
+    private ExcelModuleDemoToDoItem noSubcategoryDueLater;
+    private ExcelModuleDemoToDoItem noSubcategoryNotDue;
+    private ExcelModuleDemoToDoItem noSubcategoryDueSoonB;
+    private ExcelModuleDemoToDoItem noSubcategoryDueSoonA;
+
+    @Before
+    public void setUpData() throws Exception {
+        scenarioExecution().install(new DeleteAllToDoItems());
+
+        final LocalDate soon = new LocalDate(2015, 1, 1);
+        final LocalDate later = new LocalDate(2015, 6, 1);
+
+        noSubcategoryDueLater = toDoItems.newToDo("Tidy loft", Category.Domestic, null, later, null);
+        noSubcategoryNotDue = toDoItems.newToDo("Paint fence", Category.Domestic, null, null, null);
+        noSubcategoryDueSoonB = toDoItems.newToDo("Sweep path", Category.Domestic, null, soon, null);
+        noSubcategoryDueSoonA = toDoItems.newToDo("Clean oven", Category.Domestic, null, soon, null);
+
+        toDoItems.newToDo("Buy milk", Category.Domestic, Subcategory.Shopping, soon, null);
+        toDoItems.newToDo("Write blog", Category.Professional, null, soon, null);
+        toDoItems.newToDo("Mow lawn", Category.Domestic, null, soon, null).setComplete(true);
+        nextTransaction();
+    }
+
+    @Test
+    public void findBySelection_null_subcategory_matches_only_items_without_one() throws Exception {
+
+        // when
+        final List<ExcelModuleDemoToDoItem> selection =
+                toDoItems.findBySelection(Category.Domestic, null, false);
+
+        // then
+        assertThat(selection, is((List<ExcelModuleDemoToDoItem>) Lists.newArrayList(
+                noSubcategoryNotDue, noSubcategoryDueSoonA, noSubcategoryDueSoonB, noSubcategoryDueLater)));
+    }
+
+    @Test
+    public void findBySelection_is_in_natural_order() throws Exception {
+
+        // when
+        final List<ExcelModuleDemoToDoItem> selection =
+                toDoItems.findBySelection(Category.Domestic, null, false);
+
+        // then
+        final List<ExcelModuleDemoToDoItem> sorted = Lists.newArrayList(selection);
+        Collections.sort(sorted);
+        assertThat(selection, is(sorted));
+    }
+
+    @Test
+    public void findBySelection_null_category_matches_nothing() throws Exception {
+
+        // when
+        final List<ExcelModuleDemoToDoItem> selection = toDoItems.findBySelection(null, null, false);
+
+        // then
+        assertThat(selection.isEmpty(), is(true));
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an <tt>org.isisaddons.module.excel.dom.ExcelRowCodec</tt> for each class annotated with
+ * <tt>@org.isisaddons.module.excel.dom.ExcelCodec</tt>.
+ *
+ * <p>
+ *     The properties are identified by the JavaBean conventions (as the Isis metamodel does): a public
+ *     <tt>getXxx()</tt> (or, for booleans, <tt>isXxx()</tt>) method, optionally with a public <tt>setXxx(...)</tt>
+ *     method.  Whether each is exported or imported is still decided at runtime, by the metamodel.
+ * </p>
+ */
+@SupportedAnnotationTypes(ExcelCodecProcessor.EXCEL_CODEC)
+public class ExcelCodecProcessor extends AbstractProcessor {
+
+    static final String EXCEL_CODEC = "org.isisaddons.module.excel.dom.ExcelCodec";
+    static final String EXCEL_ROW_CODEC = "org.isisaddons.module.excel.dom.ExcelRowCodec";
+    static final String SUFFIX = "_ExcelRowCodec";
+
+    private static class Accessors {
+        private ExecutableElement getter;
+        private ExecutableElement setter;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        for (final TypeElement annotation : annotations) {
+            for (final Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS ||
+                    ((TypeElement) element).getNestingKind() != NestingKind.TOP_LEVEL) {
+                    error(element, "@ExcelCodec is only supported on top-level classes");
+                    continue;
+                }
+                generate((TypeElement) element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(final TypeElement type) {
+        final Map<String, Accessors> accessorsById = accessorsOf(type);
+
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = pkg.getQualifiedName().toString();
+        final String className = type.getQualifiedName().toString();
+        final String codecSimpleName = type.getSimpleName() + SUFFIX;
+        final String codecName = pkg.isUnnamed() ? codecSimpleName : packageName + "." + codecSimpleName;
+
+        final List<String> ids = new ArrayList<>(accessorsById.keySet());
+        try {
+            final JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(codecName, type);
+            try (Writer writer = sourceFile.openWriter(); PrintWriter out = new PrintWriter(writer)) {
+                if (!pkg.isUnnamed()) {
+                    out.println("package " + packageName + ";");
+                    out.println();
+                }
+                out.println("@javax.annotation.Generated(\"" + getClass().getName() + "\")");
+                out.println("public final class " + codecSimpleName + " implements " + EXCEL_ROW_CODEC + "<" + className + "> {");
+                out.println();
+                out.print("    private static final String[] PROPERTY_IDS = {");
+                for (int i = 0; i < ids.size(); i++) {
+                    out.print((i > 0 ? ", " : " ") + "\"" + ids.get(i) + "\"");
+                }
+                out.println(" };");
+                out.println();
+
+                out.println("    @Override");
+                out.println("    public String[] getPropertyIds() {");
+                out.println("        return PROPERTY_IDS.clone();");
+                out.println("    }");
+                out.println();
+
+                out.println("    @Override");
+                out.println("    public Object get(final " + className + " domainObject, final int propertyIndex) {");
+                out.println("        switch (propertyIndex) {");
+                for (int i = 0; i < ids.size(); i++) {
+                    out.println("            case " + i + ": return domainObject." + accessorsById.get(ids.get(i)).getter.getSimpleName() + "();");
+                }
+                out.println("            default: throw new IndexOutOfBoundsException(String.valueOf(propertyIndex));");
+                out.println("        }");
+                out.println("    }");
+                out.println();
+
+                out.println("    @Override");
+                out.println("    public boolean isSettable(final int propertyIndex) {");
+                out.println("        switch (propertyIndex) {");
+                for (int i = 0; i < ids.size(); i++) {
+                    out.println("            case " + i + ": return " + (accessorsById.get(ids.get(i)).setter != null) + ";");
+                }
+                out.println("            default: throw new IndexOutOfBoundsException(String.valueOf(propertyIndex));");
+                out.println("        }");
+                out.println("    }");
+                out.println();
+
+                out.println("    @Override");
+                out.println("    public void set(final " + className + " domainObject, final int propertyIndex, final Object value) {");
+                out.println("        switch (propertyIndex) {");
+                for (int i = 0; i < ids.size(); i++) {
+                    final ExecutableElement setter = accessorsById.get(ids.get(i)).setter;
+                    if (setter != null) {
+                        final String castType = castTypeOf(setter.getParameters().get(0).asType());
+                        out.println("            case " + i + ": domainObject." + setter.getSimpleName() + "((" + castType + ") value); return;");
+                    }
+                }
+                out.println("            default: throw new UnsupportedOperationException(\"No setter for property \" + propertyIndex);");
+                out.println("        }");
+                out.println("    }");
+                out.println();
+                out.println("}");
+            }
+        } catch (final IOException ex) {
+            error(type, "Could not generate " + codecName + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Including inherited methods, in the order declared.
+     */
+    private Map<String, Accessors> accessorsOf(final TypeElement type) {
+        final Types types = processingEnv.getTypeUtils();
+        final List<ExecutableElement> methods =
+                ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+
+        final Map<String, Accessors> accessorsById = new LinkedHashMap<>();
+        for (final ExecutableElement method : methods) {
+            final String id = getterIdOf(method);
+            if (id != null) {
+                final Accessors accessors = new Accessors();
+                accessors.getter = method;
+                accessorsById.put(id, accessors);
+            }
+        }
+        for (final ExecutableElement method : methods) {
+            final String name = method.getSimpleName().toString();
+            if (!isPublicInstance(method) || !name.startsWith("set") || name.length() == 3 ||
+                method.getParameters().size() != 1 || method.getReturnType().getKind() != TypeKind.VOID) {
+                continue;
+            }
+            final Accessors accessors = accessorsById.get(decapitalize(name.substring(3)));
+            if (accessors != null &&
+                types.isSameType(method.getParameters().get(0).asType(), accessors.getter.getReturnType())) {
+                accessors.setter = method;
+            }
+        }
+        return Collections.unmodifiableMap(accessorsById);
+    }
+
+    private static String getterIdOf(final ExecutableElement method) {
+        if (!isPublicInstance(method) || !method.getParameters().isEmpty()) {
+            return null;
+        }
+        final String name = method.getSimpleName().toString();
+        final TypeKind returnKind = method.getReturnType().getKind();
+        if (name.startsWith("get") && name.length() > 3 && returnKind != TypeKind.VOID && !name.equals("getClass")) {
+            return decapitalize(name.substring(3));
+        }
+        if (name.startsWith("is") && name.length() > 2 && returnKind == TypeKind.BOOLEAN) {
+            return decapitalize(name.substring(2));
+        }
+        return null;
+    }
+
+    private static boolean isPublicInstance(final ExecutableElement method) {
+        final Set<Modifier> modifiers = method.getModifiers();
+        return modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC);
+    }
+
+    private static String decapitalize(final String name) {
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Casting to the boxed type for primitives (then unboxed by the compiler), and to the erasure for generic types.
+     */
+    private String castTypeOf(final TypeMirror type) {
+        final Types types = processingEnv.getTypeUtils();
+        if (type.getKind().isPrimitive()) {
+            return types.boxedClass(types.getPrimitiveType(type.getKind())).getQualifiedName().toString();
+        }
+        return types.erasure(type).toString();
+    }
+
+    private void error(final Element element, final String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+}
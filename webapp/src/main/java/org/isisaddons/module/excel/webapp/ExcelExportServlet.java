@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.applib.query.QueryDefault;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+
+import org.isisaddons.module.excel.dom.ExcelService;
+
+/**
+ * Streams an export of entities to the response as the spreadsheet is written, rather than (as returning a
+ * {@link org.apache.isis.applib.value.Blob} from an action would) first building the whole file in memory.
+ *
+ * <p>
+ * The request parameters are:
+ * <ul>
+ *     <li><tt>class</tt> - the (fully qualified) name of the entity class to export;</li>
+ *     <li><tt>query</tt> - optionally, the name of a (JDO) named query of that class, else all instances are
+ *     exported;</li>
+ *     <li><tt>format</tt> - optionally, <tt>csv</tt> rather than <tt>xlsx</tt>;</li>
+ * </ul>
+ * and any other parameters are passed (as strings) as the arguments of the named query.  For example:
+ * <pre>
+ * /excel/export?class=org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem&amp;query=todo_notYetComplete&amp;ownedBy=sven
+ * </pre>
+ *
+ * <p>
+ * Only the entity classes listed by the <tt>classes</tt> init-param, and the named queries listed by the
+ * <tt>queries</tt> init-param, can be requested (each list being separated by commas or whitespace).  The request is
+ * refused if the current user is not authorized to view every property of the class, and any objects hidden from
+ * the user are left out.
+ *
+ * <p>
+ * The objects found are all held in memory (as a {@link List}, as required by {@link ExcelService}) while the export
+ * is written, so the query should bound how many are returned; only the spreadsheet itself is streamed.
+ *
+ * <p>
+ * No content length is set, so the response is sent using chunked transfer encoding.  As specified in
+ * <tt>web.xml</tt>, requests are authenticated and run within an Isis session and transaction by the same filters as
+ * the Restful Objects viewer.
+ */
+public class ExcelExportServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String INIT_PARAM_QUERIES = "queries";
+
+    private static final String PARAM_CLASS = "class";
+    private static final String PARAM_QUERY = "query";
+    private static final String PARAM_FORMAT = "format";
+    private static final Set<String> RESERVED_PARAMS = ImmutableSet.of(PARAM_CLASS, PARAM_QUERY, PARAM_FORMAT);
+
+    private static final String FORMAT_XLSX = "xlsx";
+    private static final String FORMAT_CSV = "csv";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Set<String> allowedClassNames;
+    private Set<String> allowedQueryNames;
+
+    @Override
+    public void init() throws ServletException {
+        allowedClassNames = ExcelServlets.initParameterNames(getServletConfig(), ExcelServlets.INIT_PARAM_CLASSES);
+        allowedQueryNames = ExcelServlets.initParameterNames(getServletConfig(), INIT_PARAM_QUERIES);
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException {
+
+        final String format = request.getParameter(PARAM_FORMAT) != null ? request.getParameter(PARAM_FORMAT) : FORMAT_XLSX;
+        if (!FORMAT_XLSX.equals(format) && !FORMAT_CSV.equals(format)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format '" + format + "'");
+            return;
+        }
+
+        final ObjectSpecification spec = ExcelServlets.entitySpecFor(request.getParameter(PARAM_CLASS), allowedClassNames);
+        if (spec == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown entity class '" + request.getParameter(PARAM_CLASS) + "'");
+            return;
+        }
+        final String queryName = request.getParameter(PARAM_QUERY);
+        if (queryName != null && !allowedQueryNames.contains(queryName)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown query '" + queryName + "'");
+            return;
+        }
+        final String unauthorizedProperty = ExcelServlets.unauthorizedProperty(spec, false);
+        if (unauthorizedProperty != null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not authorized to view '" + unauthorizedProperty + "'");
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final Class<Object> cls = (Class<Object>) spec.getCorrespondingClass();
+        final List<Object> domainObjects;
+        try {
+            domainObjects = find(cls, queryName, request);
+        } catch (final RuntimeException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        final ExcelService excelService = ExcelServlets.lookupService(ExcelService.class);
+        final String fileName = cls.getSimpleName() + "." + format;
+        response.setContentType(FORMAT_CSV.equals(format) ? ExcelService.CSV_MIME_TYPE : ExcelService.XSLX_MIME_TYPE);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        response.setBufferSize(BUFFER_SIZE);
+
+        final OutputStream os = response.getOutputStream();
+        try {
+            if (FORMAT_CSV.equals(format)) {
+                excelService.toCsv(domainObjects, cls, os);
+            } else {
+                excelService.toExcel(domainObjects, cls, os);
+            }
+        } catch (final ExcelService.Exception ex) {
+            // the response has most likely been committed, so all that can be done is to abandon it
+            throw new ServletException(ex);
+        }
+    }
+
+    /**
+     * The objects (visible to the current user) returned by the named query, else all instances.
+     */
+    private static List<Object> find(final Class<Object> cls, final String queryName, final HttpServletRequest request) {
+        final List<Object> found = queryName != null
+                ? findByQuery(cls, queryName, request)
+                : ExcelServlets.lookupService(DomainObjectContainer.class).allInstances(cls);
+        final List<Object> domainObjects = Lists.newArrayListWithCapacity(found.size());
+        for (final Object domainObject : found) {
+            if (ExcelServlets.isVisible(domainObject)) {
+                domainObjects.add(domainObject);
+            }
+        }
+        return domainObjects;
+    }
+
+    private static List<Object> findByQuery(final Class<Object> cls, final String queryName, final HttpServletRequest request) {
+        final DomainObjectContainer container = ExcelServlets.lookupService(DomainObjectContainer.class);
+        final Map<String, Object> arguments = Maps.newLinkedHashMap();
+        final Enumeration<String> parameterNames = request.getParameterNames();
+        while (parameterNames.hasMoreElements()) {
+            final String parameterName = parameterNames.nextElement();
+            if (!RESERVED_PARAMS.contains(parameterName)) {
+                arguments.put(parameterName, request.getParameter(parameterName));
+            }
+        }
+        return container.allMatches(new QueryDefault<>(cls, queryName, arguments));
+    }
+
+}
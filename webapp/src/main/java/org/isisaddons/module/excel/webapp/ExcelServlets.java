@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.util.Set;
+
+import javax.servlet.ServletConfig;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.isis.core.commons.authentication.AuthenticationSession;
+import org.apache.isis.core.metamodel.adapter.ObjectAdapter;
+import org.apache.isis.core.metamodel.consent.InteractionInitiatedBy;
+import org.apache.isis.core.metamodel.runtimecontext.ServicesInjector;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+import org.apache.isis.core.metamodel.spec.feature.Contributed;
+import org.apache.isis.core.metamodel.spec.feature.ObjectAssociation;
+import org.apache.isis.core.metamodel.spec.feature.OneToOneAssociation;
+import org.apache.isis.core.runtime.authorization.AuthorizationManager;
+import org.apache.isis.core.runtime.system.context.IsisContext;
+import org.apache.isis.objectstore.jdo.metamodel.facets.object.persistencecapable.JdoPersistenceCapableFacet;
+
+/**
+ * Lookups shared by the {@link ExcelExportServlet} and {@link ExcelUploadServlet}, both of which run within an Isis
+ * session.
+ */
+final class ExcelServlets {
+
+    /**
+     * The init-param listing the (fully qualified) names of the entity classes that may be exported or uploaded.
+     */
+    static final String INIT_PARAM_CLASSES = "classes";
+
+    private ExcelServlets() {
+    }
+
+    /**
+     * The names listed (separated by commas and/or whitespace) by the servlet's init-param; none if it is not set.
+     */
+    static Set<String> initParameterNames(final ServletConfig config, final String name) {
+        final String value = config.getInitParameter(name);
+        if (value == null) {
+            return ImmutableSet.of();
+        }
+        return ImmutableSet.copyOf(Splitter.onPattern("[,\\s]+").omitEmptyStrings().split(value));
+    }
+
+    /**
+     * Only entities can be exported (by query) or uploaded (and persisted), and then only those listed as
+     * {@link #INIT_PARAM_CLASSES allowed} and not hidden; returns <tt>null</tt> for any other class.
+     *
+     * <p>
+     *     No class is loaded unless it is listed.
+     * </p>
+     */
+    static ObjectSpecification entitySpecFor(final String className, final Set<String> allowedClassNames) {
+        if (className == null || !allowedClassNames.contains(className)) {
+            return null;
+        }
+        final Class<?> cls;
+        try {
+            cls = Thread.currentThread().getContextClassLoader().loadClass(className);
+        } catch (final ClassNotFoundException ex) {
+            return null;
+        }
+        final ObjectSpecification spec = IsisContext.getSpecificationLoader().loadSpecification(cls);
+        if (spec == null || spec.getFacet(JdoPersistenceCapableFacet.class) == null || spec.isHidden()) {
+            return null;
+        }
+        return spec;
+    }
+
+    /**
+     * The first of the entity's properties that the current user is not authorized to view (or, if
+     * <tt>usable</tt>, to change); <tt>null</tt> if there are none.
+     */
+    static String unauthorizedProperty(final ObjectSpecification spec, final boolean usable) {
+        final AuthorizationManager authorizationManager = IsisContext.getSessionFactory().getAuthorizationManager();
+        final AuthenticationSession authenticationSession = IsisContext.getAuthenticationSession();
+        for (final ObjectAssociation association : spec.getAssociations(Contributed.INCLUDED)) {
+            if (!(association instanceof OneToOneAssociation)) {
+                continue;
+            }
+            final boolean authorized = usable
+                    ? authorizationManager.isUsable(authenticationSession, null, association.getIdentifier())
+                    : authorizationManager.isVisible(authenticationSession, null, association.getIdentifier());
+            if (!authorized) {
+                return association.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether the current user may see the object (as per any <tt>hidden()</tt> method of the entity).
+     */
+    static boolean isVisible(final Object domainObject) {
+        final ObjectAdapter adapter = IsisContext.getPersistenceSession().adapterFor(domainObject);
+        return ObjectAdapter.Util.isVisible(adapter, InteractionInitiatedBy.USER);
+    }
+
+    static <T> T lookupService(final Class<T> serviceClass) {
+        final ServicesInjector servicesInjector = IsisContext.getSessionFactory().getServicesInjector();
+        return servicesInjector.lookupService(serviceClass);
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.isis.applib.DomainObjectContainer;
+import org.apache.isis.core.metamodel.spec.ObjectSpecification;
+
+import org.isisaddons.module.excel.dom.ExcelService;
+import org.isisaddons.module.excel.dom.util.ExcelServiceImpl;
+
+/**
+ * Imports an uploaded spreadsheet (or CSV file) of entities, persisting each as soon as it has been imported and
+ * reporting progress (as plain text) as it goes.
+ *
+ * <p>
+ * Rather than the upload being held as a {@link org.apache.isis.applib.value.Blob} (and then copied again, into a
+ * stream and by POI), the request body is {@link SpooledUpload spooled} to a temporary file, which is imported
+ * by {@link ExcelService#fromExcelValidating(File, Class, ExcelServiceImpl.ImportCallback)} (an <tt>.xlsx</tt> file
+ * being memory-mapped) or, for CSV, read a record at a time.  The file is deleted once imported.
+ *
+ * <p>
+ * The body is either <tt>multipart/form-data</tt> (as posted by an HTML form with a file input) or the file itself.
+ * The (fully qualified) name of the entity class is given by the <tt>class</tt> parameter (of the query string, or a
+ * field of the form).  The file is treated as CSV if its name ends with <tt>.csv</tt>, or the <tt>format</tt>
+ * parameter is <tt>csv</tt>, or the body's content type is <tt>text/csv</tt>.  For example:
+ * <pre>
+ * curl -u sven:pass -H "Content-Type: application/octet-stream" --data-binary @toDoItems.xlsx "http://localhost:8080/excel/upload?class=org.isisaddons.module.excel.fixture.dom.ExcelModuleDemoToDoItem"
+ * </pre>
+ *
+ * <p>
+ * Only the entity classes listed by the <tt>classes</tt> init-param (separated by commas or whitespace) can be
+ * uploaded, and only if the current user is authorized to change every property of the class; if the class is given
+ * in the query string, this is checked before the body is read.  A body larger than the <tt>maxUploadSize</tt>
+ * init-param (in bytes, by default 100MB) is refused with a 413 status.
+ *
+ * <p>
+ * As for {@link ExcelService#fromExcelValidating(org.apache.isis.applib.value.Blob, Class)}, any rows with cells
+ * that cannot be imported are skipped, and the errors reported once the whole file has been read.  Each object
+ * imported is validated (as per its <tt>validate()</tt> method) before it is persisted, any that are invalid being
+ * reported and skipped.  As specified in
+ * <tt>web.xml</tt>, requests are authenticated and run within an Isis session and transaction by the same filters as
+ * the Restful Objects viewer.
+ */
+public class ExcelUploadServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String INIT_PARAM_MAX_UPLOAD_SIZE = "maxUploadSize";
+    private static final long DEFAULT_MAX_UPLOAD_SIZE = 100L * 1024 * 1024;
+
+    private static final String PARAM_CLASS = "class";
+    private static final String PARAM_FORMAT = "format";
+    private static final String FORMAT_CSV = "csv";
+    private static final String CSV_SUFFIX = ".csv";
+
+    /**
+     * The number of objects imported between each report of progress.
+     */
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private Set<String> allowedClassNames;
+    private long maxUploadSize;
+
+    @Override
+    public void init() throws ServletException {
+        allowedClassNames = ExcelServlets.initParameterNames(getServletConfig(), ExcelServlets.INIT_PARAM_CLASSES);
+        final String maxUploadSizeParam = getInitParameter(INIT_PARAM_MAX_UPLOAD_SIZE);
+        try {
+            maxUploadSize = maxUploadSizeParam != null ? Long.parseLong(maxUploadSizeParam.trim()) : DEFAULT_MAX_UPLOAD_SIZE;
+        } catch (final NumberFormatException ex) {
+            throw new ServletException("Invalid " + INIT_PARAM_MAX_UPLOAD_SIZE + " '" + maxUploadSizeParam + "'", ex);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException {
+
+        // if given in the query string, the class is checked before reading the body
+        ObjectSpecification spec = null;
+        if (request.getParameter(PARAM_CLASS) != null) {
+            spec = entitySpecFor(request.getParameter(PARAM_CLASS), response);
+            if (spec == null) {
+                return;
+            }
+        }
+        if (request.getContentLength() > maxUploadSize) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Upload is larger than " + maxUploadSize + " bytes");
+            return;
+        }
+
+        final File tempDir = (File) getServletContext().getAttribute("javax.servlet.context.tempdir");
+        final SpooledUpload upload;
+        try {
+            upload = SpooledUpload.spool(request.getInputStream(), request.getContentType(), tempDir, maxUploadSize);
+        } catch (final SpooledUpload.TooLargeException ex) {
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, ex.getMessage());
+            return;
+        } catch (final IllegalArgumentException ex) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+        try {
+            if (!upload.hasFile()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No file uploaded");
+                return;
+            }
+            if (spec == null) {
+                spec = entitySpecFor(upload.getField(PARAM_CLASS), response);
+                if (spec == null) {
+                    return;
+                }
+            }
+            @SuppressWarnings("unchecked")
+            final Class<Object> cls = (Class<Object>) spec.getCorrespondingClass();
+            importUpload(upload, cls, isCsv(request, upload), response);
+        } finally {
+            upload.close();
+        }
+    }
+
+    /**
+     * The specification of the entity class, provided that it can be uploaded by the current user; else sends an
+     * error and returns <tt>null</tt>.
+     */
+    private ObjectSpecification entitySpecFor(final String className, final HttpServletResponse response) throws IOException {
+        final ObjectSpecification spec = ExcelServlets.entitySpecFor(className, allowedClassNames);
+        if (spec == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown entity class '" + className + "'");
+            return null;
+        }
+        final String unauthorizedProperty = ExcelServlets.unauthorizedProperty(spec, true);
+        if (unauthorizedProperty != null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not authorized to change '" + unauthorizedProperty + "'");
+            return null;
+        }
+        return spec;
+    }
+
+    private static void importUpload(
+            final SpooledUpload upload,
+            final Class<Object> cls,
+            final boolean csv,
+            final HttpServletResponse response) throws ServletException, IOException {
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final PrintWriter writer = response.getWriter();
+        writer.println("Received " + upload.getSize() + " bytes" + (upload.getFileName() != null ? " (" + upload.getFileName() + ")" : ""));
+        writer.flush();
+
+        final ExcelService excelService = ExcelServlets.lookupService(ExcelService.class);
+        final DomainObjectContainer container = ExcelServlets.lookupService(DomainObjectContainer.class);
+        final int[] imported = new int[1];
+        final int[] invalid = new int[1];
+        final ExcelServiceImpl.ImportCallback<Object> callback = new ExcelServiceImpl.ImportCallback<Object>() {
+            @Override
+            public void onImported(final Object object) {
+                final String invalidReason = container.validate(object);
+                if (invalidReason != null) {
+                    invalid[0]++;
+                    writer.println("Invalid '" + container.titleOf(object) + "': " + invalidReason);
+                    return;
+                }
+                container.persist(object);
+                if (++imported[0] % PROGRESS_INTERVAL == 0) {
+                    writer.println("Imported " + imported[0] + " rows");
+                    writer.flush();
+                }
+            }
+        };
+
+        final List<ExcelService.ImportError> errors;
+        try {
+            errors = csv
+                    ? excelService.fromCsvValidating(new BufferedInputStream(new FileInputStream(upload.getFile())), cls, callback)
+                    : excelService.fromExcelValidating(upload.getFile(), cls, callback);
+        } catch (final ExcelService.Exception ex) {
+            // the response has been committed, so all that can be done is to abandon it
+            throw new ServletException(ex);
+        }
+
+        writer.println("Imported " + imported[0] + " rows; " + invalid[0] + " invalid; " + errors.size() + " errors");
+        for (final ExcelService.ImportError error : errors) {
+            writer.println(error);
+        }
+        writer.flush();
+    }
+
+    private static boolean isCsv(final HttpServletRequest request, final SpooledUpload upload) {
+        if (FORMAT_CSV.equals(parameter(request, upload, PARAM_FORMAT))) {
+            return true;
+        }
+        if (upload.getFileName() != null) {
+            return upload.getFileName().toLowerCase(Locale.ENGLISH).endsWith(CSV_SUFFIX);
+        }
+        return request.getContentType() != null && request.getContentType().startsWith(ExcelService.CSV_MIME_TYPE);
+    }
+
+    private static String parameter(final HttpServletRequest request, final SpooledUpload upload, final String name) {
+        final String value = request.getParameter(name);
+        return value != null ? value : upload.getField(name);
+    }
+
+}
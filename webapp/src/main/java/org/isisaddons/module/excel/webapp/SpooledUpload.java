@@ -0,0 +1,419 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * An uploaded file, copied (as it is received) from the request body to a temporary file, which is deleted when
+ * closed.
+ *
+ * <p>
+ *     The body is either <tt>multipart/form-data</tt> (as posted by an HTML form), in which case the first part with
+ *     a file name is spooled and any other (small) parts are kept as fields, or else is the file itself.  The
+ *     multipart body is parsed here, a buffer at a time, rather than by the servlet container (which would need
+ *     a Servlet 3.0 <tt>web.xml</tt>, and may itself buffer the parts in memory).
+ * </p>
+ */
+final class SpooledUpload implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+    private static final int MAX_FIELD_SIZE = 64 * 1024;
+
+    private static final String MULTIPART_FORM_DATA = "multipart/form-data";
+
+    /**
+     * Thrown if the body is larger than the maximum allowed; the spooled file will have been deleted.
+     */
+    static final class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(final long maxSize) {
+            super("Upload is larger than " + maxSize + " bytes");
+        }
+    }
+
+    /**
+     * @param tempDir - where to create the temporary file; if <tt>null</tt> the system's temporary directory.
+     * @param maxSize - the maximum number of bytes (of the whole body) that will be read.
+     * @throws TooLargeException - if the body is larger than <tt>maxSize</tt>.
+     */
+    static SpooledUpload spool(
+            final InputStream body,
+            final String contentType,
+            final File tempDir,
+            final long maxSize) throws IOException {
+        final SpooledUpload upload = new SpooledUpload(File.createTempFile("excel-upload", ".tmp", tempDir));
+        try {
+            final InputStream is = new LimitedInputStream(body, maxSize);
+            final String boundary = boundaryOf(contentType);
+            if (boundary != null) {
+                upload.spoolMultipart(is, boundary);
+            } else {
+                try (OutputStream os = upload.newFileOutputStream()) {
+                    final byte[] buf = new byte[BUFFER_SIZE];
+                    for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+                        os.write(buf, 0, n);
+                        upload.size += n;
+                    }
+                }
+                upload.hasFile = true;
+            }
+            return upload;
+        } catch (final IOException | RuntimeException ex) {
+            upload.close();
+            throw ex;
+        }
+    }
+
+    private final File file;
+    private final Map<String, String> fields = Maps.newLinkedHashMap();
+    private boolean hasFile;
+    private String fileName;
+    private long size;
+
+    private SpooledUpload(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Whether the body held a file (for a multipart body, a part with a file name).
+     */
+    boolean hasFile() {
+        return hasFile;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * As given in the multipart body; <tt>null</tt> if not known.
+     */
+    String getFileName() {
+        return fileName;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * The value of a (non-file) part of a multipart body.
+     */
+    String getField(final String name) {
+        return fields.get(name);
+    }
+
+    @Override
+    public void close() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private OutputStream newFileOutputStream() throws IOException {
+        return new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+    }
+
+    private void spoolMultipart(final InputStream is, final String boundary) throws IOException {
+        final MultipartScanner scanner = new MultipartScanner(is, ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        // the preamble, if any
+        if (!scanner.copyToDelimiter(null)) {
+            throw new IOException("Malformed multipart body (no boundary)");
+        }
+        while (scanner.nextPart()) {
+            String name = null;
+            String partFileName = null;
+            for (String header = scanner.readLine(); !header.isEmpty(); header = scanner.readLine()) {
+                if (header.toLowerCase(Locale.ENGLISH).startsWith("content-disposition:")) {
+                    name = parameterOf(header, "name");
+                    partFileName = parameterOf(header, "filename");
+                }
+            }
+
+            final boolean complete;
+            if (partFileName != null && !partFileName.isEmpty() && !hasFile) {
+                // some browsers send the full path
+                fileName = partFileName.substring(Math.max(partFileName.lastIndexOf('/'), partFileName.lastIndexOf('\\')) + 1);
+                hasFile = true;
+                try (OutputStream os = newFileOutputStream()) {
+                    complete = scanner.copyToDelimiter(os);
+                }
+                size = file.length();
+            } else if (partFileName == null && name != null) {
+                final String fieldName = name;
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                complete = scanner.copyToDelimiter(new OutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException {
+                        if (baos.size() + len > MAX_FIELD_SIZE) {
+                            throw new IOException("Field '" + fieldName + "' is too large");
+                        }
+                        baos.write(b, off, len);
+                    }
+                });
+                fields.put(fieldName, new String(baos.toByteArray(), StandardCharsets.UTF_8));
+            } else {
+                complete = scanner.copyToDelimiter(null);
+            }
+            if (!complete) {
+                throw new IOException("Malformed multipart body (truncated)");
+            }
+        }
+    }
+
+    private static String boundaryOf(final String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ENGLISH).startsWith(MULTIPART_FORM_DATA)) {
+            return null;
+        }
+        final String boundary = parameterOf(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("No boundary for multipart body");
+        }
+        return boundary;
+    }
+
+    /**
+     * The (possibly quoted) value of a <tt>name=value</tt> parameter of a header, such as the <tt>filename</tt> of a
+     * <tt>Content-Disposition</tt>.
+     */
+    private static String parameterOf(final String header, final String parameterName) {
+        for (final String param : header.split(";")) {
+            final int equals = param.indexOf('=');
+            if (equals == -1 || !param.substring(0, equals).trim().equalsIgnoreCase(parameterName)) {
+                continue;
+            }
+            final String value = param.substring(equals + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    /**
+     * Fails as soon as more than the maximum number of bytes have been read, rather than spooling a body of any
+     * size to disk.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+        private long count;
+
+        LimitedInputStream(final InputStream is, final long maxSize) {
+            super(is);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(final long n) throws TooLargeException {
+            count += n;
+            if (count > maxSize) {
+                throw new TooLargeException(maxSize);
+            }
+        }
+    }
+
+    /**
+     * Scans a multipart body for the delimiters between its parts, a buffer at a time.
+     */
+    private static final class MultipartScanner {
+
+        private final InputStream is;
+        private final byte[] delimiter;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int head;
+        private int tail;
+        private boolean eof;
+
+        /**
+         * @param delimiter - <tt>CRLF--boundary</tt>.
+         */
+        MultipartScanner(final InputStream is, final byte[] delimiter) {
+            this.is = is;
+            this.delimiter = delimiter;
+            // so that a boundary at the very start of the body is also preceded by CRLF
+            buf[tail++] = '\r';
+            buf[tail++] = '\n';
+        }
+
+        /**
+         * Copies the data up to (but not including) the next delimiter, which is consumed.
+         *
+         * @param os - if <tt>null</tt> then the data is discarded.
+         * @return <tt>false</tt> if the body ended before a delimiter was found.
+         */
+        boolean copyToDelimiter(final OutputStream os) throws IOException {
+            while (true) {
+                final int index = indexOfDelimiter();
+                if (index != -1) {
+                    write(os, index - head);
+                    head = index + delimiter.length;
+                    return true;
+                }
+                // the end of the buffer might be the start of a delimiter
+                final int keep = Math.min(delimiter.length - 1, tail - head);
+                write(os, tail - head - keep);
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * After a delimiter, whether another part follows (rather than the end of the body).
+         */
+        boolean nextPart() throws IOException {
+            require(2);
+            if (buf[head] == '-' && buf[head + 1] == '-') {
+                return false;
+            }
+            // ignore any (transport) padding before the CRLF
+            readLine();
+            return true;
+        }
+
+        /**
+         * Reads a header line (of ASCII), without its CRLF.
+         */
+        String readLine() throws IOException {
+            int from = head;
+            while (true) {
+                for (int i = from; i < tail - 1; i++) {
+                    if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                        final String line = new String(buf, head, i - head, StandardCharsets.UTF_8);
+                        head = i + 2;
+                        return line;
+                    }
+                }
+                if (tail - head > MAX_HEADER_LINE) {
+                    throw new IOException("Malformed multipart body (header too long)");
+                }
+                from = Math.max(head, tail - 1);
+                final int consumed = head;
+                if (!fill()) {
+                    throw new IOException("Malformed multipart body (truncated)");
+                }
+                from -= consumed - head;
+            }
+        }
+
+        private void require(final int n) throws IOException {
+            while (tail - head < n) {
+                if (!fill()) {
+                    throw new IOException("Malformed multipart body (truncated)");
+                }
+            }
+        }
+
+        private int indexOfDelimiter() {
+            final int last = tail - delimiter.length;
+            outer:
+            for (int i = head; i <= last; i++) {
+                if (buf[i] != delimiter[0]) {
+                    continue;
+                }
+                for (int j = 1; j < delimiter.length; j++) {
+                    if (buf[i + j] != delimiter[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private void write(final OutputStream os, final int len) throws IOException {
+            if (os != null && len > 0) {
+                os.write(buf, head, len);
+            }
+            head += len;
+        }
+
+        /**
+         * Moves the unconsumed data to the start of the buffer, and reads more after it.
+         *
+         * @return <tt>false</tt> if there is no more to read.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (head > 0) {
+                System.arraycopy(buf, head, buf, 0, tail - head);
+                tail -= head;
+                head = 0;
+            }
+            if (tail == buf.length) {
+                throw new IOException("Malformed multipart body (line too long)");
+            }
+            final int n = is.read(buf, tail, buf.length - tail);
+            if (n == -1) {
+                eof = true;
+                return false;
+            }
+            tail += n;
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jmock.Expectations;
+import org.jmock.auto.Mock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.apache.isis.core.unittestsupport.jmocking.JUnitRuleMockery2;
+
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class ExcelExportServletTest {
+
+    @Rule
+    public JUnitRuleMockery2 context = JUnitRuleMockery2.createFor(JUnitRuleMockery2.Mode.INTERFACES_AND_CLASSES);
+
+    @Mock
+    private ServletConfig mockServletConfig;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    private ExcelExportServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockServletConfig).getInitParameter("classes");
+            will(returnValue("org.example.NoSuchEntity, org.example.OtherEntity"));
+            allowing(mockServletConfig).getInitParameter("queries");
+            will(returnValue(null));
+        }});
+        servlet = new ExcelExportServlet();
+        servlet.init(mockServletConfig);
+    }
+
+    @Test
+    public void unknown_format() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("format");
+            will(returnValue("pdf"));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("'pdf'")));
+        }});
+
+        // when
+        servlet.doGet(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void unknown_class() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("format");
+            will(returnValue("csv"));
+            allowing(mockRequest).getParameter("class");
+            will(returnValue("org.example.NoSuchEntity"));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("'org.example.NoSuchEntity'")));
+        }});
+
+        // when
+        servlet.doGet(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void class_not_allowed() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("format");
+            will(returnValue(null));
+            allowing(mockRequest).getParameter("class");
+            will(returnValue("java.lang.String"));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("'java.lang.String'")));
+        }});
+
+        // when
+        servlet.doGet(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void missing_class() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("format");
+            will(returnValue(null));
+            allowing(mockRequest).getParameter("class");
+            will(returnValue(null));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("Unknown entity class")));
+        }});
+
+        // when
+        servlet.doGet(mockRequest, mockResponse);
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.auto.Mock;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.isis.core.unittestsupport.jmocking.JUnitRuleMockery2;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ExcelUploadServletTest {
+
+    @Rule
+    public JUnitRuleMockery2 context = JUnitRuleMockery2.createFor(JUnitRuleMockery2.Mode.INTERFACES_AND_CLASSES);
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Mock
+    private ServletConfig mockServletConfig;
+
+    @Mock
+    private ServletContext mockServletContext;
+
+    @Mock
+    private HttpServletRequest mockRequest;
+
+    @Mock
+    private HttpServletResponse mockResponse;
+
+    @Mock
+    private ServletInputStream mockInputStream;
+
+    private ExcelUploadServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {{
+            allowing(mockServletConfig).getServletContext();
+            will(returnValue(mockServletContext));
+            allowing(mockServletContext).getAttribute("javax.servlet.context.tempdir");
+            will(returnValue(tempDir.getRoot()));
+            allowing(mockServletConfig).getInitParameter("classes");
+            will(returnValue("org.example.NoSuchEntity"));
+            allowing(mockServletConfig).getInitParameter("maxUploadSize");
+            will(returnValue("1024"));
+        }});
+        servlet = new ExcelUploadServlet();
+        servlet.init(mockServletConfig);
+    }
+
+    @Test
+    public void no_file() throws Exception {
+
+        // given
+        final String boundary = "xyz";
+        final String body =
+                "--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"class\"\r\n\r\n" +
+                "org.example.Item\r\n" +
+                "--" + boundary + "--\r\n";
+        request("multipart/form-data; boundary=" + boundary, body);
+
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue(null));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("No file")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+
+        // then the spooled file is deleted
+        assertThat(tempDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void unknown_class() throws Exception {
+
+        // given
+        request("application/octet-stream", "spreadsheet");
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue("org.example.NoSuchEntity"));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("'org.example.NoSuchEntity'")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+
+        // then
+        assertThat(tempDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void multipart_without_boundary() throws Exception {
+
+        // given
+        request("multipart/form-data", "");
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue(null));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("boundary")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+
+        // then
+        assertThat(tempDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void class_in_query_string_is_checked_before_reading_the_body() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue("java.lang.String"));
+
+            // then
+            never(mockRequest).getInputStream();
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_BAD_REQUEST), with(containsString("'java.lang.String'")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void content_length_larger_than_max_upload_size() throws Exception {
+
+        // given
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue(null));
+            allowing(mockRequest).getContentLength();
+            will(returnValue(1025));
+
+            // then
+            never(mockRequest).getInputStream();
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), with(containsString("1024 bytes")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+    }
+
+    @Test
+    public void body_larger_than_max_upload_size() throws Exception {
+
+        // given
+        request(-1, "application/octet-stream", new String(new char[1025]).replace('\0', 'x'));
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getParameter("class");
+            will(returnValue(null));
+
+            // then
+            oneOf(mockResponse).sendError(with(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), with(containsString("1024 bytes")));
+        }});
+
+        // when
+        servlet.doPost(mockRequest, mockResponse);
+
+        // then
+        assertThat(tempDir.getRoot().list().length, is(0));
+    }
+
+    private void request(final String contentType, final String body) throws IOException {
+        request(body.getBytes(StandardCharsets.UTF_8).length, contentType, body);
+    }
+
+    /**
+     * The request body is read through a mock (rather than a subclass of) {@link ServletInputStream}, whose abstract
+     * methods differ between versions of the Servlet API.
+     */
+    private void request(final int contentLength, final String contentType, final String body) throws IOException {
+        final ByteArrayInputStream bais = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+        context.checking(new Expectations() {{
+            allowing(mockRequest).getContentLength();
+            will(returnValue(contentLength));
+            allowing(mockRequest).getContentType();
+            will(returnValue(contentType));
+            allowing(mockRequest).getInputStream();
+            will(returnValue(mockInputStream));
+
+            allowing(mockInputStream).read(with(any(byte[].class)));
+            will(new CustomAction("read") {
+                @Override
+                public Object invoke(final Invocation invocation) throws Throwable {
+                    return bais.read((byte[]) invocation.getParameter(0));
+                }
+            });
+            allowing(mockInputStream).read(with(any(byte[].class)), with(any(int.class)), with(any(int.class)));
+            will(new CustomAction("read") {
+                @Override
+                public Object invoke(final Invocation invocation) throws Throwable {
+                    return bais.read(
+                            (byte[]) invocation.getParameter(0),
+                            (Integer) invocation.getParameter(1),
+                            (Integer) invocation.getParameter(2));
+                }
+            });
+        }});
+    }
+
+}
@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2014 Dan Haywood
+ *
+ *  Licensed under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ */
+package org.isisaddons.module.excel.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SpooledUploadTest {
+
+    private static final String BOUNDARY = "----boundary1234";
+    private static final String MULTIPART = "multipart/form-data; boundary=" + BOUNDARY;
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void body_is_the_file() throws Exception {
+
+        // given
+        final byte[] content = content(100 * 1024);
+
+        // when
+        try (SpooledUpload upload = spool(new ByteArrayInputStream(content), "application/octet-stream")) {
+
+            // then
+            assertThat(upload.hasFile(), is(true));
+            assertThat(upload.getFileName(), is(nullValue()));
+            assertThat(upload.getSize(), is((long) content.length));
+            assertThat(Arrays.equals(Files.readAllBytes(upload.getFile().toPath()), content), is(true));
+        }
+    }
+
+    @Test
+    public void multipart_with_fields_and_file() throws Exception {
+
+        // given
+        final byte[] content = content(200 * 1024);
+        final byte[] body = multipart(
+                "preamble, to be ignored",
+                field("class", "org.example.Item"),
+                file("upload", "C:\\Users\\sven\\items.xlsx", content),
+                field("format", "café"));
+
+        // when
+        try (SpooledUpload upload = spool(new ByteArrayInputStream(body), MULTIPART)) {
+
+            // then
+            assertThat(upload.hasFile(), is(true));
+            assertThat(upload.getFileName(), is("items.xlsx"));
+            assertThat(upload.getSize(), is((long) content.length));
+            assertThat(Arrays.equals(Files.readAllBytes(upload.getFile().toPath()), content), is(true));
+            assertThat(upload.getField("class"), is("org.example.Item"));
+            assertThat(upload.getField("format"), is("café"));
+            assertThat(upload.getField("upload"), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void multipart_read_a_few_bytes_at_a_time() throws Exception {
+
+        // given (so that the delimiters and headers straddle reads)
+        final byte[] content = content(10 * 1024);
+        final byte[] body = multipart(null, field("class", "org.example.Item"), file("upload", "items.csv", content));
+
+        // when
+        try (SpooledUpload upload = spool(trickle(body, 7), MULTIPART)) {
+
+            // then
+            assertThat(upload.getFileName(), is("items.csv"));
+            assertThat(Arrays.equals(Files.readAllBytes(upload.getFile().toPath()), content), is(true));
+            assertThat(upload.getField("class"), is("org.example.Item"));
+        }
+    }
+
+    @Test
+    public void content_resembling_a_delimiter_is_kept() throws Exception {
+
+        // given
+        final byte[] content = ("line 1\r\n--" + BOUNDARY.substring(0, 10) + "\r\n--\r\nx--" + BOUNDARY).getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] body = multipart(null, file("upload", "items.csv", content));
+
+        // when
+        try (SpooledUpload upload = spool(new ByteArrayInputStream(body), MULTIPART)) {
+
+            // then
+            assertThat(Arrays.equals(Files.readAllBytes(upload.getFile().toPath()), content), is(true));
+        }
+    }
+
+    @Test
+    public void only_the_first_file_is_spooled() throws Exception {
+
+        // given
+        final byte[] body = multipart(null,
+                file("first", "first.xlsx", bytes("first")),
+                file("second", "second.xlsx", bytes("second")));
+
+        // when
+        try (SpooledUpload upload = spool(new ByteArrayInputStream(body), MULTIPART)) {
+
+            // then
+            assertThat(upload.getFileName(), is("first.xlsx"));
+            assertThat(new String(Files.readAllBytes(upload.getFile().toPath()), StandardCharsets.UTF_8), is("first"));
+        }
+    }
+
+    @Test
+    public void multipart_without_file() throws Exception {
+
+        // when
+        try (SpooledUpload upload = spool(new ByteArrayInputStream(multipart(null, field("class", "x"))), MULTIPART)) {
+
+            // then
+            assertThat(upload.hasFile(), is(false));
+            assertThat(upload.getField("class"), is("x"));
+        }
+    }
+
+    @Test
+    public void close_deletes_the_file() throws Exception {
+
+        // given
+        final SpooledUpload upload = spool(new ByteArrayInputStream(bytes("content")), null);
+        assertThat(upload.getFile().exists(), is(true));
+
+        // when
+        upload.close();
+
+        // then
+        assertThat(upload.getFile().exists(), is(false));
+        assertThat(tempDir.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void truncated_body_is_rejected_and_the_file_deleted() throws Exception {
+
+        // given
+        final byte[] body = multipart(null, file("upload", "items.xlsx", content(1024)));
+        final byte[] truncated = Arrays.copyOf(body, body.length - 40);
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("truncated"));
+
+        // when
+        try {
+            spool(new ByteArrayInputStream(truncated), MULTIPART);
+        } finally {
+            assertThat(tempDir.getRoot().list().length, is(0));
+        }
+    }
+
+    @Test
+    public void body_without_boundary_is_rejected() throws Exception {
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("no boundary"));
+
+        // when
+        spool(new ByteArrayInputStream(bytes("not multipart at all")), MULTIPART);
+    }
+
+    @Test
+    public void content_type_without_boundary_is_rejected() throws Exception {
+
+        // then
+        expectedException.expect(IllegalArgumentException.class);
+
+        // when
+        spool(new ByteArrayInputStream(bytes("")), "multipart/form-data");
+    }
+
+    @Test
+    public void oversized_field_is_rejected() throws Exception {
+
+        // given
+        final byte[] body = multipart(null, field("notes", new String(new char[100 * 1024]).replace('\0', 'x')));
+
+        // then
+        expectedException.expect(IOException.class);
+        expectedException.expectMessage(containsString("too large"));
+
+        // when
+        spool(new ByteArrayInputStream(body), MULTIPART);
+    }
+
+    @Test
+    public void body_larger_than_max_size_is_rejected() throws Exception {
+
+        // given
+        final byte[] content = content(1024);
+
+        // then
+        expectedException.expect(SpooledUpload.TooLargeException.class);
+
+        // when
+        try {
+            SpooledUpload.spool(new ByteArrayInputStream(content), "application/octet-stream", tempDir.getRoot(), 1023);
+        } finally {
+            assertThat(tempDir.getRoot().list().length, is(0));
+        }
+    }
+
+    @Test
+    public void multipart_body_larger_than_max_size_is_rejected() throws Exception {
+
+        // given
+        final byte[] body = multipart(null, file("upload", "items.xlsx", content(1024)));
+
+        // then
+        expectedException.expect(SpooledUpload.TooLargeException.class);
+
+        // when
+        try {
+            SpooledUpload.spool(new ByteArrayInputStream(body), MULTIPART, tempDir.getRoot(), 1024);
+        } finally {
+            assertThat(tempDir.getRoot().list().length, is(0));
+        }
+    }
+
+    @Test
+    public void body_of_max_size_is_accepted() throws Exception {
+
+        // given
+        final byte[] content = content(1024);
+
+        // when
+        try (SpooledUpload upload = SpooledUpload.spool(new ByteArrayInputStream(content), "application/octet-stream", tempDir.getRoot(), 1024)) {
+
+            // then
+            assertThat(upload.getSize(), is(1024L));
+        }
+    }
+
+    private SpooledUpload spool(final InputStream is, final String contentType) throws IOException {
+        return SpooledUpload.spool(is, contentType, tempDir.getRoot(), Long.MAX_VALUE);
+    }
+
+    private static String field(final String name, final String value) {
+        return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value;
+    }
+
+    private static FilePart file(final String name, final String fileName, final byte[] content) {
+        return new FilePart(
+                "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"\r\n" +
+                "Content-Type: application/octet-stream\r\n\r\n",
+                content);
+    }
+
+    private static class FilePart {
+        private final String headers;
+        private final byte[] content;
+
+        FilePart(final String headers, final byte[] content) {
+            this.headers = headers;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Each part is either a field (a string) or a file (its headers and content).
+     */
+    private static byte[] multipart(final String preamble, final Object... parts) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (preamble != null) {
+            baos.write(bytes(preamble + "\r\n"));
+        }
+        for (final Object part : parts) {
+            baos.write(bytes("--" + BOUNDARY + "\r\n"));
+            if (part instanceof String) {
+                baos.write(bytes((String) part));
+            } else {
+                baos.write(bytes(((FilePart) part).headers));
+                baos.write(((FilePart) part).content);
+            }
+            baos.write(bytes("\r\n"));
+        }
+        baos.write(bytes("--" + BOUNDARY + "--\r\nepilogue, to be ignored"));
+        return baos.toByteArray();
+    }
+
+    private static InputStream trickle(final byte[] body, final int maxRead) {
+        return new FilterInputStream(new ByteArrayInputStream(body)) {
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                return super.read(b, off, Math.min(len, maxRead));
+            }
+        };
+    }
+
+    /**
+     * Every byte value, including CR and LF and dashes.
+     */
+    private static byte[] content(final int size) {
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + i / 256);
+        }
+        return content;
+    }
+
+    private static byte[] bytes(final String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+}